@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The AdmissionControl class decides whether a new connection is served. It counts open
+ * connections in total (maxConnections) and per client address (maxConnectionsPerIp), and turns
+ * away connections over either limit, or that find the work queue full, the way overloadPolicy
+ * says: "reject" answers 503 Service Unavailable with a Retry-After header, "close" drops the
+ * connection without a response. Refusing is cheap and immediate, so under a spike the server
+ * keeps serving the connections it has instead of queueing without bound.
+ */
+public class AdmissionControl {
+
+    public static final String REJECT = "reject";
+    public static final String CLOSE = "close";
+
+    private final int maxConnections;
+    private final int maxConnectionsPerIp;
+    private final boolean sendResponse;
+    private final int retryAfter;
+
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final ConcurrentHashMap<InetAddress, Integer> perAddress = new ConcurrentHashMap<>();
+
+    // Limits of 0 or less are not enforced
+    public AdmissionControl(int maxConnections, int maxConnectionsPerIp, String overloadPolicy, int retryAfter) {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerIp = maxConnectionsPerIp;
+        this.sendResponse = !CLOSE.equalsIgnoreCase(overloadPolicy);
+        this.retryAfter = retryAfter;
+    }
+
+    // Count a new connection from address; false, without counting it, when a limit is reached
+    public boolean tryAdmit(InetAddress address) {
+        if (maxConnections > 0 && openConnections.incrementAndGet() > maxConnections) {
+            openConnections.decrementAndGet();
+            return false;
+        }
+        if (maxConnectionsPerIp > 0 && address != null
+                && perAddress.merge(address, 1, Integer::sum) > maxConnectionsPerIp) {
+            releaseAddress(address);
+            if (maxConnections > 0) {
+                openConnections.decrementAndGet();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    // A connection admitted by tryAdmit has closed
+    public void release(InetAddress address) {
+        if (maxConnections > 0) {
+            openConnections.decrementAndGet();
+        }
+        if (maxConnectionsPerIp > 0 && address != null) {
+            releaseAddress(address);
+        }
+    }
+
+    // Addresses without connections are removed, so the map only holds active clients
+    private void releaseAddress(InetAddress address) {
+        perAddress.computeIfPresent(address, (a, count) -> count > 1 ? count - 1 : null);
+    }
+
+    public boolean isSendResponse() {
+        return sendResponse;
+    }
+
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+
+    // Turn away a new connection (still in blocking mode) that was not admitted: 503 with Retry-After,
+    // or just close it. The response fits in the empty socket send buffer, so writing it does not wait.
+    public void refuse(SocketChannel channel) {
+        refuse(channel, false);
+    }
+
+    // A client on the TLS port cannot read a plaintext response before its handshake, so it is closed
+    public void refuse(SocketChannel channel, boolean tls) {
+        ServerMetrics.connectionRejected();
+        try {
+            if (sendResponse && !tls) {
+                Errors.sendServiceUnavailable(new ChannelOutputStream(channel), retryAfter);
+            }
+        } catch (IOException e) {
+            ServerLog.debug("Could not send 503 response: " + e.getMessage());
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                ServerLog.error("Could not close refused connection", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The ByteRanges class parses a Range request header ("bytes=0-499", "bytes=500-", "bytes=-500",
+ * or several of these separated by commas) against the length of the file being served. Ranges
+ * are clipped to the file, overlapping or adjacent ones are merged, and a request for more than
+ * MAX_RANGES pieces is ignored, so a client cannot make one request cost many small reads.
+ */
+public final class ByteRanges {
+
+    private static final int MAX_RANGES = 16;
+
+    private ByteRanges() {
+    }
+
+    // Satisfiable ranges as {first, last} byte positions (inclusive), in file order.
+    // Returns null when the header should be ignored (other units, bad syntax, too many ranges),
+    // and an empty list when the ranges are valid but none overlaps the file (416).
+    public static List<long[]> parse(String header, long length) {
+        if (header == null || !header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>();
+        for (String rawSpec : specs) {
+            String spec = rawSpec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    // Suffix range: the final N bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix <= 0) {
+                        continue;
+                    }
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    if (dash == spec.length() - 1) {
+                        last = length - 1; // Open range: to the end of the file
+                    } else {
+                        last = Long.parseLong(spec.substring(dash + 1));
+                        if (last < first) {
+                            return null;
+                        }
+                        last = Math.min(last, length - 1);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (first < 0) {
+                return null;
+            }
+            if (first < length) {
+                ranges.add(new long[] { first, last });
+            }
+        }
+        return merge(ranges);
+    }
+
+    // Sort by start and merge ranges that overlap or touch
+    private static List<long[]> merge(List<long[]> ranges) {
+        ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+        List<long[]> merged = new ArrayList<>(ranges.size());
+        for (long[] range : ranges) {
+            long[] previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (previous != null && range[0] <= previous[1] + 1) {
+                previous[1] = Math.max(previous[1], range[1]);
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+
+    // Whether an If-Range value still describes the current file version; if not, the whole file is sent.
+    // An entity tag must match strongly, a date must equal Last-Modified.
+    public static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        String value = ifRange.trim();
+        if (value.startsWith("\"") || value.startsWith("W/")) {
+            return value.equals(etag);
+        }
+        long date = HttpDate.parse(value);
+        return date >= 0 && date / 1000 == lastModified / 1000;
+    }
+}
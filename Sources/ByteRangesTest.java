@@ -0,0 +1,121 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * This class tests the ByteRanges class (parsing, clipping and merging Range headers, If-Range) and
+ * the 206 and 416 responses ClientHandler builds from it.
+ */
+public class ByteRangesTest {
+
+    public static void main(String[] args) {
+        TestSupport.run("single, open and clipped ranges", ByteRangesTest::testSingleRanges);
+        TestSupport.run("suffix ranges", ByteRangesTest::testSuffixRanges);
+        TestSupport.run("overlapping and adjacent ranges are merged", ByteRangesTest::testMerging);
+        TestSupport.run("unsatisfiable ranges", ByteRangesTest::testUnsatisfiable);
+        TestSupport.run("ignored Range headers", ByteRangesTest::testIgnored);
+        TestSupport.run("If-Range", ByteRangesTest::testIfRange);
+        TestSupport.run("206, multipart and 416 responses", ByteRangesTest::testResponses);
+        TestSupport.finish("ByteRangesTest");
+    }
+
+    static void testSingleRanges() {
+        assertRanges("0-4", ByteRanges.parse("bytes=0-4", 10), "first five bytes");
+        assertRanges("5-9", ByteRanges.parse("bytes=5-", 10), "open range");
+        assertRanges("8-9", ByteRanges.parse("bytes=8-100", 10), "last position clipped to the file");
+        assertRanges("3-3", ByteRanges.parse("BYTES= 3-3 ", 10), "unit in any case, spaces around the spec");
+    }
+
+    static void testSuffixRanges() {
+        assertRanges("7-9", ByteRanges.parse("bytes=-3", 10), "last three bytes");
+        assertRanges("0-9", ByteRanges.parse("bytes=-50", 10), "suffix longer than the file");
+        assertRanges("0-1,7-9", ByteRanges.parse("bytes=-3,0-1", 10), "suffix with another range, in file order");
+    }
+
+    static void testMerging() {
+        assertRanges("0-6", ByteRanges.parse("bytes=0-4,3-6", 10), "overlapping");
+        assertRanges("0-3", ByteRanges.parse("bytes=0-1,2-3", 10), "adjacent");
+        assertRanges("0-9", ByteRanges.parse("bytes=2-3,0-,-2", 10), "contained in an open range");
+        assertRanges("0-1,6-7", ByteRanges.parse("bytes=6-7,0-1", 10), "out of order");
+    }
+
+    static void testUnsatisfiable() {
+        assertRanges("", ByteRanges.parse("bytes=10-20", 10), "starts at the end");
+        assertRanges("", ByteRanges.parse("bytes=-0", 10), "empty suffix");
+        assertRanges("", ByteRanges.parse("bytes=-5", 0), "empty file");
+        assertRanges("2-3", ByteRanges.parse("bytes=20-30,2-3", 10), "the satisfiable one is kept");
+    }
+
+    static void testIgnored() {
+        TestSupport.assertEquals(null, ByteRanges.parse(null, 10), "no header");
+        TestSupport.assertEquals(null, ByteRanges.parse("items=0-1", 10), "other unit");
+        TestSupport.assertEquals(null, ByteRanges.parse("bytes=5-3", 10), "last before first");
+        TestSupport.assertEquals(null, ByteRanges.parse("bytes=a-b", 10), "not numbers");
+        TestSupport.assertEquals(null, ByteRanges.parse("bytes=3", 10), "no dash");
+        StringBuilder many = new StringBuilder("bytes=0-0");
+        for (int i = 1; i < 17; i++) {
+            many.append(',').append(i * 2).append('-').append(i * 2);
+        }
+        TestSupport.assertEquals(null, ByteRanges.parse(many.toString(), 100), "more than 16 ranges");
+    }
+
+    static void testIfRange() {
+        long lastModified = 1_700_000_000_000L;
+        String etag = CachePolicy.etag(10, lastModified, null);
+        TestSupport.assertTrue(ByteRanges.ifRangeMatches(null, etag, lastModified), "no If-Range");
+        TestSupport.assertTrue(ByteRanges.ifRangeMatches(etag, etag, lastModified), "current ETag");
+        TestSupport.assertTrue(!ByteRanges.ifRangeMatches("W/" + etag, etag, lastModified), "weak ETag");
+        TestSupport.assertTrue(!ByteRanges.ifRangeMatches("\"other\"", etag, lastModified), "other ETag");
+        TestSupport.assertTrue(ByteRanges.ifRangeMatches(HttpDate.format(lastModified), etag, lastModified),
+                "Last-Modified date");
+        TestSupport.assertTrue(!ByteRanges.ifRangeMatches(HttpDate.format(lastModified - 1000), etag, lastModified),
+                "older date");
+    }
+
+    static void testResponses() throws Exception {
+        Path root = Files.createTempDirectory("ranges");
+        Path file = Files.write(root.resolve("digits.txt"), TestSupport.ascii("0123456789"));
+        try {
+            String response = get(root, "bytes=2-4");
+            TestSupport.assertTrue(response.startsWith("HTTP/1.1 206 "), "206: " + response);
+            TestSupport.assertEquals("bytes 2-4/10", TestSupport.header(response, "Content-Range"), "Content-Range");
+            TestSupport.assertEquals("234", TestSupport.body(response), "range body");
+
+            response = get(root, "bytes=-2,0-0");
+            String type = TestSupport.header(response, "Content-Type");
+            TestSupport.assertTrue(type.startsWith("multipart/byteranges; boundary="), "multipart: " + type);
+            String boundary = type.substring(type.indexOf('=') + 1);
+            String body = TestSupport.body(response);
+            TestSupport.assertEquals(Integer.toString(body.length()), TestSupport.header(response, "Content-Length"),
+                    "multipart length");
+            TestSupport.assertTrue(body.indexOf("Content-Range: bytes 0-0/10\r\n\r\n0\r\n--" + boundary) > 0,
+                    "first part: " + body);
+            TestSupport.assertTrue(body.endsWith("Content-Range: bytes 8-9/10\r\n\r\n89\r\n--" + boundary + "--\r\n"),
+                    "second part: " + body);
+
+            response = get(root, "bytes=10-");
+            TestSupport.assertTrue(response.startsWith("HTTP/1.1 416 "), "416: " + response);
+            TestSupport.assertEquals("bytes */10", TestSupport.header(response, "Content-Range"), "length for 416");
+
+            response = get(root, "bytes=5-3");
+            TestSupport.assertTrue(response.startsWith("HTTP/1.1 200 "), "invalid Range ignored: " + response);
+            TestSupport.assertEquals("0123456789", TestSupport.body(response), "whole file");
+        } finally {
+            Files.delete(file);
+            Files.delete(root);
+        }
+    }
+
+    private static String get(Path root, String range) throws Exception {
+        return TestSupport.exchange(socket -> new ClientHandler(socket, root.toString(), "index.html"),
+                "GET /digits.txt HTTP/1.1\r\nHost: test\r\nRange: " + range + "\r\nConnection: close\r\n\r\n");
+    }
+
+    private static void assertRanges(String expected, List<long[]> ranges, String what) {
+        StringBuilder actual = new StringBuilder();
+        for (long[] range : ranges) {
+            actual.append(actual.length() > 0 ? "," : "").append(range[0]).append('-').append(range[1]);
+        }
+        TestSupport.assertEquals(expected, actual.toString(), what);
+    }
+}
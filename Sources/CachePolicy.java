@@ -0,0 +1,89 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The CachePolicy class decides the caching headers of static responses and answers conditional
+ * requests. Validators come from the file version (size and modification time): the ETag is built
+ * from both, with the content coding appended for compressed variants so that each representation
+ * has its own strong ETag, and Last-Modified is the modification time. Cache-Control carries a
+ * max-age configured per content type (cacheMaxAge in config.ini).
+ */
+public class CachePolicy {
+
+    public static final CachePolicy DEFAULT = new CachePolicy("");
+
+    // Cache-Control value per content type, "*" for the rest; types without an entry get no header
+    private final Map<String, String> cacheControl = new HashMap<>();
+
+    // maxAges is a list of type:seconds pairs, e.g. "text/html:0,image:86400,*:3600", where a type is a
+    // MIME type or one of the groups "image" and "icon"
+    public CachePolicy(String maxAges) {
+        for (String entry : maxAges.split(",")) {
+            int colon = entry.lastIndexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            long seconds = Long.parseLong(entry.substring(colon + 1).trim());
+            // max-age=0 is written as no-cache: store, but revalidate before every reuse
+            cacheControl.put(entry.substring(0, colon).trim().toLowerCase(),
+                    seconds > 0 ? "max-age=" + seconds : "no-cache");
+        }
+    }
+
+    // The Cache-Control value for this content type, or null for none. A type without its own entry
+    // falls back to its group: "icon" for favicons, "image" for the other image types, then "*".
+    public String getCacheControl(String contentType) {
+        String value = null;
+        if (contentType != null) {
+            String type = contentType.toLowerCase();
+            value = cacheControl.get(type);
+            if (value == null) {
+                value = cacheControl.get(group(type));
+            }
+        }
+        return value != null ? value : cacheControl.get("*");
+    }
+
+    private static String group(String type) {
+        if (type.equals("image/x-icon") || type.equals("image/vnd.microsoft.icon")) {
+            return "icon";
+        }
+        return type.startsWith("image/") ? "image" : "*";
+    }
+
+    // Strong ETag of one file version in one coding, e.g. "9ba-18d9c5e2a40" or "9ba-18d9c5e2a40-gzip"
+    public static String etag(long size, long lastModified, String contentEncoding) {
+        return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified)
+                + (contentEncoding != null ? "-" + contentEncoding : "") + "\"";
+    }
+
+    // Whether the conditional headers of a GET or HEAD request match the current version (answer 304).
+    // If-None-Match takes precedence over If-Modified-Since and uses the weak comparison.
+    public static boolean isNotModified(String ifNoneMatch, String ifModifiedSince, String etag, long lastModified) {
+        if (ifNoneMatch != null) {
+            return matches(ifNoneMatch, etag);
+        }
+        if (ifModifiedSince != null) {
+            long since = HttpDate.parse(ifModifiedSince);
+            // HTTP dates have whole seconds
+            return since >= 0 && lastModified / 1000 <= since / 1000;
+        }
+        return false;
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        String current = opaque(etag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*") || opaque(tag).equals(current)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The ETag without its weakness indicator, for the weak comparison
+    private static String opaque(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+}
@@ -0,0 +1,70 @@
+import java.nio.file.Paths;
+
+/**
+ * This class tests the CachePolicy class (Cache-Control per content type, ETags, conditional requests)
+ * and the content types PathResolver gives files.
+ */
+public class CachePolicyTest {
+
+    public static void main(String[] args) {
+        TestSupport.run("content types by extension", CachePolicyTest::testContentTypes);
+        TestSupport.run("Cache-Control per type and group", CachePolicyTest::testCacheControl);
+        TestSupport.run("ETag per version and coding", CachePolicyTest::testEtag);
+        TestSupport.run("If-None-Match", CachePolicyTest::testIfNoneMatch);
+        TestSupport.run("If-Modified-Since", CachePolicyTest::testIfModifiedSince);
+        TestSupport.finish("CachePolicyTest");
+    }
+
+    static void testContentTypes() throws Exception {
+        TestSupport.assertEquals("text/html", PathResolver.contentType(Paths.get("www/index.HTML")), "html");
+        TestSupport.assertEquals("text/css", PathResolver.contentType(Paths.get("site.css")), "css");
+        TestSupport.assertEquals("application/javascript", PathResolver.contentType(Paths.get("app.js")), "js");
+        TestSupport.assertEquals("application/json", PathResolver.contentType(Paths.get("data.json")), "json");
+        TestSupport.assertEquals("image/svg+xml", PathResolver.contentType(Paths.get("logo.svg")), "svg");
+        TestSupport.assertEquals("image/jpeg", PathResolver.contentType(Paths.get("photo.jpg")), "jpg");
+        TestSupport.assertEquals("image/x-icon", PathResolver.contentType(Paths.get("favicon.ico")), "ico");
+        TestSupport.assertEquals("application/octet-stream", PathResolver.contentType(Paths.get("no-extension")),
+                "unknown");
+    }
+
+    static void testCacheControl() {
+        CachePolicy policy = new CachePolicy("text/html:0,image:86400,icon:604800,text/css:60,*:3600");
+        TestSupport.assertEquals("no-cache", policy.getCacheControl("text/html"), "max-age 0");
+        TestSupport.assertEquals("max-age=60", policy.getCacheControl("TEXT/CSS"), "own entry, any case");
+        TestSupport.assertEquals("max-age=86400", policy.getCacheControl("image/png"), "image group");
+        TestSupport.assertEquals("max-age=86400", policy.getCacheControl("image/svg+xml"), "image group");
+        TestSupport.assertEquals("max-age=604800", policy.getCacheControl("image/x-icon"), "icon group");
+        TestSupport.assertEquals("max-age=604800", policy.getCacheControl("image/vnd.microsoft.icon"), "icon group");
+        TestSupport.assertEquals("max-age=3600", policy.getCacheControl("application/json"), "default");
+        TestSupport.assertEquals("max-age=3600", policy.getCacheControl(null), "no type");
+        TestSupport.assertEquals(null, new CachePolicy("image:10").getCacheControl("text/plain"), "no default");
+        TestSupport.assertEquals(null, CachePolicy.DEFAULT.getCacheControl("text/html"), "empty policy");
+    }
+
+    static void testEtag() {
+        TestSupport.assertEquals("\"9ba-18d9c5e2a40\"", CachePolicy.etag(0x9ba, 0x18d9c5e2a40L, null), "identity");
+        TestSupport.assertEquals("\"9ba-18d9c5e2a40-gzip\"", CachePolicy.etag(0x9ba, 0x18d9c5e2a40L, "gzip"), "gzip");
+    }
+
+    static void testIfNoneMatch() {
+        String etag = CachePolicy.etag(10, 1000, null);
+        TestSupport.assertTrue(CachePolicy.isNotModified(etag, null, etag, 1000), "same tag");
+        TestSupport.assertTrue(CachePolicy.isNotModified("\"x\", W/" + etag, null, etag, 1000), "weak tag in a list");
+        TestSupport.assertTrue(CachePolicy.isNotModified("*", null, etag, 1000), "any tag");
+        TestSupport.assertTrue(!CachePolicy.isNotModified(CachePolicy.etag(10, 1000, "gzip"), null, etag, 1000),
+                "other coding");
+        // If-None-Match wins over a matching If-Modified-Since
+        TestSupport.assertTrue(!CachePolicy.isNotModified("\"x\"", HttpDate.format(2000), etag, 1000),
+                "If-None-Match first");
+    }
+
+    static void testIfModifiedSince() {
+        long lastModified = 1_700_000_000_500L;
+        TestSupport.assertTrue(CachePolicy.isNotModified(null, HttpDate.format(lastModified), "\"e\"", lastModified),
+                "same second");
+        TestSupport.assertTrue(!CachePolicy.isNotModified(null, HttpDate.format(lastModified - 1000), "\"e\"",
+                lastModified), "modified since");
+        TestSupport.assertTrue(!CachePolicy.isNotModified(null, "yesterday", "\"e\"", lastModified), "invalid date");
+        TestSupport.assertTrue(!CachePolicy.isNotModified(null, null, "\"e\"", lastModified), "unconditional");
+    }
+}
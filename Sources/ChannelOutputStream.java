@@ -0,0 +1,244 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The ChannelOutputStream class is an OutputStream over the socket's channel. Besides ordinary
+ * writes (headers, dynamic pages) it can send a region of a file with FileChannel.transferTo,
+ * which lets the kernel copy the file straight to the socket (sendfile) without the data ever
+ * passing through a Java heap array. While batching is on (pipelined requests are waiting), small
+ * responses are collected and flush() is deferred, so several responses leave in one write.
+ * Large bodies go to the channel in slices of at most WRITE_SLICE bytes: a blocking write only
+ * returns once everything it was given is sent, so the WriteWatchdog, which times the write in
+ * progress, then limits how long one slice may take rather than a whole download.
+ */
+public class ChannelOutputStream extends OutputStream {
+
+    // Most bytes held back for one batch of pipelined responses before they are written anyway
+    private static final int BATCH_CAPACITY = 32 * 1024;
+    // Most bytes given to the channel in one write or transferTo call
+    static final int WRITE_SLICE = 256 * 1024;
+
+    private final WritableByteChannel channel;
+    // Responses written while batching, not yet sent; null until the first batch
+    private ByteBuffer batch;
+    private boolean batching;
+    // System.nanoTime() when the current slice started to be written, 0 when not writing
+    private volatile long writeStarted;
+    // Response writer reused for every response on this connection
+    private ResponseWriter responseWriter;
+    // Bytes sent on this connection, for the access log
+    protected long bytesWritten;
+
+    public ChannelOutputStream(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    // Hold back following responses (batching on) or send them as they are written (batching off);
+    // a held batch goes out with the next write or flush after batching is turned off
+    public void setBatching(boolean batching) {
+        this.batching = batching;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (batching && reserve(len)) {
+            batch.put(b, off, len);
+            bytesWritten += len;
+            return;
+        }
+        if (hasBatch()) {
+            write(new ByteBuffer[] { ByteBuffer.wrap(b, off, len) });
+            return;
+        }
+        writeSliced(ByteBuffer.wrap(b, off, len));
+        bytesWritten += len;
+    }
+
+    // Gathering write: all buffers leave in as few system calls as slicing allows, behind any held batch
+    public void write(ByteBuffer[] buffers) throws IOException {
+        long length = remaining(buffers);
+        if (batching && reserve(length)) {
+            for (ByteBuffer buffer : buffers) {
+                batch.put(buffer);
+            }
+            bytesWritten += length;
+            return;
+        }
+        if (!(channel instanceof GatheringByteChannel)) {
+            sendBatch();
+            for (ByteBuffer buffer : buffers) {
+                bytesWritten += writeSliced(buffer);
+            }
+            return;
+        }
+        long alreadyCounted = 0;
+        if (hasBatch()) {
+            ByteBuffer[] withBatch = new ByteBuffer[buffers.length + 1];
+            batch.flip();
+            alreadyCounted = batch.remaining();
+            withBatch[0] = batch;
+            System.arraycopy(buffers, 0, withBatch, 1, buffers.length);
+            buffers = withBatch;
+        }
+        bytesWritten += writeSliced((GatheringByteChannel) channel, buffers);
+        bytesWritten -= alreadyCounted;
+        if (batch != null && alreadyCounted > 0) {
+            batch.clear();
+        }
+    }
+
+    // Write the buffer in slices of at most WRITE_SLICE bytes, each one timed on its own
+    private int writeSliced(ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        int limit = buffer.limit();
+        try {
+            while (buffer.position() < limit) {
+                buffer.limit(Math.min(limit, buffer.position() + WRITE_SLICE));
+                writeStarted = System.nanoTime();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        } finally {
+            buffer.limit(limit);
+            writeStarted = 0;
+        }
+        return length;
+    }
+
+    // Gathering write of the buffers in slices of at most WRITE_SLICE bytes: each slice spans the
+    // buffers it covers, the last one of them cut short by lowering its limit until it is written
+    private long writeSliced(GatheringByteChannel gathering, ByteBuffer[] buffers) throws IOException {
+        long written = 0;
+        int first = 0;
+        while (first < buffers.length) {
+            if (!buffers[first].hasRemaining()) {
+                first++;
+                continue;
+            }
+            int last = first;
+            long sliceLength = buffers[first].remaining();
+            while (sliceLength < WRITE_SLICE && last + 1 < buffers.length) {
+                last++;
+                sliceLength += buffers[last].remaining();
+            }
+            ByteBuffer cut = buffers[last];
+            int limit = cut.limit();
+            if (sliceLength > WRITE_SLICE) {
+                cut.limit(limit - (int) (sliceLength - WRITE_SLICE));
+                sliceLength = WRITE_SLICE;
+            }
+            writeStarted = System.nanoTime();
+            try {
+                for (long sent = 0; sent < sliceLength; ) {
+                    sent += gathering.write(buffers, first, last - first + 1);
+                }
+            } finally {
+                cut.limit(limit);
+                writeStarted = 0;
+            }
+            written += sliceLength;
+        }
+        return written;
+    }
+
+    private static long remaining(ByteBuffer[] buffers) {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        return remaining;
+    }
+
+    private boolean hasBatch() {
+        return batch != null && batch.position() > 0;
+    }
+
+    // Make room for length more bytes in the batch; false when they are too large to be batched
+    private boolean reserve(long length) throws IOException {
+        if (length > BATCH_CAPACITY) {
+            return false;
+        }
+        if (batch == null) {
+            batch = ByteBuffer.allocate(BATCH_CAPACITY);
+        } else if (batch.remaining() < length) {
+            sendBatch();
+        }
+        return true;
+    }
+
+    // Write the held responses, if any
+    private void sendBatch() throws IOException {
+        if (!hasBatch()) {
+            return;
+        }
+        batch.flip();
+        writeSliced(batch);
+        batch.clear();
+    }
+
+    // Deferred while batching; otherwise sends any held responses
+    @Override
+    public void flush() throws IOException {
+        if (!batching) {
+            sendBatch();
+        }
+    }
+
+    public ResponseWriter getResponseWriter() {
+        if (responseWriter == null) {
+            responseWriter = new ResponseWriter(this);
+        }
+        return responseWriter;
+    }
+
+    // Send count bytes of the file starting at position directly to the channel
+    public void transferFrom(Path file, long position, long count) throws IOException {
+        sendBatch(); // Responses before this one must arrive first
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long end = position + count;
+            while (position < end) {
+                // A blocking transferTo returns only once all it was asked for is sent, so the file goes out
+                // in slices and each one restarts the watchdog's clock
+                writeStarted = System.nanoTime();
+                long sent = fileChannel.transferTo(position, Math.min(end - position, WRITE_SLICE), channel);
+                if (sent <= 0 && position >= fileChannel.size()) {
+                    throw new IOException("File truncated while sending: " + file);
+                }
+                position += sent;
+                bytesWritten += sent;
+            }
+        } finally {
+            writeStarted = 0;
+        }
+    }
+
+    // When the write in progress started, 0 when none is; read by the WriteWatchdog
+    public long getWriteStarted() {
+        return writeStarted;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            sendBatch();
+        } finally {
+            channel.close();
+        }
+    }
+}
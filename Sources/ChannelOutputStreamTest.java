@@ -0,0 +1,234 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * This class tests the ChannelOutputStream class: that every write, gathering write and file
+ * transfer reaches the channel in slices of at most WRITE_SLICE bytes, each timed on its own, so
+ * that the WriteWatchdog lets a slow but steady download finish and still stops a stalled one.
+ * Memory-mapped files must reach it in windows of that size too.
+ */
+public class ChannelOutputStreamTest {
+
+    private static final int SLICE = ChannelOutputStream.WRITE_SLICE;
+
+    public static void main(String[] args) {
+        TestSupport.run("array writes are sliced", ChannelOutputStreamTest::testArrayWrite);
+        TestSupport.run("gathering writes are sliced", ChannelOutputStreamTest::testGatheringWrite);
+        TestSupport.run("batched responses go first", ChannelOutputStreamTest::testBatch);
+        TestSupport.run("mapped files are sent in windows", ChannelOutputStreamTest::testMappedFile);
+        TestSupport.run("slow download outlives the write timeout", ChannelOutputStreamTest::testSlowDownload);
+        TestSupport.run("stalled download is closed", ChannelOutputStreamTest::testStalledDownload);
+        TestSupport.finish("ChannelOutputStreamTest");
+    }
+
+    static void testArrayWrite() throws Exception {
+        RecordingChannel channel = new RecordingChannel();
+        ChannelOutputStream out = new ChannelOutputStream(channel);
+        channel.out = out;
+        byte[] data = pattern(SLICE * 2 + 1000);
+        out.write(data, 0, data.length);
+        TestSupport.assertArrayEquals(data, channel.received.toByteArray(), "bytes written");
+        TestSupport.assertEquals(3, channel.slices, "slices");
+        TestSupport.assertEquals((long) data.length, out.getBytesWritten(), "bytes counted");
+        TestSupport.assertEquals(0L, out.getWriteStarted(), "not writing afterwards");
+    }
+
+    static void testGatheringWrite() throws Exception {
+        RecordingChannel channel = new RecordingChannel();
+        ChannelOutputStream out = new ChannelOutputStream(channel);
+        channel.out = out;
+        byte[] head = TestSupport.ascii("HTTP/1.1 200 OK\r\n\r\n");
+        byte[] body = pattern(SLICE * 3);
+        ByteBuffer direct = ByteBuffer.allocateDirect(body.length);
+        direct.put(body).flip();
+        out.write(new ByteBuffer[] { ByteBuffer.wrap(head), direct, ByteBuffer.wrap(head) });
+        byte[] expected = new byte[head.length * 2 + body.length];
+        System.arraycopy(head, 0, expected, 0, head.length);
+        System.arraycopy(body, 0, expected, head.length, body.length);
+        System.arraycopy(head, 0, expected, head.length + body.length, head.length);
+        TestSupport.assertArrayEquals(expected, channel.received.toByteArray(), "bytes written");
+        TestSupport.assertEquals(4, channel.slices, "slices");
+        TestSupport.assertEquals(direct.capacity(), direct.limit(), "limit restored after the cut");
+        TestSupport.assertTrue(!direct.hasRemaining(), "buffer consumed");
+        TestSupport.assertEquals((long) expected.length, out.getBytesWritten(), "bytes counted");
+    }
+
+    static void testBatch() throws Exception {
+        RecordingChannel channel = new RecordingChannel();
+        ChannelOutputStream out = new ChannelOutputStream(channel);
+        channel.out = out;
+        out.setBatching(true);
+        out.write(TestSupport.ascii("first "));
+        out.flush();
+        TestSupport.assertEquals(0, channel.received.size(), "held while batching");
+        out.setBatching(false);
+        byte[] body = pattern(SLICE + 10);
+        out.write(new ByteBuffer[] { ByteBuffer.wrap(body) });
+        byte[] received = channel.received.toByteArray();
+        TestSupport.assertEquals("first ", TestSupport.ascii(Arrays.copyOf(received, 6)), "batch first");
+        TestSupport.assertArrayEquals(body, Arrays.copyOfRange(received, 6, received.length), "then the body");
+        TestSupport.assertEquals(2, channel.slices, "slices");
+        TestSupport.assertEquals((long) received.length, out.getBytesWritten(), "bytes counted once");
+    }
+
+    static void testMappedFile() throws Exception {
+        byte[] content = pattern(SLICE * 4 + 7);
+        Path file = Files.write(Files.createTempFile("mapped", ".bin"), content);
+        try {
+            MappedFileCache.Entry entry = new MappedFileCache(1 << 30, 1 << 30, 1, 60000, 60000).get("/mapped", file);
+            TestSupport.assertTrue(entry != null, "file mapped");
+            RecordingChannel channel = new RecordingChannel();
+            long[] largestWrite = new long[1];
+            ChannelOutputStream out = new ChannelOutputStream(channel) {
+                @Override
+                public void write(ByteBuffer[] buffers) throws IOException {
+                    long length = 0;
+                    for (ByteBuffer buffer : buffers) {
+                        length += buffer.remaining();
+                    }
+                    largestWrite[0] = Math.max(largestWrite[0], length);
+                    super.write(buffers);
+                }
+            };
+            channel.out = out;
+            ResponseUtil.sendMappedResponse(entry, "application/octet-stream", false, null, out, true);
+            String raw = TestSupport.ascii(channel.received.toByteArray());
+            TestSupport.assertEquals(Integer.toString(content.length), TestSupport.header(raw, "Content-Length"),
+                    "Content-Length");
+            TestSupport.assertArrayEquals(content, TestSupport.ascii(TestSupport.body(raw)), "body");
+            TestSupport.assertTrue(largestWrite[0] <= SLICE + raw.length() - content.length,
+                    "largest write of " + largestWrite[0] + " bytes");
+            TestSupport.assertEquals(content.length, entry.getContent().remaining(), "mapping left as it was");
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    // 2 MB read at about 1 MB/s: the whole download takes longer than the 1 s write timeout, each slice does not
+    static void testSlowDownload() throws Exception {
+        byte[] content = pattern(2 * 1024 * 1024);
+        byte[] received = download(content, 1000, 64 * 1024, 60);
+        TestSupport.assertArrayEquals(content, received, "whole file received");
+    }
+
+    static void testStalledDownload() throws Exception {
+        byte[] content = pattern(8 * 1024 * 1024);
+        byte[] received = download(content, 300, 0, 1500);
+        TestSupport.assertTrue(received.length < content.length, "connection closed before the end");
+    }
+
+    // Serve content as a file through ClientHandler with a WriteWatchdog, read readSize bytes every pauseMillis
+    // (all at once after the pause when readSize is 0) and return what arrived before the connection closed
+    private static byte[] download(byte[] content, int writeTimeout, int readSize, int pauseMillis) throws Exception {
+        Path root = Files.createTempDirectory("download");
+        Path file = Files.write(root.resolve("big.bin"), content);
+        WriteWatchdog watchdog = new WriteWatchdog(writeTimeout);
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try (Socket client = new Socket()) {
+                client.setReceiveBufferSize(64 * 1024);
+                client.connect(server.getLocalAddress());
+                Socket accepted = server.accept().socket();
+                accepted.setSendBufferSize(64 * 1024);
+                ClientHandler handler = new ClientHandler(accepted, root.toString(), "index.html");
+                handler.setWriteWatchdog(watchdog);
+                Thread thread = new Thread(handler, "test-handler");
+                thread.start();
+                client.getOutputStream().write(TestSupport.ascii("GET /big.bin HTTP/1.1\r\nConnection: close\r\n\r\n"));
+                client.setSoTimeout(10000);
+                InputStream in = client.getInputStream();
+                ByteArrayOutputStream response = new ByteArrayOutputStream();
+                byte[] buffer = new byte[readSize > 0 ? readSize : 64 * 1024];
+                Thread.sleep(pauseMillis);
+                int n;
+                try {
+                    while ((n = in.readNBytes(buffer, 0, buffer.length)) > 0) {
+                        response.write(buffer, 0, n);
+                        if (readSize > 0) {
+                            Thread.sleep(pauseMillis);
+                        }
+                    }
+                } catch (SocketException e) {
+                    // Reset by the watchdog's close
+                }
+                thread.join(10000);
+                String raw = TestSupport.ascii(response.toByteArray());
+                return TestSupport.ascii(TestSupport.body(raw));
+            }
+        } finally {
+            Files.delete(file);
+            Files.delete(root);
+        }
+    }
+
+    private static byte[] pattern(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + (i >> 8));
+        }
+        return data;
+    }
+
+    // Takes at most 100 bytes per call, like a socket with a full send buffer, and counts a new slice
+    // whenever the stream restarts its write clock; fails a slice that grows past WRITE_SLICE
+    private static class RecordingChannel implements GatheringByteChannel {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        ChannelOutputStream out;
+        int slices;
+        private long sliceStarted;
+        private long sliceLength;
+
+        @Override
+        public int write(ByteBuffer src) {
+            long started = out.getWriteStarted();
+            TestSupport.assertTrue(started != 0, "write clock running");
+            if (started != sliceStarted) {
+                sliceStarted = started;
+                sliceLength = 0;
+                slices++;
+            }
+            int n = Math.min(100, src.remaining());
+            for (int i = 0; i < n; i++) {
+                received.write(src.get());
+            }
+            sliceLength += n;
+            TestSupport.assertTrue(sliceLength <= SLICE, "slice of " + sliceLength + " bytes");
+            return n;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                if (srcs[i].hasRemaining()) {
+                    return write(srcs[i]);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,152 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The ChunkedOutputStream class carries the body of a response whose length is not known when it
+ * starts, such as a generated page or a TRACE echo. Output is collected in a fixed buffer and sent
+ * as one "Transfer-Encoding: chunked" chunk whenever the buffer fills or flush() is called, so the
+ * client receives the first bytes before the body is complete and, because the last chunk marks the
+ * end of the body, the connection can stay open. The response headers leave together with the first
+ * chunk, and a body that fits in the buffer goes out with its headers and final chunk in one write.
+ * For HTTP/1.0 clients, which do not understand chunks, the body is written as it is and ends when
+ * the connection closes. One stream is kept per connection (see ResponseWriter.streamBody) and its
+ * buffer is reused for every response.
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+    private static final int CHUNK_SIZE = 8192;
+    // Room in front of the data for the chunk size line: up to 4 hex digits for 8 KB, then CRLF
+    private static final int PREFIX = 6;
+    private static final byte[] LAST_CHUNK = ResponseWriter.ascii("0\r\n\r\n");
+    private static final byte[] HEX = ResponseWriter.ascii("0123456789abcdef");
+
+    private final OutputStream out;
+    // Size line, data, CRLF and possibly the last chunk are assembled in place for a single write
+    private final byte[] buffer = new byte[PREFIX + CHUNK_SIZE + 2 + LAST_CHUNK.length];
+    private int count;
+    private boolean chunked;
+    // Headers still to be written, with the first output; null once they are sent
+    private ResponseWriter headers;
+    private boolean open;
+
+    public ChunkedOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    // Start the body of a new response; headers (null if already sent) go out with the first bytes
+    public ChunkedOutputStream begin(ResponseWriter headers, boolean chunked) {
+        this.headers = headers;
+        this.chunked = chunked;
+        this.count = 0;
+        this.open = true;
+        return this;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == CHUNK_SIZE) {
+            sendChunk(false);
+        }
+        buffer[PREFIX + count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == CHUNK_SIZE) {
+                sendChunk(false);
+            }
+            int n = Math.min(len, CHUNK_SIZE - count);
+            System.arraycopy(b, off, buffer, PREFIX + count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    // Append text as UTF-8, encoded straight into the buffer
+    public ChunkedOutputStream print(CharSequence text) throws IOException {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                write(c);
+            } else if (c < 0x800) {
+                write(0xc0 | c >> 6);
+                write(0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                write(0xf0 | codePoint >> 18);
+                write(0x80 | codePoint >> 12 & 0x3f);
+                write(0x80 | codePoint >> 6 & 0x3f);
+                write(0x80 | codePoint & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                write('?'); // Unpaired surrogate, as String.getBytes replaces it
+            } else {
+                write(0xe0 | c >> 12);
+                write(0x80 | c >> 6 & 0x3f);
+                write(0x80 | c & 0x3f);
+            }
+        }
+        return this;
+    }
+
+    // Append text as ISO-8859-1, the encoding of header fields
+    public ChunkedOutputStream printLatin1(CharSequence text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            write(c < 0x100 ? c : '?');
+        }
+        return this;
+    }
+
+    // Send what has been written so far as a chunk
+    @Override
+    public void flush() throws IOException {
+        if (count > 0 || headers != null) {
+            sendChunk(false);
+        }
+        out.flush();
+    }
+
+    // End the body: the remaining data and the last chunk. The underlying stream stays open.
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        sendChunk(true);
+        out.flush();
+    }
+
+    private void sendChunk(boolean last) throws IOException {
+        int from = PREFIX;
+        int to = PREFIX + count;
+        if (chunked) {
+            if (count > 0) {
+                buffer[--from] = '\n';
+                buffer[--from] = '\r';
+                int size = count;
+                do {
+                    buffer[--from] = HEX[size & 0xf];
+                    size >>>= 4;
+                } while (size != 0);
+                buffer[to++] = '\r';
+                buffer[to++] = '\n';
+            }
+            if (last) {
+                System.arraycopy(LAST_CHUNK, 0, buffer, to, LAST_CHUNK.length);
+                to += LAST_CHUNK.length;
+            }
+        }
+        if (headers != null) {
+            ResponseWriter writer = headers;
+            headers = null;
+            writer.send(buffer, from, to - from);
+        } else if (to > from) {
+            out.write(buffer, from, to - from);
+        }
+        count = 0;
+    }
+}
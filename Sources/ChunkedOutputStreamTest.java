@@ -0,0 +1,126 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class tests the ChunkedOutputStream class: the chunks and last chunk of bodies smaller and
+ * larger than its buffer, flush() sending a chunk with the headers, the unframed body for HTTP/1.0,
+ * UTF-8 and ISO-8859-1 printing, and the reuse of one stream for consecutive responses.
+ */
+public class ChunkedOutputStreamTest {
+
+    private static final String HEAD_START = "HTTP/1.1 200 OK\r\n";
+
+    public static void main(String[] args) {
+        TestSupport.run("small body", ChunkedOutputStreamTest::testSmallBody);
+        TestSupport.run("body larger than the buffer", ChunkedOutputStreamTest::testLargeBody);
+        TestSupport.run("empty body", ChunkedOutputStreamTest::testEmptyBody);
+        TestSupport.run("flush sends a chunk", ChunkedOutputStreamTest::testFlush);
+        TestSupport.run("unframed body for HTTP/1.0", ChunkedOutputStreamTest::testUnchunked);
+        TestSupport.run("printed text", ChunkedOutputStreamTest::testPrint);
+        TestSupport.run("consecutive responses", ChunkedOutputStreamTest::testReuse);
+        TestSupport.finish("ChunkedOutputStreamTest");
+    }
+
+    static void testSmallBody() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedOutputStream body = ResponseWriter.of(out).status(200).connection(true).streamBody(true);
+        TestSupport.assertEquals(0, out.size(), "nothing before the first chunk");
+        body.print("hello");
+        body.close();
+        String raw = TestSupport.ascii(out.toByteArray());
+        TestSupport.assertTrue(raw.startsWith(HEAD_START), "status line: " + raw);
+        TestSupport.assertEquals("chunked", TestSupport.header(raw, "Transfer-Encoding"), "Transfer-Encoding");
+        TestSupport.assertEquals("5\r\nhello\r\n0\r\n\r\n", TestSupport.body(raw), "one chunk and the last chunk");
+        body.close();
+        TestSupport.assertEquals(raw, TestSupport.ascii(out.toByteArray()), "second close writes nothing");
+    }
+
+    static void testLargeBody() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedOutputStream body = ResponseWriter.of(out).status(200).connection(true).streamBody(true);
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            data.append((char) ('a' + i % 26));
+        }
+        body.write(TestSupport.ascii(data.substring(0, 100)));
+        body.write(TestSupport.ascii(data.substring(100)));
+        body.close();
+        String chunked = TestSupport.body(TestSupport.ascii(out.toByteArray()));
+        TestSupport.assertTrue(chunked.startsWith("2000\r\n"), "full 8 KB chunk first");
+        TestSupport.assertTrue(chunked.contains("\r\n2000\r\n") && chunked.contains("\r\ne20\r\n"),
+                "two 8 KB chunks, then the remaining 3616 bytes");
+        String[] decoded = TestSupport.dechunk(chunked);
+        TestSupport.assertEquals(data.toString(), decoded[0], "data");
+        TestSupport.assertEquals("", decoded[1], "nothing after the last chunk");
+    }
+
+    static void testEmptyBody() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ResponseWriter.of(out).status(204).connection(true).streamBody(true).close();
+        String raw = TestSupport.ascii(out.toByteArray());
+        TestSupport.assertTrue(raw.startsWith("HTTP/1.1 204 "), "headers sent on close: " + raw);
+        TestSupport.assertEquals("0\r\n\r\n", TestSupport.body(raw), "only the last chunk");
+    }
+
+    static void testFlush() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedOutputStream body = ResponseWriter.of(out).status(200).connection(true).streamBody(true);
+        body.flush();
+        String raw = TestSupport.ascii(out.toByteArray());
+        TestSupport.assertTrue(raw.startsWith(HEAD_START) && raw.endsWith("\r\n\r\n"), "headers alone: " + raw);
+        body.print("a");
+        body.flush();
+        TestSupport.assertEquals("1\r\na\r\n", TestSupport.body(TestSupport.ascii(out.toByteArray())), "chunk sent");
+        body.flush();
+        TestSupport.assertEquals("1\r\na\r\n", TestSupport.body(TestSupport.ascii(out.toByteArray())),
+                "no empty chunk, which would end the body");
+        body.print("bc");
+        body.close();
+        TestSupport.assertEquals("1\r\na\r\n2\r\nbc\r\n0\r\n\r\n", TestSupport.body(TestSupport.ascii(out.toByteArray())),
+                "rest and last chunk");
+    }
+
+    static void testUnchunked() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedOutputStream body = ResponseWriter.of(out).status(200).connection(false).streamBody(false);
+        body.print("hello ");
+        body.flush();
+        body.print("world");
+        body.close();
+        String raw = TestSupport.ascii(out.toByteArray());
+        TestSupport.assertEquals(null, TestSupport.header(raw, "Transfer-Encoding"), "no Transfer-Encoding");
+        TestSupport.assertEquals("close", TestSupport.header(raw, "Connection"), "Connection");
+        TestSupport.assertEquals("hello world", TestSupport.body(raw), "body as is");
+    }
+
+    static void testPrint() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ChunkedOutputStream body = new ChunkedOutputStream(out).begin(null, false);
+        String text = "a\u00fc\u20ac\ud83d\ude00";
+        body.print(text).print("\ud800x");
+        body.close();
+        byte[] expected = (text + "?x").getBytes(StandardCharsets.UTF_8);
+        TestSupport.assertArrayEquals(expected, out.toByteArray(), "UTF-8, unpaired surrogate replaced");
+
+        out.reset();
+        body.begin(null, false).printLatin1("caf\u00e9 \u20ac").close();
+        TestSupport.assertArrayEquals(new byte[] { 'c', 'a', 'f', (byte) 0xe9, ' ', '?' }, out.toByteArray(),
+                "ISO-8859-1, other characters replaced");
+    }
+
+    static void testReuse() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ResponseWriter writer = ResponseWriter.of(out);
+        ChunkedOutputStream first = writer.status(200).connection(true).streamBody(true);
+        first.print("one");
+        first.close();
+        ChunkedOutputStream second = writer.status(200).connection(true).streamBody(true);
+        TestSupport.assertTrue(first == second, "one stream per writer");
+        second.print("two");
+        second.close();
+        String[] decoded = TestSupport.dechunk(TestSupport.body(TestSupport.ascii(out.toByteArray())));
+        TestSupport.assertEquals("one", decoded[0], "first body");
+        TestSupport.assertTrue(decoded[1].startsWith(HEAD_START), "second response follows: " + decoded[1]);
+        TestSupport.assertEquals("two", TestSupport.dechunk(TestSupport.body(decoded[1]))[0], "second body");
+    }
+}
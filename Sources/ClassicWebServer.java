@@ -1,9 +1,25 @@
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -11,6 +27,19 @@ import java.util.concurrent.Executors;
  * It listens on a specified port, accepts client connections, and delegates the handling of each
  * client connection to a separate thread from a thread pool. The server is configured with a root
  * directory, default page, maximum number of threads, and port number.
+ * With serverMode=virtual each connection instead gets its own virtual thread, and a semaphore
+ * of maxConnections permits replaces the pool size as the limit on concurrent connections.
+ * Under overload the server degrades instead of collapsing: the pool's queue is bounded
+ * (workQueueSize), AdmissionControl refuses connections over the total and per-client limits or
+ * that find the queue full, requests must arrive within requestReadTimeout and writes complete
+ * within writeTimeout.
+ * Accepting can be spread over several acceptor threads (acceptors), each feeding its own worker
+ * group; with SO_REUSEPORT each acceptor also has its own listening socket, so the kernel balances
+ * new connections across them and no single accept() call is a bottleneck.
+ * shutdown() stops accepting and lets the requests in progress finish within a deadline, and
+ * reload() applies an edited config.ini (pool size, root directory, default page) while running.
+ * With a TlsContext every acceptor has a twin on tlsPort that feeds the same worker group; the TLS
+ * handshake runs on the worker thread, so a slow handshake never holds up accepting.
  */
 
 public class ClassicWebServer {
@@ -18,46 +47,512 @@ public class ClassicWebServer {
     private int port;
     private String rootDirectory;
     private String defaultPage;
-    private int maxThreads;
+    private volatile int maxThreads;
+    private int keepAliveTimeout;
+    private int maxKeepAliveRequests;
+    // Virtual-thread mode: one (virtual) thread per connection, admission limited by maxConnections
+    private boolean virtualThreads;
+    private int maxConnections;
+    // Root directory, default page and their caches; replaced as a whole when config.ini changes
+    private volatile ContentRoot contentRoot;
+    private HttpRequestParser.Limits requestLimits = HttpRequestParser.DEFAULT_LIMITS;
+    // Response compression handed to every ClientHandler, null when disabled
+    private ContentCompression compression;
+    private CachePolicy cachePolicy = CachePolicy.DEFAULT;
+    // Connection limits and overload policy, null to admit every connection
+    private AdmissionControl admissionControl;
+    // Connections waiting for a pool thread at most (0: none wait)
+    private int workQueueSize = Integer.MAX_VALUE;
+    // Timeouts in ms for receiving a whole request and for a single write (0: none)
+    private int requestReadTimeout;
+    private int writeTimeout;
+
+    // Accept loops, each with its own worker group (0: one per processor)
+    private int acceptors = 1;
+    // Give every acceptor its own listening socket with SO_REUSEPORT, where the platform has it
+    private boolean reusePort = true;
+    // HTTP/2 (h2c) settings, null to serve HTTP/1.x only
+    private Http2Connection.Settings http2;
+    // HTTPS on tlsPort, null for plaintext only
+    private TlsContext tls;
+    private int tlsPort;
+    // Forwards requests under its path prefixes to upstream servers, null when nothing is proxied
+    private ReverseProxy proxy;
+
+    // Set while start() runs, for shutdown() and reload()
+    private volatile boolean running;
+    private volatile List<Acceptor> acceptorList;
+    private volatile List<Acceptor> tlsAcceptorList;
+    // Runs the streams of all HTTP/2 connections, whose own threads only read frames
+    private volatile ExecutorService http2Streams;
+    private final Set<ClientHandler> activeHandlers = ConcurrentHashMap.newKeySet();
 
     // Constructor for the server
     public ClassicWebServer(String defaultPage, int maxThreads, int port, String rootDirectory ) {
+        this(defaultPage, maxThreads, port, rootDirectory, 5000, 100);
+    }
+
+    // Constructor with persistent connection settings (idle timeout in ms, max requests per socket)
+    public ClassicWebServer(String defaultPage, int maxThreads, int port, String rootDirectory,
+            int keepAliveTimeout, int maxKeepAliveRequests) {
         this.port = port;
         this.rootDirectory = rootDirectory;
         this.defaultPage = defaultPage;
         this.maxThreads = maxThreads;
+        this.keepAliveTimeout = keepAliveTimeout;
+        this.maxKeepAliveRequests = maxKeepAliveRequests;
+    }
+
+    // Constructor selecting the execution model: a fixed pool of maxThreads platform threads,
+    // or a virtual thread per connection with at most maxConnections handled concurrently
+    public ClassicWebServer(String defaultPage, int maxThreads, int port, String rootDirectory,
+            int keepAliveTimeout, int maxKeepAliveRequests, boolean virtualThreads, int maxConnections) {
+        this(defaultPage, maxThreads, port, rootDirectory, keepAliveTimeout, maxKeepAliveRequests);
+        this.virtualThreads = virtualThreads;
+        this.maxConnections = maxConnections;
+    }
+
+    public void setContentRoot(ContentRoot contentRoot) {
+        this.contentRoot = contentRoot;
+    }
+
+    public ContentRoot getContentRoot() {
+        return contentRoot;
+    }
+
+    public void setRequestLimits(HttpRequestParser.Limits requestLimits) {
+        this.requestLimits = requestLimits;
+    }
+
+    public void setCompression(ContentCompression compression) {
+        this.compression = compression;
+    }
+
+    public void setCachePolicy(CachePolicy cachePolicy) {
+        this.cachePolicy = cachePolicy;
+    }
+
+    public void setAdmissionControl(AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    public void setWorkQueueSize(int workQueueSize) {
+        this.workQueueSize = workQueueSize;
+    }
+
+    public void setTimeouts(int requestReadTimeout, int writeTimeout) {
+        this.requestReadTimeout = requestReadTimeout;
+        this.writeTimeout = writeTimeout;
+    }
+
+    public void setAcceptors(int acceptors, boolean reusePort) {
+        this.acceptors = acceptors;
+        this.reusePort = reusePort;
+    }
+
+    public void setHttp2(Http2Connection.Settings http2) {
+        this.http2 = http2;
+    }
+
+    public void setTls(TlsContext tls, int tlsPort) {
+        this.tls = tls;
+        this.tlsPort = tlsPort;
     }
 
-    // Start the server and handle every request coming in
+    public void setProxy(ReverseProxy proxy) {
+        this.proxy = proxy;
+    }
+
+    // Start the server and handle every request coming in, until shutdown() is called
     public void start() {
 
         // Create a thread pool with a fixed number of threads (for our server - 10)
         // So when a the number of threads are too busy ( max threads are reached) 
-        //the server will queue the requests (up to 10 requests)
-        ExecutorService threadPool = Executors.newFixedThreadPool(maxThreads);
+        //the server will queue the requests (up to workQueueSize connections, the rest are refused)
+        // In virtual-thread mode there is no pool cap; the semaphore is the admission control instead,
+        // and connections beyond maxConnections wait in the listen backlog rather than in a queue
+        // With several acceptors each one has its own pool, with an equal share of maxThreads and
+        // workQueueSize, so the acceptors never contend for one queue
+        int acceptorCount = acceptorCount();
+        ExecutorService virtualThreadPool = virtualThreads ? newVirtualThreadExecutor() : null;
+        Semaphore admission = virtualThreads ? new Semaphore(maxConnections) : null;
+        WriteWatchdog writeWatchdog = writeTimeout > 0 ? new WriteWatchdog(writeTimeout) : null;
+        List<Acceptor> acceptors = new ArrayList<>();
+        List<Acceptor> tlsAcceptors = new ArrayList<>();
+        // HTTP/2 streams get a pool of their own, bounded like the connection pools, so that a burst of
+        // streams on a few connections cannot take the threads that new connections need
+        if (http2 != null) {
+            http2Streams = virtualThreads ? virtualThreadPool : newBoundedPool(Math.max(1, maxThreads), workQueueSize);
+        }
+
+        try {
+            if (contentRoot == null) {
+                contentRoot = new ContentRoot(rootDirectory, defaultPage, new PathResolver(rootDirectory, 0), null, null);
+            }
+            // The listening sockets come from ServerSocketChannels so that accepted sockets
+            // have a SocketChannel, which ClientHandler uses for FileChannel.transferTo
+            List<ServerSocketChannel> channels = openServerChannels(port, acceptorCount);
+            List<ServerSocketChannel> tlsChannels = tls != null ? openServerChannels(tlsPort, acceptorCount) : null;
+            for (int i = 0; i < acceptorCount; i++) {
+                ExecutorService threadPool = virtualThreads ? virtualThreadPool
+                        : newBoundedPool(Math.max(1, share(maxThreads, acceptorCount, i)), share(workQueueSize, acceptorCount, i));
+                acceptors.add(new Acceptor(channels.get(i % channels.size()), threadPool, admission, writeWatchdog, null));
+                if (tls != null) {
+                    tlsAcceptors.add(new Acceptor(tlsChannels.get(i % tlsChannels.size()), threadPool, admission,
+                            writeWatchdog, tls));
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Could not start server on port " + port + ": " + e.getMessage());
+            System.exit(1);
+        }
+        if (!virtualThreads) {
+            ServerMetrics.setQueueDepthGauge(() -> acceptors.stream()
+                    .mapToInt(acceptor -> ((ThreadPoolExecutor) acceptor.threadPool).getQueue().size()).sum());
+        }
+
+        this.acceptorList = acceptors;
+        this.tlsAcceptorList = tlsAcceptors;
+        running = true;
+        System.out.println("Web server is listening on port " + port + (tls != null ? " and on port " + tlsPort + " (TLS)" : "")
+                + (acceptorCount > 1 ? " with " + acceptorCount + " acceptors" : "") + "...\n");
+        for (int i = 1; i < acceptorCount; i++) {
+            new Thread(acceptors.get(i), "acceptor-" + i).start();
+        }
+        for (int i = 0; i < tlsAcceptors.size(); i++) {
+            new Thread(tlsAcceptors.get(i), "tls-acceptor-" + i).start();
+        }
+        acceptors.get(0).run(); // The first accept loop runs on the calling thread, until shutdown
+    }
 
+    // acceptors from config.ini, where 0 means one per processor; a worker group needs at least one thread
+    private int acceptorCount() {
+        int count = acceptors > 0 ? acceptors : Runtime.getRuntime().availableProcessors();
+        return virtualThreads ? count : Math.min(count, Math.max(1, maxThreads));
+    }
+
+    // One listening channel per acceptor, all bound to the port with SO_REUSEPORT so that the kernel
+    // spreads new connections over them. Without SO_REUSEPORT (disabled in config.ini or not
+    // supported by the platform) a single channel is returned, which the acceptors share.
+    private List<ServerSocketChannel> openServerChannels(int port, int count) throws IOException {
+        List<ServerSocketChannel> channels = new ArrayList<>();
         try {
-            try (ServerSocket serverSocket = new ServerSocket(port)) {
-                System.out.println("Web server is listening on port " + port+ "...\n");
-                while (true) {
+            ServerSocketChannel first = ServerSocketChannel.open();
+            channels.add(first);
+            boolean eachOwn = count > 1 && reusePort
+                    && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            if (eachOwn) {
+                first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            first.bind(new InetSocketAddress(port));
+            for (int i = 1; eachOwn && i < count; i++) {
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                channels.add(channel);
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                channel.bind(new InetSocketAddress(port));
+            }
+        } catch (IOException e) {
+            for (ServerSocketChannel channel : channels) {
+                channel.close();
+            }
+            throw e;
+        }
+        return channels;
+    }
+
+    // Part index of total split into parts nearly equal parts; an unlimited total stays unlimited
+    static int share(int total, int parts, int index) {
+        if (total == Integer.MAX_VALUE) {
+            return total;
+        }
+        return total / parts + (index < total % parts ? 1 : 0);
+    }
+
+    // One accept loop with its listening channel (own or shared) and the pool its connections run on
+    private class Acceptor implements Runnable {
+        private final ServerSocketChannel serverChannel;
+        private final ExecutorService threadPool;
+        // Shared by all acceptors in virtual-thread mode, null otherwise
+        private final Semaphore admission;
+        private final WriteWatchdog writeWatchdog;
+        // Set for an acceptor on the TLS port
+        private final TlsContext tls;
+
+        Acceptor(ServerSocketChannel serverChannel, ExecutorService threadPool, Semaphore admission,
+                WriteWatchdog writeWatchdog, TlsContext tls) {
+            this.serverChannel = serverChannel;
+            this.threadPool = threadPool;
+            this.admission = admission;
+            this.writeWatchdog = writeWatchdog;
+            this.tls = tls;
+        }
+
+        @Override
+        public void run() {
+            ServerSocket serverSocket = serverChannel.socket();
+            while (running) {
+                try {
+                    if (admission != null) {
+                        admission.acquireUninterruptibly();
+                    }
+                    Socket socket;
                     try {
-                        Socket socket = serverSocket.accept();
-                        // Handle the client connection using a separate thread from the thread pool
-                        threadPool.execute(new ClientHandler(socket, rootDirectory, defaultPage));
+                        socket = serverSocket.accept();
                     } catch (IOException e) {
-                        System.out.println("Server exception: " + e.getMessage());
+                        if (admission != null) {
+                            admission.release();
+                        }
+                        throw e;
+                    }
+                    InetAddress address = socket.getInetAddress();
+                    if (admissionControl != null && !admissionControl.tryAdmit(address)) {
+                        if (admission != null) {
+                            admission.release();
+                        }
+                        admissionControl.refuse(socket.getChannel(), tls != null);
+                        continue;
                     }
+                    ContentRoot content = contentRoot;
+                    ClientHandler handler = new ClientHandler(socket, content.getRootDirectory(), content.getDefaultPage(),
+                            keepAliveTimeout, maxKeepAliveRequests, content.getContentCache());
+                    handler.setRequestLimits(requestLimits);
+                    handler.setCompression(compression);
+                    handler.setCachePolicy(cachePolicy);
+                    handler.setContentRoot(ClassicWebServer.this::getContentRoot);
+                    handler.setRequestReadTimeout(requestReadTimeout);
+                    handler.setWriteWatchdog(writeWatchdog);
+                    handler.setHttp2(http2, http2Streams);
+                    handler.setTls(tls);
+                    handler.setProxy(proxy);
+                    activeHandlers.add(handler);
+                    try {
+                        // Handle the client connection using a separate thread from the thread pool
+                        threadPool.execute(() -> {
+                            try {
+                                handler.run();
+                            } finally {
+                                activeHandlers.remove(handler);
+                                if (admissionControl != null) {
+                                    admissionControl.release(address);
+                                }
+                                if (admission != null) {
+                                    admission.release();
+                                }
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        // Every thread is busy and the queue is full: refuse now rather than wait
+                        activeHandlers.remove(handler);
+                        if (admissionControl != null) {
+                            admissionControl.release(address);
+                        }
+                        if (admission != null) {
+                            admission.release();
+                        }
+                        refuse(socket, tls != null);
+                    }
+                } catch (IOException e) {
+                    if (running) {
+                        ServerLog.info("Server exception: " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    // Graceful shutdown, for the JVM shutdown hook: stop accepting connections, let every connection
+    // finish the request it is handling (closing the idle ones), and wait up to timeoutMillis for that.
+    // Connections still busy at the deadline are interrupted and closed.
+    public void shutdown(long timeoutMillis) {
+        if (!running) {
+            return;
+        }
+        running = false;
+        System.out.println("Shutting down, waiting up to " + timeoutMillis + " ms for requests in progress...");
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        Set<ExecutorService> pools = new HashSet<>();
+        List<Acceptor> allAcceptors = new ArrayList<>(acceptorList);
+        allAcceptors.addAll(tlsAcceptorList);
+        for (Acceptor acceptor : allAcceptors) {
+            try {
+                acceptor.serverChannel.close(); // The blocked accept() fails and the accept loop ends
+            } catch (IOException e) {
+                ServerLog.error("Could not close server socket", e);
+            }
+            pools.add(acceptor.threadPool);
+        }
+        if (http2Streams != null) {
+            pools.add(http2Streams); // Streams already received are served; new ones are refused
+        }
+        for (ExecutorService pool : pools) {
+            pool.shutdown(); // Connections already queued still get a thread; their handlers are drained too
+        }
+        for (ClientHandler handler : activeHandlers) {
+            handler.drain();
+        }
+        try {
+            boolean terminated = true;
+            for (ExecutorService pool : pools) {
+                terminated &= pool.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+            if (!terminated) {
+                ServerLog.info("Shutdown deadline reached, closing " + activeHandlers.size() + " connections");
+                for (ClientHandler handler : activeHandlers) {
+                    handler.close();
+                }
+                for (ExecutorService pool : pools) {
+                    pool.shutdownNow();
                 }
             }
+        } catch (InterruptedException e) {
+            for (ExecutorService pool : pools) {
+                pool.shutdownNow();
+            }
+            Thread.currentThread().interrupt();
+        }
+        contentRoot.close();
+        if (proxy != null) {
+            proxy.close();
+        }
+        System.out.println("Server stopped");
+    }
+
+    // Apply a changed configuration without a restart: the pools are resized to share maxThreads, and
+    // a new root directory or default page takes effect with the next request on every connection.
+    // The other settings are read at startup only.
+    public void reload(ConfigLoader config) throws IOException {
+        if (!running) {
+            return;
+        }
+        if (config.getMaxThreads() != maxThreads && !virtualThreads) {
+            List<Acceptor> acceptors = acceptorList;
+            for (int i = 0; i < acceptors.size(); i++) {
+                resizePool((ThreadPoolExecutor) acceptors.get(i).threadPool,
+                        Math.max(1, share(config.getMaxThreads(), acceptors.size(), i)));
+            }
+            ServerLog.info("Worker threads: " + maxThreads + " -> " + config.getMaxThreads());
+            maxThreads = config.getMaxThreads();
+        }
+        ContentRoot current = contentRoot;
+        ContentRoot reloaded = current.reload(config);
+        if (reloaded != current) {
+            contentRoot = reloaded;
+            ServerLog.info("Serving " + reloaded.getRootDirectory() + " with default page " + reloaded.getDefaultPage());
+        }
+        if (config.getPort() != port) {
+            ServerLog.info("Port change to " + config.getPort() + " takes effect after a restart");
+        }
+    }
+
+    // Core and maximum size are changed in the order that keeps core <= maximum at every step
+    static void resizePool(ThreadPoolExecutor pool, int threads) {
+        if (threads > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(threads);
+            pool.setCorePoolSize(threads);
+        } else {
+            pool.setCorePoolSize(threads);
+            pool.setMaximumPoolSize(threads);
+        }
+    }
+
+    // threads platform threads with at most queueSize connections waiting; execute() throws
+    // RejectedExecutionException beyond that
+    private static ExecutorService newBoundedPool(int threads, int queueSize) {
+        BlockingQueue<Runnable> queue = queueSize > 0 ? new LinkedBlockingQueue<>(queueSize)
+                : new SynchronousQueue<>();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, queue);
+    }
+
+    // The 503 is plaintext, so a connection on the TLS port is only closed
+    private void refuse(Socket socket, boolean tls) {
+        if (admissionControl != null) {
+            admissionControl.refuse(socket.getChannel(), tls);
+            return;
+        }
+        ServerMetrics.connectionRejected();
+        try {
+            if (!tls) {
+                Errors.sendServiceUnavailable(socket.getOutputStream(), 1);
+            }
+            socket.close();
         } catch (IOException e) {
-            System.out.println("Could not start server on port " + port + ": " + e.getMessage());
-            System.exit(1);
+            ServerLog.debug("Could not refuse connection: " + e.getMessage());
         }
     }
+
+    // Executors.newVirtualThreadPerTaskExecutor() exists from Java 21; it is looked up reflectively
+    // so the server still compiles and runs on older JDKs, falling back to an unbounded cached pool
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not available on Java " + System.getProperty("java.version")
+                    + ", using platform threads per connection");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
     public static void main(String[] args) {
         try{
             ConfigLoader config = new ConfigLoader("config.ini");
-            ClassicWebServer server = new ClassicWebServer( config.getDefaultPage(), config.getMaxThreads(), config.getPort(), config.getRoot());
+            ServerLog.configure(ServerLog.Level.valueOf(config.getLogLevel()), config.getAccessLog(),
+                    config.getAccessLogMaxBytes(), config.getAccessLogMaxFiles());
+            ServerMetrics.configure(config.getMetricsPath());
+            HttpRequestParser.Limits requestLimits = new HttpRequestParser.Limits(config.getMaxRequestLineLength(),
+                    config.getMaxHeaderSize(), config.getMaxHeaderCount(), config.getMaxRequestBodySize());
+            ContentRoot contentRoot = ContentRoot.fromConfig(config);
+            ContentCompression compression = config.isCompression()
+                    ? new ContentCompression(config.getCompressionMinSize(), config.getCompressibleTypes())
+                    : null;
+            CachePolicy cachePolicy = new CachePolicy(config.getCacheMaxAge());
+            AdmissionControl admissionControl = new AdmissionControl(config.getMaxConnections(),
+                    config.getMaxConnectionsPerIp(), config.getOverloadPolicy(), config.getRetryAfter());
+            // The flow-control wait of an HTTP/2 response is bounded like any other stalled write
+            Http2Connection.Settings http2 = config.isHttp2()
+                    ? new Http2Connection.Settings(config.getHttp2MaxConcurrentStreams(),
+                            config.getHttp2InitialWindowSize(), config.getWriteTimeout())
+                    : null;
+            TlsContext tls = TlsContext.fromConfig(config);
+            ReverseProxy proxy = ReverseProxy.fromConfig(config);
+            if (config.getServerMode().equals("nio")) {
+                NioWebServer server = new NioWebServer(config.getDefaultPage(), config.getMaxThreads(), config.getPort(), config.getRoot(),
+                        config.getKeepAliveTimeout(), config.getMaxKeepAliveRequests());
+                server.setContentRoot(contentRoot);
+                server.setRequestLimits(requestLimits);
+                server.setCompression(compression);
+                server.setCachePolicy(cachePolicy);
+                server.setAdmissionControl(admissionControl);
+                server.setWorkQueueSize(config.getWorkQueueSize());
+                server.setTimeouts(config.getRequestReadTimeout(), config.getWriteTimeout());
+                server.setHttp2(http2, config.getHttp2MaxConnections());
+                server.setTls(tls, config.getTlsPort());
+                server.setProxy(proxy);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> server.shutdown(config.getShutdownTimeout()), "shutdown"));
+                if (config.isWatchConfig()) {
+                    new ConfigWatcher("config.ini", server::reload);
+                }
+                server.start();
+                return;
+            }
+            ClassicWebServer server = new ClassicWebServer( config.getDefaultPage(), config.getMaxThreads(), config.getPort(), config.getRoot(),
+                    config.getKeepAliveTimeout(), config.getMaxKeepAliveRequests(),
+                    config.getServerMode().equals("virtual"), config.getMaxConnections());
+            server.setContentRoot(contentRoot);
+            server.setRequestLimits(requestLimits);
+            server.setCompression(compression);
+            server.setCachePolicy(cachePolicy);
+            server.setAdmissionControl(admissionControl);
+            server.setWorkQueueSize(config.getWorkQueueSize());
+            server.setTimeouts(config.getRequestReadTimeout(), config.getWriteTimeout());
+            server.setAcceptors(config.getAcceptors(), config.isReusePort());
+            server.setHttp2(http2);
+            server.setTls(tls, config.getTlsPort());
+            server.setProxy(proxy);
+            // On SIGTERM or Ctrl-C, finish the requests in progress before the JVM exits
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> server.shutdown(config.getShutdownTimeout()), "shutdown"));
+            if (config.isWatchConfig()) {
+                new ConfigWatcher("config.ini", server::reload);
+            }
             server.start();
         }
         catch(Exception e){
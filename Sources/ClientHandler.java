@@ -1,12 +1,19 @@
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URLDecoder;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.nio.charset.StandardCharsets;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocket;
 
 
 /*
@@ -19,154 +26,628 @@ The class also includes error handling for file not found and input/output excep
 
 public class ClientHandler implements Runnable {
 
+    // Largest uncached file compressed in memory for a single response; bigger ones are sent uncompressed
+    private static final long MAX_UNCACHED_COMPRESSION = 1024 * 1024;
+
     private final Socket socket;
-    private final String rootDirectory;
-    private final String defaultPage;
+    private String rootDirectory;
+    private String defaultPage;
+    private final int keepAliveTimeout;
+    private final int maxKeepAliveRequests;
+    // Shared in-memory cache of GET responses, null when caching is disabled
+    private StaticContentCache contentCache;
+    // Size limits enforced by the request parser
+    private HttpRequestParser.Limits requestLimits = HttpRequestParser.DEFAULT_LIMITS;
+    // Accept-Encoding negotiation for compressible content, null when compression is disabled
+    private ContentCompression compression;
+    // Cache-Control per content type for static responses
+    private CachePolicy cachePolicy = CachePolicy.DEFAULT;
+    // Most ms allowed to receive one whole request once it has started, 0 for no limit
+    private int requestReadTimeout;
+    // Closes the socket when a response write stalls, null for no write timeout
+    private WriteWatchdog writeWatchdog;
+    // Memory-mapped serving of hot files too large for contentCache, null when disabled
+    private MappedFileCache mappedFiles;
+    // Resolves and checks request paths, shared and cached when set by the server
+    private PathResolver pathResolver;
+    // The server's current root and caches, taken again for every request so that a configuration
+    // reload reaches open connections too; null to keep the ones given to this handler
+    private Supplier<ContentRoot> contentRoot;
+    // HTTP/2 (h2c) settings, null when HTTP/2 is disabled, and the executor that serves its streams
+    private Http2Connection.Settings http2Settings;
+    private Executor http2Streams;
+    // Set once the connection has switched to HTTP/2
+    private volatile Http2Connection http2;
+    // Set for a connection on the TLS port; run() then takes its streams from a TLS socket layered over
+    // socket, while timeouts, shutdownInput and close still go to socket itself (the NIO loop does its own TLS)
+    private TlsContext tls;
+    private Socket streams;
+    // Forwards requests under its path prefixes to upstream servers, null when nothing is proxied
+    private ReverseProxy proxy;
+    // A proxied request whose body is being streamed upstream as it is received
+    private ReverseProxy.Exchange proxyExchange;
+    // Set by the NIO server, whose responses are collected in memory and sent once complete
+    private boolean bufferedOutput;
+
+    // Set by drain() for a graceful shutdown: no request is read after the current one
+    private volatile boolean draining;
+    // Whether the handler is waiting for the next request, which drain() may then cut short
+    private volatile boolean idle;
+
+    // Whether the connection stays open after the response currently being written
+    private boolean keepAlive;
+    private int requestsServed;
+    // The request being handled, null when a handler method is called directly (tests)
+    private HttpRequest request;
 
     public ClientHandler(Socket socket, String rootDirectory, String defaultPage) {
+        this(socket, rootDirectory, defaultPage, 5000, 100);
+    }
+
+    public ClientHandler(Socket socket, String rootDirectory, String defaultPage,
+            int keepAliveTimeout, int maxKeepAliveRequests) {
+        this(socket, rootDirectory, defaultPage, keepAliveTimeout, maxKeepAliveRequests, null);
+    }
+
+    public ClientHandler(Socket socket, String rootDirectory, String defaultPage,
+            int keepAliveTimeout, int maxKeepAliveRequests, StaticContentCache contentCache) {
         this.socket = socket;
         this.rootDirectory = rootDirectory;
         this.defaultPage = defaultPage;
+        this.keepAliveTimeout = keepAliveTimeout;
+        this.maxKeepAliveRequests = maxKeepAliveRequests;
+        this.contentCache = contentCache;
+    }
+
+    public void setRequestLimits(HttpRequestParser.Limits requestLimits) {
+        this.requestLimits = requestLimits;
+    }
+
+    public void setCompression(ContentCompression compression) {
+        this.compression = compression;
+    }
+
+    public void setCachePolicy(CachePolicy cachePolicy) {
+        this.cachePolicy = cachePolicy;
+    }
+
+    public void setRequestReadTimeout(int requestReadTimeout) {
+        this.requestReadTimeout = requestReadTimeout;
+    }
+
+    public void setWriteWatchdog(WriteWatchdog writeWatchdog) {
+        this.writeWatchdog = writeWatchdog;
+    }
+
+    public void setMappedFiles(MappedFileCache mappedFiles) {
+        this.mappedFiles = mappedFiles;
+    }
+
+    public void setPathResolver(PathResolver pathResolver) {
+        this.pathResolver = pathResolver;
+    }
+
+    public void setContentRoot(Supplier<ContentRoot> contentRoot) {
+        this.contentRoot = contentRoot;
+    }
+
+    public void setHttp2(Http2Connection.Settings http2Settings, Executor http2Streams) {
+        this.http2Settings = http2Settings;
+        this.http2Streams = http2Streams;
+    }
+
+    public void setTls(TlsContext tls) {
+        this.tls = tls;
+    }
+
+    public void setProxy(ReverseProxy proxy) {
+        this.proxy = proxy;
+    }
+
+    public void setBufferedOutput(boolean bufferedOutput) {
+        this.bufferedOutput = bufferedOutput;
+    }
+
+    int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    // A handler for one HTTP/2 stream of this connection, with the same configuration; each stream
+    // needs its own because a handler keeps per-request state
+    ClientHandler newStreamHandler() {
+        ClientHandler handler = new ClientHandler(socket, rootDirectory, defaultPage, keepAliveTimeout,
+                maxKeepAliveRequests, contentCache);
+        handler.requestLimits = requestLimits;
+        handler.compression = compression;
+        handler.cachePolicy = cachePolicy;
+        handler.mappedFiles = mappedFiles;
+        handler.pathResolver = pathResolver;
+        handler.contentRoot = contentRoot;
+        handler.tls = tls;
+        handler.proxy = proxy;
+        return handler;
+    }
+
+    // Graceful shutdown: the request in progress is finished and answered with "Connection: close",
+    // a connection waiting for its next request is closed now
+    public void drain() {
+        draining = true;
+        Http2Connection connection = http2;
+        if (connection != null) {
+            connection.drain(); // GOAWAY, then the streams in progress are finished
+            return;
+        }
+        if (idle && !socket.isClosed()) {
+            try {
+                socket.shutdownInput(); // The blocked read sees the end of the stream
+            } catch (IOException e) {
+                ServerLog.debug("Could not stop reading from connection: " + e.getMessage());
+            }
+        }
+    }
+
+    // Close the connection at once, for a shutdown whose deadline has passed
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            ServerLog.error("Could not close socket", e);
+        }
     }
 
     @Override
     public void run() {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                OutputStream out = socket.getOutputStream()) {
-            
-            String requestLine = in.readLine();
-            System.out.println("\nClient request at time: " + java.time.LocalTime.now());
-            System.out.println(requestLine);
-            
-            
-            // // add 10 seconds delay - TESTING
-            // try {
-            //     Thread.sleep(5000);
-            // } catch (InterruptedException e) {
-            //     e.printStackTrace();
-            // }
-
-
-            String[] requestParsed = parseHTTPRequest(requestLine);
-            if (requestParsed == null) {
-                Errors.sendErrorResponse(out, 400); // Bad Request
-                return;
-            }
-            Map<String, String> parameters;
-            String method = requestParsed[0];
-            String uri = requestParsed[1];
-            String sanitize_uri = sanitizeUri(uri);
-            String httpVersion = requestParsed[2];
-            System.out.println("method: " + method + " uri: " + sanitize_uri + " httpVersion: " + httpVersion);
-
-            if (uri.contains("?")) {
-                parameters = getParamMap(sanitize_uri);
-                System.out.println("parameters: " + parameters);
-                uri = uri.substring(0, uri.indexOf("?"));
-            } else {
-                parameters = new HashMap<>();
+        ServerMetrics.connectionOpened();
+        ChannelOutputStream channelOut = null;
+        try (InputStream in = openStreams().getInputStream();
+                OutputStream out = (channelOut = openChannelOutput()) != null ? channelOut : streams.getOutputStream()) {
+            if (writeWatchdog != null && channelOut != null) {
+                writeWatchdog.watch(channelOut, socket);
             }
 
-            switch (method) {
-                case "GET":
-                    handleGetRequest(uri, out);
-                    break;
-                case "HEAD":
-                    handleHeadRequest(uri, out);
-                    break;
-                case "POST":
-                    handlePostRequest(uri, parameters, in, out);
+            // An idle persistent connection is dropped after keepAliveTimeout ms without a new request
+            socket.setSoTimeout(keepAliveTimeout);
+            keepAlive = true;
+            HttpRequestParser parser = new HttpRequestParser(requestLimits);
+            HttpRequest request = new HttpRequest();
+            request.setBodySinks(proxyBodySinks(true));
+
+            while (keepAlive) {
+                try {
+                    // A pipelined request that is already buffered is served without reading the socket
+                    if (!parser.parse(request)) {
+                        // Responses held back for pipelined requests go out before waiting for more input
+                        if (channelOut != null) {
+                            channelOut.setBatching(false);
+                        }
+                        out.flush();
+                        if (!readRequest(parser, in, out, request)) {
+                            break; // Client closed the connection
+                        }
+                    }
+                } catch (SocketTimeoutException e) {
+                    if (!parser.isBetweenRequests()) {
+                        Errors.sendErrorResponse(out, 408, false); // Request Timeout, client stalled mid-request
+                    }
+                    break; // Idle timeout reached between requests
+                } catch (HttpParseException e) {
+                    ServerLog.debug("Rejected request: " + e.getMessage());
+                    ServerMetrics.connectionRejected();
+                    Errors.sendErrorResponse(out, e.getStatusCode(), false);
                     break;
-                case "TRACE":
-                    handleTraceRequest(requestLine, in, out);
+                }
+                if (isHttp2Request(request)) {
+                    if (channelOut != null) {
+                        channelOut.setBatching(false);
+                    }
+                    out.flush(); // Responses to earlier pipelined requests come before the switch
+                    serveHttp2(request, parser, in, out);
                     break;
-                default:
-                    Errors.sendErrorResponse(out, 501);
-
+                }
+                // While more requests are buffered, this response joins a batch written together with the
+                // responses that follow it, in request order
+                if (channelOut != null) {
+                    channelOut.setBatching(parser.hasBufferedData());
+                }
+                serveRequest(request, out);
+                out.flush();
             }
         } catch (FileNotFoundException e) {
 
             try {
 
-                Errors.sendErrorResponse(socket.getOutputStream(), 404); // Not Found
+                Errors.sendErrorResponse(streams.getOutputStream(), 404); // Not Found
             } catch (IOException ex) {
 
-                ex.printStackTrace();
+                ServerLog.error("Could not send 404 response", ex);
             }
+        } catch (SSLException e) {
+            // A failed handshake or a broken record: nothing can be sent over the TLS session any more
+            ServerLog.debug("TLS connection from " + socket.getInetAddress() + " failed: " + e.getMessage());
         } catch (IOException e) {
+            if (draining && socket.isClosed()) {
+                ServerLog.debug("Connection closed by shutdown: " + e);
+                return;
+            }
 
-            e.printStackTrace();
+            ServerLog.error("Connection error: " + e.getMessage(), e);
 
-            if (!socket.isClosed()) {
+            if (!socket.isClosed() && streams != null) {
                 try {
-                    OutputStream out = socket.getOutputStream();
+                    OutputStream out = streams.getOutputStream();
                     Errors.sendErrorResponse(out, 500); // Send a 500 Internal Server Error response
                 } catch (IOException ex) {
-                    ex.printStackTrace(); // Log this exception as well, in case sending the error response fails
+                    ServerLog.error("Could not send 500 response", ex); // Log this exception as well, in case sending the error response fails
                 }
             }
         } finally {
+            if (proxyExchange != null) {
+                proxyExchange.abort(); // The request was rejected or cut off while its body was streamed
+            }
+            ServerMetrics.connectionClosed();
+            if (writeWatchdog != null && channelOut != null) {
+                writeWatchdog.unwatch(channelOut);
+            }
             try {
-                socket.close();
+                (streams != null ? streams : socket).close(); // A TLS socket sends close_notify first
             } catch (IOException e) {
-                e.printStackTrace(); // Log exception
+                ServerLog.error("Could not close socket", e); // Log exception
             }
         }
     }
 
-    public String sanitizeUri(String uri) {
-        // Pattern to match extraneous characters before the intended path
-        String pattern = "/+\\.*/+";
-    
-        // Replace matched patterns with a single "/"
-        String sanitizedUri = uri.replaceAll(pattern, "/");
-    
-        return sanitizedUri;
-    }
-
-    private String getContentType(String contentType) {
-        switch (contentType) {
-            case "image/jpeg":
-            case "image/png":
-            case "image/gif":
-            case "image/bmp":
-                return "image";
-            case "image/x-icon":
-                return "icon";
-            case "text/html":
-                return "text/html";
+    // The socket whose streams carry the connection: socket itself, or a TLS socket layered over it
+    private Socket openStreams() throws IOException {
+        streams = tls != null ? tls.wrap(socket, http2Settings != null) : socket;
+        return streams;
+    }
+
+    // Sockets accepted from a ServerSocketChannel expose their channel, which enables zero-copy file
+    // sends; a TLS socket gets a channel over its stream instead, to keep batching and the watchdog
+    private ChannelOutputStream openChannelOutput() throws IOException {
+        if (streams instanceof SSLSocket) {
+            return new ChannelOutputStream(TlsContext.channel((SSLSocket) streams));
+        }
+        return socket.getChannel() != null ? new ChannelOutputStream(socket.getChannel()) : null;
+    }
+
+    // Read until parser holds a whole request, like HttpRequestParser.readRequest, but with two clocks:
+    // between requests the socket may stay idle for keepAliveTimeout ms, while a request that has
+    // started must arrive completely within requestReadTimeout ms, however slowly its bytes trickle in.
+    // A client waiting for "100 Continue" before it sends the body gets it through out.
+    private boolean readRequest(HttpRequestParser parser, InputStream in, OutputStream out, HttpRequest request)
+            throws IOException {
+        long deadline = 0;
+        while (!parser.parse(request)) {
+            // drain() sets draining before it checks idle, and this checks draining after setting idle,
+            // so a connection going idle during a shutdown is always closed by one side or the other.
+            // A connection accepted before the shutdown still gets its first request served.
+            idle = parser.isBetweenRequests() && requestsServed > 0;
+            if (idle && draining) {
+                idle = false;
+                return false;
+            }
+            if (parser.takeExpectContinue()) {
+                out.write(ResponseWriter.CONTINUE);
+                out.flush();
+            }
+            if (parser.isBetweenRequests() || requestReadTimeout <= 0) {
+                socket.setSoTimeout(keepAliveTimeout);
+            } else {
+                long now = System.currentTimeMillis();
+                if (deadline == 0) {
+                    deadline = now + requestReadTimeout;
+                }
+                if (now >= deadline) {
+                    throw new SocketTimeoutException("Request not received within " + requestReadTimeout + " ms");
+                }
+                socket.setSoTimeout((int) (deadline - now));
+            }
+            int n = parser.fill(in);
+            idle = false;
+            if (n < 0) {
+                if (parser.isBetweenRequests()) {
+                    return false;
+                }
+                throw new HttpParseException(400, "Connection closed in the middle of a request");
+            }
+        }
+        return true;
+    }
+
+    // Where the body of a proxied request goes, chosen when its header section is complete: straight to
+    // the upstream as it arrives when this thread also serves the request (blocking connections), kept by
+    // the exchange until it is forwarded otherwise (the NIO loop parses and HTTP/2 streams receive bodies
+    // on threads that must not wait for an upstream). Null when nothing is proxied.
+    Function<HttpRequest, HttpRequest.BodySink> proxyBodySinks(boolean streamBody) {
+        if (proxy == null) {
+            return null;
+        }
+        return request -> {
+            ReverseProxy.Route route = proxy.route(request.getUri());
+            if (route == null) {
+                return null;
+            }
+            ReverseProxy.Exchange exchange = proxy.open(route, request, remoteHost(), tls != null, streamBody);
+            if (streamBody) {
+                proxyExchange = exchange;
+            }
+            return exchange;
+        };
+    }
+
+    // Whether request starts HTTP/2 on this connection, with the preface or an h2c upgrade; over TLS
+    // HTTP/2 is chosen by ALPN and starts with the preface, the upgrade is for cleartext only
+    public boolean isHttp2Request(HttpRequest request) {
+        return http2Settings != null
+                && (Http2Connection.isPreface(request) || tls == null && Http2Connection.isUpgrade(request));
+    }
+
+    // Continue a connection taken over from the NIO event loop in HTTP/2, on the calling thread, until
+    // it ends; the channel must be in blocking mode and the caller closes it afterwards
+    public void serveHttp2(HttpRequest request, HttpRequestParser parser) throws IOException {
+        serveHttp2(request, parser, socket.getInputStream(), new ChannelOutputStream(socket.getChannel()));
+    }
+
+    private void serveHttp2(HttpRequest request, HttpRequestParser parser, InputStream in, OutputStream out)
+            throws IOException {
+        Http2Connection connection = new Http2Connection(this, socket, in, out, parser.takeBufferedData(),
+                http2Settings, requestLimits, http2Streams);
+        http2 = connection;
+        if (draining) {
+            connection.drain(); // drain() came before http2 was set
+        }
+        connection.serve(Http2Connection.isPreface(request) ? null : request);
+    }
+
+    // Handle one complete request parsed by the NIO event loop.
+    // Returns whether the connection should stay open for another request.
+    public boolean handleParsedRequest(HttpRequest request, OutputStream out) throws IOException {
+        keepAlive = true;
+        serveRequest(request, out);
+        return keepAlive;
+    }
+
+    // Decide on persistence, dispatch the request and record it in the access log
+    private void serveRequest(HttpRequest request, OutputStream out) throws IOException {
+        long startTime = System.nanoTime();
+        long bytesBefore = bytesWritten(out);
+        if (ServerLog.isDebugEnabled()) {
+            ServerLog.debug("Client request at time: " + java.time.LocalTime.now() + "\n" + request.getRequestLine());
+        }
+
+        requestsServed++;
+        keepAlive = keepAlive && !draining && requestsServed < maxKeepAliveRequests
+                && isPersistent(request.getVersion(), request.getHeader("Connection"));
+
+        if (contentRoot != null) {
+            useContentRoot(contentRoot.get());
+        }
+        this.request = request;
+        try {
+            handleRequest(request, out);
+        } finally {
+            this.request = null;
+        }
+
+        int status = out instanceof ChannelOutputStream ? ResponseWriter.of(out).getLastStatus() : 0;
+        long latency = System.nanoTime() - startTime;
+        long bytesSent = bytesWritten(out) - bytesBefore;
+        ServerMetrics.recordRequest(request.getMethod(), status, latency, bytesSent);
+        ServerLog.access(remoteHost(), request.getRequestLine(), status, bytesSent,
+                latency, request.getHeader("Referer"), request.getHeader("User-Agent"));
+        request.releaseBody(); // The connection may now stay idle until its next request
+    }
+
+    private void useContentRoot(ContentRoot root) {
+        rootDirectory = root.getRootDirectory();
+        defaultPage = root.getDefaultPage();
+        pathResolver = root.getPathResolver();
+        contentCache = root.getContentCache();
+        mappedFiles = root.getMappedFiles();
+    }
+
+    private static long bytesWritten(OutputStream out) {
+        return out instanceof ChannelOutputStream ? ((ChannelOutputStream) out).getBytesWritten() : 0;
+    }
+
+    private String remoteHost() {
+        return socket.getInetAddress() != null ? socket.getInetAddress().getHostAddress() : null;
+    }
+
+    // Process a single parsed request
+    private void handleRequest(HttpRequest request, OutputStream out) throws IOException {
+
+        // // add 10 seconds delay - TESTING
+        // try {
+        //     Thread.sleep(5000);
+        // } catch (InterruptedException e) {
+        //     e.printStackTrace();
+        // }
+
+
+        Map<String, String> parameters;
+        String method = request.getMethod();
+        if (method.equals("GET") && ServerMetrics.isMetricsRequest(request.getUri())) {
+            sendMetrics(out);
+            return;
+        }
+        ReverseProxy.Route route = proxy != null ? proxy.route(request.getUri()) : null;
+        if (route != null) {
+            forwardRequest(route, request, out);
+            return;
+        }
+        String uri = normalizeTarget(request.getUri());
+        String sanitize_uri = sanitizeUri(uri);
+        String httpVersion = request.getVersion();
+        if (ServerLog.isDebugEnabled()) {
+            ServerLog.debug("method: " + method + " uri: " + sanitize_uri + " httpVersion: " + httpVersion);
+        }
+
+        int query = uri.indexOf('?');
+        if (query >= 0) {
+            parameters = getParamMap(sanitize_uri);
+            if (ServerLog.isDebugEnabled()) {
+                ServerLog.debug("parameters: " + parameters);
+            }
+            uri = uri.substring(0, query);
+        } else {
+            parameters = new HashMap<>();
+        }
+
+        // The parser has already consumed any body, so every response below can keep the connection open
+        switch (method) {
+            case "GET":
+                handleGetRequest(uri, out);
+                break;
+            case "HEAD":
+                handleHeadRequest(uri, out);
+                break;
+            case "POST":
+                handlePostRequest(uri, parameters, request, out);
+                break;
+            case "TRACE":
+                handleTraceRequest(request, out);
+                break;
             default:
-                return "application/octet-stream";
+                Errors.sendErrorResponse(out, 501, keepAlive);
+
+        }
+    }
+
+    // Answer from an upstream, with the exchange the body already went to or a new one
+    private void forwardRequest(ReverseProxy.Route route, HttpRequest request, OutputStream out) throws IOException {
+        ReverseProxy.Exchange exchange = request.getBodySink() instanceof ReverseProxy.Exchange
+                ? (ReverseProxy.Exchange) request.getBodySink()
+                : proxy.open(route, request, remoteHost(), tls != null, false);
+        proxyExchange = null;
+        keepAlive = exchange.forward(out, keepAlive, bufferedOutput);
+    }
+
+    // The admin metrics page, rendered fresh for every scrape
+    private void sendMetrics(OutputStream out) throws IOException {
+        byte[] body = ServerMetrics.render().getBytes(StandardCharsets.UTF_8);
+        ResponseWriter.of(out)
+                .status(200)
+                .header(ResponseWriter.CONTENT_TYPE, ServerMetrics.CONTENT_TYPE)
+                .header(ResponseWriter.CONTENT_LENGTH, body.length)
+                .connection(keepAlive)
+                .send(body);
+    }
+
+    private String requestHeader(String name) {
+        return request != null ? request.getHeader(name) : null;
+    }
+
+    // Read header lines up to the blank line that ends the header section
+    private List<String> readHeaderLines(BufferedReader in) throws IOException {
+        List<String> headerLines = new ArrayList<>();
+        String headerLine;
+        while ((headerLine = in.readLine()) != null && !headerLine.isEmpty()) {
+            headerLines.add(headerLine);
+        }
+        return headerLines;
+    }
+
+    // Build a request from text headers, for callers that still hand us a BufferedReader
+    private HttpRequest readRequestFromReader(String requestLine, BufferedReader in) throws IOException {
+        HttpRequest request = new HttpRequest();
+        String[] parts = requestLine.split(" ");
+        request.setRequestLine(parts[0], parts.length > 1 ? parts[1] : "/", parts.length > 2 ? parts[2] : "HTTP/1.1");
+        for (String headerLine : readHeaderLines(in)) {
+            int colon = headerLine.indexOf(':');
+            if (colon > 0) {
+                request.addHeader(headerLine.substring(0, colon).trim(), headerLine.substring(colon + 1).trim());
+            }
+        }
+        return request;
+    }
+
+    // HTTP/1.1 connections are persistent unless "Connection: close",
+    // HTTP/1.0 connections only when the client asks for "Connection: keep-alive"
+    private boolean isPersistent(String httpVersion, String connectionHeader) {
+        String connection = connectionHeader == null ? "" : connectionHeader.toLowerCase();
+        if (httpVersion.equals("HTTP/1.1")) {
+            return !connection.contains("close");
+        }
+        return connection.contains("keep-alive");
+    }
+
+    // Collapse every "/+\.*/+" run (slashes, optional dots, slashes) into a single "/",
+    // with the same result as uri.replaceAll("/+\\.*/+", "/") but without a regex per request
+    public String sanitizeUri(String uri) {
+        int n = uri.length();
+        if (uri.indexOf('/') < 0) {
+            return uri;
+        }
+        StringBuilder sanitizedUri = null;
+        int copied = 0;
+        int i = 0;
+        while (i < n) {
+            if (uri.charAt(i) != '/') {
+                i++;
+                continue;
+            }
+            int slashesEnd = i;
+            while (slashesEnd < n && uri.charAt(slashesEnd) == '/') {
+                slashesEnd++;
+            }
+            int dotsEnd = slashesEnd;
+            while (dotsEnd < n && uri.charAt(dotsEnd) == '.') {
+                dotsEnd++;
+            }
+            int matchEnd;
+            if (dotsEnd < n && uri.charAt(dotsEnd) == '/') {
+                matchEnd = dotsEnd;
+                while (matchEnd < n && uri.charAt(matchEnd) == '/') {
+                    matchEnd++;
+                }
+            } else if (slashesEnd - i >= 2) {
+                matchEnd = slashesEnd; // Only a run of slashes, without dots
+            } else {
+                i = slashesEnd;
+                continue;
+            }
+            if (sanitizedUri == null) {
+                sanitizedUri = new StringBuilder(n);
+            }
+            sanitizedUri.append(uri, copied, i).append('/');
+            copied = matchEnd;
+            i = matchEnd;
         }
+        if (sanitizedUri == null) {
+            return uri;
+        }
+        return sanitizedUri.append(uri, copied, n).toString();
     }
 
     public String[] parseHTTPRequest(String requestLine) {
         if (requestLine == null || requestLine.isEmpty()) { return null; }
         
-        String[] requestParts = requestLine.split(" ");
-        if (requestParts.length < 3) { return null; }
+        int firstSpace = requestLine.indexOf(' ');
+        int secondSpace = firstSpace < 0 ? -1 : requestLine.indexOf(' ', firstSpace + 1);
+        if (secondSpace < 0 || firstSpace == 0 || secondSpace == firstSpace + 1) { return null; }
+        int versionEnd = requestLine.indexOf(' ', secondSpace + 1);
         
-        String method = requestParts[0];
-        String uri = requestParts[1];
-        String httpVersion = requestParts[2];
+        String method = requestLine.substring(0, firstSpace);
+        String uri = requestLine.substring(firstSpace + 1, secondSpace);
+        String httpVersion = requestLine.substring(secondSpace + 1, versionEnd < 0 ? requestLine.length() : versionEnd);
         // if (!httpVersion.equals("HTTP/1.1")) { return null; }
 
-        if (uri.charAt(0) == '/') {
+        // Return the parsed method, URI (with params if exists), and arguments as an array
+        return new String[] { method, normalizeTarget(uri), httpVersion };
+    }
+
+    // Strip the leading "/" of the request target; an empty path means the default page
+    private String normalizeTarget(String uri) {
+        if (!uri.isEmpty() && uri.charAt(0) == '/') {
             uri = uri.substring(1);
         }
 
         if (uri.isEmpty()) {
             uri = defaultPage;
         }
-
-        // if (requestLine.contains("chunked: yes")) {
-        //     System.out.println("Chunked transfer encoding is not supported.");
-        //     return null;
-        // }
-
-
-        // Return the parsed method, URI (with params if exists), and arguments as an array
-        return new String[] { method, uri, httpVersion };
+        return uri;
     }
 
 
@@ -183,7 +664,7 @@ public class ClientHandler implements Runnable {
                         String value = URLDecoder.decode(keyValue[1], "UTF-8");
                         parameters.put(key, value);
                     } catch (UnsupportedEncodingException e) {
-                        e.printStackTrace();
+                        ServerLog.error("Could not decode parameter " + pair, e);
                     }
                 }
             }
@@ -191,98 +672,291 @@ public class ClientHandler implements Runnable {
         return parameters;
     }
 
-    // Sanitize the path string to prevent directory traversal attacks
-    private Path getSanitizedPathString(String uri, OutputStream out) throws IOException {
-        Path filePath = Paths.get(rootDirectory).resolve(uri.substring(0));
-        File file = filePath.toFile();
-        if (!file.getCanonicalPath().startsWith(new File(rootDirectory).getCanonicalPath())) {
-            Errors.sendErrorResponse(out, 403); // Forbidden
-            return null;
+    // Resolve the path under the root directory, refusing directory traversal attacks (403) and
+    // missing files (404); returns null after sending the error, without its body for HEAD
+    private PathResolver.Resolution resolvePath(String uri, OutputStream out, boolean headOnly) throws IOException {
+        if (pathResolver == null) {
+            pathResolver = new PathResolver(rootDirectory, 0); // Uncached, for handlers created without one
         }
-        if (!file.exists()) {
-            Errors.sendErrorResponse(out, 404); // Not Found
+        PathResolver.Resolution resolution = pathResolver.resolve(uri);
+        if (resolution.getStatus() != 200) {
+            Errors.sendErrorResponse(out, resolution.getStatus(), keepAlive, headOnly); // Forbidden or Not Found
             return null;
         }
-        return filePath;
+        return resolution;
     }
 
 
     public void handleGetRequest(String uri, OutputStream out) throws IOException {
-        Path filePath = getSanitizedPathString(uri, out);
-        System.out.println("File Path: " + filePath);
-        if (filePath == null) { return; }
+        // The coding this client prefers, if compression is enabled: "gzip", "deflate" or null
+        String encoding = compression != null ? ContentCompression.negotiate(requestHeader("Accept-Encoding")) : null;
+        if (requestHeader("Range") != null) {
+            // Ranges are positions in the file itself, so a range request gets the identity encoding
+            encoding = null;
+        }
+
+        // A cached entry was validated when it was loaded, so a hit skips path resolution entirely
+        if (contentCache != null) {
+            if (encoding != null) {
+                StaticContentCache.Entry variant = contentCache.get(StaticContentCache.variantKey(uri, encoding));
+                if (variant != null) {
+                    sendCached(variant, out);
+                    return;
+                }
+            }
+            StaticContentCache.Entry cached = contentCache.get(uri);
+            if (cached != null) {
+                if (encoding != null && compression.isCompressible(cached.getContentType(), cached.getBody().length)) {
+                    // First request for this coding: compress the cached bytes once and keep the result
+                    cached = contentCache.putVariant(StaticContentCache.variantKey(uri, encoding), cached, encoding,
+                            ContentCompression.compress(cached.getBody(), encoding));
+                }
+                sendCached(cached, out);
+                return;
+            }
+        }
+        PathResolver.Resolution target = resolvePath(uri, out, false);
+        if (target == null) { return; }
+        Path filePath = target.getPath();
+        if (ServerLog.isDebugEnabled()) {
+            ServerLog.debug("File Path: " + filePath);
+        }
         File file = filePath.toFile();
-        String contentType = Files.probeContentType(filePath);
-        contentType = getContentType(contentType);
-        ResponseUtil.sendSuccessResponse(file, contentType, out);
+        String contentType = target.getContentType();
+        boolean isFile = target.isFile();
+        boolean vary = compression != null && compression.isCompressibleType(contentType);
+        if (encoding != null && vary && isFile && sendCompressed(uri, filePath, contentType, encoding, out)) {
+            return;
+        }
+        // Conditional requests are answered from the file's metadata, before its content is read
+        if (isFile && sendNotModified(target.getSize(), target.getLastModified(), null, contentType, vary, out)) {
+            return;
+        }
+        // Ranges of files too large for the cache are read at their positions
+        if (isFile && !(contentCache != null && contentCache.isCacheable(target.getSize()))
+                && sendPartial(target.getSize(), target.getLastModified(), null, filePath, contentType, vary, out)) {
+            return;
+        }
+        if (contentCache != null && isFile && contentCache.isCacheable(target.getSize())) {
+            StaticContentCache.Entry loaded = contentCache.load(uri, filePath, contentType, null, vary);
+            if (loaded != null) {
+                sendCached(loaded, out);
+                return;
+            }
+        }
+        if (mappedFiles != null && isFile) {
+            MappedFileCache.Entry mapped = mappedFiles.get(uri, filePath);
+            if (mapped != null) {
+                ResponseUtil.sendMappedResponse(mapped, contentType, vary, cachePolicy.getCacheControl(contentType),
+                        out, keepAlive);
+                return;
+            }
+        }
+        ResponseUtil.sendSuccessResponse(file, contentType, null, vary, cachePolicy.getCacheControl(contentType),
+                out, keepAlive);
+
+    }
+
+    // Send a cached entry, or 304 when the request's validators match it
+    private void sendCached(StaticContentCache.Entry entry, OutputStream out) throws IOException {
+        String cacheControl = cachePolicy.getCacheControl(entry.getContentType());
+        if (CachePolicy.isNotModified(requestHeader("If-None-Match"), requestHeader("If-Modified-Since"),
+                entry.getETag(), entry.getLastModified())) {
+            ResponseUtil.sendNotModified(entry.getETag(), entry.getLastModified(), cacheControl,
+                    entry.isVaryAcceptEncoding(), out, keepAlive);
+            return;
+        }
+        if (entry.getContentEncoding() == null && sendPartial(entry.getBody().length, entry.getLastModified(),
+                entry.getBody(), null, entry.getContentType(), entry.isVaryAcceptEncoding(), out)) {
+            return;
+        }
+        ResponseUtil.sendCachedResponse(entry, cacheControl, out, keepAlive);
+    }
+
+    // Answer a Range request with 206 or 416, taking the bytes from body or else from file.
+    // Returns false when the whole file should be sent: no Range header, one that is ignored,
+    // or an If-Range naming another version of the file.
+    private boolean sendPartial(long length, long lastModified, byte[] body, Path file, String contentType,
+            boolean vary, OutputStream out) throws IOException {
+        String rangeHeader = requestHeader("Range");
+        if (rangeHeader == null) {
+            return false;
+        }
+        String etag = CachePolicy.etag(length, lastModified, null);
+        if (!ByteRanges.ifRangeMatches(requestHeader("If-Range"), etag, lastModified)) {
+            return false;
+        }
+        List<long[]> ranges = ByteRanges.parse(rangeHeader, length);
+        if (ranges == null) {
+            return false;
+        }
+        if (ranges.isEmpty()) {
+            ResponseUtil.sendRangeNotSatisfiable(length, out, keepAlive);
+            return true;
+        }
+        ResponseUtil.sendPartialResponse(ranges, length, body, file, contentType, etag, lastModified,
+                cachePolicy.getCacheControl(contentType), vary, out, keepAlive);
+        return true;
+    }
+
+    // Answer 304 if the request's validators match this file version; returns whether it did
+    private boolean sendNotModified(long size, long lastModified, String contentEncoding, String contentType,
+            boolean vary, OutputStream out) throws IOException {
+        String etag = CachePolicy.etag(size, lastModified, contentEncoding);
+        if (!CachePolicy.isNotModified(requestHeader("If-None-Match"), requestHeader("If-Modified-Since"),
+                etag, lastModified)) {
+            return false;
+        }
+        ResponseUtil.sendNotModified(etag, lastModified, cachePolicy.getCacheControl(contentType), vary, out, keepAlive);
+        return true;
+    }
 
+    // Serve a file of a compressible type in the negotiated coding: a pre-built .gz sibling when there is
+    // one, otherwise the file compressed once and cached if it reaches the minimum size. Files too large
+    // for the cache are compressed per request up to MAX_UNCACHED_COMPRESSION bytes.
+    // Returns false when the file should be sent as it is.
+    private boolean sendCompressed(String uri, Path filePath, String contentType, String encoding,
+            OutputStream out) throws IOException {
+        String key = StaticContentCache.variantKey(uri, encoding);
+        Path sibling = ContentCompression.precompressedSibling(filePath, encoding);
+        if (sibling != null) {
+            File siblingFile = sibling.toFile();
+            if (sendNotModified(siblingFile.length(), siblingFile.lastModified(), encoding, contentType, true, out)) {
+                return true;
+            }
+            if (contentCache != null && contentCache.isCacheable(siblingFile.length())) {
+                StaticContentCache.Entry loaded = contentCache.load(key, sibling, contentType, encoding, true);
+                if (loaded != null) {
+                    sendCached(loaded, out);
+                    return true;
+                }
+            }
+            ResponseUtil.sendSuccessResponse(siblingFile, contentType, encoding, true,
+                    cachePolicy.getCacheControl(contentType), out, keepAlive);
+            return true;
+        }
+        File file = filePath.toFile();
+        long size = file.length();
+        long lastModified = file.lastModified();
+        if (!compression.isCompressible(contentType, size) || size > MAX_UNCACHED_COMPRESSION
+                && (contentCache == null || !contentCache.isCacheable(size))) {
+            return false;
+        }
+        if (sendNotModified(size, lastModified, encoding, contentType, true, out)) {
+            return true;
+        }
+        if (contentCache != null && contentCache.isCacheable(size)) {
+            StaticContentCache.Entry loaded = contentCache.load(uri, filePath, contentType, null, true);
+            if (loaded != null) {
+                StaticContentCache.Entry variant = contentCache.putVariant(key, loaded, encoding,
+                        ContentCompression.compress(loaded.getBody(), encoding));
+                sendCached(variant, out);
+                return true;
+            }
+        }
+        byte[] body = ContentCompression.compress(Files.readAllBytes(filePath), encoding);
+        ResponseUtil.sendCompressedResponse(body, contentType, encoding, CachePolicy.etag(size, lastModified, encoding),
+                lastModified, cachePolicy.getCacheControl(contentType), out, keepAlive);
+        return true;
     }
 
     public void handleHeadRequest(String uri, OutputStream out) throws IOException {
-        System.out.println("Handling HEAD request for URI: " + uri);
+        if (ServerLog.isDebugEnabled()) {
+            ServerLog.debug("Handling HEAD request for URI: " + uri);
+        }
         String path = uri.split("\\?")[0];  // Use regex "\\?" to split since "?" is a special character in regex
 
-        Path filePath = getSanitizedPathString(path, out);
-        if (filePath == null) { return; }
+        PathResolver.Resolution target = resolvePath(path, out, true);
+        if (target == null) { return; }
 
-        File file = filePath.toFile();
-        if (!file.exists() || !file.isFile()) {
-            // Handle the case where the file does not exist or is not a file (e.g., send a 404 response)
-            Errors.sendErrorResponse(out, 404);
+        if (!target.isFile()) {
+            // Handle the case where the path is not a file (e.g., a directory: send a 404 response)
+            Errors.sendErrorResponse(out, 404, keepAlive, true);
             return;
         }
-        String contentType = Files.probeContentType(filePath);
-        contentType = getContentType(contentType);
-        ResponseUtil.sendHEADResponse(file, contentType, out);
+        String contentType = target.getContentType();
+        // Same Vary as the GET of this file, so caches key both on Accept-Encoding alike
+        boolean vary = compression != null && compression.isCompressibleType(contentType);
+        if (sendNotModified(target.getSize(), target.getLastModified(), null, contentType, vary, out)) {
+            return;
+        }
+        ResponseUtil.sendHEADResponse(target.getPath().toFile(), contentType, vary,
+                cachePolicy.getCacheControl(contentType), out, keepAlive);
     }
 
     public void handlePostRequest(String uri,Map<String, String> params_in_head ,BufferedReader in, OutputStream out) throws IOException {
+        // Headers and body have not been consumed yet when called directly
+        HttpRequest request = readRequestFromReader("POST /" + uri + " HTTP/1.1", in);
+        String contentLengthHeader = request.getHeader("Content-Length");
+        if (contentLengthHeader != null) {
+            int contentLength;
+            try {
+                contentLength = Integer.parseInt(contentLengthHeader.trim());
+            } catch (NumberFormatException e) {
+                Errors.sendErrorResponse(out, 400, keepAlive); // Bad Request
+                return;
+            }
+            if (contentLength < 0) {
+                Errors.sendErrorResponse(out, 400, keepAlive);
+                return;
+            }
+            if (contentLength > requestLimits.getMaxBodySize()) {
+                Errors.sendErrorResponse(out, 413, false); // Payload Too Large
+                keepAlive = false;
+                return;
+            }
+            // Read through a small buffer, whatever Content-Length claims, and stop early at end of input
+            request.startBody(0);
+            char[] chunk = new char[Math.min(contentLength, 4096)];
+            int read = 0;
+            int n;
+            while (read < contentLength && (n = in.read(chunk, 0, Math.min(chunk.length, contentLength - read))) > 0) {
+                byte[] bytes = new String(chunk, 0, n).getBytes(StandardCharsets.UTF_8);
+                request.appendBody(bytes, 0, bytes.length);
+                read += n;
+            }
+            request.finishBody();
+        }
+        handlePostRequest(uri, params_in_head, request, out);
+    }
+
+    public void handlePostRequest(String uri, Map<String, String> params_in_head, HttpRequest request,
+            OutputStream out) throws IOException {
         
         if (uri.equals("params_info.html")){
 
-            System.out.println("Handling POST request for URI: " + uri);
-            int contentLength = -1;
-
-            // Read and process all headers
-            String headerLine;
-            while (!(headerLine = in.readLine()).isEmpty()) {
-                System.out.println(headerLine); 
-                if (headerLine.startsWith("Content-Length:")) {
-                    contentLength = Integer.parseInt(headerLine.substring("Content-Length:".length()).trim());
-                }
+            if (ServerLog.isDebugEnabled()) {
+                ServerLog.debug("Handling POST request for URI: " + uri);
             }
 
-            if (contentLength == -1) {
-                Errors.sendErrorResponse(out, 411); // Erro for Length
+            if (request.getHeader("Content-Length") == null && request.getHeader("Transfer-Encoding") == null) {
+                Errors.sendErrorResponse(out, 411, keepAlive); // Erro for Length
                 return;
             }
 
-            // Read the body of the request based on Content-Length
-            char[] bodyChars = new char[contentLength];
-            int bytesRead = in.read(bodyChars, 0, contentLength);
-            if (bytesRead != contentLength) {
-                Errors.sendErrorResponse(out, 400); // Bad Request
-                return;
+            // A form body was decoded by the parser while it arrived; any other body was read in full
+            Map<String, String> params = request.getFormFields();
+            if (params == null) {
+                String body = new String(request.getBody(), 0, request.getBodyLength(), StandardCharsets.UTF_8);
+                if (ServerLog.isDebugEnabled()) {
+                    ServerLog.debug("Body: " + body);
+                }
+                params = parseFormData(body);
             }
-            String body = new String(bodyChars);
-            System.out.println("Body: " + body);
-
-            Map<String, String> params = parseFormData(body);
             params.putAll(params_in_head);
-            
-            // Generate dynamic HTML based on params
-            String responseHtml = generateDynamicHtml(params);
-        
-            // Send response
-            PrintWriter writer = new PrintWriter(out, true);
-            writer.println("HTTP/1.1 200 OK");
-            writer.println("Content-Type: text/html");
-            writer.println("Content-Length: " + responseHtml.getBytes().length);
-            writer.println();
-            writer.print(responseHtml);
-            writer.flush();
+
+            // Generate dynamic HTML based on params, streamed as it is produced
+            boolean chunked = isChunkedSupported(request);
+            keepAlive = keepAlive && chunked;
+            ChunkedOutputStream body = ResponseWriter.of(out)
+                    .status(200)
+                    .header(ResponseWriter.CONTENT_TYPE, "text/html")
+                    .connection(keepAlive)
+                    .streamBody(chunked);
+            writeDynamicHtml(params, body);
+            body.close();
         } else {
-            Errors.sendErrorResponse(out, 404); // Not Found
+            Errors.sendErrorResponse(out, 404, keepAlive); // Not Found
        }
 }
 
@@ -300,27 +974,39 @@ public class ClientHandler implements Runnable {
         return params;
     }
 
-    private String generateDynamicHtml(Map<String, String> params) {
-        StringBuilder htmlBuilder = new StringBuilder("<!DOCTYPE html><html><body>");
-        htmlBuilder.append("<h2>Form Submission Details</h2>");
+    private void writeDynamicHtml(Map<String, String> params, ChunkedOutputStream body) throws IOException {
+        body.print("<!DOCTYPE html><html><body>");
+        body.print("<h2>Form Submission Details</h2>");
         for (Map.Entry<String, String> entry : params.entrySet()) {
-            htmlBuilder.append("<p>").append(entry.getKey()).append(": ").append(entry.getValue()).append("</p>");
+            body.print("<p>").print(entry.getKey()).print(": ").print(entry.getValue()).print("</p>");
         }
-        htmlBuilder.append("</body></html>");
-        return htmlBuilder.toString();
+        body.print("</body></html>");
+    }
+
+    // Chunked bodies need HTTP/1.1; an HTTP/1.0 client gets a body that ends with the connection
+    private static boolean isChunkedSupported(HttpRequest request) {
+        return "HTTP/1.1".equals(request.getVersion());
     }
 
 
     public void handleTraceRequest(String requestLine, BufferedReader in, OutputStream out) throws IOException {
-        PrintWriter writer = new PrintWriter(out, true);
-        writer.println("HTTP/1.1 200 OK");
-        writer.println("Content-Type: message/http");
-        writer.println();
-        writer.println(requestLine);
-        String headerLine;
-        while ((headerLine = in.readLine()) != null && !headerLine.isEmpty()) {
-            writer.println(headerLine);
+        // Headers have not been consumed yet when called directly
+        handleTraceRequest(readRequestFromReader(requestLine, in), out);
+    }
+
+    public void handleTraceRequest(HttpRequest request, OutputStream out) throws IOException {
+        // The echo is streamed in chunks; only for HTTP/1.0 does closing the connection mark its end
+        boolean chunked = isChunkedSupported(request);
+        keepAlive = keepAlive && chunked;
+        ChunkedOutputStream body = ResponseWriter.of(out)
+                .status(200)
+                .header(ResponseWriter.CONTENT_TYPE, "message/http")
+                .connection(keepAlive)
+                .streamBody(chunked);
+        body.print(request.getRequestLine()).print("\r\n");
+        for (int i = 0; i < request.getHeaderCount(); i++) {
+            body.printLatin1(request.getHeaderName(i)).print(": ").printLatin1(request.getHeaderValue(i)).print("\r\n");
         }
-        writer.flush();
+        body.close();
     }
 }
@@ -5,7 +5,8 @@ import java.util.*;
 
 /**
  * This class tests the ClientHandler class.
- * It tests the handleGetRequest, handleHeadRequest, handlePostRequest, and handleTraceRequest methods.
+ * It tests the handleGetRequest, handleHeadRequest, handlePostRequest, and handleTraceRequest methods,
+ * and the framing of the streamed POST response on a real connection.
  */
 
 public class ClientHandlerTest {
@@ -15,6 +16,71 @@ public class ClientHandlerTest {
         testHandleHeadRequest();
         testHandlePostRequest();
         testHandleTraceRequest();
+        TestSupport.run("chunked POST response on a persistent connection", ClientHandlerTest::testPostResponseFraming);
+        TestSupport.run("POST response to an HTTP/1.0 client", ClientHandlerTest::testPostResponseHttp10);
+        TestSupport.run("HEAD errors have no body on a persistent connection", ClientHandlerTest::testHeadErrorKeepAlive);
+        TestSupport.finish("ClientHandlerTest");
+    }
+
+    // The answer to POST /params_info.html is streamed in chunks; the next pipelined response must
+    // start right after the last chunk
+    public static void testPostResponseFraming() throws Exception {
+        Path root = Files.createTempDirectory("post");
+        String form = "name=Ada+Lovelace&year=1843";
+        String response = TestSupport.exchange(socket -> new ClientHandler(socket, root.toString(), "index.html"),
+                "POST /params_info.html HTTP/1.1\r\nHost: test\r\n"
+                + "Content-Type: application/x-www-form-urlencoded\r\nContent-Length: " + form.length() + "\r\n\r\n"
+                + form
+                + "GET /missing.html HTTP/1.1\r\nHost: test\r\nConnection: close\r\n\r\n");
+        Files.delete(root);
+        TestSupport.assertTrue(response.startsWith("HTTP/1.1 200 "), "status: " + response);
+        TestSupport.assertEquals("chunked", TestSupport.header(response, "Transfer-Encoding"), "Transfer-Encoding");
+        TestSupport.assertEquals(null, TestSupport.header(response, "Content-Length"), "no Content-Length");
+        TestSupport.assertEquals("keep-alive", TestSupport.header(response, "Connection"), "connection kept open");
+        String[] decoded = TestSupport.dechunk(TestSupport.body(response));
+        TestSupport.assertTrue(decoded[0].startsWith("<!DOCTYPE html>") && decoded[0].endsWith("</html>"),
+                "whole page: " + decoded[0]);
+        TestSupport.assertTrue(decoded[0].contains("<p>name: Ada Lovelace</p>"), "form field: " + decoded[0]);
+        TestSupport.assertTrue(decoded[0].contains("<p>year: 1843</p>"), "form field: " + decoded[0]);
+        TestSupport.assertTrue(decoded[1].startsWith("HTTP/1.1 404 "), "next response follows: " + decoded[1]);
+    }
+
+    // A 404 to HEAD announces its page with Content-Length but does not send it; a pipelined GET's
+    // response must follow the header section directly
+    public static void testHeadErrorKeepAlive() throws Exception {
+        Path root = Files.createTempDirectory("head");
+        Files.createDirectory(root.resolve("dir"));
+        String response = TestSupport.exchange(socket -> new ClientHandler(socket, root.toString(), "index.html"),
+                "HEAD /missing.html HTTP/1.1\r\nHost: test\r\n\r\n"
+                + "HEAD /dir HTTP/1.1\r\nHost: test\r\n\r\n"
+                + "GET /missing.html HTTP/1.1\r\nHost: test\r\nConnection: close\r\n\r\n");
+        Files.delete(root.resolve("dir"));
+        Files.delete(root);
+        TestSupport.assertTrue(response.startsWith("HTTP/1.1 404 "), "HEAD status: " + response);
+        TestSupport.assertEquals("keep-alive", TestSupport.header(response, "Connection"), "connection kept open");
+        String length = TestSupport.header(response, "Content-Length");
+        TestSupport.assertTrue(length != null && !length.equals("0"), "page length announced: " + length);
+        String second = TestSupport.body(response);
+        TestSupport.assertTrue(second.startsWith("HTTP/1.1 404 "), "HEAD of a directory follows at once: " + second);
+        String third = TestSupport.body(second);
+        TestSupport.assertTrue(third.startsWith("HTTP/1.1 404 "), "GET response follows at once: " + third);
+        TestSupport.assertEquals(length, TestSupport.header(third, "Content-Length"), "same length for GET");
+        TestSupport.assertTrue(TestSupport.body(third).startsWith("<html>"), "GET has the page");
+    }
+
+    // HTTP/1.0 has no chunked coding: the body is sent as is and ends with the connection
+    public static void testPostResponseHttp10() throws Exception {
+        Path root = Files.createTempDirectory("post");
+        String response = TestSupport.exchange(socket -> new ClientHandler(socket, root.toString(), "index.html"),
+                "POST /params_info.html HTTP/1.0\r\nContent-Type: application/x-www-form-urlencoded\r\n"
+                + "Content-Length: 5\r\n\r\na=b+c");
+        Files.delete(root);
+        TestSupport.assertTrue(response.startsWith("HTTP/1.1 200 "), "status: " + response);
+        TestSupport.assertEquals(null, TestSupport.header(response, "Transfer-Encoding"), "no Transfer-Encoding");
+        TestSupport.assertEquals("close", TestSupport.header(response, "Connection"), "Connection");
+        String body = TestSupport.body(response);
+        TestSupport.assertTrue(body.startsWith("<!DOCTYPE html>") && body.endsWith("</html>"), "body to the end: " + body);
+        TestSupport.assertTrue(body.contains("<p>a: b c</p>"), "form field: " + body);
     }
 
     public static void testHandleGetRequest() {
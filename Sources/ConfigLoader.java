@@ -12,24 +12,184 @@ public class ConfigLoader {
     private String root;
     private String defaultPage;
     private int maxThreads;
+    private int keepAliveTimeout;
+    private int maxKeepAliveRequests;
+    private String serverMode;
+    private int maxConnections;
+    private long cacheMaxBytes;
+    private long cacheMaxFileSize;
+    private long cacheRevalidateInterval;
+    private String logLevel;
+    private String accessLog;
+    private long accessLogMaxBytes;
+    private int accessLogMaxFiles;
+    private int maxRequestLineLength;
+    private int maxHeaderSize;
+    private int maxHeaderCount;
+    private int maxRequestBodySize;
+    private String metricsPath;
+    private boolean compression;
+    private long compressionMinSize;
+    private String compressibleTypes;
+    private String cacheMaxAge;
+    private int maxConnectionsPerIp;
+    private int workQueueSize;
+    private String overloadPolicy;
+    private int retryAfter;
+    private int requestReadTimeout;
+    private int writeTimeout;
+    private long mmapMaxBytes;
+    private long mmapMaxFileSize;
+    private int mmapMinHits;
+    private long mmapIdleTimeout;
+    private int pathCacheMaxEntries;
+    private long shutdownTimeout;
+    private boolean watchConfig;
+    private int acceptors;
+    private boolean reusePort;
+    private boolean http2;
+    private int http2MaxConcurrentStreams;
+    private int http2InitialWindowSize;
+    private int http2MaxConnections;
+    private int tlsPort;
+    private String keyStore;
+    private String keyStorePassword;
+    private String keyStoreType;
+    private String tlsProtocols;
+    private int tlsSessionCacheSize;
+    private int tlsSessionTimeout;
+    private boolean tlsSessionTickets;
+    private String proxyRoutes;
+    private int proxyMaxIdleConnections;
+    private int proxyConnectTimeout;
+    private int proxyReadTimeout;
+    private int proxyIdleTimeout;
+    private String proxyHealthCheckPath;
+    private int proxyHealthCheckInterval;
+    private int proxyMaxBufferedResponse;
 
     // The constructor loads the configuration file and sets the properties
     public ConfigLoader(String filePath) {
-        Properties config = new Properties();
-        try (FileInputStream fis = new FileInputStream(filePath)) {
-            config.load(fis);
-            // Defaulting if no specified
-            this.defaultPage = config.getProperty("defaultPage", "index.html"); 
-            this.maxThreads = Integer.parseInt(config.getProperty("maxThreads", "10"));
-            this.port = Integer.parseInt(config.getProperty("port", "8080")); 
-            this.root = config.getProperty("root", "~//www//lab//html//").replace("~", System.getProperty("user.home")); 
-
+        try {
+            load(filePath);
         } catch (IOException e) {
             System.err.println("Failed to load configuration: " + e.getMessage());
             System.exit(1);
         }
     }
 
+    private ConfigLoader() {
+    }
+
+    // Load the file again for a server that is running: errors are thrown to the caller
+    // (IOException, or NumberFormatException for a bad number) instead of ending the process
+    public static ConfigLoader reload(String filePath) throws IOException {
+        ConfigLoader config = new ConfigLoader();
+        config.load(filePath);
+        return config;
+    }
+
+    private void load(String filePath) throws IOException {
+        Properties config = new Properties();
+        try (FileInputStream fis = new FileInputStream(filePath)) {
+            config.load(fis);
+        }
+        // Defaulting if no specified
+        this.defaultPage = config.getProperty("defaultPage", "index.html"); 
+        this.maxThreads = Integer.parseInt(config.getProperty("maxThreads", "10"));
+        this.port = Integer.parseInt(config.getProperty("port", "8080")); 
+        this.root = config.getProperty("root", "~//www//lab//html//").replace("~", System.getProperty("user.home")); 
+        // Persistent connections: idle timeout in milliseconds and requests served per socket
+        this.keepAliveTimeout = Integer.parseInt(config.getProperty("keepAliveTimeout", "5000"));
+        this.maxKeepAliveRequests = Integer.parseInt(config.getProperty("maxKeepAliveRequests", "100"));
+        // "classic" (blocking thread pool), "nio" (selector event loop) or "virtual" (virtual thread per connection)
+        this.serverMode = config.getProperty("serverMode", "classic").trim().toLowerCase();
+        // Connections open at once (in virtual-thread mode also the number handled at once)
+        this.maxConnections = Integer.parseInt(config.getProperty("maxConnections", "10000"));
+        // In-memory content cache: total budget and largest cached file in bytes (0 disables),
+        // and how often (ms) a cached file is checked for changes
+        this.cacheMaxBytes = Long.parseLong(config.getProperty("cacheMaxBytes", "67108864"));
+        this.cacheMaxFileSize = Long.parseLong(config.getProperty("cacheMaxFileSize", "1048576"));
+        this.cacheRevalidateInterval = Long.parseLong(config.getProperty("cacheRevalidateInterval", "1000"));
+        // Logging: ERROR, INFO or DEBUG (request/response details), and the access log file with its
+        // rotation size and number of rotated files kept (empty accessLog disables it)
+        this.logLevel = config.getProperty("logLevel", "INFO").trim().toUpperCase();
+        this.accessLog = config.getProperty("accessLog", "access.log").trim();
+        this.accessLogMaxBytes = Long.parseLong(config.getProperty("accessLogMaxBytes", "10485760"));
+        this.accessLogMaxFiles = Integer.parseInt(config.getProperty("accessLogMaxFiles", "5"));
+        // Request parser limits in bytes (request line, whole header section, body) and header count
+        this.maxRequestLineLength = Integer.parseInt(config.getProperty("maxRequestLineLength", "8192"));
+        this.maxHeaderSize = Integer.parseInt(config.getProperty("maxHeaderSize", "16384"));
+        this.maxHeaderCount = Integer.parseInt(config.getProperty("maxHeaderCount", "100"));
+        this.maxRequestBodySize = Integer.parseInt(config.getProperty("maxRequestBodySize", "1048576"));
+        // Admin path serving metrics in the Prometheus text format (empty disables it)
+        this.metricsPath = config.getProperty("metricsPath", "/metrics").trim();
+        // gzip/deflate for clients that accept it: only the listed content types, only files of at least
+        // compressionMinSize bytes
+        this.compression = Boolean.parseBoolean(config.getProperty("compression", "true").trim());
+        this.compressionMinSize = Long.parseLong(config.getProperty("compressionMinSize", "1024"));
+        this.compressibleTypes = config.getProperty("compressibleTypes",
+                "text/html,text/plain,text/css,application/javascript,application/json,image/svg+xml").trim();
+        // Cache-Control max-age in seconds per content type ("*" for any other, 0 sends no-cache)
+        this.cacheMaxAge = config.getProperty("cacheMaxAge", "text/html:0,image:86400,icon:86400,*:3600").trim();
+        // Overload protection: open connections per client address, connections (requests in nio mode)
+        // waiting for a worker, and what happens to those turned away: "reject" (503 with Retry-After
+        // in seconds) or "close"
+        this.maxConnectionsPerIp = Integer.parseInt(config.getProperty("maxConnectionsPerIp", "100"));
+        this.workQueueSize = Integer.parseInt(config.getProperty("workQueueSize", "100"));
+        this.overloadPolicy = config.getProperty("overloadPolicy", "reject").trim().toLowerCase();
+        this.retryAfter = Integer.parseInt(config.getProperty("retryAfter", "1"));
+        // Socket timeouts in ms: receiving a whole request once it has started, and a stalled write (0 disables)
+        this.requestReadTimeout = Integer.parseInt(config.getProperty("requestReadTimeout", "10000"));
+        this.writeTimeout = Integer.parseInt(config.getProperty("writeTimeout", "30000"));
+        // Memory-mapped tier for files too large for the content cache: total mapped bytes (0 disables),
+        // largest mapped file, requests before a file is mapped, and ms unused before a mapping is dropped
+        this.mmapMaxBytes = Long.parseLong(config.getProperty("mmapMaxBytes", "268435456"));
+        this.mmapMaxFileSize = Long.parseLong(config.getProperty("mmapMaxFileSize", "67108864"));
+        this.mmapMinHits = Integer.parseInt(config.getProperty("mmapMinHits", "2"));
+        this.mmapIdleTimeout = Long.parseLong(config.getProperty("mmapIdleTimeout", "60000"));
+        // Resolved request paths kept (found files only, least recently used dropped), invalidated by watching the root (0 disables)
+        this.pathCacheMaxEntries = Integer.parseInt(config.getProperty("pathCacheMaxEntries", "10000"));
+        // On shutdown, ms given to requests in progress before their connections are closed anyway
+        this.shutdownTimeout = Long.parseLong(config.getProperty("shutdownTimeout", "10000"));
+        // Apply edits of this file to the running server (worker pool size, root, default page)
+        this.watchConfig = Boolean.parseBoolean(config.getProperty("watchConfig", "true"));
+        // Accept threads with a worker group each, 0 for one per processor (classic and virtual modes),
+        // and whether each binds its own listening socket with SO_REUSEPORT instead of sharing one
+        this.acceptors = Integer.parseInt(config.getProperty("acceptors", "0"));
+        this.reusePort = Boolean.parseBoolean(config.getProperty("reusePort", "true"));
+        // Cleartext HTTP/2 (prior knowledge or "Upgrade: h2c"), with the streams served at once per
+        // connection and the flow-control window given to each of them and to the connection
+        this.http2 = Boolean.parseBoolean(config.getProperty("http2", "true"));
+        this.http2MaxConcurrentStreams = Integer.parseInt(config.getProperty("http2MaxConcurrentStreams", "100"));
+        this.http2InitialWindowSize = Integer.parseInt(config.getProperty("http2InitialWindowSize", "65535"));
+        // HTTP/2 connections served at once in nio mode, where each one needs a thread of its own
+        this.http2MaxConnections = Integer.parseInt(config.getProperty("http2MaxConnections", "100"));
+        // HTTPS: port (0 disables), keystore with the server certificate and key, protocol versions, and
+        // TLS sessions kept for resumption (count, seconds) and whether they are resumed from tickets
+        this.tlsPort = Integer.parseInt(config.getProperty("tlsPort", "8443"));
+        this.keyStore = config.getProperty("keyStore", "keystore.p12").trim();
+        this.keyStorePassword = config.getProperty("keyStorePassword", "changeit");
+        this.keyStoreType = config.getProperty("keyStoreType", "PKCS12").trim();
+        this.tlsProtocols = config.getProperty("tlsProtocols", "TLSv1.3,TLSv1.2").trim();
+        this.tlsSessionCacheSize = Integer.parseInt(config.getProperty("tlsSessionCacheSize", "10000"));
+        this.tlsSessionTimeout = Integer.parseInt(config.getProperty("tlsSessionTimeout", "86400"));
+        this.tlsSessionTickets = Boolean.parseBoolean(config.getProperty("tlsSessionTickets", "true"));
+        // Reverse proxy: "prefix=host:port|host:port,..." (empty disables), idle connections kept per
+        // upstream, timeouts in ms (connect, response, idle before a kept connection is dropped), and
+        // the path probed on every upstream each interval ms (0 disables health checks)
+        this.proxyRoutes = config.getProperty("proxyRoutes", "").trim();
+        this.proxyMaxIdleConnections = Integer.parseInt(config.getProperty("proxyMaxIdleConnections", "32"));
+        this.proxyConnectTimeout = Integer.parseInt(config.getProperty("proxyConnectTimeout", "2000"));
+        this.proxyReadTimeout = Integer.parseInt(config.getProperty("proxyReadTimeout", "30000"));
+        this.proxyIdleTimeout = Integer.parseInt(config.getProperty("proxyIdleTimeout", "4000"));
+        this.proxyHealthCheckPath = config.getProperty("proxyHealthCheckPath", "/").trim();
+        this.proxyHealthCheckInterval = Integer.parseInt(config.getProperty("proxyHealthCheckInterval", "5000"));
+        // Largest upstream response body the NIO server collects in memory before sending it (0: no limit);
+        // a longer one is answered with 502 and the connection is closed
+        this.proxyMaxBufferedResponse = Integer.parseInt(config.getProperty("proxyMaxBufferedResponse", "8388608"));
+    }
+
     // Getters for configuration properties
     public String getDefaultPage() {
         return this.defaultPage;
@@ -46,6 +206,226 @@ public class ConfigLoader {
     public String getRoot() {
         return this.root;
     }
+
+    public int getKeepAliveTimeout() {
+        return this.keepAliveTimeout;
+    }
+
+    public int getMaxKeepAliveRequests() {
+        return this.maxKeepAliveRequests;
+    }
+
+    public String getServerMode() {
+        return this.serverMode;
+    }
+
+    public int getMaxConnections() {
+        return this.maxConnections;
+    }
+
+    public long getCacheMaxBytes() {
+        return this.cacheMaxBytes;
+    }
+
+    public long getCacheMaxFileSize() {
+        return this.cacheMaxFileSize;
+    }
+
+    public long getCacheRevalidateInterval() {
+        return this.cacheRevalidateInterval;
+    }
+
+    public String getLogLevel() {
+        return this.logLevel;
+    }
+
+    public String getAccessLog() {
+        return this.accessLog;
+    }
+
+    public long getAccessLogMaxBytes() {
+        return this.accessLogMaxBytes;
+    }
+
+    public int getAccessLogMaxFiles() {
+        return this.accessLogMaxFiles;
+    }
+
+    public int getMaxRequestLineLength() {
+        return this.maxRequestLineLength;
+    }
+
+    public int getMaxHeaderSize() {
+        return this.maxHeaderSize;
+    }
+
+    public int getMaxHeaderCount() {
+        return this.maxHeaderCount;
+    }
+
+    public int getMaxRequestBodySize() {
+        return this.maxRequestBodySize;
+    }
+
+    public String getMetricsPath() {
+        return this.metricsPath;
+    }
+
+    public boolean isCompression() {
+        return this.compression;
+    }
+
+    public long getCompressionMinSize() {
+        return this.compressionMinSize;
+    }
+
+    public String getCompressibleTypes() {
+        return this.compressibleTypes;
+    }
+
+    public String getCacheMaxAge() {
+        return this.cacheMaxAge;
+    }
+
+    public int getMaxConnectionsPerIp() {
+        return this.maxConnectionsPerIp;
+    }
+
+    public int getWorkQueueSize() {
+        return this.workQueueSize;
+    }
+
+    public String getOverloadPolicy() {
+        return this.overloadPolicy;
+    }
+
+    public int getRetryAfter() {
+        return this.retryAfter;
+    }
+
+    public int getRequestReadTimeout() {
+        return this.requestReadTimeout;
+    }
+
+    public int getWriteTimeout() {
+        return this.writeTimeout;
+    }
+
+    public long getMmapMaxBytes() {
+        return this.mmapMaxBytes;
+    }
+
+    public long getMmapMaxFileSize() {
+        return this.mmapMaxFileSize;
+    }
+
+    public int getMmapMinHits() {
+        return this.mmapMinHits;
+    }
+
+    public long getMmapIdleTimeout() {
+        return this.mmapIdleTimeout;
+    }
+
+    public int getPathCacheMaxEntries() {
+        return this.pathCacheMaxEntries;
+    }
+
+    public long getShutdownTimeout() {
+        return this.shutdownTimeout;
+    }
+
+    public boolean isWatchConfig() {
+        return this.watchConfig;
+    }
+
+    public int getAcceptors() {
+        return this.acceptors;
+    }
+
+    public boolean isReusePort() {
+        return this.reusePort;
+    }
+
+    public boolean isHttp2() {
+        return this.http2;
+    }
+
+    public int getHttp2MaxConcurrentStreams() {
+        return this.http2MaxConcurrentStreams;
+    }
+
+    public int getHttp2InitialWindowSize() {
+        return this.http2InitialWindowSize;
+    }
+
+    public int getHttp2MaxConnections() {
+        return this.http2MaxConnections;
+    }
+
+    public int getTlsPort() {
+        return this.tlsPort;
+    }
+
+    public String getKeyStore() {
+        return this.keyStore;
+    }
+
+    public String getKeyStorePassword() {
+        return this.keyStorePassword;
+    }
+
+    public String getKeyStoreType() {
+        return this.keyStoreType;
+    }
+
+    public String getTlsProtocols() {
+        return this.tlsProtocols;
+    }
+
+    public int getTlsSessionCacheSize() {
+        return this.tlsSessionCacheSize;
+    }
+
+    public int getTlsSessionTimeout() {
+        return this.tlsSessionTimeout;
+    }
+
+    public boolean isTlsSessionTickets() {
+        return this.tlsSessionTickets;
+    }
+
+    public String getProxyRoutes() {
+        return this.proxyRoutes;
+    }
+
+    public int getProxyMaxIdleConnections() {
+        return this.proxyMaxIdleConnections;
+    }
+
+    public int getProxyConnectTimeout() {
+        return this.proxyConnectTimeout;
+    }
+
+    public int getProxyReadTimeout() {
+        return this.proxyReadTimeout;
+    }
+
+    public int getProxyIdleTimeout() {
+        return this.proxyIdleTimeout;
+    }
+
+    public String getProxyHealthCheckPath() {
+        return this.proxyHealthCheckPath;
+    }
+
+    public int getProxyHealthCheckInterval() {
+        return this.proxyHealthCheckInterval;
+    }
+
+    public int getProxyMaxBufferedResponse() {
+        return this.proxyMaxBufferedResponse;
+    }
   
     // Test the class
     public static void main(String[] args) {
@@ -54,5 +434,59 @@ public class ConfigLoader {
         System.out.println("Max Threads: " + config.getMaxThreads());
         System.out.println("Port: " + config.getPort());
         System.out.println("Root: " + config.getRoot());
+        System.out.println("Keep-Alive Timeout: " + config.getKeepAliveTimeout());
+        System.out.println("Max Keep-Alive Requests: " + config.getMaxKeepAliveRequests());
+        System.out.println("Server Mode: " + config.getServerMode());
+        System.out.println("Max Connections: " + config.getMaxConnections());
+        System.out.println("Cache Max Bytes: " + config.getCacheMaxBytes());
+        System.out.println("Cache Max File Size: " + config.getCacheMaxFileSize());
+        System.out.println("Cache Revalidate Interval: " + config.getCacheRevalidateInterval());
+        System.out.println("Log Level: " + config.getLogLevel());
+        System.out.println("Access Log: " + config.getAccessLog());
+        System.out.println("Access Log Max Bytes: " + config.getAccessLogMaxBytes());
+        System.out.println("Access Log Max Files: " + config.getAccessLogMaxFiles());
+        System.out.println("Max Request Line Length: " + config.getMaxRequestLineLength());
+        System.out.println("Max Header Size: " + config.getMaxHeaderSize());
+        System.out.println("Max Header Count: " + config.getMaxHeaderCount());
+        System.out.println("Max Request Body Size: " + config.getMaxRequestBodySize());
+        System.out.println("Metrics Path: " + config.getMetricsPath());
+        System.out.println("Compression: " + config.isCompression());
+        System.out.println("Compression Min Size: " + config.getCompressionMinSize());
+        System.out.println("Compressible Types: " + config.getCompressibleTypes());
+        System.out.println("Cache Max Age: " + config.getCacheMaxAge());
+        System.out.println("Max Connections Per IP: " + config.getMaxConnectionsPerIp());
+        System.out.println("Work Queue Size: " + config.getWorkQueueSize());
+        System.out.println("Overload Policy: " + config.getOverloadPolicy());
+        System.out.println("Retry After: " + config.getRetryAfter());
+        System.out.println("Request Read Timeout: " + config.getRequestReadTimeout());
+        System.out.println("Write Timeout: " + config.getWriteTimeout());
+        System.out.println("Mmap Max Bytes: " + config.getMmapMaxBytes());
+        System.out.println("Mmap Max File Size: " + config.getMmapMaxFileSize());
+        System.out.println("Mmap Min Hits: " + config.getMmapMinHits());
+        System.out.println("Mmap Idle Timeout: " + config.getMmapIdleTimeout());
+        System.out.println("Path Cache Max Entries: " + config.getPathCacheMaxEntries());
+        System.out.println("Shutdown Timeout: " + config.getShutdownTimeout());
+        System.out.println("Watch Config: " + config.isWatchConfig());
+        System.out.println("Acceptors: " + config.getAcceptors());
+        System.out.println("Reuse Port: " + config.isReusePort());
+        System.out.println("HTTP/2: " + config.isHttp2());
+        System.out.println("HTTP/2 Max Concurrent Streams: " + config.getHttp2MaxConcurrentStreams());
+        System.out.println("HTTP/2 Initial Window Size: " + config.getHttp2InitialWindowSize());
+        System.out.println("HTTP/2 Max Connections: " + config.getHttp2MaxConnections());
+        System.out.println("TLS Port: " + config.getTlsPort());
+        System.out.println("Key Store: " + config.getKeyStore());
+        System.out.println("Key Store Type: " + config.getKeyStoreType());
+        System.out.println("TLS Protocols: " + config.getTlsProtocols());
+        System.out.println("TLS Session Cache Size: " + config.getTlsSessionCacheSize());
+        System.out.println("TLS Session Timeout: " + config.getTlsSessionTimeout());
+        System.out.println("TLS Session Tickets: " + config.isTlsSessionTickets());
+        System.out.println("Proxy Routes: " + config.getProxyRoutes());
+        System.out.println("Proxy Max Idle Connections: " + config.getProxyMaxIdleConnections());
+        System.out.println("Proxy Connect Timeout: " + config.getProxyConnectTimeout());
+        System.out.println("Proxy Read Timeout: " + config.getProxyReadTimeout());
+        System.out.println("Proxy Idle Timeout: " + config.getProxyIdleTimeout());
+        System.out.println("Proxy Health Check Path: " + config.getProxyHealthCheckPath());
+        System.out.println("Proxy Health Check Interval: " + config.getProxyHealthCheckInterval());
+        System.out.println("Proxy Max Buffered Response: " + config.getProxyMaxBufferedResponse());
     }
 }
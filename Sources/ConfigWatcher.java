@@ -0,0 +1,96 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ConfigWatcher class reloads the configuration file when it changes on disk and hands the new
+ * settings to the running server. It watches the file's directory (editors often replace a file
+ * rather than rewrite it) and waits until the file has been quiet for a moment, so a save that
+ * arrives as several events is read once, complete. A file that cannot be read or parsed is
+ * reported and ignored: the server keeps its current settings.
+ */
+public class ConfigWatcher {
+
+    // Quiet time after the last change before the file is read
+    private static final long SETTLE_MILLIS = 200;
+
+    // Receives each successfully reloaded configuration
+    public interface Listener {
+        void configChanged(ConfigLoader config) throws IOException;
+    }
+
+    private final Path file;
+    private final Listener listener;
+    private final WatchService watcher;
+
+    public ConfigWatcher(String filePath, Listener listener) throws IOException {
+        this.file = Paths.get(filePath).toAbsolutePath();
+        this.listener = listener;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        Thread thread = new Thread(this::watch, "config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = takeChange(key);
+                // Collect the rest of the burst of events that one save produces
+                while ((key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= takeChange(key);
+                }
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Watcher closed
+        }
+    }
+
+    // Whether the events of key include the configuration file
+    private boolean takeChange(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    private void reload() {
+        ConfigLoader config;
+        try {
+            config = ConfigLoader.reload(file.toString());
+        } catch (IOException | RuntimeException e) {
+            ServerLog.info("Ignoring changed " + file.getFileName() + ", it could not be loaded: " + e);
+            return;
+        }
+        ServerLog.info("Reloading " + file.getFileName());
+        try {
+            listener.configChanged(config);
+        } catch (IOException | RuntimeException e) {
+            ServerLog.error("Could not apply changed " + file.getFileName(), e);
+        }
+    }
+
+    public void close() {
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            ServerLog.error("Could not close config watcher", e);
+        }
+    }
+}
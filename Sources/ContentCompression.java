@@ -0,0 +1,133 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The ContentCompression class decides whether a response body is sent compressed. It negotiates
+ * gzip or deflate from the request's Accept-Encoding header (honouring q-values), limits compression
+ * to configured text-like content types above a minimum size, finds pre-built ".gz" siblings of
+ * files in the root directory, and compresses bodies at the highest level, since each result is
+ * kept in the StaticContentCache and compressed only once.
+ */
+public class ContentCompression {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private final long minSize;
+    private final Set<String> compressibleTypes = new HashSet<>();
+
+    public ContentCompression(long minSize, String compressibleTypes) {
+        this.minSize = minSize;
+        for (String type : compressibleTypes.split(",")) {
+            if (!type.trim().isEmpty()) {
+                this.compressibleTypes.add(type.trim().toLowerCase());
+            }
+        }
+    }
+
+    // Responses of these types vary by Accept-Encoding, whether or not this one is compressed
+    public boolean isCompressibleType(String contentType) {
+        return contentType != null && compressibleTypes.contains(contentType.toLowerCase());
+    }
+
+    public boolean isCompressible(String contentType, long size) {
+        return size >= minSize && isCompressibleType(contentType);
+    }
+
+    // The preferred coding the client accepts: "gzip", "deflate", or null for the identity encoding
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+            return null;
+        }
+        double gzip = -1;
+        double deflate = -1;
+        double any = -1;
+        for (String element : acceptEncoding.split(",")) {
+            int semicolon = element.indexOf(';');
+            String coding = (semicolon < 0 ? element : element.substring(0, semicolon)).trim().toLowerCase();
+            double q = semicolon < 0 ? 1 : qValue(element.substring(semicolon + 1));
+            if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+                gzip = Math.max(gzip, q);
+            } else if (coding.equals(DEFLATE)) {
+                deflate = Math.max(deflate, q);
+            } else if (coding.equals("*")) {
+                any = q;
+            }
+        }
+        // Codings not listed are acceptable only through "*"
+        if (gzip < 0) {
+            gzip = any;
+        }
+        if (deflate < 0) {
+            deflate = any;
+        }
+        if (gzip <= 0 && deflate <= 0) {
+            return null;
+        }
+        return gzip >= deflate ? GZIP : DEFLATE;
+    }
+
+    private static double qValue(String parameters) {
+        for (String parameter : parameters.split(";")) {
+            String p = parameter.trim();
+            if (p.startsWith("q=") || p.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(p.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    // A pre-built "file.gz" next to the file, if present and not older than the file itself
+    public static Path precompressedSibling(Path file, String encoding) {
+        if (!GZIP.equals(encoding)) {
+            return null;
+        }
+        Path sibling = file.resolveSibling(file.getFileName() + ".gz");
+        try {
+            if (Files.isRegularFile(sibling)
+                    && Files.getLastModifiedTime(sibling).compareTo(Files.getLastModifiedTime(file)) >= 0) {
+                return sibling;
+            }
+        } catch (IOException e) {
+            // Unreadable sibling: compress the file instead
+        }
+        return null;
+    }
+
+    public static byte[] compress(byte[] data, String encoding) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(data.length / 3, 64));
+        if (GZIP.equals(encoding)) {
+            try (GZIPOutputStream out = new BestGzipOutputStream(compressed)) {
+                out.write(data);
+            }
+        } else {
+            // "deflate" in HTTP is the zlib format, which is what Deflater produces by default
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater)) {
+                out.write(data);
+            } finally {
+                deflater.end();
+            }
+        }
+        return compressed.toByteArray();
+    }
+
+    // GZIPOutputStream at the highest compression level; the level is set before any data is written
+    private static class BestGzipOutputStream extends GZIPOutputStream {
+        BestGzipOutputStream(ByteArrayOutputStream out) throws IOException {
+            super(out);
+            def.setLevel(Deflater.BEST_COMPRESSION);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+import java.io.IOException;
+
+/**
+ * The ContentRoot class groups what the server serves: the root directory, the default page, and
+ * the PathResolver, StaticContentCache and MappedFileCache built for that directory. A server holds
+ * one ContentRoot and every request takes the current one, so a configuration reload that changes
+ * the root or the default page replaces all of them at once and a request never mixes the files
+ * of one root with the caches of another.
+ */
+public class ContentRoot {
+
+    private final String rootDirectory;
+    private final String defaultPage;
+    private final PathResolver pathResolver;
+    // Null when caching is disabled
+    private final StaticContentCache contentCache;
+    private final MappedFileCache mappedFiles;
+
+    public ContentRoot(String rootDirectory, String defaultPage, PathResolver pathResolver,
+            StaticContentCache contentCache, MappedFileCache mappedFiles) {
+        this.rootDirectory = rootDirectory;
+        this.defaultPage = defaultPage;
+        this.pathResolver = pathResolver;
+        this.contentCache = contentCache;
+        this.mappedFiles = mappedFiles;
+    }
+
+    // The root, default page and caches described by a configuration
+    public static ContentRoot fromConfig(ConfigLoader config) throws IOException {
+        StaticContentCache contentCache = config.getCacheMaxBytes() > 0
+                ? new StaticContentCache(config.getCacheMaxBytes(), config.getCacheMaxFileSize(), config.getCacheRevalidateInterval())
+                : null;
+        MappedFileCache mappedFiles = config.getMmapMaxBytes() > 0
+                ? new MappedFileCache(config.getMmapMaxBytes(), config.getMmapMaxFileSize(), config.getMmapMinHits(),
+                        config.getCacheRevalidateInterval(), config.getMmapIdleTimeout())
+                : null;
+        PathResolver pathResolver = new PathResolver(config.getRoot(), config.getPathCacheMaxEntries());
+        return new ContentRoot(config.getRoot(), config.getDefaultPage(), pathResolver, contentCache, mappedFiles);
+    }
+
+    // The content root for a reloaded configuration: this one when nothing it covers changed, a copy
+    // sharing the caches when only the default page changed, or a new one with empty caches for a
+    // new root directory, in which case this one is closed (requests still using it keep working)
+    public ContentRoot reload(ConfigLoader config) throws IOException {
+        if (!config.getRoot().equals(rootDirectory)) {
+            ContentRoot reloaded = fromConfig(config);
+            close();
+            return reloaded;
+        }
+        if (!config.getDefaultPage().equals(defaultPage)) {
+            return new ContentRoot(rootDirectory, config.getDefaultPage(), pathResolver, contentCache, mappedFiles);
+        }
+        return this;
+    }
+
+    public String getRootDirectory() {
+        return rootDirectory;
+    }
+
+    public String getDefaultPage() {
+        return defaultPage;
+    }
+
+    public PathResolver getPathResolver() {
+        return pathResolver;
+    }
+
+    public StaticContentCache getContentCache() {
+        return contentCache;
+    }
+
+    public MappedFileCache getMappedFiles() {
+        return mappedFiles;
+    }
+
+    public void close() {
+        pathResolver.close();
+    }
+}
@@ -1,40 +1,91 @@
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The Errors class provides a method for sending an HTTP error response to the client.
  */
 public class Errors {
 
+    private static final Map<Integer, byte[]> ERROR_BODIES = new ConcurrentHashMap<>();
+
     public static void sendErrorResponse(OutputStream out, int statusCode) throws IOException {
-        String statusMessage = getStatusMessage(statusCode);
-
-        String response = "HTTP/1.1 " + statusCode + " " + statusMessage + "\r\n" +
-                          "Content-Type: text/html\r\n" +
-                          "\r\n" +
-                          "<html><body><h1>" + statusCode + " " + statusMessage + "</h1></body></html>";
- 
-        PrintWriter writer = new PrintWriter(out, true);
-        writer.println(response);
-        writer.flush();
-
-        // print the header to the console
-        System.out.println("Server Response at time: " + java.time.LocalTime.now());
-        System.out.println("HTTP/1.1 " + statusCode + " " + statusMessage);
-        System.out.println("Content-Type: text/html");
-        System.out.println();
+        sendErrorResponse(out, statusCode, false);
+    }
+
+    public static void sendErrorResponse(OutputStream out, int statusCode, boolean keepAlive) throws IOException {
+        sendErrorResponse(out, statusCode, keepAlive, false);
+    }
+
+    // The body is framed by Content-Length so the connection can stay open after an error. With headOnly
+    // (the answer to a HEAD request) the body is announced but not sent: the client reads no body after
+    // it, and the bytes would be taken for the start of the next response.
+    public static void sendErrorResponse(OutputStream out, int statusCode, boolean keepAlive, boolean headOnly)
+            throws IOException {
+        byte[] body = getErrorBody(statusCode);
+
+        ResponseWriter writer = ResponseWriter.of(out);
+        writer.status(statusCode)
+              .header(ResponseWriter.CONTENT_TYPE, "text/html")
+              .header(ResponseWriter.CONTENT_LENGTH, body.length)
+              .connection(keepAlive);
+        if (headOnly) {
+            writer.sendHeaders();
+            out.flush();
+        } else {
+            writer.send(body);
+        }
+
+        // log the header at debug level
+        if (ServerLog.isDebugEnabled()) {
+            ServerLog.debug("Server Response at time: " + java.time.LocalTime.now()
+                    + "\nHTTP/1.1 " + statusCode + " " + getStatusMessage(statusCode) + "\nContent-Type: text/html");
+        }
+
+    }
+
+    // 503 for a server too busy to take this connection or request; the client may retry after
+    // retryAfter seconds. The connection is closed after it.
+    public static void sendServiceUnavailable(OutputStream out, int retryAfter) throws IOException {
+        byte[] body = getErrorBody(503);
+        ResponseWriter.of(out)
+              .status(503)
+              .header(ResponseWriter.CONTENT_TYPE, "text/html")
+              .header(ResponseWriter.CONTENT_LENGTH, body.length)
+              .header(ResponseWriter.RETRY_AFTER, retryAfter)
+              .connection(false)
+              .send(body);
+    }
 
+    // Error pages never change, so each one is encoded once
+    private static byte[] getErrorBody(int statusCode) {
+        return ERROR_BODIES.computeIfAbsent(statusCode, code ->
+                ("<html><body><h1>" + code + " " + getStatusMessage(code) + "</h1></body></html>")
+                        .getBytes(StandardCharsets.ISO_8859_1));
     }
 
-    private static String getStatusMessage(int statusCode) {
+    static String getStatusMessage(int statusCode) {
         switch (statusCode) {
             case 200: return "OK";
+            case 206: return "Partial Content";
+            case 304: return "Not Modified";
             case 404: return "Not Found";
             case 403: return "Forbidden";
             case 501: return "Not Implemented";
             case 400: return "Bad Request";
+            case 408: return "Request Timeout";
+            case 411: return "Length Required";
+            case 413: return "Payload Too Large";
+            case 414: return "URI Too Long";
+            case 416: return "Range Not Satisfiable";
+            case 417: return "Expectation Failed";
+            case 431: return "Request Header Fields Too Large";
             case 500: return "Internal Server Error";
+            case 502: return "Bad Gateway";
+            case 503: return "Service Unavailable";
+            case 504: return "Gateway Timeout";
             default: return "Unknown Status Code";
         }
     }
@@ -0,0 +1,121 @@
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The FormDecoder class decodes an application/x-www-form-urlencoded request body while it is being
+ * received, so the raw body is never stored: bytes are fed in as they arrive, in pieces of any size,
+ * and only the field being decoded is buffered. "+" becomes a space and "%XX" escapes are decoded as
+ * UTF-8, like URLDecoder, except that a malformed escape is kept as it is instead of failing the
+ * request. As with ClientHandler.parseFormData, only "name=value" pairs with a non-empty value count.
+ * One decoder is kept per connection (in its HttpRequest) and reset for every body.
+ */
+public class FormDecoder {
+
+    private static final int INITIAL_FIELD_CAPACITY = 64;
+
+    private Map<String, String> fields = new HashMap<>();
+    // Decoded bytes of the name or value being received
+    private byte[] current = new byte[INITIAL_FIELD_CAPACITY];
+    private int currentLength;
+    private String name;      // Set once the '=' of the current pair has been seen
+    private boolean invalid;  // The current pair has a second '='
+    // Escape in progress: 0 none, 1 after '%', 2 after '%' and one hex digit (held as sent in escapeHigh)
+    private int escape;
+    private int escapeHigh;
+
+    // Start a new body; the fields of the previous one stay with whoever took them
+    public void reset() {
+        fields = new HashMap<>();
+        currentLength = 0;
+        name = null;
+        invalid = false;
+        escape = 0;
+    }
+
+    public void update(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            int b = data[i] & 0xff;
+            if (escape > 0) {
+                int digit = Character.digit(b, 16);
+                if (digit >= 0) {
+                    if (escape == 1) {
+                        escapeHigh = b;
+                        escape = 2;
+                    } else {
+                        append(Character.digit(escapeHigh, 16) << 4 | digit);
+                        escape = 0;
+                    }
+                    continue;
+                }
+                endMalformedEscape();
+            }
+            switch (b) {
+                case '&':
+                    endPair();
+                    break;
+                case '=':
+                    if (name == null) {
+                        name = text();
+                    } else {
+                        invalid = true;
+                    }
+                    break;
+                case '+':
+                    append(' ');
+                    break;
+                case '%':
+                    escape = 1;
+                    break;
+                default:
+                    append(b);
+            }
+        }
+    }
+
+    // The fields of the complete body
+    public Map<String, String> finish() {
+        if (escape > 0) {
+            endMalformedEscape();
+        }
+        endPair();
+        return fields;
+    }
+
+    // Keep a '%' that is not followed by two hex digits as literal text
+    private void endMalformedEscape() {
+        append('%');
+        if (escape == 2) {
+            append(escapeHigh);
+        }
+        escape = 0;
+    }
+
+    private void endPair() {
+        if (escape > 0) {
+            endMalformedEscape();
+        }
+        if (name != null && !invalid && currentLength > 0) {
+            fields.put(name, text());
+        }
+        currentLength = 0;
+        name = null;
+        invalid = false;
+    }
+
+    // The buffered bytes as UTF-8 text; empties the buffer
+    private String text() {
+        String text = new String(current, 0, currentLength, StandardCharsets.UTF_8);
+        currentLength = 0;
+        return text;
+    }
+
+    private void append(int b) {
+        if (currentLength == current.length) {
+            byte[] grown = new byte[current.length * 2];
+            System.arraycopy(current, 0, grown, 0, currentLength);
+            current = grown;
+        }
+        current[currentLength++] = (byte) b;
+    }
+}
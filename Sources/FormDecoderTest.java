@@ -0,0 +1,84 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * This class tests the FormDecoder class: fields decoded from a body fed in pieces of any size,
+ * "+" and "%XX" escapes as UTF-8, malformed escapes kept as sent, the pairs that are skipped, and
+ * the reuse of one decoder for several bodies.
+ */
+public class FormDecoderTest {
+
+    public static void main(String[] args) {
+        TestSupport.run("fields", FormDecoderTest::testFields);
+        TestSupport.run("escapes", FormDecoderTest::testEscapes);
+        TestSupport.run("body fed byte by byte", FormDecoderTest::testPieces);
+        TestSupport.run("malformed escapes are kept", FormDecoderTest::testMalformedEscapes);
+        TestSupport.run("skipped pairs", FormDecoderTest::testSkippedPairs);
+        TestSupport.run("reset for the next body", FormDecoderTest::testReset);
+        TestSupport.finish("FormDecoderTest");
+    }
+
+    static void testFields() {
+        Map<String, String> fields = decode("name=Ada&year=1843");
+        TestSupport.assertEquals(2, fields.size(), "field count");
+        TestSupport.assertEquals("Ada", fields.get("name"), "name");
+        TestSupport.assertEquals("1843", fields.get("year"), "year");
+        TestSupport.assertEquals("x", decode("a=1&a=x").get("a"), "the last of a repeated name");
+    }
+
+    static void testEscapes() {
+        Map<String, String> fields = decode("name=Ada+Lovelace&city=%C3%BCber&q=a%26b%3Dc&first+name=%e2%82%ac");
+        TestSupport.assertEquals("Ada Lovelace", fields.get("name"), "plus");
+        TestSupport.assertEquals("\u00fcber", fields.get("city"), "UTF-8 escape");
+        TestSupport.assertEquals("a&b=c", fields.get("q"), "escaped separators");
+        TestSupport.assertEquals("\u20ac", fields.get("first name"), "lower case hex, escaped name");
+    }
+
+    // Escapes and UTF-8 sequences split between pieces
+    static void testPieces() {
+        byte[] body = "name=Ada+Lovelace&city=%C3%BCber".getBytes(StandardCharsets.ISO_8859_1);
+        FormDecoder decoder = new FormDecoder();
+        for (int i = 0; i < body.length; i++) {
+            decoder.update(body, i, 1);
+        }
+        Map<String, String> fields = decoder.finish();
+        TestSupport.assertEquals("Ada Lovelace", fields.get("name"), "name");
+        TestSupport.assertEquals("\u00fcber", fields.get("city"), "city");
+    }
+
+    static void testMalformedEscapes() {
+        Map<String, String> fields = decode("a=100%&b=%zz&c=%4g&d=%A&e=50%");
+        TestSupport.assertEquals("100%", fields.get("a"), "'%' before '&'");
+        TestSupport.assertEquals("%zz", fields.get("b"), "no hex digit");
+        TestSupport.assertEquals("%4g", fields.get("c"), "one hex digit");
+        TestSupport.assertEquals("%A", fields.get("d"), "one hex digit before '&', case kept");
+        TestSupport.assertEquals("50%", fields.get("e"), "'%' at the end of the body");
+    }
+
+    // As with ClientHandler.parseFormData: no value, no '=' or a second '=' and the pair is dropped
+    static void testSkippedPairs() {
+        Map<String, String> fields = decode("empty=&flag&twice=1=2&&kept=yes");
+        TestSupport.assertEquals(1, fields.size(), "only kept: " + fields);
+        TestSupport.assertEquals("yes", fields.get("kept"), "kept");
+    }
+
+    static void testReset() {
+        FormDecoder decoder = new FormDecoder();
+        byte[] first = TestSupport.ascii("a=1&b=%4");
+        decoder.update(first, 0, first.length);
+        Map<String, String> firstFields = decoder.finish();
+        decoder.reset();
+        byte[] second = TestSupport.ascii("c=3");
+        decoder.update(second, 0, second.length);
+        Map<String, String> secondFields = decoder.finish();
+        TestSupport.assertEquals("{c=3}", secondFields.toString(), "second body alone");
+        TestSupport.assertEquals(2, firstFields.size(), "first body's fields untouched");
+    }
+
+    private static Map<String, String> decode(String body) {
+        FormDecoder decoder = new FormDecoder();
+        byte[] bytes = TestSupport.ascii(body);
+        decoder.update(bytes, 0, bytes.length);
+        return decoder.finish();
+    }
+}
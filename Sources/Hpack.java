@@ -0,0 +1,552 @@
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * The Hpack class implements HPACK (RFC 7541), the header compression of HTTP/2. Header fields are
+ * sent as indexes into a static table of common fields and a dynamic table that both ends fill with
+ * the fields they have seen on the connection, so a header repeated on every request or response
+ * (content-type, cache-control, user-agent, cookies) costs a byte or two after its first use.
+ * Literal names and values are Huffman coded when that makes them shorter. A Decoder and an Encoder
+ * are kept per connection, one for each direction, since each keeps its own dynamic table in step
+ * with the peer's.
+ */
+public class Hpack {
+
+    // Dynamic table size both ends start with (SETTINGS_HEADER_TABLE_SIZE default)
+    public static final int DEFAULT_TABLE_SIZE = 4096;
+    // Every table entry costs its name and value length plus this much
+    private static final int ENTRY_OVERHEAD = 32;
+
+    // RFC 7541 Appendix A; index 1 is the first entry
+    private static final String[][] STATIC_TABLE = {
+            { ":authority", "" },
+            { ":method", "GET" },
+            { ":method", "POST" },
+            { ":path", "/" },
+            { ":path", "/index.html" },
+            { ":scheme", "http" },
+            { ":scheme", "https" },
+            { ":status", "200" },
+            { ":status", "204" },
+            { ":status", "206" },
+            { ":status", "304" },
+            { ":status", "400" },
+            { ":status", "404" },
+            { ":status", "500" },
+            { "accept-charset", "" },
+            { "accept-encoding", "gzip, deflate" },
+            { "accept-language", "" },
+            { "accept-ranges", "" },
+            { "accept", "" },
+            { "access-control-allow-origin", "" },
+            { "age", "" },
+            { "allow", "" },
+            { "authorization", "" },
+            { "cache-control", "" },
+            { "content-disposition", "" },
+            { "content-encoding", "" },
+            { "content-language", "" },
+            { "content-length", "" },
+            { "content-location", "" },
+            { "content-range", "" },
+            { "content-type", "" },
+            { "cookie", "" },
+            { "date", "" },
+            { "etag", "" },
+            { "expect", "" },
+            { "expires", "" },
+            { "from", "" },
+            { "host", "" },
+            { "if-match", "" },
+            { "if-modified-since", "" },
+            { "if-none-match", "" },
+            { "if-range", "" },
+            { "if-unmodified-since", "" },
+            { "last-modified", "" },
+            { "link", "" },
+            { "location", "" },
+            { "max-forwards", "" },
+            { "proxy-authenticate", "" },
+            { "proxy-authorization", "" },
+            { "range", "" },
+            { "referer", "" },
+            { "refresh", "" },
+            { "retry-after", "" },
+            { "server", "" },
+            { "set-cookie", "" },
+            { "strict-transport-security", "" },
+            { "transfer-encoding", "" },
+            { "user-agent", "" },
+            { "vary", "" },
+            { "via", "" },
+            { "www-authenticate", "" },
+    };
+
+    // Index of the first static entry with each name; entries sharing a name are adjacent
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+        }
+    }
+
+    // RFC 7541 Appendix B: the code of every byte value, right-aligned, and its length in bits
+    private static final int[] HUFFMAN_CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+    };
+    // End of string, 30 one bits; never sent, but padding must be a prefix of it
+    private static final int HUFFMAN_EOS = 256;
+
+    // Decoding tree: node n has its children at 2n and 2n+1, either the next node or ~symbol for a leaf.
+    // A complete prefix code of 257 symbols has 256 inner nodes.
+    private static final int[] HUFFMAN_TREE = new int[2 * 256];
+    static {
+        int nodes = 1;
+        for (int symbol = 0; symbol <= HUFFMAN_EOS; symbol++) {
+            int code = symbol == HUFFMAN_EOS ? 0x3fffffff : HUFFMAN_CODES[symbol];
+            int length = symbol == HUFFMAN_EOS ? 30 : HUFFMAN_LENGTHS[symbol];
+            int node = 0;
+            for (int bit = length - 1; bit > 0; bit--) {
+                int child = 2 * node + (code >>> bit & 1);
+                if (HUFFMAN_TREE[child] == 0) {
+                    HUFFMAN_TREE[child] = nodes++;
+                }
+                node = HUFFMAN_TREE[child];
+            }
+            HUFFMAN_TREE[2 * node + (code & 1)] = ~symbol;
+        }
+    }
+
+    // Fields added by either side, newest first for lookups; bounded by the agreed size in bytes
+    private static class DynamicTable {
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        private int newest; // Array position of index 0
+        private int count;
+        private int size;
+        private int maxSize;
+
+        DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        String name(int index) {
+            return names[position(index)];
+        }
+
+        String value(int index) {
+            return values[position(index)];
+        }
+
+        int length() {
+            return count;
+        }
+
+        void add(String name, String value) {
+            int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+            evict(maxSize - entrySize);
+            if (entrySize > maxSize) {
+                return; // Too large for the table: it only empties it
+            }
+            if (count == names.length) {
+                String[] grownNames = new String[count * 2];
+                String[] grownValues = new String[count * 2];
+                for (int i = 0; i < count; i++) {
+                    grownNames[count - 1 - i] = names[position(i)];
+                    grownValues[count - 1 - i] = values[position(i)];
+                }
+                names = grownNames;
+                values = grownValues;
+                newest = count - 1;
+            }
+            newest = (newest + 1) % names.length;
+            names[newest] = name;
+            values[newest] = value;
+            count++;
+            size += entrySize;
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        // Drop the oldest entries until the table holds at most limit bytes
+        private void evict(int limit) {
+            while (count > 0 && size > limit) {
+                int oldest = position(count - 1);
+                size -= names[oldest].length() + values[oldest].length() + ENTRY_OVERHEAD;
+                names[oldest] = null;
+                values[oldest] = null;
+                count--;
+            }
+        }
+
+        private int position(int index) {
+            return (newest - index + names.length) % names.length;
+        }
+    }
+
+    /**
+     * Decodes the header blocks received on a connection, in the order they arrive.
+     */
+    public static class Decoder {
+        private final DynamicTable table;
+        // Largest table size the peer may ask for, the SETTINGS_HEADER_TABLE_SIZE we announced
+        private final int maxTableSize;
+
+        public Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            this.table = new DynamicTable(maxTableSize);
+        }
+
+        // Decode a complete header block and pass its fields to fields, in order. Fields beyond
+        // maxListSize (RFC 7541 size: name and value length plus 32 per field) are decoded, to keep
+        // the table in step, but not passed on; returns false if that happened.
+        public boolean decode(byte[] block, int offset, int length, int maxListSize,
+                BiConsumer<String, String> fields) throws Http2Exception {
+            Reader in = new Reader(block, offset, offset + length);
+            int listSize = 0;
+            boolean fieldSeen = false;
+            while (in.hasMore()) {
+                int b = in.peek();
+                String name;
+                String value;
+                if ((b & 0x80) != 0) {
+                    int index = in.readInt(7);
+                    name = name(index);
+                    value = value(index);
+                } else if ((b & 0xe0) == 0x20) {
+                    if (fieldSeen) {
+                        throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Table size update after a field");
+                    }
+                    int size = in.readInt(5);
+                    if (size > maxTableSize) {
+                        throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Table size " + size + " over the limit");
+                    }
+                    table.setMaxSize(size);
+                    continue;
+                } else {
+                    boolean indexing = (b & 0xc0) == 0x40;
+                    int index = in.readInt(indexing ? 6 : 4);
+                    name = index == 0 ? in.readString() : name(index);
+                    value = in.readString();
+                    if (indexing) {
+                        table.add(name, value);
+                    }
+                }
+                fieldSeen = true;
+                listSize += name.length() + value.length() + ENTRY_OVERHEAD;
+                if (listSize <= maxListSize) {
+                    fields.accept(name, value);
+                }
+            }
+            return listSize <= maxListSize;
+        }
+
+        private String name(int index) throws Http2Exception {
+            return index <= STATIC_TABLE.length ? STATIC_TABLE[checkIndex(index) - 1][0]
+                    : table.name(checkIndex(index) - STATIC_TABLE.length - 1);
+        }
+
+        private String value(int index) throws Http2Exception {
+            return index <= STATIC_TABLE.length ? STATIC_TABLE[checkIndex(index) - 1][1]
+                    : table.value(checkIndex(index) - STATIC_TABLE.length - 1);
+        }
+
+        private int checkIndex(int index) throws Http2Exception {
+            if (index == 0 || index > STATIC_TABLE.length + table.length()) {
+                throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid table index " + index);
+            }
+            return index;
+        }
+    }
+
+    // Reads the integers and strings of a header block
+    private static class Reader {
+        private final byte[] block;
+        private int position;
+        private final int end;
+
+        Reader(byte[] block, int position, int end) {
+            this.block = block;
+            this.position = position;
+            this.end = end;
+        }
+
+        boolean hasMore() {
+            return position < end;
+        }
+
+        int peek() {
+            return block[position] & 0xff;
+        }
+
+        // An integer in the low prefixBits of the current byte, continued in 7-bit groups if they are all ones
+        int readInt(int prefixBits) throws Http2Exception {
+            int max = (1 << prefixBits) - 1;
+            int value = block[position++] & max;
+            if (value < max) {
+                return value;
+            }
+            for (int shift = 0; ; shift += 7) {
+                if (position == end || shift > 21) {
+                    throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid integer");
+                }
+                int b = block[position++] & 0xff;
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+
+        String readString() throws Http2Exception {
+            if (position == end) {
+                throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Missing string");
+            }
+            boolean huffman = (block[position] & 0x80) != 0;
+            int length = readInt(7);
+            if (length > end - position) {
+                throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "String longer than the header block");
+            }
+            String value = huffman ? decodeHuffman(block, position, length)
+                    : new String(block, position, length, StandardCharsets.ISO_8859_1);
+            position += length;
+            return value;
+        }
+    }
+
+    private static String decodeHuffman(byte[] data, int offset, int length) throws Http2Exception {
+        StringBuilder text = new StringBuilder(length * 8 / 5);
+        int node = 0;
+        // Bits read since the last complete symbol, and whether they were all ones
+        int pendingBits = 0;
+        boolean allOnes = true;
+        for (int i = offset; i < offset + length; i++) {
+            int b = data[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = b >>> bit & 1;
+                int next = HUFFMAN_TREE[2 * node + one];
+                pendingBits++;
+                allOnes &= one == 1;
+                if (next < 0) {
+                    if (~next == HUFFMAN_EOS) {
+                        throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "EOS in Huffman string");
+                    }
+                    text.append((char) ~next);
+                    node = 0;
+                    pendingBits = 0;
+                    allOnes = true;
+                } else {
+                    node = next;
+                }
+            }
+        }
+        // The string is padded to a byte with the most significant bits of EOS, at most 7 of them
+        if (pendingBits > 7 || !allOnes) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid Huffman padding");
+        }
+        return text.toString();
+    }
+
+    /**
+     * Encodes the header blocks sent on a connection. A block is assembled in a buffer reused for
+     * every block, behind room for the frame header, so that it can be written as a frame in place.
+     */
+    public static class Encoder {
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+        private final int prefix;
+        private byte[] buffer = new byte[1024];
+        private int length;
+        // Table size the peer allows, to be announced at the start of the next block; -1 when unchanged
+        private int pendingTableSize = -1;
+
+        // prefix bytes are left free at the start of the buffer
+        public Encoder(int prefix) {
+            this.prefix = prefix;
+        }
+
+        // The peer's SETTINGS_HEADER_TABLE_SIZE; the table never grows beyond the default
+        public void setMaxTableSize(int size) {
+            int tableSize = Math.min(size, DEFAULT_TABLE_SIZE);
+            if (tableSize != table.maxSize) {
+                table.setMaxSize(tableSize);
+                pendingTableSize = tableSize;
+            }
+        }
+
+        public void beginBlock() {
+            length = prefix;
+            if (pendingTableSize >= 0) {
+                writeInt(0x20, 5, pendingTableSize);
+                pendingTableSize = -1;
+            }
+        }
+
+        // Add a field: as an index when the pair is in a table, otherwise as a literal that is added to
+        // the dynamic table unless its value is unlikely to repeat (sizes and ranges) or is sensitive
+        public void encode(String name, String value) {
+            Integer staticIndex = STATIC_NAMES.get(name);
+            int nameIndex = staticIndex != null ? staticIndex : 0;
+            if (staticIndex != null) {
+                for (int i = staticIndex; i <= STATIC_TABLE.length && STATIC_TABLE[i - 1][0].equals(name); i++) {
+                    if (STATIC_TABLE[i - 1][1].equals(value)) {
+                        writeInt(0x80, 7, i);
+                        return;
+                    }
+                }
+            }
+            for (int i = 0; i < table.length(); i++) {
+                if (table.name(i).equals(name)) {
+                    if (table.value(i).equals(value)) {
+                        writeInt(0x80, 7, STATIC_TABLE.length + 1 + i);
+                        return;
+                    }
+                    if (nameIndex == 0) {
+                        nameIndex = STATIC_TABLE.length + 1 + i;
+                    }
+                }
+            }
+            switch (name) {
+                case "content-length":
+                case "content-range":
+                    writeInt(0x00, 4, nameIndex); // Without indexing
+                    break;
+                case "set-cookie":
+                    writeInt(0x10, 4, nameIndex); // Never indexed, also by intermediaries
+                    break;
+                default:
+                    writeInt(0x40, 6, nameIndex);
+                    table.add(name, value);
+            }
+            if (nameIndex == 0) {
+                writeString(name);
+            }
+            writeString(value);
+        }
+
+        public byte[] getBuffer() {
+            return buffer;
+        }
+
+        // Bytes of the block so far, the prefix not included
+        public int blockLength() {
+            return length - prefix;
+        }
+
+        private void writeInt(int flags, int prefixBits, int value) {
+            ensureCapacity(6);
+            int max = (1 << prefixBits) - 1;
+            if (value < max) {
+                buffer[length++] = (byte) (flags | value);
+                return;
+            }
+            buffer[length++] = (byte) (flags | max);
+            value -= max;
+            while (value >= 0x80) {
+                buffer[length++] = (byte) (value & 0x7f | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte) value;
+        }
+
+        // A string literal, Huffman coded when that is shorter
+        private void writeString(String value) {
+            long bits = 0;
+            for (int i = 0; i < value.length(); i++) {
+                bits += HUFFMAN_LENGTHS[symbol(value.charAt(i))];
+            }
+            int huffmanLength = (int) ((bits + 7) / 8);
+            if (huffmanLength >= value.length()) {
+                writeInt(0x00, 7, value.length());
+                ensureCapacity(value.length());
+                for (int i = 0; i < value.length(); i++) {
+                    buffer[length++] = (byte) symbol(value.charAt(i));
+                }
+                return;
+            }
+            writeInt(0x80, 7, huffmanLength);
+            ensureCapacity(huffmanLength);
+            long pending = 0;
+            int pendingBits = 0;
+            for (int i = 0; i < value.length(); i++) {
+                int symbol = symbol(value.charAt(i));
+                pending = pending << HUFFMAN_LENGTHS[symbol] | HUFFMAN_CODES[symbol];
+                pendingBits += HUFFMAN_LENGTHS[symbol];
+                while (pendingBits >= 8) {
+                    pendingBits -= 8;
+                    buffer[length++] = (byte) (pending >>> pendingBits);
+                }
+            }
+            if (pendingBits > 0) {
+                // Pad with the leading one bits of EOS
+                buffer[length++] = (byte) (pending << 8 - pendingBits | 0xff >>> pendingBits);
+            }
+        }
+
+        // Header text is ISO-8859-1, as in HTTP/1.1 (see ResponseWriter.header)
+        private static int symbol(char c) {
+            return c < 0x100 ? c : '?';
+        }
+
+        private void ensureCapacity(int needed) {
+            if (buffer.length - length < needed) {
+                byte[] grown = new byte[Math.max(buffer.length * 2, length + needed)];
+                System.arraycopy(buffer, 0, grown, 0, length);
+                buffer = grown;
+            }
+        }
+    }
+}
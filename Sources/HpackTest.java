@@ -0,0 +1,205 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class tests the Hpack class against the examples of RFC 7541 Appendix C: every header block
+ * is decoded into the listed fields, with the dynamic table carried from one block to the next, and
+ * the Encoder is checked to produce the same bytes where its indexing choices match the example's.
+ */
+public class HpackTest {
+
+    private static final String DATE_1 = "Mon, 21 Oct 2013 20:13:21 GMT";
+    private static final String DATE_2 = "Mon, 21 Oct 2013 20:13:22 GMT";
+    private static final String COOKIE = "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1";
+
+    // C.3 and C.4: three requests on one connection
+    private static final String[][] REQUEST_1 = {
+            { ":method", "GET" }, { ":scheme", "http" }, { ":path", "/" }, { ":authority", "www.example.com" } };
+    private static final String[][] REQUEST_2 = {
+            { ":method", "GET" }, { ":scheme", "http" }, { ":path", "/" }, { ":authority", "www.example.com" },
+            { "cache-control", "no-cache" } };
+    private static final String[][] REQUEST_3 = {
+            { ":method", "GET" }, { ":scheme", "https" }, { ":path", "/index.html" },
+            { ":authority", "www.example.com" }, { "custom-key", "custom-value" } };
+
+    // C.5 and C.6: three responses with a 256-byte dynamic table, so entries are evicted
+    private static final String[][] RESPONSE_1 = {
+            { ":status", "302" }, { "cache-control", "private" }, { "date", DATE_1 },
+            { "location", "https://www.example.com" } };
+    private static final String[][] RESPONSE_2 = {
+            { ":status", "307" }, { "cache-control", "private" }, { "date", DATE_1 },
+            { "location", "https://www.example.com" } };
+    private static final String[][] RESPONSE_3 = {
+            { ":status", "200" }, { "cache-control", "private" }, { "date", DATE_2 },
+            { "location", "https://www.example.com" }, { "content-encoding", "gzip" }, { "set-cookie", COOKIE } };
+
+    public static void main(String[] args) {
+        TestSupport.run("C.2 literal and indexed fields", HpackTest::testLiteralFields);
+        TestSupport.run("C.3 requests without Huffman coding", HpackTest::testRequests);
+        TestSupport.run("C.4 requests with Huffman coding", HpackTest::testHuffmanRequests);
+        TestSupport.run("C.5 responses without Huffman coding", HpackTest::testResponses);
+        TestSupport.run("C.6 responses with Huffman coding", HpackTest::testHuffmanResponses);
+        TestSupport.run("C.4 encoded", HpackTest::testEncodeRequests);
+        TestSupport.run("C.6 encoded", HpackTest::testEncodeResponses);
+        TestSupport.run("integers with several bytes", HpackTest::testLongIntegers);
+        TestSupport.run("header list size limit", HpackTest::testListSizeLimit);
+        TestSupport.run("compression errors", HpackTest::testErrors);
+        TestSupport.finish("HpackTest");
+    }
+
+    static void testLiteralFields() throws Exception {
+        assertDecoded(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE),
+                "400a637573746f6d2d6b65790d637573746f6d2d686561646572",
+                new String[][] { { "custom-key", "custom-header" } }, "C.2.1 with indexing");
+        assertDecoded(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "040c2f73616d706c652f70617468",
+                new String[][] { { ":path", "/sample/path" } }, "C.2.2 without indexing");
+        assertDecoded(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "100870617373776f726406736563726574",
+                new String[][] { { "password", "secret" } }, "C.2.3 never indexed");
+        assertDecoded(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), "82",
+                new String[][] { { ":method", "GET" } }, "C.2.4 indexed");
+    }
+
+    static void testRequests() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertDecoded(decoder, "828684410f7777772e6578616d706c652e636f6d", REQUEST_1, "C.3.1");
+        assertDecoded(decoder, "828684be58086e6f2d6361636865", REQUEST_2, "C.3.2");
+        assertDecoded(decoder, "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565", REQUEST_3, "C.3.3");
+    }
+
+    static void testHuffmanRequests() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertDecoded(decoder, C4_1, REQUEST_1, "C.4.1");
+        assertDecoded(decoder, C4_2, REQUEST_2, "C.4.2");
+        assertDecoded(decoder, C4_3, REQUEST_3, "C.4.3");
+    }
+
+    static void testResponses() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder(256);
+        assertDecoded(decoder, "4803333032580770726976617465611d4d6f6e2c203231204f637420323031332032303a31333a323120474d54"
+                + "6e1768747470733a2f2f7777772e6578616d706c652e636f6d", RESPONSE_1, "C.5.1");
+        assertDecoded(decoder, "4803333037c1c0bf", RESPONSE_2, "C.5.2");
+        assertDecoded(decoder, "88c1611d4d6f6e2c203231204f637420323031332032303a31333a323220474d54c05a04677a6970"
+                + "7738666f6f3d4153444a4b48514b425a584f5157454f50495541585157454f49553b206d61782d6167653d333630"
+                + "303b2076657273696f6e3d31", RESPONSE_3, "C.5.3");
+    }
+
+    static void testHuffmanResponses() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder(256);
+        assertDecoded(decoder, C6_1, RESPONSE_1, "C.6.1");
+        assertDecoded(decoder, C6_2, RESPONSE_2, "C.6.2");
+        assertDecoded(decoder, C6_3, RESPONSE_3, "C.6.3");
+    }
+
+    static void testEncodeRequests() throws Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder(0);
+        TestSupport.assertEquals(C4_1, encode(encoder, REQUEST_1), "C.4.1");
+        TestSupport.assertEquals(C4_2, encode(encoder, REQUEST_2), "C.4.2");
+        TestSupport.assertEquals(C4_3, encode(encoder, REQUEST_3), "C.4.3");
+    }
+
+    static void testEncodeResponses() throws Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder(0);
+        encoder.setMaxTableSize(256);
+        // The first block announces the smaller table (3fe101 is a size update to 256)
+        TestSupport.assertEquals("3fe101" + C6_1, encode(encoder, RESPONSE_1), "C.6.1");
+        // "307" is no shorter Huffman coded, so it stays a plain literal: the bytes of C.5.2
+        TestSupport.assertEquals("4803333037c1c0bf", encode(encoder, RESPONSE_2), "C.6.2");
+        // set-cookie is never indexed here, where the example adds it to the table: compare the fields
+        Hpack.Decoder decoder = new Hpack.Decoder(256);
+        assertDecoded(decoder, C6_1, RESPONSE_1, "C.6.1");
+        assertDecoded(decoder, C6_2, RESPONSE_2, "C.6.2");
+        assertDecoded(decoder, encode(encoder, RESPONSE_3), RESPONSE_3, "C.6.3 round trip");
+    }
+
+    static void testLongIntegers() throws Exception {
+        // C.1.2: 1337 with a 5-bit prefix is 1f 9a 0a; as a 7-bit index it is 7f ba 09, past the tables
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        Http2Exception e = TestSupport.assertThrows(Http2Exception.class, () -> decode(decoder, "ffba09"),
+                "index 1337");
+        TestSupport.assertEquals(Http2Exception.COMPRESSION_ERROR, e.getErrorCode(), "error code");
+        // A value of 300 bytes needs a length over two bytes
+        String value = new String(new char[300]).replace('\0', 'x');
+        Hpack.Encoder encoder = new Hpack.Encoder(0);
+        assertDecoded(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), encode(encoder, new String[][] { { "x-long", value } }),
+                new String[][] { { "x-long", value } }, "long literal");
+    }
+
+    static void testListSizeLimit() throws Exception {
+        byte[] block = hex("828684410f7777772e6578616d706c652e636f6d");
+        List<String[]> fields = new ArrayList<>();
+        // :method GET (42 bytes by the RFC count) and :scheme http (43) fit in 90, :path / does not
+        boolean complete = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE).decode(block, 0, block.length, 90,
+                (name, value) -> fields.add(new String[] { name, value }));
+        TestSupport.assertTrue(!complete, "list over the limit reported");
+        TestSupport.assertEquals(2, fields.size(), "fields within the limit passed on");
+    }
+
+    static void testErrors() {
+        expectCompressionError("80", "index 0");
+        expectCompressionError("be", "empty dynamic table entry");
+        expectCompressionError("3fe11f", "table size over the announced limit");
+        expectCompressionError("823f00", "table size update after a field");
+        expectCompressionError("400a637573746f6d", "string longer than the block");
+        // Huffman padding must be the leading bits of EOS, at most 7 of them
+        expectCompressionError("418cf1e3c2e5f23a6ba0ab90f4fe", "padding with a zero bit");
+        expectCompressionError("418df1e3c2e5f23a6ba0ab90f4ffff", "padding of more than 7 bits");
+    }
+
+    // The Appendix C blocks that both the decoder and the encoder are checked against
+    private static final String C4_1 = "828684418cf1e3c2e5f23a6ba0ab90f4ff";
+    private static final String C4_2 = "828684be5886a8eb10649cbf";
+    private static final String C4_3 = "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf";
+    private static final String C6_1 = "488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff6e919d29ad17"
+            + "1863c78f0b97c8e9ae82ae43d3";
+    private static final String C6_2 = "4883640effc1c0bf";
+    private static final String C6_3 = "88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94e7821dd7f2"
+            + "e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007";
+
+    private static void expectCompressionError(String block, String what) {
+        Http2Exception e = TestSupport.assertThrows(Http2Exception.class,
+                () -> decode(new Hpack.Decoder(256), block), what);
+        TestSupport.assertEquals(Http2Exception.COMPRESSION_ERROR, e.getErrorCode(), "error code for " + what);
+    }
+
+    private static void assertDecoded(Hpack.Decoder decoder, String block, String[][] expected, String what)
+            throws Http2Exception {
+        TestSupport.assertEquals(format(expected), decode(decoder, block), what);
+    }
+
+    private static String decode(Hpack.Decoder decoder, String block) throws Http2Exception {
+        byte[] bytes = hex(block);
+        StringBuilder fields = new StringBuilder();
+        decoder.decode(bytes, 0, bytes.length, Integer.MAX_VALUE,
+                (name, value) -> fields.append(name).append(": ").append(value).append('\n'));
+        return fields.toString();
+    }
+
+    private static String encode(Hpack.Encoder encoder, String[][] fields) {
+        encoder.beginBlock();
+        for (String[] field : fields) {
+            encoder.encode(field[0], field[1]);
+        }
+        StringBuilder hex = new StringBuilder();
+        byte[] buffer = encoder.getBuffer();
+        for (int i = 0; i < encoder.blockLength(); i++) {
+            hex.append(String.format("%02x", buffer[i] & 0xff));
+        }
+        return hex.toString();
+    }
+
+    private static String format(String[][] fields) {
+        StringBuilder text = new StringBuilder();
+        for (String[] field : fields) {
+            text.append(field[0]).append(": ").append(field[1]).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
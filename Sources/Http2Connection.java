@@ -0,0 +1,1147 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+
+/**
+ * The Http2Connection class serves a connection that has switched to HTTP/2 over cleartext (h2c,
+ * RFC 7540), either because the client sent the HTTP/2 preface right away (prior knowledge) or
+ * because it asked for "Upgrade: h2c" on an HTTP/1.1 request. Requests arrive as streams of binary
+ * frames with HPACK-compressed headers (see Hpack), many at once on the one connection: the thread
+ * that owns the connection only reads and sorts frames, and every complete request is handed to the
+ * stream executor and served concurrently by its own ClientHandler, with the same GET/HEAD/POST/TRACE
+ * logic as HTTP/1.1. A slow response therefore no longer holds up the ones behind it.
+ * The handlers still write HTTP/1.1 responses; each stream's output turns the status line and headers
+ * into a HEADERS frame and the body into DATA frames, dropping the hop-by-hop headers and never using
+ * chunked coding, since the end of a stream marks the end of the body. DATA frames wait for the peer's
+ * flow-control windows, per stream and per connection, and the frames of all streams are interleaved
+ * on the socket one whole frame at a time.
+ */
+public class Http2Connection {
+
+    // Limits announced to clients in the SETTINGS frame that starts the connection
+    public static class Settings {
+        private final int maxConcurrentStreams;
+        private final int initialWindowSize;
+        // Most ms a response waits for the client to open its flow-control window, 0 for no limit
+        private final long flowControlTimeout;
+
+        public Settings(int maxConcurrentStreams, int initialWindowSize, long flowControlTimeout) {
+            this.maxConcurrentStreams = maxConcurrentStreams;
+            this.initialWindowSize = initialWindowSize;
+            this.flowControlTimeout = flowControlTimeout;
+        }
+    }
+
+    // Flow-control window every stream and the connection start with (RFC 7540 section 6.9.2)
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+
+    public static final Settings DEFAULT_SETTINGS = new Settings(100, DEFAULT_WINDOW_SIZE, 0);
+
+    // The client connection preface (RFC 7540 section 3.5); HttpRequestParser reads its first part as
+    // the request "PRI * HTTP/2.0" with no headers, which leaves PREFACE_REST
+    private static final byte[] PREFACE = ResponseWriter.ascii("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n");
+    private static final int PREFACE_REST = 6;
+    private static final byte[] SWITCHING_PROTOCOLS = ResponseWriter.ascii(
+            "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n");
+
+    private static final int FRAME_HEADER_LENGTH = 9;
+    // Largest frame payload sent or accepted, the SETTINGS_MAX_FRAME_SIZE every peer must support
+    private static final int MAX_FRAME_SIZE = 16384;
+    private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    // Response headers that only concern one HTTP/1.1 connection and are not allowed in HTTP/2
+    private static final String[] HOP_BY_HOP = { "connection", "keep-alive", "proxy-connection",
+            "transfer-encoding", "upgrade" };
+
+    private final ClientHandler connectionHandler;
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final Settings settings;
+    private final HttpRequestParser.Limits limits;
+    private final Executor streamExecutor;
+
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    // Read by the connection thread only
+    private final byte[] frameHeader = new byte[FRAME_HEADER_LENGTH];
+    private final byte[] payload = new byte[MAX_FRAME_SIZE];
+    private byte[] headerBlock = new byte[MAX_FRAME_SIZE];
+    private int headerBlockLength;
+    private int headerBlockStream;  // Stream whose header block continues in CONTINUATION frames, 0 if none
+    private boolean headerBlockEndsStream;
+    private int connectionReceiveConsumed;
+    private volatile int lastStreamId;
+
+    // Frames are written whole, one at a time, and header blocks are encoded in the order they are sent
+    private final Object writeLock = new Object();
+    private final Hpack.Encoder encoder = new Hpack.Encoder(FRAME_HEADER_LENGTH);
+    private final byte[] controlFrame = new byte[FRAME_HEADER_LENGTH + 64];
+
+    // Send windows, guarded by this connection's monitor, which DATA writers wait on
+    private long connectionSendWindow = DEFAULT_WINDOW_SIZE;
+    private int peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+
+    private volatile boolean goingAway;
+    // Whether the server SETTINGS have been sent, guarded by writeLock
+    private boolean started;
+    private volatile boolean closed;
+    private boolean inputEnded;
+
+    // buffered holds what was read from in past the request that started HTTP/2
+    public Http2Connection(ClientHandler connectionHandler, Socket socket, InputStream in, OutputStream out,
+            byte[] buffered, Settings settings, HttpRequestParser.Limits limits, Executor streamExecutor) {
+        this.connectionHandler = connectionHandler;
+        this.socket = socket;
+        this.in = buffered.length > 0 ? new SequenceInputStream(new ByteArrayInputStream(buffered), in) : in;
+        this.out = out;
+        this.settings = settings;
+        this.limits = limits;
+        this.streamExecutor = streamExecutor;
+    }
+
+    // Whether request is the start of the prior-knowledge preface
+    public static boolean isPreface(HttpRequest request) {
+        return "PRI".equals(request.getMethod()) && "*".equals(request.getUri()) && "HTTP/2.0".equals(request.getVersion());
+    }
+
+    // Whether request asks to continue the connection in HTTP/2: "Upgrade: h2c" with HTTP2-Settings
+    public static boolean isUpgrade(HttpRequest request) {
+        String upgrade = request.getHeader("Upgrade");
+        if (upgrade == null || request.getHeader("HTTP2-Settings") == null || !"HTTP/1.1".equals(request.getVersion())) {
+            return false;
+        }
+        for (String protocol : upgrade.split(",")) {
+            if (protocol.trim().equalsIgnoreCase("h2c")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Turn away a connection that asked for HTTP/2 when the server cannot take another one: a client
+    // that sent the preface gets the server's SETTINGS and a GOAWAY naming no processed stream, so it
+    // may retry its requests; an h2c upgrade request is still HTTP/1.1 and gets 503
+    public static void refuse(HttpRequest request, OutputStream out, int retryAfter) throws IOException {
+        if (!isPreface(request)) {
+            Errors.sendServiceUnavailable(out, retryAfter);
+            return;
+        }
+        byte[] frames = new byte[2 * FRAME_HEADER_LENGTH + 8];
+        putFrameHeader(frames, 0, 0, SETTINGS, 0, 0);
+        putFrameHeader(frames, FRAME_HEADER_LENGTH, 8, GOAWAY, 0, 0);
+        writeInt(frames, 2 * FRAME_HEADER_LENGTH, 0);
+        writeInt(frames, 2 * FRAME_HEADER_LENGTH + 4, Http2Exception.REFUSED_STREAM);
+        out.write(frames);
+        out.flush();
+    }
+
+    // Run the connection until the client closes it, an idle timeout, a protocol error, or the end of
+    // a drain(). upgradeRequest is the HTTP/1.1 request that asked for the upgrade, which is answered
+    // on stream 1, or null when the client sent the preface.
+    public void serve(HttpRequest upgradeRequest) throws IOException {
+        try {
+            if (upgradeRequest != null) {
+                out.write(SWITCHING_PROTOCOLS);
+                lastStreamId = 1;
+            }
+            synchronized (writeLock) {
+                writeSettings();
+                started = true;
+                if (goingAway) {
+                    goAway(Http2Exception.NO_ERROR); // drain() came first; SETTINGS must still be the first frame
+                }
+            }
+            readPreface(upgradeRequest != null ? 0 : PREFACE.length - PREFACE_REST);
+            if (upgradeRequest != null) {
+                applySettings(upgradeRequest.getHeader("HTTP2-Settings"));
+                Stream stream = new Stream(1);
+                upgradeRequest.setRequestLine(upgradeRequest.getMethod(), upgradeRequest.getUri(), "HTTP/2.0");
+                stream.request = upgradeRequest;
+                stream.remoteClosed = true; // Its body, if any, came with the HTTP/1.1 request
+                streams.put(1, stream);
+                dispatch(stream);
+            }
+            socket.setSoTimeout(connectionHandler.getKeepAliveTimeout());
+            while (readFrame()) {
+                // Frames are handled as they are read
+            }
+        } catch (Http2Exception e) {
+            ServerLog.debug("HTTP/2 connection error: " + e.getMessage());
+            goAway(e.getErrorCode());
+        } finally {
+            closed = true;
+            synchronized (this) {
+                notifyAll(); // Responses waiting for a window fail instead
+            }
+        }
+    }
+
+    // Graceful shutdown: announce GOAWAY, refuse new streams and end the connection once the streams
+    // in progress have been answered
+    public void drain() {
+        synchronized (writeLock) {
+            goingAway = true;
+            if (started) {
+                try {
+                    goAway(Http2Exception.NO_ERROR);
+                } catch (IOException e) {
+                    ServerLog.debug("Could not send GOAWAY: " + e.getMessage());
+                }
+            }
+        }
+        endInputIfDone();
+    }
+
+    private void readPreface(int alreadyRead) throws IOException {
+        byte[] rest = new byte[PREFACE.length - alreadyRead];
+        if (!readFully(rest, 0, rest.length, true)) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Connection closed before the preface");
+        }
+        for (int i = 0; i < rest.length; i++) {
+            if (rest[i] != PREFACE[alreadyRead + i]) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid connection preface");
+            }
+        }
+    }
+
+    // Read and handle one frame; false when the connection is over
+    private boolean readFrame() throws IOException {
+        try {
+            if (!readFully(frameHeader, 0, FRAME_HEADER_LENGTH, true)) {
+                return false;
+            }
+        } catch (SocketTimeoutException e) {
+            if (streams.isEmpty() && headerBlockStream == 0) {
+                goAway(Http2Exception.NO_ERROR); // Idle for keepAliveTimeout
+                return false;
+            }
+            return true; // Responses are still being produced
+        }
+        int length = (frameHeader[0] & 0xff) << 16 | (frameHeader[1] & 0xff) << 8 | frameHeader[2] & 0xff;
+        int type = frameHeader[3] & 0xff;
+        int flags = frameHeader[4] & 0xff;
+        int streamId = readInt(frameHeader, 5) & 0x7fffffff;
+        if (length > MAX_FRAME_SIZE) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+        }
+        if (!readFully(payload, 0, length, false)) {
+            return false;
+        }
+        if (headerBlockStream != 0 && (type != CONTINUATION || streamId != headerBlockStream)) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Header block interrupted");
+        }
+        switch (type) {
+            case DATA:
+                readData(streamId, flags, length);
+                break;
+            case HEADERS:
+                readHeaders(streamId, flags, length);
+                break;
+            case CONTINUATION:
+                if (headerBlockStream == 0) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "CONTINUATION without HEADERS");
+                }
+                appendHeaderBlock(0, length);
+                if ((flags & FLAG_END_HEADERS) != 0) {
+                    int id = headerBlockStream;
+                    headerBlockStream = 0;
+                    endHeaderBlock(id, headerBlockEndsStream);
+                }
+                break;
+            case PRIORITY:
+                if (streamId == 0) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PRIORITY on stream 0");
+                }
+                break; // Every stream is served as soon as it is complete, so priorities are not needed
+            case RST_STREAM:
+                if (streamId == 0 || length != 4) {
+                    throw new Http2Exception(length != 4 ? Http2Exception.FRAME_SIZE_ERROR : Http2Exception.PROTOCOL_ERROR,
+                            "Invalid RST_STREAM");
+                }
+                Stream reset = streams.remove(streamId);
+                if (reset != null) {
+                    synchronized (this) {
+                        reset.reset = true;
+                        notifyAll();
+                    }
+                }
+                break;
+            case SETTINGS:
+                if (streamId != 0) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "SETTINGS on a stream");
+                }
+                if ((flags & FLAG_ACK) != 0) {
+                    if (length != 0) {
+                        throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS ACK with a payload");
+                    }
+                    break;
+                }
+                applySettings(payload, length);
+                writeFrame(SETTINGS, FLAG_ACK, 0, null, 0);
+                break;
+            case PUSH_PROMISE:
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PUSH_PROMISE from a client");
+            case PING:
+                if (streamId != 0 || length != 8) {
+                    throw new Http2Exception(length != 8 ? Http2Exception.FRAME_SIZE_ERROR : Http2Exception.PROTOCOL_ERROR,
+                            "Invalid PING");
+                }
+                if ((flags & FLAG_ACK) == 0) {
+                    writeFrame(PING, FLAG_ACK, 0, payload, 8);
+                }
+                break;
+            case GOAWAY:
+                goingAway = true; // The client opens no more streams; the ones in progress are still answered
+                endInputIfDone();
+                break;
+            case WINDOW_UPDATE:
+                readWindowUpdate(streamId, length);
+                break;
+            default:
+                break; // Unknown frame types are ignored
+        }
+        return true;
+    }
+
+    private void readData(int streamId, int flags, int length) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        int padding = padding(flags, length);
+        int offset = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+        // The whole frame, padding included, counts against the windows and is given back at once:
+        // bodies are limited to maxRequestBodySize, so the handlers never fall behind the client
+        connectionReceiveConsumed += length;
+        if (connectionReceiveConsumed > settings.initialWindowSize) {
+            throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Connection window exceeded");
+        }
+        if (connectionReceiveConsumed >= settings.initialWindowSize / 2) {
+            writeWindowUpdate(0, connectionReceiveConsumed);
+            connectionReceiveConsumed = 0;
+        }
+        if (streamId > lastStreamId) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+        }
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            return; // Answered or reset already; data the client sent meanwhile is dropped
+        }
+        if (stream.remoteClosed) {
+            resetStream(stream, Http2Exception.STREAM_CLOSED);
+            return;
+        }
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+        int dataLength = length - offset - padding;
+        if (stream.errorStatus == 0 && stream.bodyReceived + dataLength > limits.getMaxBodySize()) {
+            stream.errorStatus = 413; // Payload Too Large, answered now; the rest of the body is dropped
+            dispatch(stream);
+        }
+        stream.bodyReceived += dataLength;
+        if (stream.errorStatus == 0) {
+            stream.request.appendBody(payload, offset, dataLength);
+        } else if (stream.bodyReceived > 2L * limits.getMaxBodySize()) {
+            resetStream(stream, Http2Exception.CANCEL); // Not worth reading any further
+            return;
+        }
+        if (endStream) {
+            closeRemote(stream);
+            if (stream.errorStatus == 0) {
+                stream.request.finishBody();
+                if (stream.request.getHeader("Content-Length") == null) {
+                    // The end of the stream frames the body; handlers expect a length, as in HTTP/1.1
+                    stream.request.addHeader("Content-Length", Long.toString(stream.bodyReceived));
+                }
+                dispatch(stream);
+            }
+            return;
+        }
+        stream.receiveConsumed += length;
+        if (stream.receiveConsumed >= settings.initialWindowSize / 2) {
+            writeWindowUpdate(streamId, stream.receiveConsumed);
+            stream.receiveConsumed = 0;
+        }
+    }
+
+    private void readHeaders(int streamId, int flags, int length) throws IOException {
+        if (streamId == 0 || (streamId & 1) == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "HEADERS on stream " + streamId);
+        }
+        int padding = padding(flags, length);
+        int offset = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+        if ((flags & FLAG_PRIORITY) != 0) {
+            offset += 5; // Stream dependency and weight, not used
+        }
+        if (offset + padding > length) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "HEADERS padding exceeds the frame");
+        }
+        headerBlockLength = 0;
+        appendHeaderBlock(offset, length - offset - padding);
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+        if ((flags & FLAG_END_HEADERS) == 0) {
+            headerBlockStream = streamId;
+            headerBlockEndsStream = endStream;
+            return;
+        }
+        endHeaderBlock(streamId, endStream);
+    }
+
+    // A complete header block: a new request, or the trailers of one whose body is being received
+    private void endHeaderBlock(int streamId, boolean endStream) throws IOException {
+        Stream existing = streams.get(streamId);
+        if (existing != null && !existing.remoteClosed) {
+            decoder.decode(headerBlock, 0, headerBlockLength, Integer.MAX_VALUE, (name, value) -> { });
+            if (!endStream) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Trailers without END_STREAM");
+            }
+            closeRemote(existing);
+            if (existing.errorStatus == 0) {
+                existing.request.finishBody();
+                dispatch(existing);
+            }
+            return;
+        }
+        if (streamId <= lastStreamId) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "HEADERS on closed stream " + streamId);
+        }
+        lastStreamId = streamId;
+        Stream stream = new Stream(streamId);
+        RequestHeaders fields = new RequestHeaders(stream.request);
+        // Decoded even when the stream is refused, to keep the dynamic table in step with the client's
+        boolean withinLimit = decoder.decode(headerBlock, 0, headerBlockLength, limits.getMaxHeaderSize(), fields);
+        if (goingAway || streams.size() >= settings.maxConcurrentStreams) {
+            resetStream(streamId, Http2Exception.REFUSED_STREAM);
+            return;
+        }
+        if (!fields.isValid()) {
+            resetStream(streamId, Http2Exception.PROTOCOL_ERROR);
+            return;
+        }
+        fields.complete();
+        streams.put(streamId, stream);
+        if (!withinLimit) {
+            stream.errorStatus = 431; // Request Header Fields Too Large
+        }
+        stream.remoteClosed = endStream;
+        if (!endStream && stream.errorStatus == 0) {
+            long contentLength = contentLength(stream.request);
+            if (contentLength > limits.getMaxBodySize()) {
+                stream.errorStatus = 413;
+            } else {
+                stream.request.startBody((int) Math.max(contentLength, 0));
+                return; // Dispatched when the body is complete
+            }
+        }
+        if (endStream) {
+            stream.request.startBody(0);
+            stream.request.finishBody();
+        }
+        dispatch(stream);
+    }
+
+    private static long contentLength(HttpRequest request) {
+        String contentLength = request.getHeader("Content-Length");
+        try {
+            return contentLength != null ? Long.parseLong(contentLength.trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void appendHeaderBlock(int offset, int length) throws Http2Exception {
+        // The compressed block may be larger than the header list it decodes to, but not without limit
+        if (headerBlockLength + length > limits.getMaxHeaderSize() + MAX_FRAME_SIZE) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Header block too large");
+        }
+        if (headerBlock.length < headerBlockLength + length) {
+            byte[] grown = new byte[Math.max(headerBlock.length * 2, headerBlockLength + length)];
+            System.arraycopy(headerBlock, 0, grown, 0, headerBlockLength);
+            headerBlock = grown;
+        }
+        System.arraycopy(payload, offset, headerBlock, headerBlockLength, length);
+        headerBlockLength += length;
+    }
+
+    // Length of the padding of a frame with the PADDED flag, 0 without it
+    private int padding(int flags, int length) throws Http2Exception {
+        if ((flags & FLAG_PADDED) == 0) {
+            return 0;
+        }
+        int padding = length > 0 ? payload[0] & 0xff : length + 1;
+        if (padding >= length) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Padding exceeds the frame");
+        }
+        return padding;
+    }
+
+    private void readWindowUpdate(int streamId, int length) throws IOException {
+        if (length != 4) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE");
+        }
+        int increment = readInt(payload, 0) & 0x7fffffff;
+        if (streamId == 0) {
+            if (increment == 0) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Window increment of 0");
+            }
+            synchronized (this) {
+                connectionSendWindow += increment;
+                if (connectionSendWindow > MAX_WINDOW_SIZE) {
+                    throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Connection window overflow");
+                }
+                notifyAll();
+            }
+            return;
+        }
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            return; // Updates may still arrive for a stream that has just ended
+        }
+        if (increment == 0) {
+            resetStream(stream, Http2Exception.PROTOCOL_ERROR);
+            return;
+        }
+        synchronized (this) {
+            stream.sendWindow += increment;
+            notifyAll();
+            if (stream.sendWindow <= MAX_WINDOW_SIZE) {
+                return;
+            }
+        }
+        resetStream(stream, Http2Exception.FLOW_CONTROL_ERROR);
+    }
+
+    // The base64url SETTINGS payload of an upgrade request
+    private void applySettings(String http2Settings) throws IOException {
+        byte[] decoded;
+        try {
+            decoded = Base64.getUrlDecoder().decode(http2Settings.trim());
+        } catch (IllegalArgumentException e) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid HTTP2-Settings");
+        }
+        if (decoded.length > payload.length) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "HTTP2-Settings too large");
+        }
+        System.arraycopy(decoded, 0, payload, 0, decoded.length);
+        applySettings(payload, decoded.length);
+    }
+
+    private void applySettings(byte[] settingsPayload, int length) throws IOException {
+        if (length % 6 != 0) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS length " + length);
+        }
+        for (int i = 0; i < length; i += 6) {
+            int id = (settingsPayload[i] & 0xff) << 8 | settingsPayload[i + 1] & 0xff;
+            int value = readInt(settingsPayload, i + 2);
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    synchronized (writeLock) {
+                        encoder.setMaxTableSize(value);
+                    }
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (value != 0 && value != 1) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid ENABLE_PUSH");
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) {
+                        throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Invalid INITIAL_WINDOW_SIZE");
+                    }
+                    synchronized (this) {
+                        // Applies to the windows of open streams too, which may become negative
+                        int delta = value - peerInitialWindowSize;
+                        peerInitialWindowSize = value;
+                        for (Stream stream : streams.values()) {
+                            stream.sendWindow += delta;
+                        }
+                        notifyAll();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < MAX_FRAME_SIZE || value > 0xffffff) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid MAX_FRAME_SIZE");
+                    }
+                    break; // Frames of MAX_FRAME_SIZE are always allowed, and this server sends no larger ones
+                default:
+                    break; // The client's other settings do not limit a server
+            }
+        }
+    }
+
+    // Serve a stream on the stream executor; when it has no room, the client is told to retry
+    private void dispatch(Stream stream) {
+        try {
+            streamExecutor.execute(() -> serveStream(stream));
+        } catch (RejectedExecutionException e) {
+            ServerMetrics.connectionRejected();
+            resetStream(stream, Http2Exception.REFUSED_STREAM);
+        }
+    }
+
+    // An error page for a HEAD stream goes without DATA, like every other answer to HEAD
+    private static boolean isHead(Stream stream) {
+        return stream.request != null && "HEAD".equals(stream.request.getMethod());
+    }
+
+    // Runs on a stream executor thread
+    private void serveStream(Stream stream) {
+        StreamOutput output = new StreamOutput(stream);
+        try {
+            if (stream.errorStatus != 0) {
+                Errors.sendErrorResponse(output, stream.errorStatus, false, isHead(stream));
+            } else {
+                connectionHandler.newStreamHandler().handleParsedRequest(stream.request, output);
+            }
+            output.finish();
+        } catch (IOException | RuntimeException e) {
+            if (stream.reset || closed) {
+                ServerLog.debug("HTTP/2 stream " + stream.id + " ended early: " + e.getMessage());
+            } else if (!output.isCommitted()) {
+                ServerLog.error("Request processing failed: " + e.getMessage(), e);
+                try {
+                    output.discard();
+                    Errors.sendErrorResponse(output, 500, false, isHead(stream)); // Internal Server Error
+                    output.finish();
+                } catch (IOException ex) {
+                    resetStream(stream, Http2Exception.INTERNAL_ERROR);
+                }
+            } else {
+                ServerLog.error("Response failed after it started: " + e.getMessage(), e);
+                resetStream(stream, Http2Exception.INTERNAL_ERROR);
+            }
+        } finally {
+            boolean done;
+            synchronized (stream) {
+                stream.responded = true;
+                done = stream.remoteClosed || stream.reset;
+            }
+            // A stream answered before its body is complete (413, 431) stays open until the client has
+            // sent the rest, which is dropped: clients do not all cope with RST_STREAM in mid-upload
+            if (done) {
+                streams.remove(stream.id, stream);
+                endInputIfDone();
+            }
+        }
+    }
+
+    // The client has sent all of the stream; one already answered is complete
+    private void closeRemote(Stream stream) {
+        boolean done;
+        synchronized (stream) {
+            stream.remoteClosed = true;
+            done = stream.responded;
+        }
+        if (done) {
+            streams.remove(stream.id, stream);
+            endInputIfDone();
+        }
+    }
+
+    // After GOAWAY, once no stream is left, end the connection: the reading thread sees the end of input
+    private synchronized void endInputIfDone() {
+        if (!goingAway || !streams.isEmpty() || inputEnded || closed) {
+            return;
+        }
+        inputEnded = true;
+        try {
+            socket.shutdownInput();
+        } catch (IOException e) {
+            ServerLog.debug("Could not end HTTP/2 connection: " + e.getMessage());
+        }
+    }
+
+    private void resetStream(Stream stream, int errorCode) {
+        streams.remove(stream.id, stream);
+        synchronized (this) {
+            stream.reset = true;
+            notifyAll();
+        }
+        resetStream(stream.id, errorCode);
+    }
+
+    private void resetStream(int streamId, int errorCode) {
+        byte[] code = new byte[4];
+        writeInt(code, 0, errorCode);
+        try {
+            writeFrame(RST_STREAM, 0, streamId, code, 4);
+        } catch (IOException e) {
+            ServerLog.debug("Could not reset HTTP/2 stream " + streamId + ": " + e.getMessage());
+        }
+    }
+
+    private void writeSettings() throws IOException {
+        byte[] values = new byte[3 * 6];
+        int length = putSetting(values, 0, SETTINGS_MAX_CONCURRENT_STREAMS, settings.maxConcurrentStreams);
+        length = putSetting(values, length, SETTINGS_MAX_HEADER_LIST_SIZE, limits.getMaxHeaderSize());
+        if (settings.initialWindowSize != DEFAULT_WINDOW_SIZE) {
+            length = putSetting(values, length, SETTINGS_INITIAL_WINDOW_SIZE, settings.initialWindowSize);
+        }
+        writeFrame(SETTINGS, 0, 0, values, length);
+        if (settings.initialWindowSize > DEFAULT_WINDOW_SIZE) {
+            // The connection window only grows through WINDOW_UPDATE
+            writeWindowUpdate(0, settings.initialWindowSize - DEFAULT_WINDOW_SIZE);
+        }
+    }
+
+    private static int putSetting(byte[] values, int offset, int id, int value) {
+        values[offset] = (byte) (id >>> 8);
+        values[offset + 1] = (byte) id;
+        writeInt(values, offset + 2, value);
+        return offset + 6;
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] value = new byte[4];
+        writeInt(value, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, streamId, value, 4);
+    }
+
+    private void goAway(int errorCode) throws IOException {
+        byte[] value = new byte[8];
+        writeInt(value, 0, lastStreamId);
+        writeInt(value, 4, errorCode);
+        writeFrame(GOAWAY, 0, 0, value, 8);
+    }
+
+    // A frame with a small payload
+    private void writeFrame(int type, int flags, int streamId, byte[] framePayload, int length) throws IOException {
+        synchronized (writeLock) {
+            putFrameHeader(controlFrame, 0, length, type, flags, streamId);
+            if (length > 0) {
+                System.arraycopy(framePayload, 0, controlFrame, FRAME_HEADER_LENGTH, length);
+            }
+            out.write(controlFrame, 0, FRAME_HEADER_LENGTH + length);
+            out.flush();
+        }
+    }
+
+    private static void putFrameHeader(byte[] buffer, int offset, int length, int type, int flags, int streamId) {
+        buffer[offset] = (byte) (length >>> 16);
+        buffer[offset + 1] = (byte) (length >>> 8);
+        buffer[offset + 2] = (byte) length;
+        buffer[offset + 3] = (byte) type;
+        buffer[offset + 4] = (byte) flags;
+        writeInt(buffer, offset + 5, streamId);
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) << 24 | (buffer[offset + 1] & 0xff) << 16
+                | (buffer[offset + 2] & 0xff) << 8 | buffer[offset + 3] & 0xff;
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    // Fill buffer from the input; false if it ends cleanly before the first byte (atStart) and an
+    // exception if it ends in the middle
+    private boolean readFully(byte[] buffer, int offset, int length, boolean atStart) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n;
+            try {
+                n = in.read(buffer, offset + read, length - read);
+            } catch (SocketTimeoutException e) {
+                if (read == 0 && atStart) {
+                    throw e;
+                }
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Frame not received within the timeout");
+            }
+            if (n < 0) {
+                if (read == 0 && atStart) {
+                    return false;
+                }
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Connection closed in the middle of a frame");
+            }
+            read += n;
+        }
+        return true;
+    }
+
+    // Wait until the stream and the connection may send data, then take up to wanted bytes of both windows
+    private synchronized int acquireWindow(Stream stream, int wanted) throws IOException {
+        long deadline = settings.flowControlTimeout > 0 ? System.currentTimeMillis() + settings.flowControlTimeout : 0;
+        while (!closed && !stream.reset && (connectionSendWindow <= 0 || stream.sendWindow <= 0)) {
+            long wait = deadline > 0 ? deadline - System.currentTimeMillis() : 0;
+            if (deadline > 0 && wait <= 0) {
+                throw new IOException("Flow-control window stayed closed for " + settings.flowControlTimeout + " ms");
+            }
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the flow-control window");
+            }
+        }
+        if (closed || stream.reset) {
+            throw new IOException(closed ? "Connection closed" : "Stream reset by the client");
+        }
+        int granted = (int) Math.min(wanted, Math.min(connectionSendWindow, stream.sendWindow));
+        connectionSendWindow -= granted;
+        stream.sendWindow -= granted;
+        return granted;
+    }
+
+    // One request and its response
+    private class Stream {
+        private final int id;
+        private HttpRequest request = new HttpRequest();
+        // Send window, guarded by the connection's monitor
+        private long sendWindow = peerInitialWindowSize;
+        private volatile boolean reset;
+        // Whether the client has sent all of the request and whether the response is complete, guarded
+        // by the stream; the stream is over when both are
+        private volatile boolean remoteClosed;
+        private boolean responded;
+        // Read by the connection thread only, or by the stream's thread once dispatched
+        private long bodyReceived;
+        private int receiveConsumed;
+        // Status answered instead of handling the request (431, 413), 0 if none
+        private int errorStatus;
+
+        Stream(int id) {
+            this.id = id;
+            request.setBodySinks(connectionHandler.proxyBodySinks(false));
+        }
+    }
+
+    // Collects the decoded fields of a request header block into its HttpRequest
+    private static class RequestHeaders implements BiConsumer<String, String> {
+        private final HttpRequest request;
+        private String method;
+        private String path;
+        private String authority;
+        private boolean regularSeen;
+        private boolean valid = true;
+        private StringBuilder cookies;
+
+        RequestHeaders(HttpRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        public void accept(String name, String value) {
+            if (name.startsWith(":")) {
+                // Pseudo-header fields come first, each at most once
+                if (regularSeen) {
+                    valid = false;
+                }
+                switch (name) {
+                    case ":method":
+                        valid &= method == null;
+                        method = value;
+                        break;
+                    case ":path":
+                        valid &= path == null;
+                        // Header strings are ISO-8859-1; the target is UTF-8, as HttpRequestParser reads it
+                        path = new String(value.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+                        break;
+                    case ":authority":
+                        authority = value;
+                        break;
+                    case ":scheme":
+                        break;
+                    default:
+                        valid = false;
+                }
+                return;
+            }
+            regularSeen = true;
+            if (!name.equals(name.toLowerCase(Locale.ROOT)) || name.equals("connection")) {
+                valid = false; // Malformed in HTTP/2 (RFC 7540 section 8.1.2)
+                return;
+            }
+            if (name.equals("cookie")) {
+                // A cookie header may be split into one field per cookie for better compression
+                cookies = cookies == null ? new StringBuilder(value) : cookies.append("; ").append(value);
+                return;
+            }
+            request.addHeader(name, value);
+        }
+
+        boolean isValid() {
+            return valid && method != null && path != null && !path.isEmpty();
+        }
+
+        // Set the request line, and the headers that HTTP/1.1 handlers look for
+        void complete() {
+            request.setRequestLine(method, path, "HTTP/2.0");
+            if (authority != null && request.getHeader("Host") == null) {
+                request.addHeader("host", authority);
+            }
+            if (cookies != null) {
+                request.addHeader("cookie", cookies.toString());
+            }
+        }
+    }
+
+    /**
+     * The output of one stream. The handler writes an HTTP/1.1 response: its head is collected up to
+     * the blank line and sent as a HEADERS frame, the body is collected in a buffer that is sent as a
+     * DATA frame whenever it holds a full frame and, with END_STREAM, when the response is finished.
+     * The frame header is filled in the room left in front of the data, so each frame is one write.
+     */
+    private class StreamOutput extends ChannelOutputStream {
+        private final Stream stream;
+        private byte[] head = new byte[1024];
+        private int headLength;
+        private boolean headComplete;
+        private boolean committed;
+        private final byte[] frame = new byte[FRAME_HEADER_LENGTH + MAX_FRAME_SIZE];
+        private int count;
+
+        StreamOutput(Stream stream) {
+            super(null);
+            this.stream = stream;
+        }
+
+        // Whether anything of the response has been sent
+        boolean isCommitted() {
+            return committed;
+        }
+
+        // Drop a response that has not been sent yet
+        void discard() {
+            headLength = 0;
+            headComplete = false;
+            count = 0;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            bytesWritten += len;
+            while (!headComplete && len > 0) {
+                if (headLength == head.length) {
+                    byte[] grown = new byte[head.length * 2];
+                    System.arraycopy(head, 0, grown, 0, headLength);
+                    head = grown;
+                }
+                head[headLength++] = b[off++];
+                len--;
+                headComplete = headLength >= 4 && head[headLength - 4] == '\r' && head[headLength - 3] == '\n'
+                        && head[headLength - 2] == '\r' && head[headLength - 1] == '\n';
+            }
+            while (len > 0) {
+                if (count == MAX_FRAME_SIZE) {
+                    sendData(false);
+                }
+                int n = Math.min(len, MAX_FRAME_SIZE - count);
+                System.arraycopy(b, off, frame, FRAME_HEADER_LENGTH + count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void write(ByteBuffer[] buffers) throws IOException {
+            byte[] chunk = null;
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasArray()) {
+                    write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                    buffer.position(buffer.limit());
+                    continue;
+                }
+                // Off-heap content such as a memory-mapped file, copied through a small buffer
+                if (chunk == null) {
+                    chunk = new byte[8192];
+                }
+                while (buffer.hasRemaining()) {
+                    int n = Math.min(chunk.length, buffer.remaining());
+                    buffer.get(chunk, 0, n);
+                    write(chunk, 0, n);
+                }
+            }
+        }
+
+        // File bodies are read straight into the frame buffer
+        @Override
+        public void transferFrom(Path file, long position, long length) throws IOException {
+            try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long end = position + length;
+                while (position < end) {
+                    if (count == MAX_FRAME_SIZE) {
+                        sendData(false);
+                    }
+                    ByteBuffer target = ByteBuffer.wrap(frame, FRAME_HEADER_LENGTH + count,
+                            (int) Math.min(MAX_FRAME_SIZE - count, end - position));
+                    int read = fileChannel.read(target, position);
+                    if (read < 0) {
+                        throw new IOException("File truncated while sending: " + file);
+                    }
+                    position += read;
+                    count += read;
+                    bytesWritten += read;
+                }
+            }
+        }
+
+        // Frames leave when they are full and when the response is finished; a partial frame is not sent
+        // early, so a small response is one HEADERS and one DATA frame
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+            // The stream ends with finish(); the connection owns the socket
+        }
+
+        // End the response and the stream
+        void finish() throws IOException {
+            if (!headComplete) {
+                throw new IOException("Incomplete response head");
+            }
+            if (!committed) {
+                sendHeaders(count == 0);
+            }
+            if (count > 0) {
+                sendData(true);
+            } else if (!stream.reset) {
+                sendEndStream();
+            }
+        }
+
+        // The collected HTTP/1.1 status line and headers as a HEADERS frame (with CONTINUATION frames
+        // for a block larger than a frame)
+        private void sendHeaders(boolean endStream) throws IOException {
+            if (!headComplete) {
+                throw new IOException("Body written before the response head");
+            }
+            List<String> fields = parseHead();
+            synchronized (writeLock) {
+                if (closed || stream.reset) {
+                    throw new IOException(closed ? "Connection closed" : "Stream reset by the client");
+                }
+                encoder.beginBlock();
+                for (int i = 0; i < fields.size(); i += 2) {
+                    encoder.encode(fields.get(i), fields.get(i + 1));
+                }
+                byte[] block = encoder.getBuffer();
+                int remaining = encoder.blockLength();
+                int length = Math.min(remaining, MAX_FRAME_SIZE);
+                int flags = (endStream ? FLAG_END_STREAM : 0) | (length == remaining ? FLAG_END_HEADERS : 0);
+                putFrameHeader(block, 0, length, HEADERS, flags, stream.id);
+                out.write(block, 0, FRAME_HEADER_LENGTH + length);
+                int offset = FRAME_HEADER_LENGTH + length;
+                remaining -= length;
+                byte[] continuationHeader = new byte[FRAME_HEADER_LENGTH];
+                while (remaining > 0) {
+                    length = Math.min(remaining, MAX_FRAME_SIZE);
+                    remaining -= length;
+                    putFrameHeader(continuationHeader, 0, length, CONTINUATION, remaining == 0 ? FLAG_END_HEADERS : 0,
+                            stream.id);
+                    out.write(continuationHeader, 0, FRAME_HEADER_LENGTH);
+                    out.write(block, offset, length);
+                    offset += length;
+                }
+                out.flush();
+            }
+            committed = true;
+        }
+
+        // ":status" and the headers of the HTTP/1.1 head, names in lower case, hop-by-hop headers left out
+        private List<String> parseHead() throws IOException {
+            String text = new String(head, 0, headLength - 4, StandardCharsets.ISO_8859_1);
+            String[] lines = text.split("\r\n");
+            if (lines[0].length() < 12 || !lines[0].startsWith("HTTP/")) {
+                throw new IOException("Invalid response status line: " + lines[0]);
+            }
+            List<String> fields = new ArrayList<>(lines.length * 2);
+            fields.add(":status");
+            fields.add(lines[0].substring(9, 12));
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                if (isHopByHop(name)) {
+                    continue;
+                }
+                fields.add(name);
+                fields.add(lines[i].substring(colon + 1).trim());
+            }
+            return fields;
+        }
+
+        // The buffered body as DATA frames, as far as the flow-control windows allow each time
+        private void sendData(boolean endStream) throws IOException {
+            if (!committed) {
+                sendHeaders(false);
+            }
+            int from = 0; // The next frame header goes in front of the unsent data
+            while (count > 0) {
+                int length = acquireWindow(stream, count);
+                count -= length;
+                synchronized (writeLock) {
+                    if (closed || stream.reset) {
+                        throw new IOException(closed ? "Connection closed" : "Stream reset by the client");
+                    }
+                    putFrameHeader(frame, from, length, DATA, endStream && count == 0 ? FLAG_END_STREAM : 0, stream.id);
+                    out.write(frame, from, FRAME_HEADER_LENGTH + length);
+                    out.flush();
+                }
+                from += length;
+            }
+        }
+
+        private void sendEndStream() throws IOException {
+            writeFrame(DATA, FLAG_END_STREAM, stream.id, null, 0);
+        }
+    }
+
+    private static boolean isHopByHop(String name) {
+        for (String hopByHop : HOP_BY_HOP) {
+            if (hopByHop.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
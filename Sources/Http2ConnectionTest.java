@@ -0,0 +1,343 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class tests the Http2Connection class from the client side of a loopback connection: the
+ * server preface, requests on streams answered with HEADERS and DATA frames, flow control holding
+ * DATA back until WINDOW_UPDATE, the h2c upgrade, and GOAWAY for protocol errors.
+ */
+public class Http2ConnectionTest {
+
+    private static final byte[] PREFACE = TestSupport.ascii("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n");
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+
+    private static Path root;
+    private static final ExecutorService streams = Executors.newCachedThreadPool();
+
+    public static void main(String[] args) throws IOException {
+        root = Files.createTempDirectory("h2");
+        Files.write(root.resolve("small.txt"), TestSupport.ascii("hello over h2"));
+        Files.write(root.resolve("large.txt"), pattern(100_000));
+        try {
+            TestSupport.run("server preface and PING", Http2ConnectionTest::testPrefaceAndPing);
+            TestSupport.run("GET on a stream", Http2ConnectionTest::testGet);
+            TestSupport.run("concurrent streams", Http2ConnectionTest::testConcurrentStreams);
+            TestSupport.run("DATA waits for WINDOW_UPDATE", Http2ConnectionTest::testFlowControl);
+            TestSupport.run("h2c upgrade", Http2ConnectionTest::testUpgrade);
+            TestSupport.run("GOAWAY on protocol errors", Http2ConnectionTest::testProtocolErrors);
+        } finally {
+            Files.delete(root.resolve("small.txt"));
+            Files.delete(root.resolve("large.txt"));
+            Files.delete(root);
+            streams.shutdown();
+        }
+        TestSupport.finish("Http2ConnectionTest");
+    }
+
+    static void testPrefaceAndPing() throws Exception {
+        try (Client client = Client.connect(new byte[0])) {
+            Frame settings = client.read();
+            TestSupport.assertEquals(SETTINGS, settings.type, "server preface");
+            TestSupport.assertEquals(0, settings.flags & ACK, "not an ACK");
+            client.readUntil(SETTINGS); // ACK of our empty SETTINGS
+            client.write(PING, 0, 0, TestSupport.ascii("12345678"));
+            Frame pong = client.readUntil(PING);
+            TestSupport.assertEquals(ACK, pong.flags, "PING ACK");
+            TestSupport.assertEquals("12345678", TestSupport.ascii(pong.payload), "PING payload echoed");
+        }
+    }
+
+    static void testGet() throws Exception {
+        try (Client client = Client.connect(new byte[0])) {
+            client.request(1, "GET", "/small.txt", true);
+            Response response = client.response(1);
+            TestSupport.assertEquals("200", response.headers.get(":status"), ":status");
+            TestSupport.assertEquals("13", response.headers.get("content-length"), "content-length");
+            TestSupport.assertEquals(null, response.headers.get("connection"), "no hop-by-hop headers");
+            TestSupport.assertEquals("hello over h2", TestSupport.ascii(response.body.toByteArray()), "body");
+
+            client.request(3, "GET", "/missing.txt", true);
+            TestSupport.assertEquals("404", client.response(3).headers.get(":status"), "second stream");
+
+            client.request(5, "HEAD", "/missing.txt", true);
+            Response head = client.response(5);
+            TestSupport.assertEquals("404", head.headers.get(":status"), "HEAD of a missing file");
+            TestSupport.assertEquals(0, head.body.size(), "no DATA for HEAD");
+        }
+    }
+
+    static void testConcurrentStreams() throws Exception {
+        try (Client client = Client.connect(new byte[0])) {
+            // Both requests go out before either response is read
+            client.request(1, "GET", "/large.txt", true);
+            client.request(3, "GET", "/small.txt", true);
+            Map<Integer, Response> responses = client.responses(1, 3);
+            TestSupport.assertArrayEquals(pattern(100_000), responses.get(1).body.toByteArray(), "large body");
+            TestSupport.assertEquals("hello over h2", TestSupport.ascii(responses.get(3).body.toByteArray()), "small body");
+        }
+    }
+
+    static void testFlowControl() throws Exception {
+        // SETTINGS_INITIAL_WINDOW_SIZE = 10: the server may send 10 bytes on a stream before WINDOW_UPDATE
+        byte[] settings = { 0, 0x4, 0, 0, 0, 10 };
+        try (Client client = Client.connect(settings)) {
+            client.request(1, "GET", "/small.txt", true);
+            Response response = client.response(1, false);
+            TestSupport.assertEquals(10, response.body.size(), "stopped at the window");
+            client.socket.setSoTimeout(300);
+            TestSupport.assertThrows(SocketTimeoutException.class, client::read, "nothing more without a window");
+            client.socket.setSoTimeout(5000);
+            client.write(WINDOW_UPDATE, 0, 1, new byte[] { 0, 0, 0, 100 });
+            Frame rest = client.readUntil(DATA);
+            TestSupport.assertEquals(" h2", TestSupport.ascii(rest.payload), "rest after WINDOW_UPDATE");
+            TestSupport.assertEquals(END_STREAM, rest.flags & END_STREAM, "stream ended");
+        }
+    }
+
+    static void testUpgrade() throws Exception {
+        try (Client client = Client.open()) {
+            client.out.write(TestSupport.ascii("GET /small.txt HTTP/1.1\r\nHost: test\r\n"
+                    + "Connection: Upgrade, HTTP2-Settings\r\nUpgrade: h2c\r\nHTTP2-Settings: \r\n\r\n"));
+            client.out.write(PREFACE);
+            client.write(SETTINGS, 0, 0, new byte[0]);
+            StringBuilder head = new StringBuilder();
+            while (!head.toString().endsWith("\r\n\r\n")) {
+                head.append((char) client.in.readUnsignedByte());
+            }
+            TestSupport.assertTrue(head.toString().startsWith("HTTP/1.1 101 "), "101: " + head);
+            // The upgrade request is answered on stream 1
+            Response response = client.response(1);
+            TestSupport.assertEquals("200", response.headers.get(":status"), ":status");
+            TestSupport.assertEquals("hello over h2", TestSupport.ascii(response.body.toByteArray()), "body");
+        }
+    }
+
+    static void testProtocolErrors() throws Exception {
+        try (Client client = Client.connect(new byte[0])) {
+            client.write(DATA, 0, 0, TestSupport.ascii("x")); // DATA on stream 0
+            Frame goAway = client.readGoAway();
+            TestSupport.assertEquals(Http2Exception.PROTOCOL_ERROR, readInt(goAway.payload, 4), "PROTOCOL_ERROR");
+        }
+        try (Client client = Client.connect(new byte[0])) {
+            client.write(HEADERS, END_HEADERS | END_STREAM, 1, new byte[] { (byte) 0xff, (byte) 0xff, 0x7f });
+            Frame goAway = client.readGoAway();
+            TestSupport.assertEquals(Http2Exception.COMPRESSION_ERROR, readInt(goAway.payload, 4),
+                    "COMPRESSION_ERROR for an invalid header block");
+        }
+    }
+
+    private static byte[] pattern(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + i % 26);
+        }
+        return data;
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) << 24 | (buffer[offset + 1] & 0xff) << 16 | (buffer[offset + 2] & 0xff) << 8
+                | buffer[offset + 3] & 0xff;
+    }
+
+    private static class Frame {
+        int type;
+        int flags;
+        int streamId;
+        byte[] payload;
+    }
+
+    private static class Response {
+        final Map<String, String> headers = new LinkedHashMap<>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        boolean ended;
+    }
+
+    // The client end of a connection served by a ClientHandler with HTTP/2 enabled
+    private static class Client implements AutoCloseable {
+        final Socket socket;
+        final DataInputStream in;
+        final OutputStream out;
+        private final ServerSocketChannel server;
+        private final Hpack.Encoder encoder = new Hpack.Encoder(0);
+        private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+
+        private Client(ServerSocketChannel server, Socket socket) throws IOException {
+            this.server = server;
+            this.socket = socket;
+            this.in = new DataInputStream(socket.getInputStream());
+            this.out = socket.getOutputStream();
+        }
+
+        // A connection whose handler is running, nothing sent yet
+        static Client open() throws Exception {
+            ServerSocketChannel server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.socket().getLocalPort());
+            socket.setSoTimeout(5000);
+            ClientHandler handler = new ClientHandler(server.accept().socket(), root.toString(), "index.html");
+            handler.setHttp2(new Http2Connection.Settings(100, 65535, 5000), streams);
+            new Thread(handler, "test-h2-connection").start();
+            return new Client(server, socket);
+        }
+
+        // A connection started with the preface and a SETTINGS frame carrying settings
+        static Client connect(byte[] settings) throws Exception {
+            Client client = open();
+            client.out.write(PREFACE);
+            client.write(SETTINGS, 0, 0, settings);
+            return client;
+        }
+
+        void request(int streamId, String method, String path, boolean endStream) throws IOException {
+            encoder.beginBlock();
+            encoder.encode(":method", method);
+            encoder.encode(":scheme", "http");
+            encoder.encode(":path", path);
+            encoder.encode(":authority", "test");
+            byte[] block = new byte[encoder.blockLength()];
+            System.arraycopy(encoder.getBuffer(), 0, block, 0, block.length);
+            write(HEADERS, END_HEADERS | (endStream ? END_STREAM : 0), streamId, block);
+        }
+
+        void write(int type, int flags, int streamId, byte[] payload) throws IOException {
+            byte[] frame = new byte[9 + payload.length];
+            frame[0] = (byte) (payload.length >>> 16);
+            frame[1] = (byte) (payload.length >>> 8);
+            frame[2] = (byte) payload.length;
+            frame[3] = (byte) type;
+            frame[4] = (byte) flags;
+            frame[5] = (byte) (streamId >>> 24);
+            frame[6] = (byte) (streamId >>> 16);
+            frame[7] = (byte) (streamId >>> 8);
+            frame[8] = (byte) streamId;
+            System.arraycopy(payload, 0, frame, 9, payload.length);
+            out.write(frame);
+            out.flush();
+        }
+
+        Frame read() throws IOException {
+            byte[] header = new byte[9];
+            in.readFully(header);
+            Frame frame = new Frame();
+            frame.type = header[3] & 0xff;
+            frame.flags = header[4] & 0xff;
+            frame.streamId = readInt(header, 5) & 0x7fffffff;
+            frame.payload = new byte[(header[0] & 0xff) << 16 | (header[1] & 0xff) << 8 | header[2] & 0xff];
+            in.readFully(frame.payload);
+            return frame;
+        }
+
+        // The next frame of this type; frames of other types are skipped, SETTINGS are acknowledged
+        Frame readUntil(int type) throws IOException {
+            while (true) {
+                Frame frame = read();
+                if (frame.type == type) {
+                    return frame;
+                }
+                acknowledge(frame);
+            }
+        }
+
+        // The GOAWAY a connection error ends with; nothing is written back, since the server closes right after
+        // it and a late SETTINGS ACK would reset the connection before the GOAWAY is read
+        Frame readGoAway() throws IOException {
+            while (true) {
+                Frame frame = read();
+                if (frame.type == GOAWAY) {
+                    return frame;
+                }
+            }
+        }
+
+        Response response(int streamId) throws IOException {
+            return response(streamId, true);
+        }
+
+        // Read until the stream's response has ended, or with complete false until its window is used up
+        Response response(int streamId, boolean complete) throws IOException {
+            return responses(new int[] { streamId }, complete ? -1 : 10).get(streamId);
+        }
+
+        Map<Integer, Response> responses(int... streamIds) throws IOException {
+            return responses(streamIds, -1);
+        }
+
+        private Map<Integer, Response> responses(int[] streamIds, int stopAtBytes) throws IOException {
+            Map<Integer, Response> responses = new LinkedHashMap<>();
+            for (int id : streamIds) {
+                responses.put(id, new Response());
+            }
+            int open = streamIds.length;
+            while (open > 0) {
+                Frame frame = read();
+                Response response = responses.get(frame.streamId);
+                if (response == null) {
+                    TestSupport.assertTrue(frame.type != RST_STREAM && frame.type != GOAWAY,
+                            "unexpected frame type " + frame.type);
+                    acknowledge(frame);
+                    continue;
+                }
+                if (frame.type == HEADERS) {
+                    decoder.decode(frame.payload, 0, frame.payload.length, Integer.MAX_VALUE, response.headers::put);
+                } else if (frame.type == DATA) {
+                    response.body.write(frame.payload);
+                    // Keep the connection window open; stream windows are the test's business
+                    if (frame.payload.length > 0) {
+                        write(WINDOW_UPDATE, 0, 0, intBytes(frame.payload.length));
+                        if (stopAtBytes < 0) {
+                            write(WINDOW_UPDATE, 0, frame.streamId, intBytes(frame.payload.length));
+                        }
+                    }
+                } else {
+                    TestSupport.assertTrue(false, "unexpected frame type " + frame.type + " on stream " + frame.streamId);
+                }
+                if ((frame.flags & END_STREAM) != 0) {
+                    response.ended = true;
+                    open--;
+                } else if (stopAtBytes >= 0 && response.body.size() >= stopAtBytes) {
+                    open--;
+                }
+            }
+            return responses;
+        }
+
+        private void acknowledge(Frame frame) throws IOException {
+            if (frame.type == SETTINGS && (frame.flags & ACK) == 0) {
+                write(SETTINGS, ACK, 0, new byte[0]);
+            }
+        }
+
+        private static byte[] intBytes(int value) {
+            return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+            server.close();
+        }
+    }
+}
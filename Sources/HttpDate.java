@@ -0,0 +1,61 @@
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * The HttpDate class formats and parses the dates used in HTTP headers (Date, Last-Modified,
+ * If-Modified-Since), which are RFC 1123 dates in GMT such as "Sun, 06 Nov 1994 08:49:37 GMT".
+ * The current date changes once per second, so it is formatted and encoded once per second and
+ * shared by every response sent within that second.
+ */
+public final class HttpDate {
+
+    private static final DateTimeFormatter RFC_1123 =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private static volatile CurrentDate current = new CurrentDate(0, new byte[0]);
+
+    private HttpDate() {
+    }
+
+    public static String format(long epochMillis) {
+        return RFC_1123.format(Instant.ofEpochMilli(epochMillis));
+    }
+
+    // Milliseconds since the epoch, or -1 when the value is not a valid RFC 1123 date
+    public static long parse(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    // The current date as header value bytes, re-encoded only when the second changes
+    public static byte[] now() {
+        long second = System.currentTimeMillis() / 1000;
+        CurrentDate date = current;
+        if (date.second != second) {
+            // Racing threads may both format the same second; either result is correct
+            date = new CurrentDate(second, ResponseWriter.ascii(format(second * 1000)));
+            current = date;
+        }
+        return date.bytes;
+    }
+
+    private static final class CurrentDate {
+        private final long second;
+        private final byte[] bytes;
+
+        CurrentDate(long second, byte[] bytes) {
+            this.second = second;
+            this.bytes = bytes;
+        }
+    }
+}
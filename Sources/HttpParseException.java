@@ -0,0 +1,21 @@
+import java.io.IOException;
+
+/**
+ * The HttpParseException class signals a request that cannot be parsed or exceeds a parser limit.
+ * It carries the HTTP status code that should be sent back before the connection is closed.
+ */
+public class HttpParseException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+
+    public HttpParseException(int statusCode, String message) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+}
@@ -0,0 +1,194 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * The HttpRequest class holds one parsed request: request line parts, headers in arrival order and
+ * the body bytes. A connection keeps a single instance and resets it between requests, so the header
+ * lists and the body array are reused instead of being allocated for every request. A form body
+ * (application/x-www-form-urlencoded) is not stored: it is decoded into fields as it arrives. A body
+ * can also be handed to a BodySink chosen when the header section is complete, such as the
+ * connection to a proxy upstream, and is then not stored at all.
+ */
+public class HttpRequest {
+
+    // Largest body array kept for the next request of the connection; a bigger one is dropped, so that
+    // one large upload does not pin its size for as long as the connection stays open
+    private static final int MAX_RETAINED_BODY = 64 * 1024;
+    // Most allocated for a body before any of it arrives; the declared Content-Length only caps the
+    // growth, so a client announcing a large body without sending it does not get that much memory
+    private static final int INITIAL_BODY_CAPACITY = 8192;
+
+    // Receives the pieces of a body in order; errors are kept by the sink for whoever reads it later,
+    // since the parser that calls it only reports malformed requests
+    public interface BodySink {
+        void write(byte[] data, int offset, int length);
+
+        void end();
+    }
+
+    private String method;
+    private String uri;
+    private String version;
+    private final List<String> headerNames = new ArrayList<>();
+    private final List<String> headerValues = new ArrayList<>();
+    private byte[] body = new byte[0];
+    private int bodyLength;
+    // Content-Length of the body being received, 0 when unknown
+    private int expectedBodyLength;
+    private final FormDecoder formDecoder = new FormDecoder();
+    private boolean formBody;
+    // Decoded form fields, null unless the body was a form
+    private Map<String, String> formFields;
+    // Chooses a sink for each request that has a body, null (or a null sink) to keep bodies here
+    private Function<HttpRequest, BodySink> bodySinks;
+    private BodySink bodySink;
+
+    public void reset() {
+        method = null;
+        uri = null;
+        version = null;
+        headerNames.clear();
+        headerValues.clear();
+        releaseBody();
+        formBody = false;
+        formFields = null;
+        bodySink = null;
+    }
+
+    // The body has been handled: forget it, and drop its array if it grew past MAX_RETAINED_BODY
+    void releaseBody() {
+        bodyLength = 0;
+        if (body.length > MAX_RETAINED_BODY) {
+            body = new byte[0];
+        }
+    }
+
+    public void setBodySinks(Function<HttpRequest, BodySink> bodySinks) {
+        this.bodySinks = bodySinks;
+    }
+
+    void setRequestLine(String method, String uri, String version) {
+        this.method = method;
+        this.uri = uri;
+        this.version = version;
+    }
+
+    void addHeader(String name, String value) {
+        headerNames.add(name);
+        headerValues.add(value);
+    }
+
+    // Start receiving a body of about expectedLength bytes (0 when unknown, as with chunked bodies)
+    void startBody(int expectedLength) {
+        bodyLength = 0;
+        expectedBodyLength = expectedLength;
+        if (bodySinks != null && (expectedLength > 0 || getHeader("Transfer-Encoding") != null)) {
+            bodySink = bodySinks.apply(this);
+            if (bodySink != null) {
+                formBody = false;
+                return;
+            }
+        }
+        String contentType = getHeader("Content-Type");
+        formBody = contentType != null && contentType.regionMatches(true, 0, "application/x-www-form-urlencoded", 0, 33);
+        if (formBody) {
+            formDecoder.reset();
+        } else if (body.length < Math.min(expectedLength, INITIAL_BODY_CAPACITY)) {
+            body = new byte[Math.min(expectedLength, INITIAL_BODY_CAPACITY)];
+        }
+    }
+
+    // The next piece of the body; the array is reused when it is large enough, and doubled (up to the
+    // declared length) as the body actually arrives
+    void appendBody(byte[] data, int offset, int length) {
+        if (bodySink != null) {
+            bodySink.write(data, offset, length);
+            return;
+        }
+        if (formBody) {
+            formDecoder.update(data, offset, length);
+            return;
+        }
+        if (body.length - bodyLength < length) {
+            int capacity = Math.max(body.length * 2, bodyLength + length);
+            if (expectedBodyLength >= bodyLength + length) {
+                capacity = Math.min(capacity, expectedBodyLength);
+            }
+            byte[] grown = new byte[capacity];
+            System.arraycopy(body, 0, grown, 0, bodyLength);
+            body = grown;
+        }
+        System.arraycopy(data, offset, body, bodyLength, length);
+        bodyLength += length;
+    }
+
+    // The whole body has been received
+    void finishBody() {
+        if (bodySink != null) {
+            bodySink.end();
+        } else if (formBody) {
+            formFields = formDecoder.finish();
+        }
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    // The request target as sent, including any query string
+    public String getUri() {
+        return uri;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getRequestLine() {
+        return method + " " + uri + " " + version;
+    }
+
+    // Case-insensitive lookup of the first header with this name, null if absent
+    public String getHeader(String name) {
+        for (int i = 0; i < headerNames.size(); i++) {
+            if (headerNames.get(i).equalsIgnoreCase(name)) {
+                return headerValues.get(i);
+            }
+        }
+        return null;
+    }
+
+    public int getHeaderCount() {
+        return headerNames.size();
+    }
+
+    public String getHeaderName(int index) {
+        return headerNames.get(index);
+    }
+
+    public String getHeaderValue(int index) {
+        return headerValues.get(index);
+    }
+
+    // The body array may be longer than the body; only the first getBodyLength() bytes are valid.
+    // Empty for a form body, see getFormFields(), and for one given to a BodySink.
+    public byte[] getBody() {
+        return body;
+    }
+
+    // The fields of an application/x-www-form-urlencoded body, null for other bodies
+    public Map<String, String> getFormFields() {
+        return formFields;
+    }
+
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    // Where the body went instead, null when it is held here
+    public BodySink getBodySink() {
+        return bodySink;
+    }
+}
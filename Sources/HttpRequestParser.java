@@ -0,0 +1,514 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The HttpRequestParser class parses HTTP/1.x requests directly from bytes. Input is read into a
+ * reusable buffer owned by the parser, and parse() consumes as much of it as it can: it is resumable,
+ * keeping its state and scan position between calls, so the same parser serves a blocking socket
+ * (readRequest) and the non-blocking event loop (fill from a channel, then parse). Request line, header
+ * section, header count and body size are limited, and violations are reported as HttpParseException
+ * with the status code to answer. Bodies framed by Content-Length or by chunked Transfer-Encoding are
+ * passed to the request piece by piece as they arrive (see HttpRequest.appendBody). For a request
+ * with "Expect: 100-continue" the caller is told to send the interim 100 response before the body.
+ */
+public class HttpRequestParser {
+
+    // Size limits applied to every request
+    public static class Limits {
+        private final int maxRequestLineLength;
+        private final int maxHeaderSize;
+        private final int maxHeaderCount;
+        private final int maxBodySize;
+
+        public Limits(int maxRequestLineLength, int maxHeaderSize, int maxHeaderCount, int maxBodySize) {
+            this.maxRequestLineLength = maxRequestLineLength;
+            this.maxHeaderSize = maxHeaderSize;
+            this.maxHeaderCount = maxHeaderCount;
+            this.maxBodySize = maxBodySize;
+        }
+
+        public int getMaxBodySize() {
+            return maxBodySize;
+        }
+
+        public int getMaxHeaderSize() {
+            return maxHeaderSize;
+        }
+    }
+
+    public static final Limits DEFAULT_LIMITS = new Limits(8192, 16384, 100, 1024 * 1024);
+
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+    // Longest chunk-size line accepted, chunk extensions included
+    private static final int MAX_CHUNK_LINE_LENGTH = 1024;
+
+    // Methods and versions we see on almost every request are matched as bytes and never re-allocated
+    private static final String[] KNOWN_TOKENS = { "GET", "HEAD", "POST", "TRACE", "PUT", "DELETE", "OPTIONS",
+            "HTTP/1.1", "HTTP/1.0" };
+    private static final byte[][] KNOWN_TOKEN_BYTES = new byte[KNOWN_TOKENS.length][];
+    static {
+        for (int i = 0; i < KNOWN_TOKENS.length; i++) {
+            KNOWN_TOKEN_BYTES[i] = KNOWN_TOKENS[i].getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private enum State { REQUEST_LINE, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS }
+
+    private final Limits limits;
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private ByteBuffer channelView = ByteBuffer.wrap(buffer);
+    private int start; // First unconsumed byte
+    private int end;   // End of the bytes read so far
+    private int scan;  // Where the search for the next line end resumes
+
+    private State state = State.REQUEST_LINE;
+    private int headerBytes;
+    private int bodyLength;
+    private int bodyRead;
+    private int chunkRemaining;
+    private int trailerBytes;
+    private boolean expectContinue;
+
+    public HttpRequestParser() {
+        this(DEFAULT_LIMITS);
+    }
+
+    public HttpRequestParser(Limits limits) {
+        this.limits = limits;
+    }
+
+    // Read from a blocking stream until a whole request has been parsed into request.
+    // Returns false if the stream ends cleanly before a new request starts.
+    public boolean readRequest(InputStream in, HttpRequest request) throws IOException {
+        while (!parse(request)) {
+            if (fill(in) < 0) {
+                if (isBetweenRequests()) {
+                    return false;
+                }
+                throw new HttpParseException(400, "Connection closed in the middle of a request");
+            }
+        }
+        return true;
+    }
+
+    // Read whatever the stream has into the buffer; returns the byte count or -1 at end of stream
+    public int fill(InputStream in) throws IOException {
+        makeRoom();
+        int n = in.read(buffer, end, buffer.length - end);
+        if (n > 0) {
+            end += n;
+        }
+        return n;
+    }
+
+    // Non-blocking variant for the event loop; returns the byte count (possibly 0) or -1 at end of stream
+    public int fill(ReadableByteChannel channel) throws IOException {
+        makeRoom();
+        channelView.limit(buffer.length).position(end);
+        int n = channel.read(channelView);
+        if (n > 0) {
+            end += n;
+        }
+        return n;
+    }
+
+    // True when no part of a request has been received yet
+    public boolean isBetweenRequests() {
+        return state == State.REQUEST_LINE && start == end;
+    }
+
+    // True when bytes of a following request (pipelined) are already buffered
+    public boolean hasBufferedData() {
+        return end > start;
+    }
+
+    // The bytes buffered past the last parsed request, for a connection that leaves HTTP/1.x (h2c);
+    // the parser is not used afterwards
+    public byte[] takeBufferedData() {
+        byte[] data = Arrays.copyOfRange(buffer, start, end);
+        start = end;
+        return data;
+    }
+
+    // True, once, when the request being received asked for "Expect: 100-continue" and its header
+    // section has been accepted: the client waits for "HTTP/1.1 100 Continue" before sending the body
+    public boolean takeExpectContinue() {
+        boolean expect = expectContinue;
+        expectContinue = false;
+        return expect;
+    }
+
+    // Parse from the buffered bytes. Returns true when request holds a complete request,
+    // false when more input is needed (call fill and parse again).
+    public boolean parse(HttpRequest request) throws HttpParseException {
+        while (true) {
+            switch (state) {
+                case REQUEST_LINE: {
+                    int lineEnd = findLineEnd();
+                    if (lineEnd < 0) {
+                        if (end - start > limits.maxRequestLineLength) {
+                            throw new HttpParseException(414, "Request line too long");
+                        }
+                        return false;
+                    }
+                    int lineLength = contentLength(lineEnd);
+                    if (lineLength == 0) {
+                        consumeLine(lineEnd); // Stray CRLF between requests
+                        continue;
+                    }
+                    if (lineLength > limits.maxRequestLineLength) {
+                        throw new HttpParseException(414, "Request line too long");
+                    }
+                    request.reset();
+                    parseRequestLine(start, start + lineLength, request);
+                    consumeLine(lineEnd);
+                    headerBytes = 0;
+                    state = State.HEADERS;
+                    break;
+                }
+                case HEADERS: {
+                    int lineEnd = findLineEnd();
+                    if (lineEnd < 0) {
+                        if (headerBytes + (end - start) > limits.maxHeaderSize) {
+                            throw new HttpParseException(431, "Header section too large");
+                        }
+                        return false;
+                    }
+                    int lineLength = contentLength(lineEnd);
+                    if (lineLength == 0) {
+                        consumeLine(lineEnd);
+                        if (startBody(request)) {
+                            return true;
+                        }
+                        break;
+                    }
+                    headerBytes += lineEnd + 1 - start;
+                    if (headerBytes > limits.maxHeaderSize) {
+                        throw new HttpParseException(431, "Header section too large");
+                    }
+                    if (request.getHeaderCount() >= limits.maxHeaderCount) {
+                        throw new HttpParseException(431, "Too many headers");
+                    }
+                    parseHeaderLine(start, start + lineLength, request);
+                    consumeLine(lineEnd);
+                    break;
+                }
+                case BODY: {
+                    int n = Math.min(end - start, bodyLength - bodyRead);
+                    request.appendBody(buffer, start, n);
+                    bodyRead += n;
+                    start += n;
+                    scan = start;
+                    if (bodyRead < bodyLength) {
+                        return false;
+                    }
+                    return endBody(request);
+                }
+                case CHUNK_SIZE: {
+                    int lineEnd = findLineEnd();
+                    if (lineEnd < 0) {
+                        if (end - start > MAX_CHUNK_LINE_LENGTH) {
+                            throw new HttpParseException(400, "Chunk size line too long");
+                        }
+                        return false;
+                    }
+                    int size = parseChunkSize(start, start + contentLength(lineEnd));
+                    consumeLine(lineEnd);
+                    if (size == 0) {
+                        trailerBytes = 0;
+                        state = State.TRAILERS;
+                        break;
+                    }
+                    if (size > limits.maxBodySize - bodyRead) {
+                        throw new HttpParseException(413, "Request body too large");
+                    }
+                    chunkRemaining = size;
+                    state = State.CHUNK_DATA;
+                    break;
+                }
+                case CHUNK_DATA: {
+                    int n = Math.min(end - start, chunkRemaining);
+                    request.appendBody(buffer, start, n);
+                    bodyRead += n;
+                    chunkRemaining -= n;
+                    start += n;
+                    scan = start;
+                    if (chunkRemaining > 0) {
+                        return false;
+                    }
+                    state = State.CHUNK_END;
+                    break;
+                }
+                case CHUNK_END: {
+                    // The CRLF that closes the chunk data
+                    int lineEnd = findLineEnd();
+                    if (lineEnd < 0) {
+                        if (end - start > 1) {
+                            throw new HttpParseException(400, "Missing CRLF after chunk data");
+                        }
+                        return false;
+                    }
+                    if (contentLength(lineEnd) != 0) {
+                        throw new HttpParseException(400, "Missing CRLF after chunk data");
+                    }
+                    consumeLine(lineEnd);
+                    state = State.CHUNK_SIZE;
+                    break;
+                }
+                case TRAILERS: {
+                    // Trailer fields after the last chunk are checked against the header limit and dropped
+                    int lineEnd = findLineEnd();
+                    if (lineEnd < 0) {
+                        if (trailerBytes + (end - start) > limits.maxHeaderSize) {
+                            throw new HttpParseException(431, "Trailer section too large");
+                        }
+                        return false;
+                    }
+                    int lineLength = contentLength(lineEnd);
+                    trailerBytes += lineEnd + 1 - start;
+                    if (trailerBytes > limits.maxHeaderSize) {
+                        throw new HttpParseException(431, "Trailer section too large");
+                    }
+                    consumeLine(lineEnd);
+                    if (lineLength == 0) {
+                        return endBody(request);
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    // Decide how the body is framed once the header section is complete; true if there is no body
+    private boolean startBody(HttpRequest request) throws HttpParseException {
+        // Framing headers given more than once are unrecoverable (RFC 9112 section 6.3), except a
+        // Content-Length repeated with the same value; getHeader() alone would just take the first
+        String transferEncoding = null;
+        String contentLength = null;
+        for (int i = 0; i < request.getHeaderCount(); i++) {
+            String name = request.getHeaderName(i);
+            if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                if (transferEncoding != null) {
+                    throw new HttpParseException(400, "More than one Transfer-Encoding header");
+                }
+                transferEncoding = request.getHeaderValue(i);
+            } else if (name.equalsIgnoreCase("Content-Length")) {
+                String value = request.getHeaderValue(i).trim();
+                if (contentLength != null && !contentLength.equals(value)) {
+                    throw new HttpParseException(400, "Conflicting Content-Length headers");
+                }
+                contentLength = value;
+            }
+        }
+        String expect = request.getHeader("Expect");
+        if (expect != null && !expect.trim().equalsIgnoreCase("100-continue")) {
+            throw new HttpParseException(417, "Unsupported expectation: " + expect);
+        }
+        bodyRead = 0;
+        if (transferEncoding != null) {
+            if (!transferEncoding.trim().equalsIgnoreCase("chunked")) {
+                throw new HttpParseException(501, "Transfer-Encoding " + transferEncoding + " is not supported");
+            }
+            if (contentLength != null) {
+                // Framing a body two ways is how requests are smuggled past proxies
+                throw new HttpParseException(400, "Both Transfer-Encoding and Content-Length");
+            }
+            request.startBody(0);
+            expectContinue(request, expect);
+            state = State.CHUNK_SIZE;
+            return false;
+        }
+        long length = 0;
+        if (contentLength != null) {
+            try {
+                length = Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+                throw new HttpParseException(400, "Invalid Content-Length");
+            }
+            if (length < 0) {
+                throw new HttpParseException(400, "Invalid Content-Length");
+            }
+            if (length > limits.maxBodySize) {
+                throw new HttpParseException(413, "Request body too large");
+            }
+        }
+        request.startBody((int) length);
+        if (length == 0) {
+            return endBody(request);
+        }
+        bodyLength = (int) length;
+        expectContinue(request, expect);
+        state = State.BODY;
+        return false;
+    }
+
+    // A 100 (Continue) response is only due if the client has not started sending the body anyway
+    private void expectContinue(HttpRequest request, String expect) {
+        expectContinue = expect != null && start == end && "HTTP/1.1".equals(request.getVersion());
+    }
+
+    private boolean endBody(HttpRequest request) {
+        request.finishBody();
+        expectContinue = false;
+        state = State.REQUEST_LINE;
+        return true;
+    }
+
+    // chunk-size [ ";" chunk-ext ], the size in hex
+    private int parseChunkSize(int from, int to) throws HttpParseException {
+        long size = 0;
+        int i = from;
+        for (; i < to && buffer[i] != ';' && buffer[i] != ' ' && buffer[i] != '\t'; i++) {
+            int digit = Character.digit(buffer[i], 16);
+            if (digit < 0) {
+                throw new HttpParseException(400, "Invalid chunk size");
+            }
+            size = size << 4 | digit;
+            if (size > Integer.MAX_VALUE) {
+                throw new HttpParseException(413, "Request body too large");
+            }
+        }
+        if (i == from) {
+            throw new HttpParseException(400, "Invalid chunk size");
+        }
+        return (int) size;
+    }
+
+    // METHOD SP request-target SP HTTP-version
+    private void parseRequestLine(int from, int to, HttpRequest request) throws HttpParseException {
+        int firstSpace = indexOf(' ', from, to);
+        int lastSpace = lastIndexOf(' ', from, to);
+        if (firstSpace <= from || lastSpace == firstSpace) {
+            throw new HttpParseException(400, "Malformed request line");
+        }
+        int uriStart = firstSpace + 1;
+        while (uriStart < lastSpace && buffer[uriStart] == ' ') {
+            uriStart++;
+        }
+        int uriEnd = lastSpace;
+        while (uriEnd > uriStart && buffer[uriEnd - 1] == ' ') {
+            uriEnd--;
+        }
+        if (uriStart == uriEnd || lastSpace + 1 == to) {
+            throw new HttpParseException(400, "Malformed request line");
+        }
+        String version = token(lastSpace + 1, to);
+        if (!version.startsWith("HTTP/")) {
+            throw new HttpParseException(400, "Malformed HTTP version");
+        }
+        request.setRequestLine(token(from, firstSpace),
+                new String(buffer, uriStart, uriEnd - uriStart, StandardCharsets.UTF_8), version);
+    }
+
+    // field-name ":" OWS field-value OWS
+    private void parseHeaderLine(int from, int to, HttpRequest request) throws HttpParseException {
+        if (buffer[from] == ' ' || buffer[from] == '\t') {
+            throw new HttpParseException(400, "Obsolete header line folding");
+        }
+        int colon = indexOf(':', from, to);
+        if (colon <= from || buffer[colon - 1] == ' ' || buffer[colon - 1] == '\t') {
+            throw new HttpParseException(400, "Malformed header line");
+        }
+        int valueStart = colon + 1;
+        while (valueStart < to && (buffer[valueStart] == ' ' || buffer[valueStart] == '\t')) {
+            valueStart++;
+        }
+        int valueEnd = to;
+        while (valueEnd > valueStart && (buffer[valueEnd - 1] == ' ' || buffer[valueEnd - 1] == '\t')) {
+            valueEnd--;
+        }
+        request.addHeader(new String(buffer, from, colon - from, StandardCharsets.ISO_8859_1),
+                new String(buffer, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1));
+    }
+
+    // Shared instance for well-known methods and versions, a new string otherwise
+    private String token(int from, int to) {
+        int length = to - from;
+        for (int i = 0; i < KNOWN_TOKEN_BYTES.length; i++) {
+            byte[] known = KNOWN_TOKEN_BYTES[i];
+            if (known.length == length && regionMatches(known, from)) {
+                return KNOWN_TOKENS[i];
+            }
+        }
+        return new String(buffer, from, length, StandardCharsets.ISO_8859_1);
+    }
+
+    private boolean regionMatches(byte[] known, int from) {
+        for (int i = 0; i < known.length; i++) {
+            if (buffer[from + i] != known[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Index of the next '\n', resuming where the previous search stopped; -1 if none yet
+    private int findLineEnd() {
+        for (int i = Math.max(scan, start); i < end; i++) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        scan = end;
+        return -1;
+    }
+
+    // Length of the line ending at lineEnd, without the LF and an optional preceding CR
+    private int contentLength(int lineEnd) {
+        int length = lineEnd - start;
+        if (length > 0 && buffer[lineEnd - 1] == '\r') {
+            length--;
+        }
+        return length;
+    }
+
+    private void consumeLine(int lineEnd) {
+        start = lineEnd + 1;
+        scan = start;
+    }
+
+    private int indexOf(char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int lastIndexOf(char c, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (buffer[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Ensure there is free space at the end of the buffer: reset when empty, compact, or grow
+    private void makeRoom() {
+        if (start == end) {
+            start = end = scan = 0;
+            return;
+        }
+        if (end < buffer.length) {
+            return;
+        }
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            scan = Math.max(scan - start, 0);
+            start = 0;
+            return;
+        }
+        // A single partial line fills the buffer; parse() enforces the limits before this grows far
+        byte[] grown = new byte[buffer.length * 2];
+        System.arraycopy(buffer, 0, grown, 0, end);
+        buffer = grown;
+        channelView = ByteBuffer.wrap(buffer);
+    }
+}
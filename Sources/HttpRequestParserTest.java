@@ -0,0 +1,304 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * This class tests the HttpRequestParser class: request line and headers, pipelined and byte-by-byte
+ * input, Content-Length and chunked bodies, the 400/413/414/417/431/501 limits and Expect: 100-continue.
+ */
+public class HttpRequestParserTest {
+
+    // Small limits, so that every one of them is easy to exceed
+    private static final HttpRequestParser.Limits LIMITS = new HttpRequestParser.Limits(64, 256, 5, 100);
+
+    public static void main(String[] args) {
+        TestSupport.run("parses request line and headers", HttpRequestParserTest::testRequestLineAndHeaders);
+        TestSupport.run("parses input arriving byte by byte", HttpRequestParserTest::testByteByByte);
+        TestSupport.run("parses pipelined requests", HttpRequestParserTest::testPipelined);
+        TestSupport.run("reads a Content-Length body", HttpRequestParserTest::testContentLengthBody);
+        TestSupport.run("reads a chunked body with extensions and trailers", HttpRequestParserTest::testChunkedBody);
+        TestSupport.run("decodes a form body", HttpRequestParserTest::testFormBody);
+        TestSupport.run("hands a body to a BodySink", HttpRequestParserTest::testBodySink);
+        TestSupport.run("drops an oversized body array", HttpRequestParserTest::testReleaseBody);
+        TestSupport.run("grows the body array as the body arrives", HttpRequestParserTest::testBodyGrowth);
+        TestSupport.run("414 for a long request line", HttpRequestParserTest::testRequestLineTooLong);
+        TestSupport.run("431 for a large header section", HttpRequestParserTest::testHeaderSectionTooLarge);
+        TestSupport.run("431 for too many headers", HttpRequestParserTest::testTooManyHeaders);
+        TestSupport.run("413 for a large Content-Length", HttpRequestParserTest::testContentLengthTooLarge);
+        TestSupport.run("413 for large chunks", HttpRequestParserTest::testChunkedTooLarge);
+        TestSupport.run("400 for malformed requests", HttpRequestParserTest::testMalformed);
+        TestSupport.run("400 for repeated framing headers", HttpRequestParserTest::testRepeatedFraming);
+        TestSupport.run("501 for an unknown transfer coding", HttpRequestParserTest::testUnknownTransferEncoding);
+        TestSupport.run("Expect: 100-continue", HttpRequestParserTest::testExpectContinue);
+        TestSupport.run("417 for other expectations", HttpRequestParserTest::testUnsupportedExpectation);
+        TestSupport.run("400 when the connection closes mid-request", HttpRequestParserTest::testTruncated);
+        TestSupport.finish("HttpRequestParserTest");
+    }
+
+    static void testRequestLineAndHeaders() throws IOException {
+        HttpRequest request = parse(new HttpRequestParser(LIMITS),
+                "GET /a/b.html?x=1 HTTP/1.1\r\nHost: localhost\r\nAccept:  text/html \r\n\r\n");
+        TestSupport.assertEquals("GET", request.getMethod(), "method");
+        TestSupport.assertEquals("/a/b.html?x=1", request.getUri(), "uri");
+        TestSupport.assertEquals("HTTP/1.1", request.getVersion(), "version");
+        TestSupport.assertEquals(2, request.getHeaderCount(), "header count");
+        TestSupport.assertEquals("localhost", request.getHeader("host"), "case-insensitive lookup");
+        TestSupport.assertEquals("text/html", request.getHeader("Accept"), "value without surrounding whitespace");
+        TestSupport.assertEquals(null, request.getHeader("Missing"), "absent header");
+        TestSupport.assertEquals(0, request.getBodyLength(), "body length");
+    }
+
+    static void testByteByByte() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser(LIMITS);
+        HttpRequest request = new HttpRequest();
+        InputStream in = oneByteAtATime("POST /p HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello");
+        TestSupport.assertTrue(parser.readRequest(in, request), "request read");
+        TestSupport.assertEquals("POST", request.getMethod(), "method");
+        TestSupport.assertEquals("hello", body(request), "body");
+        TestSupport.assertTrue(!parser.readRequest(in, request), "clean end of stream between requests");
+    }
+
+    static void testPipelined() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser(LIMITS);
+        HttpRequest request = new HttpRequest();
+        InputStream in = new ByteArrayInputStream(TestSupport.ascii(
+                "GET /one HTTP/1.1\r\n\r\n\r\nGET /two HTTP/1.0\r\nX: y\r\n\r\n"));
+        TestSupport.assertTrue(parser.readRequest(in, request), "first request");
+        TestSupport.assertEquals("/one", request.getUri(), "first uri");
+        TestSupport.assertTrue(parser.hasBufferedData(), "second request already buffered");
+        TestSupport.assertTrue(parser.parse(request), "second request parsed without reading");
+        TestSupport.assertEquals("/two", request.getUri(), "second uri");
+        TestSupport.assertEquals("HTTP/1.0", request.getVersion(), "second version");
+        TestSupport.assertEquals("y", request.getHeader("X"), "second request's header");
+        TestSupport.assertEquals(1, request.getHeaderCount(), "headers of the first request are cleared");
+        TestSupport.assertTrue(parser.isBetweenRequests(), "nothing left");
+    }
+
+    static void testContentLengthBody() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser(LIMITS);
+        HttpRequest request = new HttpRequest();
+        // Announced but not yet arrived: parse() waits for the rest
+        feed(parser, "PUT /p HTTP/1.1\r\nContent-Length: 10\r\n\r\n0123");
+        TestSupport.assertTrue(!parser.parse(request), "incomplete body");
+        TestSupport.assertTrue(!parser.isBetweenRequests(), "in the middle of a request");
+        feed(parser, "456789GET");
+        TestSupport.assertTrue(parser.parse(request), "complete body");
+        TestSupport.assertEquals("0123456789", body(request), "body");
+        TestSupport.assertTrue(parser.hasBufferedData(), "the next request's bytes are left for it");
+    }
+
+    static void testChunkedBody() throws IOException {
+        HttpRequest request = parse(new HttpRequestParser(LIMITS), "POST /p HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "5;name=value\r\nhello\r\n1\r\n \r\nA\r\n0123456789\r\n0\r\nTrailer: dropped\r\n\r\n");
+        TestSupport.assertEquals("hello 0123456789", body(request), "decoded body");
+        TestSupport.assertEquals(null, request.getHeader("Trailer"), "trailer fields are not headers");
+    }
+
+    static void testFormBody() throws IOException {
+        HttpRequest request = parse(new HttpRequestParser(LIMITS), "POST /f HTTP/1.1\r\n"
+                + "Content-Type: application/x-www-form-urlencoded; charset=UTF-8\r\nContent-Length: 22\r\n\r\n"
+                + "name=J%C3%BCrgen&a=b+c");
+        Map<String, String> fields = request.getFormFields();
+        TestSupport.assertTrue(fields != null, "form fields decoded");
+        TestSupport.assertEquals("J\u00fcrgen", fields.get("name"), "percent-encoded UTF-8");
+        TestSupport.assertEquals("b c", fields.get("a"), "plus as space");
+        TestSupport.assertEquals(0, request.getBodyLength(), "a form body is not stored");
+    }
+
+    static void testBodySink() throws IOException {
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        boolean[] ended = new boolean[1];
+        HttpRequestParser parser = new HttpRequestParser(LIMITS);
+        HttpRequest request = new HttpRequest();
+        request.setBodySinks(r -> r.getUri().startsWith("/sink") ? new HttpRequest.BodySink() {
+            @Override
+            public void write(byte[] data, int offset, int length) {
+                received.write(data, offset, length);
+            }
+
+            @Override
+            public void end() {
+                ended[0] = true;
+            }
+        } : null);
+        feed(parser, "POST /sink HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabc\r\n2\r\nde\r\n0\r\n\r\n"
+                + "POST /kept HTTP/1.1\r\nContent-Length: 2\r\n\r\nxy");
+        TestSupport.assertTrue(parser.parse(request), "first request");
+        TestSupport.assertEquals("abcde", received.toString(StandardCharsets.ISO_8859_1), "body given to the sink");
+        TestSupport.assertTrue(ended[0], "sink told the body ended");
+        TestSupport.assertTrue(request.getBodySink() != null, "request knows its sink");
+        TestSupport.assertEquals(0, request.getBodyLength(), "body not stored");
+        TestSupport.assertTrue(parser.parse(request), "second request");
+        TestSupport.assertEquals(null, request.getBodySink(), "no sink chosen");
+        TestSupport.assertEquals("xy", body(request), "body stored");
+    }
+
+    static void testReleaseBody() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser(new HttpRequestParser.Limits(64, 256, 5, 200 * 1024));
+        HttpRequest request = new HttpRequest();
+        int length = 100 * 1024;
+        feed(parser, "POST /big HTTP/1.1\r\nContent-Length: " + length + "\r\n\r\n");
+        feed(parser, new String(new char[length]).replace('\0', 'x'));
+        TestSupport.assertTrue(parser.parse(request), "large request");
+        TestSupport.assertEquals(length, request.getBodyLength(), "body length");
+        request.releaseBody();
+        TestSupport.assertEquals(0, request.getBody().length, "array over 64 KB dropped");
+        feed(parser, "POST /small HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc");
+        TestSupport.assertTrue(parser.parse(request), "small request");
+        request.releaseBody();
+        TestSupport.assertTrue(request.getBody().length >= 3, "small array kept for reuse");
+    }
+
+    // A declared Content-Length is not allocated up front; the array follows the bytes actually received
+    static void testBodyGrowth() throws IOException {
+        int length = 1024 * 1024;
+        HttpRequestParser parser = new HttpRequestParser(new HttpRequestParser.Limits(64, 256, 5, length));
+        HttpRequest request = new HttpRequest();
+        feed(parser, "POST /upload HTTP/1.1\r\nContent-Length: " + length + "\r\n\r\n");
+        TestSupport.assertTrue(!parser.parse(request), "waiting for the body");
+        TestSupport.assertTrue(request.getBody().length <= 8192, "initial array of " + request.getBody().length);
+        feed(parser, new String(new char[20000]).replace('\0', 'x'));
+        TestSupport.assertTrue(!parser.parse(request), "still waiting");
+        int capacity = request.getBody().length;
+        TestSupport.assertTrue(capacity >= 20000 && capacity <= 2 * 20000, "array of " + capacity + " for 20000 bytes");
+        feed(parser, new String(new char[length - 20000]).replace('\0', 'y'));
+        TestSupport.assertTrue(parser.parse(request), "complete");
+        TestSupport.assertEquals(length, request.getBodyLength(), "body length");
+        TestSupport.assertEquals(length, request.getBody().length, "growth stops at the declared length");
+    }
+
+    static void testRequestLineTooLong() {
+        String target = "/" + new String(new char[100]).replace('\0', 'a');
+        expectStatus(414, "GET " + target + " HTTP/1.1\r\n\r\n");
+        // Rejected before the line ends, once more than the limit is buffered
+        expectStatus(414, "GET " + target);
+    }
+
+    static void testHeaderSectionTooLarge() {
+        String value = new String(new char[300]).replace('\0', 'v');
+        expectStatus(431, "GET / HTTP/1.1\r\nBig: " + value + "\r\n\r\n");
+        expectStatus(431, "GET / HTTP/1.1\r\nBig: " + value);
+    }
+
+    static void testTooManyHeaders() {
+        expectStatus(431, "GET / HTTP/1.1\r\nA: 1\r\nB: 2\r\nC: 3\r\nD: 4\r\nE: 5\r\nF: 6\r\n\r\n");
+    }
+
+    static void testContentLengthTooLarge() {
+        expectStatus(413, "POST / HTTP/1.1\r\nContent-Length: 101\r\n\r\n");
+    }
+
+    static void testChunkedTooLarge() {
+        expectStatus(413, "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n65\r\n");
+        // The limit holds for the sum of the chunks, not only for each one
+        String fifty = new String(new char[50]).replace('\0', 'x');
+        expectStatus(413, "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n32\r\n" + fifty + "\r\n32\r\n"
+                + fifty + "\r\n1\r\n");
+    }
+
+    static void testMalformed() {
+        expectStatus(400, "GET\r\n\r\n");
+        expectStatus(400, "GET / FTP/1.0\r\n\r\n");
+        expectStatus(400, "GET / HTTP/1.1\r\nNo colon\r\n\r\n");
+        expectStatus(400, "GET / HTTP/1.1\r\nA: 1\r\n folded\r\n\r\n");
+        expectStatus(400, "POST / HTTP/1.1\r\nContent-Length: -1\r\n\r\n");
+        expectStatus(400, "POST / HTTP/1.1\r\nContent-Length: ten\r\n\r\n");
+        expectStatus(400, "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nContent-Length: 3\r\n\r\n");
+        expectStatus(400, "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n");
+        expectStatus(400, "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n2\r\nabX\r\n");
+    }
+
+    // Only the first of each would be seen by getHeader(); an upstream reading another one frames differently
+    static void testRepeatedFraming() throws IOException {
+        expectStatus(400, "POST / HTTP/1.1\r\nContent-Length: 3\r\nContent-Length: 30\r\n\r\nabc");
+        expectStatus(400, "POST / HTTP/1.1\r\nContent-Length: 3\r\nHost: a\r\ncontent-length: 4\r\n\r\nabcd");
+        expectStatus(400, "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nTransfer-Encoding: chunked\r\n\r\n0\r\n\r\n");
+        expectStatus(400, "POST / HTTP/1.1\r\nTransfer-Encoding: gzip\r\nTransfer-Encoding: chunked\r\n\r\n0\r\n\r\n");
+        HttpRequest request = parse(new HttpRequestParser(LIMITS),
+                "POST / HTTP/1.1\r\nContent-Length: 3\r\nContent-Length:  3 \r\n\r\nabc");
+        TestSupport.assertEquals("abc", body(request), "same Content-Length twice is accepted");
+    }
+
+    static void testUnknownTransferEncoding() {
+        expectStatus(501, "POST / HTTP/1.1\r\nTransfer-Encoding: gzip\r\n\r\n");
+    }
+
+    static void testExpectContinue() throws IOException {
+        HttpRequestParser parser = new HttpRequestParser(LIMITS);
+        HttpRequest request = new HttpRequest();
+        feed(parser, "POST / HTTP/1.1\r\nExpect: 100-continue\r\nContent-Length: 2\r\n\r\n");
+        TestSupport.assertTrue(!parser.parse(request), "waiting for the body");
+        TestSupport.assertTrue(parser.takeExpectContinue(), "100 Continue due");
+        TestSupport.assertTrue(!parser.takeExpectContinue(), "only once");
+        feed(parser, "ok");
+        TestSupport.assertTrue(parser.parse(request), "body received");
+
+        // The client did not wait: the body is already here, so no interim response
+        feed(parser, "POST / HTTP/1.1\r\nExpect: 100-continue\r\nContent-Length: 2\r\n\r\nok");
+        TestSupport.assertTrue(parser.parse(request), "complete at once");
+        TestSupport.assertTrue(!parser.takeExpectContinue(), "no 100 Continue after the body");
+
+        // HTTP/1.0 clients do not know 100 Continue
+        feed(parser, "POST / HTTP/1.0\r\nExpect: 100-continue\r\nContent-Length: 2\r\n\r\n");
+        TestSupport.assertTrue(!parser.parse(request), "waiting for the body");
+        TestSupport.assertTrue(!parser.takeExpectContinue(), "no 100 Continue for HTTP/1.0");
+
+        // Too large: refused before the client sends it
+        expectStatus(413, "POST / HTTP/1.1\r\nExpect: 100-continue\r\nContent-Length: 1000\r\n\r\n");
+    }
+
+    static void testUnsupportedExpectation() {
+        expectStatus(417, "POST / HTTP/1.1\r\nExpect: something\r\nContent-Length: 2\r\n\r\n");
+    }
+
+    static void testTruncated() {
+        HttpParseException e = TestSupport.assertThrows(HttpParseException.class, () -> new HttpRequestParser(LIMITS)
+                .readRequest(new ByteArrayInputStream(TestSupport.ascii("GET / HTTP/1.1\r\nHost")), new HttpRequest()),
+                "end of stream inside the headers");
+        TestSupport.assertEquals(400, e.getStatusCode(), "status");
+    }
+
+    private static void expectStatus(int status, String input) {
+        HttpParseException e = TestSupport.assertThrows(HttpParseException.class,
+                () -> feed(new HttpRequestParser(LIMITS), input).parse(new HttpRequest()),
+                "status " + status + " for " + abbreviate(input));
+        TestSupport.assertEquals(status, e.getStatusCode(), "status for " + abbreviate(input));
+    }
+
+    private static HttpRequest parse(HttpRequestParser parser, String input) throws IOException {
+        HttpRequest request = new HttpRequest();
+        feed(parser, input);
+        TestSupport.assertTrue(parser.parse(request), "complete request");
+        return request;
+    }
+
+    // Buffer input in the parser, as a socket read would
+    private static HttpRequestParser feed(HttpRequestParser parser, String input) throws IOException {
+        InputStream in = new ByteArrayInputStream(TestSupport.ascii(input));
+        while (in.available() > 0) {
+            parser.fill(in);
+        }
+        return parser;
+    }
+
+    private static InputStream oneByteAtATime(String input) {
+        return new ByteArrayInputStream(TestSupport.ascii(input)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+    }
+
+    private static String body(HttpRequest request) {
+        return new String(request.getBody(), 0, request.getBodyLength(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static String abbreviate(String input) {
+        String line = input.replace("\r\n", "\\r\\n");
+        return line.length() > 60 ? line.substring(0, 60) + "..." : line;
+    }
+}
@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The MappedFileCache class is the serving tier for files too large for the StaticContentCache.
+ * A file requested at least minHits times is mapped read-only into memory (a MappedByteBuffer),
+ * and later responses write slices of the mapping straight to the socket: the bytes stay in the
+ * operating system's page cache and never occupy the Java heap. The total size of the mappings is
+ * bounded, the least recently used mapping is dropped first, mappings unused for idleTimeout ms
+ * are dropped as cold, and each one is checked against the file's modification time and size at
+ * most once per revalidation interval. Java cannot unmap explicitly: a dropped mapping is released
+ * by the garbage collector once no response is still writing from it.
+ */
+public class MappedFileCache {
+
+    // Most paths whose request count is tracked while they are not mapped yet
+    private static final int MAX_CANDIDATES = 1024;
+
+    // A mapped file version
+    public static class Entry {
+        private final Path file;
+        private final MappedByteBuffer buffer;
+        private final long lastModified;
+        private final long size;
+        private final String etag;
+        private volatile long lastValidated;
+        private volatile long lastUsed;
+
+        Entry(Path file, MappedByteBuffer buffer, long lastModified, long now) {
+            this.file = file;
+            this.buffer = buffer;
+            this.lastModified = lastModified;
+            this.size = buffer.capacity();
+            this.etag = CachePolicy.etag(size, lastModified, null);
+            this.lastValidated = now;
+            this.lastUsed = now;
+        }
+
+        // A view of the whole file with its own position, so concurrent responses do not interfere
+        public ByteBuffer getContent() {
+            return buffer.duplicate();
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxFileSize;
+    private final int minHits;
+    private final long revalidateInterval;
+    private final long idleTimeout;
+
+    // Access-ordered maps: iteration starts at the least recently used path
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final LinkedHashMap<String, Integer> candidates = new LinkedHashMap<String, Integer>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_CANDIDATES;
+        }
+    };
+    private long totalBytes;
+
+    public MappedFileCache(long maxBytes, long maxFileSize, int minHits, long revalidateInterval, long idleTimeout) {
+        this.maxBytes = maxBytes;
+        this.maxFileSize = maxFileSize;
+        this.minHits = minHits;
+        this.revalidateInterval = revalidateInterval;
+        this.idleTimeout = idleTimeout;
+    }
+
+    // The mapping of the file requested as path, or null when it is not (yet) served from a mapping
+    public Entry get(String path, Path file) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(path);
+        }
+        long now = System.currentTimeMillis();
+        if (entry != null) {
+            if (now - entry.lastValidated < revalidateInterval || isCurrent(entry)) {
+                entry.lastUsed = now;
+                return entry;
+            }
+            remove(path, entry); // The file changed: map the new version on a later request
+        }
+        if (!isHot(path)) {
+            return null;
+        }
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        long size = Files.size(file);
+        // One MappedByteBuffer covers at most 2 GB
+        if (size == 0 || size > maxFileSize || size > maxBytes || size > Integer.MAX_VALUE) {
+            return null;
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        entry = new Entry(file, buffer, lastModified, now);
+        put(path, entry, now);
+        return entry;
+    }
+
+    private boolean isCurrent(Entry entry) {
+        try {
+            if (Files.getLastModifiedTime(entry.file).toMillis() == entry.lastModified
+                    && Files.size(entry.file) == entry.size) {
+                entry.lastValidated = System.currentTimeMillis();
+                return true;
+            }
+        } catch (IOException e) {
+            // File removed or unreadable
+        }
+        return false;
+    }
+
+    // Count a request for an unmapped path; true once it has been requested minHits times
+    private synchronized boolean isHot(String path) {
+        int hits = candidates.merge(path, 1, Integer::sum);
+        if (hits < minHits) {
+            return false;
+        }
+        candidates.remove(path);
+        return true;
+    }
+
+    private synchronized void put(String path, Entry entry, long now) {
+        Entry previous = entries.put(path, entry);
+        if (previous != null) {
+            totalBytes -= previous.size;
+        }
+        totalBytes += entry.size;
+
+        // Drop cold mappings, then least recently used ones until the budget is met
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            if (eldest == entry || totalBytes <= maxBytes && now - eldest.lastUsed <= idleTimeout) {
+                break;
+            }
+            totalBytes -= eldest.size;
+            it.remove();
+        }
+    }
+
+    private synchronized void remove(String path, Entry entry) {
+        if (entries.get(path) == entry) {
+            entries.remove(path);
+            totalBytes -= entry.size;
+        }
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,787 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The NioWebServer class is an alternative to ClassicWebServer built on a single java.nio Selector.
+ * One event loop thread accepts connections and does all socket reads and writes without blocking,
+ * so idle and slow clients cost a buffer instead of a thread. Request bytes are accumulated per
+ * connection by an HttpRequestParser until a complete request is available, which is then
+ * handed to the worker pool and processed by the same GET/HEAD/POST/TRACE logic as ClientHandler.
+ * File bodies are not buffered: they are queued as file regions and sent with transferTo.
+ * Overload is handled like in ClassicWebServer: AdmissionControl refuses connections over the
+ * limits, a full worker queue answers 503, and the event loop enforces requestReadTimeout and
+ * writeTimeout on each connection.
+ * shutdown() and reload() work as in ClassicWebServer; during a shutdown the event loop keeps
+ * running until the connections with a request in progress have written their last response.
+ * With a TlsContext the loop also listens on tlsPort; those connections read and write through a
+ * TlsChannel, which runs the TLS handshake and records on the event loop without blocking it.
+ */
+
+public class NioWebServer {
+
+    // Most pipelined requests a worker serves in one go before the responses are written
+    private static final int MAX_PIPELINE_BATCH = 16;
+
+    private int port;
+    private String rootDirectory;
+    private String defaultPage;
+    private volatile int maxThreads;
+    private int keepAliveTimeout;
+    private int maxKeepAliveRequests;
+    // Root directory, default page and their caches; replaced as a whole when config.ini changes
+    private volatile ContentRoot contentRoot;
+    private HttpRequestParser.Limits requestLimits = HttpRequestParser.DEFAULT_LIMITS;
+    // Response compression handed to every ClientHandler, null when disabled
+    private ContentCompression compression;
+    private CachePolicy cachePolicy = CachePolicy.DEFAULT;
+    // Connection limits and overload policy, null to admit every connection
+    private AdmissionControl admissionControl;
+    // Parsed requests waiting for a worker at most (0: none wait)
+    private int workQueueSize = Integer.MAX_VALUE;
+    // Timeouts in ms for receiving a whole request and for a stalled response write (0: none)
+    private int requestReadTimeout;
+    private int writeTimeout;
+    // HTTP/2 (h2c) settings, null to serve HTTP/1.x only
+    private Http2Connection.Settings http2;
+    // HTTP/2 connections served at once; each has a thread of its own, see startHttp2
+    private int http2MaxConnections = 100;
+    // HTTPS on tlsPort, null for plaintext only
+    private TlsContext tls;
+    private int tlsPort;
+    // Forwards requests under its path prefixes to upstream servers, null when nothing is proxied
+    private ReverseProxy proxy;
+
+    private Selector selector;
+    // Work handed back to the event loop by worker threads (responses ready to be written)
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private final Set<Connection> connections = new HashSet<>();
+
+    // Set while start() runs, for shutdown() and reload()
+    private volatile boolean running;
+    private volatile ThreadPoolExecutor workers;
+    // Threads of the HTTP/2 connections (virtual when available), and the permits that bound them
+    private ExecutorService http2Connections;
+    private Semaphore http2Slots;
+    private ServerSocketChannel serverChannel;
+    private ServerSocketChannel tlsServerChannel;
+    // When a shutdown gives up on the remaining connections, 0 while the server is not shutting down
+    private long shutdownDeadline;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    public NioWebServer(String defaultPage, int maxThreads, int port, String rootDirectory,
+            int keepAliveTimeout, int maxKeepAliveRequests) {
+        this.port = port;
+        this.rootDirectory = rootDirectory;
+        this.defaultPage = defaultPage;
+        this.maxThreads = maxThreads;
+        this.keepAliveTimeout = keepAliveTimeout;
+        this.maxKeepAliveRequests = maxKeepAliveRequests;
+    }
+
+    public void setContentRoot(ContentRoot contentRoot) {
+        this.contentRoot = contentRoot;
+    }
+
+    public ContentRoot getContentRoot() {
+        return contentRoot;
+    }
+
+    public void setRequestLimits(HttpRequestParser.Limits requestLimits) {
+        this.requestLimits = requestLimits;
+    }
+
+    public void setCompression(ContentCompression compression) {
+        this.compression = compression;
+    }
+
+    public void setCachePolicy(CachePolicy cachePolicy) {
+        this.cachePolicy = cachePolicy;
+    }
+
+    public void setAdmissionControl(AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    public void setWorkQueueSize(int workQueueSize) {
+        this.workQueueSize = workQueueSize;
+    }
+
+    public void setTimeouts(int requestReadTimeout, int writeTimeout) {
+        this.requestReadTimeout = requestReadTimeout;
+        this.writeTimeout = writeTimeout;
+    }
+
+    public void setHttp2(Http2Connection.Settings http2) {
+        this.http2 = http2;
+    }
+
+    public void setHttp2(Http2Connection.Settings http2, int maxConnections) {
+        this.http2 = http2;
+        this.http2MaxConnections = maxConnections;
+    }
+
+    public void setTls(TlsContext tls, int tlsPort) {
+        this.tls = tls;
+        this.tlsPort = tlsPort;
+    }
+
+    public void setProxy(ReverseProxy proxy) {
+        this.proxy = proxy;
+    }
+
+    // Start the event loop and handle every connection coming in, until shutdown() is called
+    public void start() {
+
+        // The pool only runs request processing (file reads, form parsing); no thread ever waits on a client
+        BlockingQueue<Runnable> queue = workQueueSize > 0 ? new LinkedBlockingQueue<>(workQueueSize)
+                : new SynchronousQueue<>();
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(maxThreads, maxThreads, 0L, TimeUnit.MILLISECONDS, queue);
+        this.workers = workers;
+        ServerMetrics.setQueueDepthGauge(() -> workers.getQueue().size());
+        if (http2 != null) {
+            http2Connections = ClassicWebServer.newVirtualThreadExecutor();
+            http2Slots = new Semaphore(http2MaxConnections);
+        }
+
+        try (Selector selector = Selector.open();
+                ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            if (contentRoot == null) {
+                contentRoot = new ContentRoot(rootDirectory, defaultPage, new PathResolver(rootDirectory, 0), null, null);
+            }
+            this.selector = selector;
+            this.serverChannel = serverChannel;
+            serverChannel.bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            // The TLS listener's key carries the context its connections are set up with
+            if (tls != null) {
+                tlsServerChannel = ServerSocketChannel.open();
+                tlsServerChannel.bind(new InetSocketAddress(tlsPort));
+                tlsServerChannel.configureBlocking(false);
+                tlsServerChannel.register(selector, SelectionKey.OP_ACCEPT, tls);
+            }
+            running = true;
+            System.out.println("Web server (nio) is listening on port " + port
+                    + (tls != null ? " and on port " + tlsPort + " (TLS)" : "") + "...\n");
+
+            // Once shutting down, run until the last connection is closed or the deadline passes
+            while (shutdownDeadline == 0 || !connections.isEmpty() && System.currentTimeMillis() < shutdownDeadline) {
+                selector.select(1000);
+
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept((ServerSocketChannel) key.channel(), (TlsContext) key.attachment());
+                        } else {
+                            Connection connection = (Connection) key.attachment();
+                            if (key.isReadable()) {
+                                connection.read(workers);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write(workers);
+                            }
+                        }
+                    } catch (IOException e) {
+                        ServerLog.info("Server exception: " + e.getMessage());
+                        if (key.attachment() instanceof Connection) {
+                            ((Connection) key.attachment()).close();
+                        }
+                    }
+                }
+
+                closeIdleConnections();
+            }
+            if (!connections.isEmpty()) {
+                ServerLog.info("Shutdown deadline reached, closing " + connections.size() + " connections");
+                for (Connection connection : new ArrayList<>(connections)) {
+                    connection.close();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Could not start server on port " + port + ": " + e.getMessage());
+            System.exit(1);
+        } finally {
+            if (tlsServerChannel != null) {
+                try {
+                    tlsServerChannel.close();
+                } catch (IOException e) {
+                    ServerLog.error("Could not close TLS server socket", e);
+                }
+            }
+            workers.shutdown();
+            if (http2Connections != null) {
+                http2Connections.shutdown();
+            }
+            stopped.countDown();
+        }
+    }
+
+    // Graceful shutdown, for the JVM shutdown hook: stop accepting connections, let every connection
+    // finish the request it is handling (closing the idle ones), and wait up to timeoutMillis for that.
+    // Connections still busy at the deadline are closed.
+    public void shutdown(long timeoutMillis) {
+        if (!running) {
+            return;
+        }
+        running = false;
+        System.out.println("Shutting down, waiting up to " + timeoutMillis + " ms for requests in progress...");
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        pendingTasks.add(() -> beginShutdown(deadline));
+        selector.wakeup();
+        try {
+            stopped.await(timeoutMillis + 1000, TimeUnit.MILLISECONDS); // The event loop checks the deadline each second
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        contentRoot.close();
+        if (proxy != null) {
+            proxy.close();
+        }
+        System.out.println("Server stopped");
+    }
+
+    // Runs on the event loop: close the listening socket and the connections waiting for a request,
+    // and have the others close after their current response
+    private void beginShutdown(long deadline) {
+        shutdownDeadline = deadline;
+        try {
+            serverChannel.close(); // Also cancels its key
+            if (tlsServerChannel != null) {
+                tlsServerChannel.close();
+            }
+        } catch (IOException e) {
+            ServerLog.error("Could not close server socket", e);
+        }
+        for (Connection connection : new ArrayList<>(connections)) {
+            connection.handler.drain();
+            if (!connection.busy && connection.output.isEmpty() && connection.requestStarted == 0
+                    && !connection.parser.hasBufferedData()) {
+                connection.close();
+            }
+        }
+    }
+
+    // Apply a changed configuration without a restart, like ClassicWebServer.reload: the worker pool
+    // is resized, and a new root directory or default page is used from the next request on
+    public void reload(ConfigLoader config) throws IOException {
+        if (!running) {
+            return;
+        }
+        if (config.getMaxThreads() != maxThreads) {
+            ClassicWebServer.resizePool(workers, config.getMaxThreads());
+            ServerLog.info("Worker threads: " + maxThreads + " -> " + config.getMaxThreads());
+            maxThreads = config.getMaxThreads();
+        }
+        ContentRoot current = contentRoot;
+        ContentRoot reloaded = current.reload(config);
+        if (reloaded != current) {
+            contentRoot = reloaded;
+            ServerLog.info("Serving " + reloaded.getRootDirectory() + " with default page " + reloaded.getDefaultPage());
+        }
+        if (config.getPort() != port) {
+            ServerLog.info("Port change to " + config.getPort() + " takes effect after a restart");
+        }
+    }
+
+    // tls is null on the plaintext port
+    private void accept(ServerSocketChannel serverChannel, TlsContext tls) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            InetAddress address = channel.socket().getInetAddress();
+            if (admissionControl != null && !admissionControl.tryAdmit(address)) {
+                admissionControl.refuse(channel, tls != null); // Still in blocking mode, for the one small write
+                continue;
+            }
+            channel.configureBlocking(false);
+            Connection connection = new Connection(channel, address, tls != null ? new TlsChannel(channel, tls.newEngine()) : null);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+            ServerMetrics.connectionOpened();
+        }
+    }
+
+    // Drop keep-alive connections that have been waiting for a request longer than keepAliveTimeout,
+    // answer 408 to requests not received within requestReadTimeout, and drop connections whose
+    // client has not accepted any response bytes for writeTimeout
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        Iterator<Connection> it = connections.iterator();
+        while (it.hasNext()) {
+            Connection connection = it.next();
+            if (connection.busy) {
+                continue;
+            }
+            if (connection.output.isEmpty()) {
+                if (now - connection.lastActivity > keepAliveTimeout) {
+                    it.remove();
+                    connection.close();
+                } else if (requestReadTimeout > 0 && connection.requestStarted != 0
+                        && now - connection.requestStarted > requestReadTimeout && !connection.closeAfterWrite) {
+                    try {
+                        connection.rejectRequest(408); // Request Timeout, sent before the connection closes
+                    } catch (IOException e) {
+                        it.remove();
+                        connection.close();
+                    }
+                }
+            } else if (writeTimeout > 0 && now - connection.lastWrite > writeTimeout) {
+                ServerLog.info("Write timed out, closing connection from " + connection.address);
+                it.remove();
+                connection.close();
+            }
+        }
+    }
+
+    // State of one client connection, only touched by the event loop thread
+    // except for the request handed to a worker.
+    private class Connection {
+        private final SocketChannel channel;
+        // What requests are read from and responses written to: the channel itself, or its TlsChannel
+        private final ByteChannel io;
+        private final TlsChannel tls;
+        private final ClientHandler handler;
+        private SelectionKey key;
+        private final HttpRequestParser parser = new HttpRequestParser(requestLimits);
+        private final HttpRequest request = new HttpRequest();
+        private final Queue<OutputPart> output = new ArrayDeque<>();
+        private final ResponseOutput responseOutput;
+        private boolean busy;
+        private boolean closeAfterWrite;
+        private boolean inputClosed;
+        private boolean closed;
+        private long lastActivity = System.currentTimeMillis();
+        // When the request being received started (0 between requests) and when the socket last took output
+        private long requestStarted;
+        private long lastWrite;
+        private final InetAddress address;
+
+        Connection(SocketChannel channel, InetAddress address, TlsChannel tls) {
+            this.channel = channel;
+            this.io = tls != null ? tls : channel;
+            this.tls = tls;
+            this.address = address;
+            ContentRoot content = contentRoot;
+            this.handler = new ClientHandler(channel.socket(), content.getRootDirectory(), content.getDefaultPage(),
+                    keepAliveTimeout, maxKeepAliveRequests, content.getContentCache());
+            this.handler.setRequestLimits(requestLimits);
+            this.handler.setCompression(compression);
+            this.handler.setCachePolicy(cachePolicy);
+            this.handler.setContentRoot(NioWebServer.this::getContentRoot);
+            // HTTP/2 takes the connection off the event loop onto a blocking thread, which a TLS session
+            // driven by the loop cannot follow, so TLS connections stay on HTTP/1.1 (as offered by ALPN)
+            this.handler.setHttp2(tls == null ? http2 : null, workers);
+            this.handler.setTls(tls != null ? NioWebServer.this.tls : null);
+            this.handler.setProxy(proxy);
+            this.handler.setBufferedOutput(true); // A worker's response only leaves through responseOutput
+            // A proxied body is kept until a worker forwards the request: the loop must not wait for an upstream
+            this.request.setBodySinks(handler.proxyBodySinks(false));
+            this.responseOutput = new ResponseOutput(io);
+        }
+
+        void read(ExecutorService workers) throws IOException {
+            int n;
+            do {
+                n = parser.fill(io);
+                if (n < 0) {
+                    inputClosed = true;
+                    if (!busy && output.isEmpty()) {
+                        close();
+                    }
+                    return;
+                }
+                lastActivity = System.currentTimeMillis();
+                if (requestStarted == 0 && !parser.isBetweenRequests()) {
+                    requestStarted = lastActivity;
+                }
+                dispatchNextRequest(workers);
+                // Whole TLS records already received do not make the socket readable again
+            } while (n > 0 && !busy && !closed && tls != null && tls.hasBufferedInput());
+            if (tls != null && tls.hasPendingOutput() && !busy && output.isEmpty() && key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE); // Handshake messages to send
+            }
+        }
+
+        // Hand the next complete buffered request to a worker, one request per connection at a time
+        private void dispatchNextRequest(ExecutorService workers) throws IOException {
+            if (busy || closeAfterWrite) {
+                return;
+            }
+            try {
+                if (!parser.parse(request)) {
+                    if (parser.takeExpectContinue()) {
+                        // The client waits for this before it sends the body
+                        output.add(new OutputPart(ByteBuffer.wrap(ResponseWriter.CONTINUE)));
+                        lastWrite = System.currentTimeMillis();
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                    return; // Request not fully received yet
+                }
+            } catch (HttpParseException e) {
+                ServerLog.debug("Rejected request: " + e.getMessage());
+                ServerMetrics.connectionRejected();
+                rejectRequest(e.getStatusCode());
+                return;
+            }
+
+            requestStarted = 0;
+            busy = true;
+            if (handler.isHttp2Request(request)) {
+                startHttp2();
+                return;
+            }
+            key.interestOps(0); // Stop reading until this response has been queued
+            try {
+                workers.execute(this::process);
+            } catch (RejectedExecutionException e) {
+                // Every worker is busy and the queue is full: answer now instead of waiting
+                busy = false;
+                ServerMetrics.connectionRejected();
+                if (admissionControl != null && !admissionControl.isSendResponse()) {
+                    close();
+                    return;
+                }
+                ResponseOutput out = responseOutput;
+                Errors.sendServiceUnavailable(out, admissionControl != null ? admissionControl.getRetryAfter() : 1);
+                responseReady(out.finish(), false);
+            }
+        }
+
+        // HTTP/2 multiplexes requests over the connection, which the event loop's one-request-at-a-time
+        // model cannot express, so the connection leaves the selector and is served by a thread of its
+        // own in blocking mode (its streams still run on the worker pool). It stays busy, and so is
+        // neither timed out nor closed by the event loop, until that thread hands it back to be closed.
+        // At most http2MaxConnections are served at once; the next ones are refused with GOAWAY or 503.
+        private void startHttp2() throws IOException {
+            if (!http2Slots.tryAcquire()) {
+                busy = false;
+                ServerMetrics.connectionRejected();
+                ResponseOutput out = responseOutput;
+                Http2Connection.refuse(request, out, admissionControl != null ? admissionControl.getRetryAfter() : 1);
+                responseReady(out.finish(), false);
+                return;
+            }
+            key.cancel();
+            // The channel can be made blocking once the cancelled key is deregistered, by the next select
+            pendingTasks.add(() -> {
+                try {
+                    http2Connections.execute(this::serveHttp2);
+                } catch (RejectedExecutionException e) {
+                    // Shutting down
+                    http2Slots.release();
+                    close();
+                }
+            });
+            selector.wakeup();
+        }
+
+        // Runs on the connection's own thread
+        private void serveHttp2() {
+            try {
+                channel.configureBlocking(true);
+                handler.serveHttp2(request, parser);
+            } catch (IOException e) {
+                ServerLog.debug("HTTP/2 connection ended: " + e.getMessage());
+            } finally {
+                http2Slots.release();
+                pendingTasks.add(this::close);
+                selector.wakeup();
+            }
+        }
+
+        // Runs on a worker thread; the event loop does not touch the parser or the request until the
+        // responses are queued. Pipelined requests already buffered behind this one are served here
+        // too, so their responses are handed back, in request order, as one batch of writes.
+        private void process() {
+            ResponseOutput out = responseOutput;
+            boolean keepAlive = serve(out);
+            int batched = 1;
+            while (keepAlive && batched < MAX_PIPELINE_BATCH && parser.hasBufferedData()) {
+                try {
+                    if (!parser.parse(request)) {
+                        break; // The next request is incomplete; the event loop reads the rest
+                    }
+                } catch (HttpParseException e) {
+                    ServerLog.debug("Rejected request: " + e.getMessage());
+                    ServerMetrics.connectionRejected();
+                    try {
+                        Errors.sendErrorResponse(out, e.getStatusCode());
+                    } catch (IOException ex) {
+                        ServerLog.error("Could not send error response", ex);
+                    }
+                    keepAlive = false;
+                    break;
+                }
+                keepAlive = serve(out);
+                batched++;
+            }
+            boolean persistent = keepAlive;
+            Queue<OutputPart> parts = out.finish();
+            pendingTasks.add(() -> responseReady(parts, persistent));
+            selector.wakeup();
+        }
+
+        // Handle the parsed request into out; returns whether the connection stays open
+        private boolean serve(ResponseOutput out) {
+            out.mark();
+            try {
+                return handler.handleParsedRequest(request, out);
+            } catch (IOException e) {
+                ServerLog.error("Request processing failed: " + e.getMessage(), e);
+                out.discardToMark();
+                try {
+                    Errors.sendErrorResponse(out, 500); // Internal Server Error
+                } catch (IOException ex) {
+                    ServerLog.error("Could not send 500 response", ex);
+                }
+                return false;
+            }
+        }
+
+        // Runs on the event loop once a worker has produced the response
+        private void responseReady(Queue<OutputPart> parts, boolean keepAlive) {
+            busy = false;
+            closeAfterWrite = !keepAlive;
+            output.addAll(parts);
+            lastWrite = System.currentTimeMillis();
+            if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void rejectRequest(int statusCode) throws IOException {
+            ResponseOutput out = responseOutput;
+            Errors.sendErrorResponse(out, statusCode);
+            responseReady(out.finish(), false);
+        }
+
+        void write(ExecutorService workers) throws IOException {
+            lastWrite = System.currentTimeMillis(); // Write readiness: the client took some of the output
+            while (!output.isEmpty()) {
+                OutputPart part = output.peek();
+                if (!part.writeTo(io)) {
+                    return; // Socket send buffer is full, wait for the next OP_WRITE
+                }
+                output.poll();
+            }
+            if (tls != null && !tls.flush()) {
+                return; // The last record is still being sent
+            }
+            lastActivity = System.currentTimeMillis();
+            if (closeAfterWrite || inputClosed) {
+                close();
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            dispatchNextRequest(workers); // A pipelined request may already be buffered
+            if (!busy && tls != null && tls.hasBufferedInput()) {
+                read(workers);
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            ServerMetrics.connectionClosed();
+            if (admissionControl != null) {
+                admissionControl.release(address);
+            }
+            connections.remove(this);
+            key.cancel();
+            try {
+                for (OutputPart part : output) {
+                    part.close();
+                }
+                output.clear();
+                io.close();
+            } catch (IOException e) {
+                ServerLog.error("Could not close connection", e);
+            }
+        }
+    }
+
+    // One piece of a queued response: either bytes already produced, or a file region that is
+    // sent with FileChannel.transferTo on write readiness instead of being read into memory
+    private static class OutputPart {
+        private final ByteBuffer bytes;
+        private final Path file;
+        private long position;
+        private long remaining;
+        private FileChannel fileChannel;
+
+        OutputPart(ByteBuffer bytes) {
+            this.bytes = bytes;
+            this.file = null;
+        }
+
+        OutputPart(Path file, long position, long count) {
+            this.bytes = null;
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        // Write as much as the socket accepts; returns true once the part has been fully sent
+        boolean writeTo(WritableByteChannel channel) throws IOException {
+            if (bytes != null) {
+                channel.write(bytes);
+                return !bytes.hasRemaining();
+            }
+            if (fileChannel == null) {
+                fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+            }
+            while (remaining > 0) {
+                long sent = fileChannel.transferTo(position, remaining, channel);
+                if (sent == 0) {
+                    if (position >= fileChannel.size()) {
+                        throw new IOException("File truncated while sending: " + file);
+                    }
+                    return false;
+                }
+                position += sent;
+                remaining -= sent;
+            }
+            close();
+            return true;
+        }
+
+        void close() throws IOException {
+            if (fileChannel != null) {
+                fileChannel.close();
+                fileChannel = null;
+            }
+        }
+    }
+
+    // Collects a response produced by a worker thread: written bytes are buffered and
+    // file bodies are recorded as regions for the event loop to transfer later.
+    // One instance is reused for all responses of a connection.
+    private static class ResponseOutput extends ChannelOutputStream {
+        private Queue<OutputPart> parts = new ArrayDeque<>();
+        private final ByteArrayOutputStream current = new ByteArrayOutputStream();
+        private int markedParts;
+        private int markedBytes;
+
+        ResponseOutput(WritableByteChannel channel) {
+            super(channel);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            current.write(b, off, len);
+            bytesWritten += len;
+        }
+
+        @Override
+        public void write(ByteBuffer[] buffers) {
+            for (ByteBuffer buffer : buffers) {
+                bytesWritten += buffer.remaining();
+                if (buffer.hasArray()) {
+                    current.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                } else {
+                    // Off-heap content (a memory-mapped file) is queued as it is instead of being copied
+                    flushCurrent();
+                    parts.add(new OutputPart(buffer.duplicate()));
+                }
+                buffer.position(buffer.limit());
+            }
+        }
+
+        @Override
+        public void transferFrom(Path file, long position, long count) {
+            flushCurrent();
+            parts.add(new OutputPart(file, position, count));
+            bytesWritten += count;
+        }
+
+        @Override
+        public void close() {
+            // The event loop owns the channel
+        }
+
+        private void flushCurrent() {
+            if (current.size() > 0) {
+                parts.add(new OutputPart(ByteBuffer.wrap(current.toByteArray())));
+                current.reset();
+            }
+        }
+
+        // Hand over the collected parts and start collecting the next response
+        Queue<OutputPart> finish() {
+            flushCurrent();
+            Queue<OutputPart> finished = parts;
+            parts = new ArrayDeque<>();
+            return finished;
+        }
+
+        // Remember where the next response starts, so a failed one can be dropped alone
+        void mark() {
+            markedParts = parts.size();
+            markedBytes = current.size();
+        }
+
+        // Drop what was written since mark(), keeping earlier responses of the batch
+        void discardToMark() {
+            if (parts.size() == markedParts) {
+                byte[] kept = current.toByteArray();
+                current.reset();
+                current.write(kept, 0, markedBytes);
+                return;
+            }
+            // The response already reached a file region; the bytes collected before the mark were
+            // moved into the part that follows the earlier ones. Parts not yet sent hold no open file.
+            Queue<OutputPart> kept = new ArrayDeque<>();
+            for (int i = 0; i < markedParts; i++) {
+                kept.add(parts.poll());
+            }
+            if (markedBytes > 0) {
+                OutputPart earlier = parts.poll();
+                earlier.bytes.limit(markedBytes);
+                kept.add(earlier);
+            }
+            parts = kept;
+            current.reset();
+        }
+    }
+}
@@ -0,0 +1,283 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The PathResolver class maps a request path to the file it names under the root directory and
+ * checks it: a path that escapes the root (after canonicalization, so through ".." or symbolic
+ * links) is refused with 403, a missing file gives 404. Each found file is kept together with its
+ * content type, size and modification time, so repeated requests skip canonicalization, the
+ * existence check and content type probing. At most maxEntries results are kept, the least recently
+ * used dropped first; 403 and 404 results are not kept, so a stream of made-up paths cannot push the
+ * files actually served out of the cache. A WatchService on the root directory and its subdirectories drops the results of a directory whenever anything in it
+ * is created, changed or deleted; if the root cannot be watched nothing is cached. A resolver
+ * that is closed (its root was replaced by a configuration reload) stops watching and caching
+ * but still resolves paths for connections that are finishing with it.
+ */
+public class PathResolver {
+
+    // The outcome of resolving one request path
+    public static class Resolution {
+        private final Path path;
+        private final int status; // 200, 403 or 404
+        private final String contentType;
+        private final boolean isFile;
+        private final long size;
+        private final long lastModified;
+
+        Resolution(Path path, int status, String contentType, boolean isFile, long size, long lastModified) {
+            this.path = path;
+            this.status = status;
+            this.contentType = contentType;
+            this.isFile = isFile;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public boolean isFile() {
+            return isFile;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    private final String rootDirectory;
+    private final Path root;
+    private final Path canonicalRoot;
+    private final int maxEntries;
+    // In access order, least recently used first; guarded by its own lock
+    private final LinkedHashMap<String, Resolution> resolved = new LinkedHashMap<>(64, 0.75f, true);
+    // Incremented by every invalidation, so a result computed before a change is not stored after it
+    private final AtomicLong generation = new AtomicLong();
+    // Caching needs the watcher; false when maxEntries is 0 or the root could not be watched
+    private final boolean caching;
+    private WatchService watcher;
+    private volatile boolean closed;
+
+    // maxEntries of 0 resolves every request afresh, without a watcher thread
+    public PathResolver(String rootDirectory, int maxEntries) throws IOException {
+        this.rootDirectory = rootDirectory;
+        this.root = Paths.get(rootDirectory);
+        this.canonicalRoot = new File(rootDirectory).getCanonicalFile().toPath(); // Once, not per request
+        this.maxEntries = maxEntries;
+        this.caching = maxEntries > 0 && startWatcher();
+    }
+
+    public String getRootDirectory() {
+        return rootDirectory;
+    }
+
+    // The checked file for a request path (without the leading "/" and query string)
+    public Resolution resolve(String uri) throws IOException {
+        boolean useCache = caching && !closed;
+        Resolution resolution = null;
+        if (useCache) {
+            synchronized (resolved) {
+                resolution = resolved.get(uri);
+            }
+        }
+        if (resolution != null) {
+            return resolution;
+        }
+        long before = generation.get();
+        resolution = resolveUncached(uri);
+        if (useCache && resolution.status == 200) {
+            synchronized (resolved) {
+                if (generation.get() == before) {
+                    resolved.put(uri, resolution);
+                    if (resolved.size() > maxEntries) {
+                        Iterator<String> eldest = resolved.keySet().iterator();
+                        eldest.next();
+                        eldest.remove();
+                    }
+                }
+            }
+        }
+        return resolution;
+    }
+
+    // Whether a result for the request path is kept, for tests
+    boolean isCached(String uri) {
+        synchronized (resolved) {
+            return resolved.containsKey(uri);
+        }
+    }
+
+    private Resolution resolveUncached(String uri) throws IOException {
+        Path filePath = root.resolve(uri);
+        File file = filePath.toFile();
+        // Prevent directory traversal: the canonical path must stay inside the root. Path.startsWith compares
+        // whole names, so a sibling such as /srv/www-private does not pass for the root /srv/www
+        if (!file.getCanonicalFile().toPath().startsWith(canonicalRoot)) {
+            return new Resolution(filePath, 403, null, false, 0, 0);
+        }
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return new Resolution(filePath, 404, null, false, 0, 0);
+        }
+        String contentType = attributes.isRegularFile() ? contentType(filePath) : null;
+        return new Resolution(filePath, 200, contentType, attributes.isRegularFile(), attributes.size(),
+                attributes.lastModifiedTime().toMillis());
+    }
+
+    // Content types of the usual web files by extension, so they do not depend on the platform's type
+    // database; other files get what Files.probeContentType finds, or application/octet-stream
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+
+    static {
+        CONTENT_TYPES.put("html", "text/html");
+        CONTENT_TYPES.put("htm", "text/html");
+        CONTENT_TYPES.put("txt", "text/plain");
+        CONTENT_TYPES.put("css", "text/css");
+        CONTENT_TYPES.put("csv", "text/csv");
+        CONTENT_TYPES.put("js", "application/javascript");
+        CONTENT_TYPES.put("mjs", "application/javascript");
+        CONTENT_TYPES.put("json", "application/json");
+        CONTENT_TYPES.put("xml", "application/xml");
+        CONTENT_TYPES.put("pdf", "application/pdf");
+        CONTENT_TYPES.put("wasm", "application/wasm");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("bmp", "image/bmp");
+        CONTENT_TYPES.put("webp", "image/webp");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+        CONTENT_TYPES.put("woff", "font/woff");
+        CONTENT_TYPES.put("woff2", "font/woff2");
+    }
+
+    // The MIME type sent as Content-Type; CachePolicy and ContentCompression look it up in their lists
+    static String contentType(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String type = dot >= 0 ? CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase()) : null;
+        if (type == null) {
+            type = Files.probeContentType(file);
+        }
+        return type != null ? type : "application/octet-stream";
+    }
+
+    // Stop the watcher thread and drop the cached results
+    public void close() {
+        closed = true;
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                ServerLog.error("Could not close path watcher", e);
+            }
+        }
+        clearResolved();
+    }
+
+    private void clearResolved() {
+        synchronized (resolved) {
+            resolved.clear();
+        }
+    }
+
+    // Watch the root and every directory below it; returns false when that is not possible
+    private boolean startWatcher() {
+        WatchService watcher;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            registerTree(watcher, root);
+        } catch (IOException | UnsupportedOperationException e) {
+            ServerLog.info("Path cache disabled, cannot watch " + rootDirectory + ": " + e.getMessage());
+            return false;
+        }
+        this.watcher = watcher;
+        Thread thread = new Thread(() -> watch(watcher), "path-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    private static void registerTree(WatchService watcher, Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void watch(WatchService watcher) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    generation.incrementAndGet();
+                    clearResolved(); // Events were lost: nothing cached can be trusted
+                    continue;
+                }
+                Path changed = dir.resolve((Path) event.context());
+                invalidate(changed);
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                    try {
+                        registerTree(watcher, changed);
+                    } catch (IOException e) {
+                        ServerLog.error("Could not watch new directory " + changed, e);
+                        generation.incrementAndGet();
+                        clearResolved();
+                    }
+                }
+            }
+            key.reset();
+        }
+    }
+
+    // Drop the results for a changed path and everything below it (a renamed or deleted directory)
+    private void invalidate(Path changed) {
+        generation.incrementAndGet();
+        synchronized (resolved) {
+            resolved.values().removeIf(resolution -> resolution.path.normalize().startsWith(changed.normalize()));
+        }
+    }
+}
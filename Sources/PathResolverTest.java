@@ -0,0 +1,114 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * This class tests the PathResolver class: files found under the root, 404 for missing ones, 403 for
+ * paths that leave the root (through "..", a symbolic link, or into a sibling directory whose name
+ * starts with the root's), and the bounded cache that keeps found files least recently used first
+ * and never keeps 403 or 404 results.
+ */
+public class PathResolverTest {
+
+    public static void main(String[] args) {
+        TestSupport.run("files and missing files", PathResolverTest::testResolve);
+        TestSupport.run("403 outside the root", PathResolverTest::testOutsideRoot);
+        TestSupport.run("least recently used results are dropped", PathResolverTest::testLeastRecentlyUsed);
+        TestSupport.run("403 and 404 are not cached", PathResolverTest::testMissesNotCached);
+        TestSupport.finish("PathResolverTest");
+    }
+
+    static void testResolve() throws Exception {
+        Path base = Files.createTempDirectory("resolver");
+        try {
+            Path root = Files.createDirectory(base.resolve("www"));
+            Files.write(root.resolve("index.html"), TestSupport.ascii("<html></html>"));
+            Files.createDirectory(root.resolve("docs"));
+            PathResolver resolver = new PathResolver(root.toString(), 0);
+            PathResolver.Resolution page = resolver.resolve("index.html");
+            TestSupport.assertEquals(200, page.getStatus(), "file");
+            TestSupport.assertTrue(page.isFile(), "regular file");
+            TestSupport.assertEquals("text/html", page.getContentType(), "content type");
+            TestSupport.assertEquals(13L, page.getSize(), "size");
+            PathResolver.Resolution dir = resolver.resolve("docs");
+            TestSupport.assertEquals(200, dir.getStatus(), "directory");
+            TestSupport.assertTrue(!dir.isFile(), "not a file");
+            TestSupport.assertEquals(404, resolver.resolve("missing.html").getStatus(), "missing file");
+            resolver.close();
+        } finally {
+            delete(base);
+        }
+    }
+
+    static void testOutsideRoot() throws Exception {
+        Path base = Files.createTempDirectory("resolver");
+        try {
+            Path root = Files.createDirectory(base.resolve("www"));
+            Path sibling = Files.createDirectory(base.resolve("www-private"));
+            Files.write(sibling.resolve("secret.txt"), TestSupport.ascii("secret"));
+            Files.write(base.resolve("outside.txt"), TestSupport.ascii("outside"));
+            PathResolver resolver = new PathResolver(root.toString(), 0);
+            TestSupport.assertEquals(403, resolver.resolve("../outside.txt").getStatus(), "parent directory");
+            TestSupport.assertEquals(403, resolver.resolve("../www-private/secret.txt").getStatus(),
+                    "sibling directory sharing the root's name as a prefix");
+            TestSupport.assertEquals(403, resolver.resolve("../www-private").getStatus(), "the sibling itself");
+            try {
+                Files.createSymbolicLink(root.resolve("link"), sibling);
+                TestSupport.assertEquals(403, resolver.resolve("link/secret.txt").getStatus(), "symbolic link out");
+            } catch (UnsupportedOperationException e) {
+                // No symbolic links on this file system
+            }
+            resolver.close();
+        } finally {
+            delete(base);
+        }
+    }
+
+    static void testLeastRecentlyUsed() throws Exception {
+        Path root = Files.createTempDirectory("resolver");
+        try {
+            for (String name : new String[] { "a.txt", "b.txt", "c.txt" }) {
+                Files.write(root.resolve(name), TestSupport.ascii(name));
+            }
+            PathResolver resolver = new PathResolver(root.toString(), 2);
+            resolver.resolve("a.txt");
+            resolver.resolve("b.txt");
+            resolver.resolve("a.txt"); // a is now more recently used than b
+            resolver.resolve("c.txt");
+            TestSupport.assertTrue(resolver.isCached("a.txt"), "recently used kept");
+            TestSupport.assertTrue(!resolver.isCached("b.txt"), "least recently used dropped");
+            TestSupport.assertTrue(resolver.isCached("c.txt"), "new result kept");
+            resolver.close();
+        } finally {
+            delete(root);
+        }
+    }
+
+    static void testMissesNotCached() throws Exception {
+        Path root = Files.createTempDirectory("resolver");
+        try {
+            Files.write(root.resolve("hot.txt"), TestSupport.ascii("hot"));
+            PathResolver resolver = new PathResolver(root.toString(), 2);
+            resolver.resolve("hot.txt");
+            for (int i = 0; i < 10; i++) {
+                TestSupport.assertEquals(404, resolver.resolve("missing-" + i).getStatus(), "missing " + i);
+            }
+            TestSupport.assertEquals(403, resolver.resolve("../escape").getStatus(), "outside");
+            TestSupport.assertTrue(!resolver.isCached("missing-0"), "404 not kept");
+            TestSupport.assertTrue(!resolver.isCached("../escape"), "403 not kept");
+            TestSupport.assertTrue(resolver.isCached("hot.txt"), "found file survives a flood of misses");
+            resolver.close();
+        } finally {
+            delete(root);
+        }
+    }
+
+    private static void delete(Path dir) throws Exception {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -1,8 +1,11 @@
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
 
 // The ResponseUtil class provides methods for sending HTTP responses to the client.
 public class ResponseUtil {
@@ -18,51 +21,253 @@ public class ResponseUtil {
     // Body: 
     //      <html><body><h1>404 Not Found</h1></body></html>
 
-    public static void sendSuccessResponse(File file, String contentType, OutputStream out) throws IOException {
-        byte[] content = Files.readAllBytes(file.toPath());
+    // Size of the copy buffer when the output is not a channel; memory use stays constant per request
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+    public static void sendSuccessResponse(File file, String contentType, OutputStream out, boolean keepAlive) throws IOException {
+        sendSuccessResponse(file, contentType, null, false, null, out, keepAlive);
+    }
+
+    // Stream a file whose bytes may already be encoded (a pre-built .gz sibling); varyAcceptEncoding marks
+    // responses of compressible types, whose representation depends on the request's Accept-Encoding.
+    // ETag and Last-Modified come from the file version, cacheControl may be null.
+    public static void sendSuccessResponse(File file, String contentType, String contentEncoding,
+            boolean varyAcceptEncoding, String cacheControl, OutputStream out, boolean keepAlive) throws IOException {
+        long contentLength = file.length();
+        long lastModified = file.lastModified();
 
-        PrintWriter writer = new PrintWriter(out, true);
         // Response example: 
         // HTTP/1.1 200 OK[CRLF] 
         // content-type: text/html[CRLF] 
         // content-length: <page/file size>[CRLF] 
         // [CRLF] 
         // <content of page/file> 
-        writer.println("HTTP/1.1 200 OK");
-        writer.println("Content-Type: " + contentType);
-        writer.println("Content-Length: " + content.length);
-        writer.println(); // Blank line between headers and content
-        writer.flush();
-        System.out.println("Server Response at time: " + java.time.LocalTime.now());
-        System.out.println("HTTP/1.1 200 OK");
-        System.out.println("Content-Type: " + contentType);
-        System.out.println("Content-Length: " + content.length);
-        System.out.println();
-        out.write(content);
+        ResponseWriter writer = ResponseWriter.of(out);
+        writer.status(200)
+              .header(ResponseWriter.CONTENT_TYPE, contentType)
+              .header(ResponseWriter.CONTENT_LENGTH, contentLength);
+        validatorHeaders(writer, CachePolicy.etag(contentLength, lastModified, contentEncoding), lastModified, cacheControl);
+        encodingHeaders(writer, contentEncoding, varyAcceptEncoding);
+        if (contentEncoding == null) {
+            writer.header(ResponseWriter.ACCEPT_RANGES_BYTES); // Ranges are served for unencoded files only
+        }
+        writer.connection(keepAlive)
+              .sendHeaders(); // Blank line between headers and content
+        if (ServerLog.isDebugEnabled()) {
+            ServerLog.debug("Server Response at time: " + java.time.LocalTime.now()
+                    + "\nHTTP/1.1 200 OK\nContent-Type: " + contentType + "\nContent-Length: " + contentLength);
+        }
+        sendFileBody(file.toPath(), 0, contentLength, out);
+        out.flush();
+    }
+
+    // Send a file from its memory mapping; the mapped pages are written to the socket directly
+    public static void sendMappedResponse(MappedFileCache.Entry entry, String contentType, boolean varyAcceptEncoding,
+            String cacheControl, OutputStream out, boolean keepAlive) throws IOException {
+        ResponseWriter writer = ResponseWriter.of(out);
+        writer.status(200)
+              .header(ResponseWriter.CONTENT_TYPE, contentType)
+              .header(ResponseWriter.CONTENT_LENGTH, entry.getSize());
+        validatorHeaders(writer, entry.getETag(), entry.getLastModified(), cacheControl);
+        encodingHeaders(writer, null, varyAcceptEncoding);
+        writer.header(ResponseWriter.ACCEPT_RANGES_BYTES)
+              .connection(keepAlive)
+              .send(entry.getContent());
+    }
+
+    // Send a body compressed for this request only, when it is not kept in the StaticContentCache
+    public static void sendCompressedResponse(byte[] body, String contentType, String contentEncoding,
+            String etag, long lastModified, String cacheControl, OutputStream out, boolean keepAlive) throws IOException {
+        ResponseWriter writer = ResponseWriter.of(out);
+        writer.status(200)
+              .header(ResponseWriter.CONTENT_TYPE, contentType)
+              .header(ResponseWriter.CONTENT_LENGTH, body.length);
+        validatorHeaders(writer, etag, lastModified, cacheControl);
+        encodingHeaders(writer, contentEncoding, true);
+        writer.connection(keepAlive)
+              .send(body);
+    }
+
+    // 206 Partial Content for the given ranges of a file of totalLength bytes. The bytes come from body
+    // when the file is cached in memory, otherwise they are read from file at their positions, so the
+    // rest of the file is never read. Several ranges are sent as multipart/byteranges.
+    public static void sendPartialResponse(List<long[]> ranges, long totalLength, byte[] body, Path file,
+            String contentType, String etag, long lastModified, String cacheControl, boolean varyAcceptEncoding,
+            OutputStream out, boolean keepAlive) throws IOException {
+        ResponseWriter writer = ResponseWriter.of(out);
+        writer.status(206);
+        if (ranges.size() == 1) {
+            long[] range = ranges.get(0);
+            writer.header(ResponseWriter.CONTENT_TYPE, contentType)
+                  .header(ResponseWriter.CONTENT_LENGTH, range[1] - range[0] + 1)
+                  .header(ResponseWriter.CONTENT_RANGE, contentRange(range, totalLength));
+        } else {
+            String boundary = Long.toHexString(Double.doubleToLongBits(Math.random()))
+                    + Long.toHexString(System.nanoTime());
+            byte[][] partHeaders = new byte[ranges.size()][];
+            long length = 0;
+            for (int i = 0; i < ranges.size(); i++) {
+                long[] range = ranges.get(i);
+                partHeaders[i] = ResponseWriter.ascii((i == 0 ? "--" : "\r\n--") + boundary + "\r\n"
+                        + "Content-Type: " + contentType + "\r\n"
+                        + "Content-Range: " + contentRange(range, totalLength) + "\r\n\r\n");
+                length += partHeaders[i].length + range[1] - range[0] + 1;
+            }
+            byte[] closing = ResponseWriter.ascii("\r\n--" + boundary + "--\r\n");
+            length += closing.length;
+            writer.header(ResponseWriter.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary)
+                  .header(ResponseWriter.CONTENT_LENGTH, length);
+            validatorHeaders(writer, etag, lastModified, cacheControl);
+            encodingHeaders(writer, null, varyAcceptEncoding);
+            writer.header(ResponseWriter.ACCEPT_RANGES_BYTES)
+                  .connection(keepAlive)
+                  .sendHeaders();
+            for (int i = 0; i < ranges.size(); i++) {
+                out.write(partHeaders[i]);
+                sendRange(ranges.get(i), body, file, out);
+            }
+            out.write(closing);
+            out.flush();
+            return;
+        }
+        validatorHeaders(writer, etag, lastModified, cacheControl);
+        encodingHeaders(writer, null, varyAcceptEncoding);
+        writer.header(ResponseWriter.ACCEPT_RANGES_BYTES)
+              .connection(keepAlive)
+              .sendHeaders();
+        sendRange(ranges.get(0), body, file, out);
+        out.flush();
+    }
+
+    private static void sendRange(long[] range, byte[] body, Path file, OutputStream out) throws IOException {
+        long count = range[1] - range[0] + 1;
+        if (body != null) {
+            out.write(body, (int) range[0], (int) count);
+        } else {
+            sendFileBody(file, range[0], count, out);
+        }
+    }
+
+    private static String contentRange(long[] range, long totalLength) {
+        return "bytes " + range[0] + "-" + range[1] + "/" + totalLength;
+    }
+
+    // 416 Range Not Satisfiable, telling the client the current length of the file
+    public static void sendRangeNotSatisfiable(long totalLength, OutputStream out, boolean keepAlive) throws IOException {
+        ResponseWriter writer = ResponseWriter.of(out);
+        writer.status(416)
+              .header(ResponseWriter.CONTENT_RANGE, "bytes */" + totalLength)
+              .header(ResponseWriter.CONTENT_LENGTH, 0)
+              .connection(keepAlive)
+              .sendHeaders();
         out.flush();
     }
 
+    // 304 Not Modified: the client's copy is current. No body; the validators and caching headers
+    // are repeated so the client can refresh what it stored.
+    public static void sendNotModified(String etag, long lastModified, String cacheControl, boolean varyAcceptEncoding,
+            OutputStream out, boolean keepAlive) throws IOException {
+        ResponseWriter writer = ResponseWriter.of(out);
+        writer.status(304);
+        validatorHeaders(writer, etag, lastModified, cacheControl);
+        encodingHeaders(writer, null, varyAcceptEncoding);
+        writer.connection(keepAlive)
+              .sendHeaders();
+        out.flush();
+    }
+
+    private static void validatorHeaders(ResponseWriter writer, String etag, long lastModified, String cacheControl) {
+        writer.header(ResponseWriter.ETAG, etag)
+              .header(ResponseWriter.LAST_MODIFIED, HttpDate.format(lastModified));
+        if (cacheControl != null) {
+            writer.header(ResponseWriter.CACHE_CONTROL, cacheControl);
+        }
+    }
+
+    private static void encodingHeaders(ResponseWriter writer, String contentEncoding, boolean varyAcceptEncoding) {
+        if (contentEncoding != null) {
+            writer.header(ResponseWriter.CONTENT_ENCODING, contentEncoding);
+        }
+        if (varyAcceptEncoding) {
+            writer.header(ResponseWriter.VARY, "Accept-Encoding");
+        }
+    }
+
+    public static void sendCachedResponse(StaticContentCache.Entry entry, OutputStream out, boolean keepAlive) throws IOException {
+        sendCachedResponse(entry, null, out, keepAlive);
+    }
+
+    // Send a response held by the StaticContentCache: the pre-built headers plus Cache-Control and Connection
+    public static void sendCachedResponse(StaticContentCache.Entry entry, String cacheControl, OutputStream out,
+            boolean keepAlive) throws IOException {
+        ResponseWriter writer = ResponseWriter.of(out);
+        writer.begin(200, entry.getHeaders());
+        if (cacheControl != null) {
+            writer.header(ResponseWriter.CACHE_CONTROL, cacheControl);
+        }
+        writer.connection(keepAlive)
+              .send(entry.getBody());
+        if (ServerLog.isDebugEnabled()) {
+            ServerLog.debug("Server Response at time: " + java.time.LocalTime.now()
+                    + "\nHTTP/1.1 200 OK (cached)\nContent-Type: " + entry.getContentType()
+                    + "\nContent-Length: " + entry.getBody().length);
+        }
+    }
+
+    // Stream a region of the file to the client without loading it into memory:
+    // zero-copy transferTo when the output is the socket channel, a bounded buffer otherwise
+    public static void sendFileBody(Path file, long position, long count, OutputStream out) throws IOException {
+        if (out instanceof ChannelOutputStream) {
+            ((ChannelOutputStream) out).transferFrom(file, position, count);
+            return;
+        }
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(COPY_BUFFER_SIZE, Math.max(count, 1)));
+            long end = position + count;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = fileChannel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("File truncated while sending: " + file);
+                }
+                out.write(buffer.array(), 0, read);
+                position += read;
+            }
+        }
+    }
+
     // No content sent for HEAD request 
-    public static void sendHEADResponse(File file, String contentType, OutputStream out) throws IOException {
-        PrintWriter writer = new PrintWriter(out, true);
+    public static void sendHEADResponse(File file, String contentType, OutputStream out, boolean keepAlive) throws IOException {
+        sendHEADResponse(file, contentType, false, null, out, keepAlive);
+    }
+
+    // The headers a GET of the same file would get, varyAcceptEncoding included, without the body
+    public static void sendHEADResponse(File file, String contentType, boolean varyAcceptEncoding, String cacheControl,
+            OutputStream out, boolean keepAlive) throws IOException {
         // Response example: 
         // HTTP/1.1 200 OK[CRLF] 
+        // date: Sun, 06 Nov 1994 08:49:37 GMT[CRLF] (added by the ResponseWriter)
         // content-type: text/html[CRLF] 
         // content-length: <page/file size>[CRLF] 
         // [CRLF] 
-        writer.println("HTTP/1.1 200 OK");
-        writer.println("Date: " + java.time.LocalTime.now());
-        writer.println("Content-Type: " + contentType);
-        writer.println("Content-Length: " + file.length());
-        writer.println(); // No body sent for HEAD request
-        writer.flush();
-
-        // print the header to the console
-        System.out.println("HTTP/1.1 200 OK");
-        System.out.println("Server Response at time: " + java.time.LocalTime.now());
-        System.out.println("Content-Type: " + contentType);
-        System.out.println("Content-Length: " + file.length());
-        System.out.println();
+        long lastModified = file.lastModified();
+        ResponseWriter writer = ResponseWriter.of(out);
+        writer.status(200)
+              .header(ResponseWriter.CONTENT_TYPE, contentType)
+              .header(ResponseWriter.CONTENT_LENGTH, file.length());
+        validatorHeaders(writer, CachePolicy.etag(file.length(), lastModified, null), lastModified, cacheControl);
+        encodingHeaders(writer, null, varyAcceptEncoding);
+        writer.header(ResponseWriter.ACCEPT_RANGES_BYTES)
+              .connection(keepAlive)
+              .sendHeaders(); // No body sent for HEAD request
+        out.flush();
+
+        // log the header at debug level
+        if (ServerLog.isDebugEnabled()) {
+            ServerLog.debug("Server Response at time: " + java.time.LocalTime.now()
+                    + "\nHTTP/1.1 200 OK\nContent-Type: " + contentType + "\nContent-Length: " + file.length());
+        }
 
     }
 
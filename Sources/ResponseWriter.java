@@ -0,0 +1,248 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The ResponseWriter class assembles the status line and headers of a response into a reusable
+ * buffer and writes them together with the body. Status lines and common headers are encoded to
+ * bytes once, header values are copied in without building intermediate strings, lines are framed
+ * with CRLF as HTTP requires, and on a socket channel headers and body leave in one gathering write.
+ * One writer is kept per connection (see ChannelOutputStream), so the hot path allocates almost nothing.
+ */
+public class ResponseWriter {
+
+    // Pre-encoded header names, including the ": " separator
+    public static final byte[] CONTENT_TYPE = ascii("Content-Type: ");
+    public static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    public static final byte[] DATE = ascii("Date: ");
+    public static final byte[] CONTENT_ENCODING = ascii("Content-Encoding: ");
+    public static final byte[] VARY = ascii("Vary: ");
+    public static final byte[] ETAG = ascii("ETag: ");
+    public static final byte[] LAST_MODIFIED = ascii("Last-Modified: ");
+    public static final byte[] CACHE_CONTROL = ascii("Cache-Control: ");
+    public static final byte[] CONTENT_RANGE = ascii("Content-Range: ");
+    public static final byte[] RETRY_AFTER = ascii("Retry-After: ");
+    public static final byte[] ACCEPT_RANGES_BYTES = ascii("Accept-Ranges: bytes\r\n");
+    public static final byte[] TRANSFER_ENCODING_CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+    // Interim response telling a client that sent "Expect: 100-continue" to go on with the body
+    public static final byte[] CONTINUE = ascii("HTTP/1.1 100 Continue\r\n\r\n");
+
+    private static final byte[] CRLF = ascii("\r\n");
+    private static final byte[] CONNECTION_KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+    private static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+    private static final int INITIAL_HEADER_CAPACITY = 1024;
+    // Copy buffer for ByteBuffer bodies when the output is not a channel
+    private static final int COPY_CHUNK_SIZE = 16 * 1024;
+
+    // Status lines ("HTTP/1.1 200 OK\r\n") indexed by status code, encoded on first use
+    private static final byte[][] STATUS_LINES = new byte[600][];
+
+    private final OutputStream out;
+    private ByteBuffer headers = ByteBuffer.allocate(INITIAL_HEADER_CAPACITY);
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private final byte[] digits = new byte[20];
+    // Status code of the response most recently started, for the access log
+    private int lastStatus;
+    // Body stream for responses of unknown length, created on first use
+    private ChunkedOutputStream bodyStream;
+
+    public ResponseWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    // The writer reused by this connection when the stream is a ChannelOutputStream, a new one otherwise
+    public static ResponseWriter of(OutputStream out) {
+        if (out instanceof ChannelOutputStream) {
+            return ((ChannelOutputStream) out).getResponseWriter();
+        }
+        return new ResponseWriter(out);
+    }
+
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    public int getLastStatus() {
+        return lastStatus;
+    }
+
+    // Start a new response; discards anything assembled but not sent. Every response carries a Date header.
+    public ResponseWriter status(int statusCode) {
+        lastStatus = statusCode;
+        headers.clear();
+        put(statusLine(statusCode));
+        putDate();
+        return this;
+    }
+
+    public ResponseWriter header(byte[] name, CharSequence value) {
+        put(name);
+        ensureCapacity(value.length() + CRLF.length);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            headers.put(c < 0x100 ? (byte) c : (byte) '?');
+        }
+        headers.put(CRLF);
+        return this;
+    }
+
+    public ResponseWriter header(byte[] name, long value) {
+        put(name);
+        putDecimal(value);
+        put(CRLF);
+        return this;
+    }
+
+    public ResponseWriter header(String name, CharSequence value) {
+        return header(ascii(name + ": "), value);
+    }
+
+    // A complete pre-encoded header line, CRLF included
+    public ResponseWriter header(byte[] line) {
+        put(line);
+        return this;
+    }
+
+    public ResponseWriter connection(boolean keepAlive) {
+        put(keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+        return this;
+    }
+
+    // Start a new response from a pre-built status line and headers (CRLF terminated, no blank line)
+    public ResponseWriter begin(int statusCode, byte[] statusAndHeaders) {
+        lastStatus = statusCode;
+        headers.clear();
+        put(statusAndHeaders);
+        putDate();
+        return this;
+    }
+
+    // End the header section and write it, for responses without a body or with a streamed one
+    public void sendHeaders() throws IOException {
+        put(CRLF);
+        headers.flip();
+        out.write(headers.array(), 0, headers.limit());
+        headers.clear();
+    }
+
+    // End the header section and write headers and body together
+    public void send(byte[] body) throws IOException {
+        send(body, 0, body.length);
+    }
+
+    public void send(byte[] body, int offset, int length) throws IOException {
+        put(CRLF);
+        headers.flip();
+        if (out instanceof ChannelOutputStream) {
+            gather[0] = headers;
+            gather[1] = ByteBuffer.wrap(body, offset, length);
+            ((ChannelOutputStream) out).write(gather);
+            gather[1] = null;
+        } else {
+            out.write(headers.array(), 0, headers.limit());
+            out.write(body, offset, length);
+        }
+        headers.clear();
+        out.flush();
+    }
+
+    // End the header section and return the stream for a body whose length is not known yet: with
+    // chunked, "Transfer-Encoding: chunked" is added and the body is sent in chunks; without (HTTP/1.0
+    // clients) it is sent as is and the connection must close after it. The headers are written with
+    // the first body bytes, and closing the stream ends the response.
+    public ChunkedOutputStream streamBody(boolean chunked) {
+        if (chunked) {
+            put(TRANSFER_ENCODING_CHUNKED);
+        }
+        if (bodyStream == null) {
+            bodyStream = new ChunkedOutputStream(out);
+        }
+        return bodyStream.begin(this, chunked);
+    }
+
+    // Same with a body in a ByteBuffer, such as a slice of a memory-mapped file, written from its
+    // position to its limit; on a socket channel it goes out without being copied to the heap, in
+    // windows of ChannelOutputStream.WRITE_SLICE bytes (the headers with the first), so no single
+    // write is handed a whole mapped file
+    public void send(ByteBuffer body) throws IOException {
+        put(CRLF);
+        headers.flip();
+        if (out instanceof ChannelOutputStream) {
+            int position = body.position();
+            int end = body.limit();
+            gather[0] = headers;
+            do {
+                ByteBuffer window = body.duplicate();
+                window.position(position).limit((int) Math.min(end, (long) position + ChannelOutputStream.WRITE_SLICE));
+                gather[1] = window;
+                ((ChannelOutputStream) out).write(gather);
+                position = window.limit();
+            } while (position < end);
+            body.position(end);
+            gather[1] = null;
+        } else {
+            out.write(headers.array(), 0, headers.limit());
+            byte[] chunk = new byte[Math.min(body.remaining(), COPY_CHUNK_SIZE)];
+            while (body.hasRemaining()) {
+                int n = Math.min(chunk.length, body.remaining());
+                body.get(chunk, 0, n);
+                out.write(chunk, 0, n);
+            }
+        }
+        headers.clear();
+        out.flush();
+    }
+
+    private static byte[] statusLine(int statusCode) {
+        boolean cacheable = statusCode >= 0 && statusCode < STATUS_LINES.length;
+        byte[] line = cacheable ? STATUS_LINES[statusCode] : null;
+        if (line == null) {
+            // Racing threads may both encode the line; they store identical bytes
+            line = ascii("HTTP/1.1 " + statusCode + " " + Errors.getStatusMessage(statusCode) + "\r\n");
+            if (cacheable) {
+                STATUS_LINES[statusCode] = line;
+            }
+        }
+        return line;
+    }
+
+    private void putDate() {
+        put(DATE);
+        put(HttpDate.now());
+        put(CRLF);
+    }
+
+    private void put(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        headers.put(bytes);
+    }
+
+    // Write a non-negative number in decimal without creating a String
+    private void putDecimal(long value) {
+        if (value < 0) {
+            put(ascii(Long.toString(value)));
+            return;
+        }
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        ensureCapacity(digits.length - pos);
+        headers.put(digits, pos, digits.length - pos);
+    }
+
+    private void ensureCapacity(int needed) {
+        if (headers.remaining() < needed) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(headers.capacity() * 2, headers.position() + needed));
+            headers.flip();
+            grown.put(headers);
+            headers = grown;
+        }
+    }
+
+    static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,931 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The ReverseProxy class forwards the requests under configured path prefixes (proxyRoutes in
+ * config.ini) to upstream servers, so this server can front backend services next to its static files.
+ * A route balances its requests round-robin over its upstreams, skipping those found down: a background
+ * thread requests proxyHealthCheckPath from every upstream each interval, and a failed connect marks an
+ * upstream down until a check succeeds again. Each upstream keeps a pool of persistent HTTP/1.1
+ * connections; the most recently used one is taken first, so the rest age out after proxyIdleTimeout ms,
+ * and one the upstream has closed meanwhile is noticed before a request is written to it. Should a reused
+ * connection still turn out stale, the upstream closing or resetting it before the first byte of the
+ * response, an idempotent request (GET, HEAD, OPTIONS, PUT, DELETE) without a streamed body is sent once
+ * more on a new connection; anything else, a timeout above all, since the upstream may be processing the
+ * request, is answered with 502 or 504. Bodies pass through fixed buffers in both directions: on a blocking
+ * connection the request body goes upstream as the parser receives it (an Exchange is the request's
+ * BodySink), and the response body is copied to the client as it arrives, re-chunked when its length is
+ * not known. The NIO server is the exception: its worker collects the whole response in memory before the
+ * event loop sends it, so there a response body is bounded by proxyMaxBufferedResponse. One announced as
+ * longer, or growing longer, is answered with 502 and the connection closed; a body of unknown length is
+ * read up to that limit first and sent with a Content-Length.
+ * Hop-by-hop headers are dropped both ways; the request gets X-Forwarded-For and X-Forwarded-Proto.
+ */
+public class ReverseProxy {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    // Largest response header section, and status or chunk-size line, accepted from an upstream
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+    // Body lengths for the request head: no body at all, or one sent in chunks
+    private static final long NO_BODY = -1;
+    private static final long CHUNKED = -2;
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    // Headers that only concern one connection (RFC 9110 section 7.6.1), never passed on; so are the
+    // headers named by Connection
+    private static final String[] HOP_BY_HOP = { "Connection", "Keep-Alive", "Proxy-Connection",
+            "Proxy-Authenticate", "Proxy-Authorization", "TE", "Trailer", "Transfer-Encoding", "Upgrade" };
+    // Methods whose request may be sent again when a kept connection fails before the response starts
+    private static final String[] IDEMPOTENT = { "GET", "HEAD", "OPTIONS", "PUT", "DELETE" };
+
+    private final List<Route> routes;
+    private final List<Upstream> upstreams;
+    private final int maxIdleConnections;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final int idleTimeout;
+    private final String healthCheckPath;
+    // Largest response body collected for a client whose output is buffered (NIO), 0 for no limit
+    private final int maxBufferedResponse;
+    private final Thread healthChecker;
+    private volatile boolean closed;
+
+    // One path prefix and the upstreams that serve it
+    public static class Route {
+        private final String prefix;
+        private final Upstream[] upstreams;
+        private final AtomicInteger next = new AtomicInteger();
+
+        Route(String prefix, Upstream[] upstreams) {
+            this.prefix = prefix;
+            this.upstreams = upstreams;
+        }
+
+        // The prefix matches whole path segments: "/api" takes "/api", "/api/x" and "/api?q", not "/apis"
+        boolean matches(String uri) {
+            if (!uri.startsWith(prefix)) {
+                return false;
+            }
+            if (uri.length() == prefix.length() || prefix.endsWith("/")) {
+                return true;
+            }
+            char c = uri.charAt(prefix.length());
+            return c == '/' || c == '?';
+        }
+    }
+
+    public ReverseProxy(Map<String, List<String>> routeTargets, int maxIdleConnections, int connectTimeout,
+            int readTimeout, int idleTimeout, String healthCheckPath, int healthCheckInterval, int maxBufferedResponse) {
+        this.maxIdleConnections = maxIdleConnections;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.idleTimeout = idleTimeout;
+        this.healthCheckPath = healthCheckPath;
+        this.maxBufferedResponse = maxBufferedResponse;
+        // An upstream named by several routes has one pool and one health state
+        Map<String, Upstream> byTarget = new LinkedHashMap<>();
+        List<Route> routes = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : routeTargets.entrySet()) {
+            List<String> targets = entry.getValue();
+            Upstream[] routeUpstreams = new Upstream[targets.size()];
+            for (int i = 0; i < routeUpstreams.length; i++) {
+                routeUpstreams[i] = byTarget.computeIfAbsent(targets.get(i), Upstream::new);
+            }
+            routes.add(new Route(entry.getKey(), routeUpstreams));
+        }
+        // The longest matching prefix wins
+        routes.sort(Comparator.comparingInt((Route route) -> route.prefix.length()).reversed());
+        this.routes = routes;
+        this.upstreams = new ArrayList<>(byTarget.values());
+        if (healthCheckInterval > 0) {
+            healthChecker = new Thread(() -> checkHealth(healthCheckInterval), "proxy-health");
+            healthChecker.setDaemon(true);
+            healthChecker.start();
+        } else {
+            healthChecker = null;
+        }
+    }
+
+    // The proxy described by a configuration, or null when no route is configured.
+    // proxyRoutes is "prefix=host:port|host:port,prefix=host:port", e.g. "/api=127.0.0.1:9001|127.0.0.1:9002".
+    public static ReverseProxy fromConfig(ConfigLoader config) {
+        Map<String, List<String>> routeTargets = new LinkedHashMap<>();
+        for (String route : config.getProxyRoutes().split(",")) {
+            if (route.isBlank()) {
+                continue;
+            }
+            int equals = route.indexOf('=');
+            String prefix = equals > 0 ? route.substring(0, equals).trim() : "";
+            if (!prefix.startsWith("/")) {
+                throw new IllegalArgumentException("Invalid proxy route, expected /prefix=host:port: " + route);
+            }
+            List<String> targets = new ArrayList<>();
+            for (String target : route.substring(equals + 1).split("\\|")) {
+                target = target.trim();
+                int colon = target.lastIndexOf(':');
+                if (colon <= 0 || !target.substring(colon + 1).matches("\\d{1,5}")) {
+                    throw new IllegalArgumentException("Invalid proxy upstream, expected host:port: " + target);
+                }
+                targets.add(target);
+            }
+            routeTargets.put(prefix, targets);
+        }
+        if (routeTargets.isEmpty()) {
+            return null;
+        }
+        ServerLog.info("Proxying " + routeTargets);
+        return new ReverseProxy(routeTargets, config.getProxyMaxIdleConnections(), config.getProxyConnectTimeout(),
+                config.getProxyReadTimeout(), config.getProxyIdleTimeout(), config.getProxyHealthCheckPath(),
+                config.getProxyHealthCheckInterval(), config.getProxyMaxBufferedResponse());
+    }
+
+    // The route for a request target, null when it is not proxied
+    public Route route(String uri) {
+        for (Route route : routes) {
+            if (route.matches(uri)) {
+                return route;
+            }
+        }
+        return null;
+    }
+
+    // Start forwarding request over route. With streamBody the upstream connection is opened and the
+    // request head written now, so that the body can follow as it arrives; otherwise everything waits
+    // for forward(), and a body given to the exchange meanwhile is kept until then.
+    public Exchange open(Route route, HttpRequest request, String client, boolean secure, boolean streamBody) {
+        Exchange exchange = new Exchange(route, request, client, secure);
+        if (streamBody) {
+            exchange.start();
+        }
+        return exchange;
+    }
+
+    // Stop the health checks and close the kept connections
+    public void close() {
+        closed = true;
+        if (healthChecker != null) {
+            healthChecker.interrupt();
+        }
+        for (Upstream upstream : upstreams) {
+            UpstreamConnection connection;
+            while ((connection = upstream.idle.pollFirst()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    // Probe every upstream each interval; also drops connections that have been idle too long, which
+    // would otherwise only be noticed when their pool is next used
+    private void checkHealth(int interval) {
+        while (!closed) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (Upstream upstream : upstreams) {
+                upstream.setHealthy(probe(upstream));
+                upstream.evictIdle(System.currentTimeMillis());
+            }
+        }
+    }
+
+    // A health check on a connection of its own: healthy when the path answers 2xx or 3xx
+    private boolean probe(Upstream upstream) {
+        try (Socket socket = new Socket()) {
+            socket.connect(upstream.address(), connectTimeout);
+            socket.setSoTimeout(readTimeout);
+            socket.getOutputStream().write(("GET " + healthCheckPath + " HTTP/1.1\r\nHost: " + upstream
+                    + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            int status = statusCode(readLine(new BufferedInputStream(socket.getInputStream(), 512)));
+            return status >= 200 && status < 400;
+        } catch (IOException e) {
+            ServerLog.debug("Health check of " + upstream + " failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private UpstreamConnection connect(Upstream upstream) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            Socket socket = channel.socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(upstream.address(), connectTimeout);
+            socket.setSoTimeout(readTimeout);
+            return new UpstreamConnection(upstream, channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // One host:port with its pool of idle connections, most recently used first
+    private class Upstream {
+        private final String target;
+        private final String host;
+        private final int port;
+        private final ConcurrentLinkedDeque<UpstreamConnection> idle = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+        private volatile boolean healthy = true;
+
+        Upstream(String target) {
+            int colon = target.lastIndexOf(':');
+            this.target = target;
+            this.host = target.substring(0, colon);
+            this.port = Integer.parseInt(target.substring(colon + 1));
+        }
+
+        // Resolved on every connect, so a changed address is picked up (the JDK caches lookups briefly)
+        InetSocketAddress address() {
+            return new InetSocketAddress(host, port);
+        }
+
+        void setHealthy(boolean healthy) {
+            if (this.healthy != healthy) {
+                this.healthy = healthy;
+                ServerLog.info("Upstream " + target + (healthy ? " is up" : " is down"));
+            }
+        }
+
+        // A kept connection that is still open, or null
+        UpstreamConnection take() {
+            long now = System.currentTimeMillis();
+            UpstreamConnection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                idleCount.decrementAndGet();
+                if (now - connection.idleSince < idleTimeout && connection.isUsable()) {
+                    connection.reused = true;
+                    return connection;
+                }
+                connection.close();
+            }
+            return null;
+        }
+
+        // Keep a connection whose last response was read completely, unless the pool is full
+        void release(UpstreamConnection connection) {
+            if (idleCount.incrementAndGet() > maxIdleConnections || closed) {
+                idleCount.decrementAndGet();
+                connection.close();
+                return;
+            }
+            connection.idleSince = System.currentTimeMillis();
+            idle.offerFirst(connection);
+        }
+
+        // The oldest connections are at the end of the deque
+        void evictIdle(long now) {
+            Iterator<UpstreamConnection> oldestFirst = idle.descendingIterator();
+            while (oldestFirst.hasNext()) {
+                UpstreamConnection connection = oldestFirst.next();
+                if (now - connection.idleSince < idleTimeout) {
+                    break;
+                }
+                if (idle.removeFirstOccurrence(connection)) {
+                    idleCount.decrementAndGet();
+                    connection.close();
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return target;
+        }
+    }
+
+    private static class UpstreamConnection {
+        private final Upstream upstream;
+        private final SocketChannel channel;
+        private final InputStream in;
+        private final OutputStream out;
+        private final ByteBuffer probe = ByteBuffer.allocate(1);
+        private long idleSince;
+        // Taken from the pool rather than opened for this request
+        private boolean reused;
+
+        UpstreamConnection(Upstream upstream, SocketChannel channel) throws IOException {
+            this.upstream = upstream;
+            this.channel = channel;
+            this.in = new BufferedInputStream(channel.socket().getInputStream(), BUFFER_SIZE);
+            this.out = new BufferedOutputStream(channel.socket().getOutputStream(), BUFFER_SIZE);
+        }
+
+        // Whether an idle connection can carry another request: a read that does not wait finds
+        // neither the end of the stream (the upstream closed it) nor bytes nobody asked for
+        boolean isUsable() {
+            try {
+                channel.configureBlocking(false);
+                try {
+                    probe.clear();
+                    return channel.read(probe) == 0;
+                } finally {
+                    channel.configureBlocking(true);
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                ServerLog.debug("Could not close upstream connection: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * One request forwarded to an upstream and its response. As the request's BodySink it either
+     * writes the body to the upstream as it arrives (when opened with streamBody) or keeps it for
+     * forward(); a failure meanwhile is remembered and answered by forward() with 502.
+     */
+    public class Exchange implements HttpRequest.BodySink {
+        private final Route route;
+        private final HttpRequest request;
+        private final String client;
+        private final boolean secure;
+        private boolean streaming;
+        private boolean chunkedBody;
+        private ByteArrayOutputStream keptBody;
+        private UpstreamConnection connection;
+        // Status to answer instead of a response, 0 while nothing has failed
+        private int failure;
+        // Whether the upstream sent any byte of a response to this attempt
+        private boolean responseStarted;
+
+        // The upstream's response head
+        private int status;
+        private String reason;
+        private boolean upstreamKeepAlive;
+        private final List<String> headerNames = new ArrayList<>();
+        private final List<String> headerValues = new ArrayList<>();
+
+        Exchange(Route route, HttpRequest request, String client, boolean secure) {
+            this.route = route;
+            this.request = request;
+            this.client = client;
+            this.secure = secure;
+        }
+
+        // Connect and write the head of a request whose body follows; the parser only passes on a
+        // body without Content-Length when it is chunked, and it goes upstream chunked as well
+        private void start() {
+            streaming = true;
+            acquire(false);
+            if (failure != 0) {
+                return;
+            }
+            String contentLength = request.getHeader("Content-Length");
+            chunkedBody = contentLength == null;
+            try {
+                writeHead(chunkedBody ? CHUNKED : Long.parseLong(contentLength.trim()));
+            } catch (IOException e) {
+                fail(502, e);
+            }
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) {
+            if (failure != 0 || length == 0) {
+                return;
+            }
+            if (!streaming) {
+                if (keptBody == null) {
+                    keptBody = new ByteArrayOutputStream(Math.max(length, 1024));
+                }
+                keptBody.write(data, offset, length);
+                return;
+            }
+            try {
+                OutputStream out = connection.out;
+                if (chunkedBody) {
+                    out.write(Integer.toHexString(length).getBytes(StandardCharsets.ISO_8859_1));
+                    out.write(CRLF);
+                    out.write(data, offset, length);
+                    out.write(CRLF);
+                } else {
+                    out.write(data, offset, length);
+                }
+            } catch (IOException e) {
+                fail(502, e);
+            }
+        }
+
+        @Override
+        public void end() {
+            if (failure != 0 || !streaming) {
+                return;
+            }
+            try {
+                if (chunkedBody) {
+                    connection.out.write(LAST_CHUNK);
+                }
+                connection.out.flush();
+            } catch (IOException e) {
+                fail(502, e);
+            }
+        }
+
+        // Drop an exchange whose request was never completed
+        public void abort() {
+            if (connection != null) {
+                connection.close();
+                connection = null;
+            }
+        }
+
+        // Send the request unless its body already went upstream, then copy the response to out, or
+        // answer an error if there is none: 503 with every upstream of the route down, 504 when the
+        // upstream does not answer within proxyReadTimeout, 502 for any other failure. With buffered, out
+        // holds the response in memory until it is complete, and the body is bounded by maxBufferedResponse.
+        // Returns whether the client connection can stay open.
+        public boolean forward(OutputStream out, boolean keepAlive, boolean buffered) throws IOException {
+            for (int attempt = 0; failure == 0; attempt++) {
+                responseStarted = false;
+                try {
+                    if (!streaming) {
+                        send(attempt > 0);
+                    }
+                    if (failure == 0) {
+                        readResponseHead();
+                    }
+                    break;
+                } catch (IOException e) {
+                    boolean retry = attempt == 0 && !streaming && connection != null && connection.reused
+                            && isStale(e) && isIdempotent(request.getMethod());
+                    abort();
+                    if (retry) {
+                        ServerLog.debug("Kept upstream connection failed, retrying on a new one: " + e.getMessage());
+                        continue;
+                    }
+                    fail(e instanceof SocketTimeoutException ? 504 : 502, e);
+                }
+            }
+            if (failure != 0) {
+                Errors.sendErrorResponse(out, failure, keepAlive, "HEAD".equals(request.getMethod()));
+                return keepAlive;
+            }
+            return copyResponse(out, keepAlive, buffered && maxBufferedResponse > 0);
+        }
+
+        // Take a kept connection to the next healthy upstream of the route, or open one. A failed
+        // connect marks its upstream down when health checks run to bring it back, and the next
+        // upstream is tried.
+        private void acquire(boolean fresh) {
+            Upstream[] upstreams = route.upstreams;
+            int first = Math.floorMod(route.next.getAndIncrement(), upstreams.length);
+            boolean anyHealthy = false;
+            for (int i = 0; i < upstreams.length; i++) {
+                Upstream upstream = upstreams[(first + i) % upstreams.length];
+                if (!upstream.healthy) {
+                    continue;
+                }
+                anyHealthy = true;
+                connection = fresh ? null : upstream.take();
+                if (connection != null) {
+                    return;
+                }
+                try {
+                    connection = connect(upstream);
+                    return;
+                } catch (IOException e) {
+                    ServerLog.info("Could not connect to upstream " + upstream + ": " + e.getMessage());
+                    if (healthChecker != null) {
+                        upstream.setHealthy(false);
+                    }
+                }
+            }
+            failure = anyHealthy ? 502 : 503;
+        }
+
+        // The whole request at once, with a kept body as Content-Length
+        private void send(boolean fresh) throws IOException {
+            acquire(fresh);
+            if (failure != 0) {
+                return;
+            }
+            boolean hasBody = keptBody != null || request.getBodyLength() > 0
+                    || request.getHeader("Content-Length") != null || request.getHeader("Transfer-Encoding") != null;
+            long length = keptBody != null ? keptBody.size() : request.getBodyLength();
+            writeHead(hasBody ? length : NO_BODY);
+            if (keptBody != null) {
+                keptBody.writeTo(connection.out);
+            } else if (request.getBodyLength() > 0) {
+                connection.out.write(request.getBody(), 0, request.getBodyLength());
+            }
+            connection.out.flush();
+        }
+
+        // Request line and headers as HTTP/1.1, the target unchanged
+        private void writeHead(long bodyLength) throws IOException {
+            StringBuilder head = new StringBuilder(512);
+            head.append(request.getMethod()).append(' ').append(request.getUri()).append(" HTTP/1.1\r\n");
+            String connectionHeader = request.getHeader("Connection");
+            String forwardedFor = null;
+            boolean host = false;
+            for (int i = 0; i < request.getHeaderCount(); i++) {
+                String name = request.getHeaderName(i);
+                String value = request.getHeaderValue(i);
+                if (name.equalsIgnoreCase("X-Forwarded-For")) {
+                    forwardedFor = forwardedFor == null ? value : forwardedFor + ", " + value;
+                    continue;
+                }
+                // This server answers Expect itself and frames the body again
+                if (isHopByHop(name, connectionHeader) || name.equalsIgnoreCase("Expect")
+                        || name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("X-Forwarded-Proto")) {
+                    continue;
+                }
+                host |= name.equalsIgnoreCase("Host");
+                head.append(name).append(": ").append(value).append("\r\n");
+            }
+            if (!host) {
+                head.append("Host: ").append(connection.upstream).append("\r\n");
+            }
+            if (client != null) {
+                head.append("X-Forwarded-For: ").append(forwardedFor == null ? client : forwardedFor + ", " + client)
+                        .append("\r\n");
+            }
+            head.append("X-Forwarded-Proto: ").append(secure ? "https" : "http").append("\r\n");
+            if (bodyLength == CHUNKED) {
+                head.append("Transfer-Encoding: chunked\r\n");
+            } else if (bodyLength != NO_BODY) {
+                head.append("Content-Length: ").append(bodyLength).append("\r\n");
+            }
+            head.append("\r\n");
+            connection.out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        // A kept connection the upstream had closed: the request could not be written, or the connection
+        // ended or was reset before any response. A timeout proves nothing, the upstream may be working on it.
+        private boolean isStale(IOException e) {
+            return !responseStarted && (e instanceof EOFException || e instanceof SocketException);
+        }
+
+        // Status line and headers; interim 1xx responses are read past, not passed on
+        private void readResponseHead() throws IOException {
+            InputStream in = connection.in;
+            in.mark(1);
+            if (in.read() < 0) {
+                throw new EOFException("Upstream closed the connection before responding");
+            }
+            in.reset();
+            responseStarted = true;
+            String statusLine;
+            do {
+                statusLine = readLine(in);
+                status = statusCode(statusLine);
+                headerNames.clear();
+                headerValues.clear();
+                int headBytes = statusLine.length();
+                String line;
+                while (!(line = readLine(in)).isEmpty()) {
+                    headBytes += line.length() + 2;
+                    if (headBytes > MAX_HEAD_SIZE) {
+                        throw new IOException("Upstream response head too large");
+                    }
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headerNames.add(line.substring(0, colon).trim());
+                        headerValues.add(line.substring(colon + 1).trim());
+                    }
+                }
+            } while (status >= 100 && status < 200 && status != 101);
+            if (status == 101) {
+                throw new IOException("Upstream switched protocols");
+            }
+            reason = statusLine.length() > 13 ? statusLine.substring(13) : "";
+            String connectionHeader = responseHeader("Connection");
+            upstreamKeepAlive = statusLine.startsWith("HTTP/1.1")
+                    ? !hasToken(connectionHeader, "close")
+                    : hasToken(connectionHeader, "keep-alive");
+        }
+
+        // Pass the response on as HTTP/1.1 with the body framed for the client: the upstream's
+        // Content-Length when it gave one, chunks (or the end of the connection for HTTP/1.0) otherwise
+        private boolean copyResponse(OutputStream out, boolean keepAlive, boolean bounded) throws IOException {
+            String transferEncoding = responseHeader("Transfer-Encoding");
+            String contentLength = responseHeader("Content-Length");
+            boolean noBody = "HEAD".equals(request.getMethod()) || status == 204 || status == 304;
+            ResponseWriter writer = ResponseWriter.of(out).begin(status, clientHead());
+            boolean complete;
+            try {
+                if (noBody) {
+                    if (contentLength != null && status != 204) {
+                        writer.header(ResponseWriter.CONTENT_LENGTH, contentLength);
+                    }
+                    writer.connection(keepAlive).sendHeaders();
+                    complete = true;
+                } else if (transferEncoding == null && contentLength != null) {
+                    long length = parseLength(contentLength);
+                    if (bounded && length > maxBufferedResponse) {
+                        return tooLarge(out, length + " bytes");
+                    }
+                    writer.header(ResponseWriter.CONTENT_LENGTH, length).connection(keepAlive).sendHeaders();
+                    complete = copy(connection.in, out, length);
+                } else if (bounded) {
+                    // Nothing reaches the client before the response is complete anyway, so the body is
+                    // read first and its length announced
+                    BoundedBody body = new BoundedBody(maxBufferedResponse);
+                    if (hasToken(transferEncoding, "chunked")) {
+                        complete = copyChunks(connection.in, body);
+                    } else {
+                        complete = copy(connection.in, body, Long.MAX_VALUE);
+                        upstreamKeepAlive = false;
+                    }
+                    if (complete) {
+                        writer.header(ResponseWriter.CONTENT_LENGTH, body.size()).connection(keepAlive).sendHeaders();
+                        body.writeTo(out);
+                    } else {
+                        abort();
+                        Errors.sendErrorResponse(out, 502, false);
+                        return false;
+                    }
+                } else {
+                    boolean chunked = "HTTP/1.1".equals(request.getVersion());
+                    keepAlive = keepAlive && chunked;
+                    ChunkedOutputStream body = writer.connection(keepAlive).streamBody(chunked);
+                    if (hasToken(transferEncoding, "chunked")) {
+                        complete = copyChunks(connection.in, body);
+                    } else {
+                        complete = copy(connection.in, body, Long.MAX_VALUE); // Ends with the connection
+                        upstreamKeepAlive = false;
+                    }
+                    if (complete) {
+                        body.close();
+                    }
+                }
+            } catch (BoundedBody.LimitExceeded e) {
+                return tooLarge(out, "more than " + maxBufferedResponse + " bytes");
+            } catch (IOException e) {
+                abort(); // The client went away; the rest of the response is not read
+                throw e;
+            }
+            if (complete && upstreamKeepAlive) {
+                connection.upstream.release(connection);
+                connection = null;
+            } else {
+                abort();
+            }
+            if (!complete) {
+                // The response is cut short; only closing the connection tells the client
+                out.flush();
+                return false;
+            }
+            return keepAlive;
+        }
+
+        // A body over maxBufferedResponse, before any of the response was written: the upstream connection
+        // is dropped with the rest of it, and the client gets 502 and its connection closed
+        private boolean tooLarge(OutputStream out, String size) throws IOException {
+            abort();
+            ServerLog.info("Proxying " + request.getMethod() + " " + request.getUri() + " failed: response body of "
+                    + size + " exceeds proxyMaxBufferedResponse");
+            Errors.sendErrorResponse(out, 502, false);
+            return false;
+        }
+
+        // Status line and end-to-end headers for the client; Date is added by the writer
+        private byte[] clientHead() {
+            StringBuilder head = new StringBuilder(512);
+            head.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+            String connectionHeader = responseHeader("Connection");
+            for (int i = 0; i < headerNames.size(); i++) {
+                String name = headerNames.get(i);
+                if (isHopByHop(name, connectionHeader) || name.equalsIgnoreCase("Content-Length")
+                        || name.equalsIgnoreCase("Date")) {
+                    continue;
+                }
+                head.append(name).append(": ").append(headerValues.get(i)).append("\r\n");
+            }
+            return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        // Copy up to length bytes through one buffer, flushing whenever the upstream has nothing more
+        // buffered so that a slowly produced body reaches the client as it is produced. Returns false
+        // when the upstream failed or ended first (for a body that ends with the connection, at its end:
+        // true). Errors writing to the client are thrown.
+        private boolean copy(InputStream in, OutputStream out, long length) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(length, 1))];
+            long remaining = length;
+            while (remaining > 0) {
+                int n;
+                try {
+                    n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                } catch (IOException e) {
+                    return upstreamFailed(e);
+                }
+                if (n < 0) {
+                    return length == Long.MAX_VALUE || upstreamFailed(new IOException("Upstream closed the connection"));
+                }
+                out.write(buffer, 0, n);
+                remaining -= n;
+                if (remaining > 0 && available(in) == 0) {
+                    out.flush();
+                }
+            }
+            return true;
+        }
+
+        // Decode a chunked body and copy its data; trailer fields are dropped
+        private boolean copyChunks(InputStream in, OutputStream out) throws IOException {
+            while (true) {
+                long size;
+                try {
+                    String line = readLine(in);
+                    int extension = line.indexOf(';');
+                    size = Long.parseLong((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+                    if (size < 0) {
+                        throw new IOException("Invalid chunk size from upstream");
+                    }
+                    if (size == 0) {
+                        while (!readLine(in).isEmpty()) {
+                            // Trailer field
+                        }
+                        return true;
+                    }
+                } catch (IOException e) {
+                    return upstreamFailed(e);
+                } catch (NumberFormatException e) {
+                    return upstreamFailed(new IOException("Invalid chunk size from upstream"));
+                }
+                if (!copy(in, out, size)) {
+                    return false;
+                }
+                try {
+                    if (!readLine(in).isEmpty()) {
+                        throw new IOException("Missing CRLF after chunk data from upstream");
+                    }
+                } catch (IOException e) {
+                    return upstreamFailed(e);
+                }
+                if (available(in) == 0) {
+                    out.flush(); // The upstream sent this chunk on its own, so does this server
+                }
+            }
+        }
+
+        private boolean upstreamFailed(IOException e) {
+            ServerLog.info("Response from upstream " + connection.upstream + " cut short: " + e.getMessage());
+            return false;
+        }
+
+        private String responseHeader(String name) {
+            for (int i = 0; i < headerNames.size(); i++) {
+                if (headerNames.get(i).equalsIgnoreCase(name)) {
+                    return headerValues.get(i);
+                }
+            }
+            return null;
+        }
+
+        private void fail(int status, IOException e) {
+            failure = status;
+            ServerLog.info("Proxying " + request.getMethod() + " " + request.getUri() + " failed: " + e.getMessage());
+            abort();
+        }
+    }
+
+    // A response body collected in memory that refuses to grow past its limit
+    private static class BoundedBody extends OutputStream {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        private final int limit;
+
+        static class LimitExceeded extends IOException {
+            private static final long serialVersionUID = 1L;
+
+            LimitExceeded() {
+                super("Response body too large to buffer");
+            }
+        }
+
+        BoundedBody(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > limit - bytes.size()) {
+                throw new LimitExceeded();
+            }
+            bytes.write(b, off, len);
+        }
+
+        int size() {
+            return bytes.size();
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            bytes.writeTo(out);
+        }
+    }
+
+    private static int available(InputStream in) {
+        try {
+            return in.available();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long parseLength(String value) throws IOException {
+        try {
+            long length = Long.parseLong(value.trim());
+            if (length >= 0) {
+                return length;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IOException("Invalid Content-Length from upstream: " + value);
+    }
+
+    // "HTTP/1.x SSS reason"
+    private static int statusCode(String statusLine) throws IOException {
+        if (statusLine.length() < 12 || !statusLine.startsWith("HTTP/1.") || statusLine.charAt(8) != ' ') {
+            throw new IOException("Invalid status line from upstream: " + statusLine);
+        }
+        try {
+            return Integer.parseInt(statusLine.substring(9, 12));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid status line from upstream: " + statusLine);
+        }
+    }
+
+    // One line without its CRLF (or bare LF), read byte by byte from a buffered stream
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("Upstream closed the connection");
+            }
+            if (line.length() == MAX_HEAD_SIZE) {
+                throw new IOException("Line from upstream too long");
+            }
+            line.append((char) b);
+        }
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+            line.setLength(length - 1);
+        }
+        return line.toString();
+    }
+
+    private static boolean isIdempotent(String method) {
+        for (String idempotent : IDEMPOTENT) {
+            if (idempotent.equals(method)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isHopByHop(String name, String connectionHeader) {
+        for (String hopByHop : HOP_BY_HOP) {
+            if (hopByHop.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return hasToken(connectionHeader, name);
+    }
+
+    // Whether a comma-separated header value lists token, ignoring case
+    private static boolean hasToken(String value, String token) {
+        if (value == null) {
+            return false;
+        }
+        for (String element : value.split(",")) {
+            if (element.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,332 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class tests the ReverseProxy class through a ClientHandler against a backend running in the
+ * test: the request and response passed on with hop-by-hop headers dropped, request bodies, chunked
+ * responses, pooled connections, and that a request is only sent again when a kept connection proves
+ * stale and the method is idempotent, never after a timeout. Through a NioWebServer, whose responses
+ * are collected in memory, it tests the proxyMaxBufferedResponse bound.
+ */
+public class ReverseProxyTest {
+
+    private static final String OK = "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok";
+    // Backend actions instead of a response: close the connection, or answer nothing until it is closed
+    private static final String CLOSE = "close";
+    private static final String STALL = "stall";
+
+    private static Path root;
+
+    public static void main(String[] args) throws IOException {
+        root = Files.createTempDirectory("proxy");
+        try {
+            TestSupport.run("request and response are passed on", ReverseProxyTest::testRoundTrip);
+            TestSupport.run("request body goes upstream", ReverseProxyTest::testRequestBody);
+            TestSupport.run("chunked response is passed on in chunks", ReverseProxyTest::testChunkedResponse);
+            TestSupport.run("connections are pooled", ReverseProxyTest::testPooledConnection);
+            TestSupport.run("GET is retried on a stale connection", ReverseProxyTest::testStaleConnectionRetried);
+            TestSupport.run("POST is not retried", ReverseProxyTest::testPostNotRetried);
+            TestSupport.run("a timeout is not retried", ReverseProxyTest::testTimeoutNotRetried);
+            TestSupport.run("502 when the upstream is unreachable", ReverseProxyTest::testUnreachable);
+            TestSupport.run("NIO server bounds buffered responses", ReverseProxyTest::testNioBufferedResponse);
+        } finally {
+            Files.delete(root);
+        }
+        TestSupport.finish("ReverseProxyTest");
+    }
+
+    static void testRoundTrip() throws Exception {
+        try (Backend backend = new Backend()) {
+            ReverseProxy proxy = backend.proxy(5000);
+            backend.responses.add("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nKeep-Alive: timeout=5\r\n"
+                    + "X-Backend: one\r\nContent-Length: 5\r\n\r\nhello");
+            String response = get(proxy, "GET /api/items?x=1 HTTP/1.1\r\nHost: test\r\nAccept: text/plain\r\n"
+                    + "Connection: close, X-Hop\r\nX-Hop: 1\r\n\r\n");
+            TestSupport.assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"), "status: " + response);
+            TestSupport.assertEquals("one", TestSupport.header(response, "X-Backend"), "end-to-end header");
+            TestSupport.assertEquals(null, TestSupport.header(response, "Keep-Alive"), "hop-by-hop header dropped");
+            TestSupport.assertEquals("5", TestSupport.header(response, "Content-Length"), "Content-Length");
+            TestSupport.assertEquals("hello", TestSupport.body(response), "body");
+
+            String upstream = backend.requests.get(0);
+            TestSupport.assertTrue(upstream.startsWith("GET /api/items?x=1 HTTP/1.1\r\n"), "request line: " + upstream);
+            TestSupport.assertEquals("text/plain", TestSupport.header(upstream, "Accept"), "end-to-end header");
+            TestSupport.assertEquals(null, TestSupport.header(upstream, "X-Hop"), "header named by Connection");
+            TestSupport.assertEquals("127.0.0.1", TestSupport.header(upstream, "X-Forwarded-For"), "X-Forwarded-For");
+            TestSupport.assertEquals("http", TestSupport.header(upstream, "X-Forwarded-Proto"), "X-Forwarded-Proto");
+            proxy.close();
+        }
+    }
+
+    static void testRequestBody() throws Exception {
+        try (Backend backend = new Backend()) {
+            ReverseProxy proxy = backend.proxy(5000);
+            backend.responses.add("HTTP/1.1 201 Created\r\nContent-Length: 0\r\n\r\n");
+            String response = get(proxy, "POST /api/items HTTP/1.1\r\nHost: test\r\nContent-Type: text/plain\r\n"
+                    + "Content-Length: 11\r\nConnection: close\r\n\r\nhello world");
+            TestSupport.assertTrue(response.startsWith("HTTP/1.1 201 "), "status: " + response);
+            String upstream = backend.requests.get(0);
+            TestSupport.assertEquals("11", TestSupport.header(upstream, "Content-Length"), "Content-Length");
+            TestSupport.assertEquals("hello world", TestSupport.body(upstream), "body");
+            proxy.close();
+        }
+    }
+
+    static void testChunkedResponse() throws Exception {
+        try (Backend backend = new Backend()) {
+            ReverseProxy proxy = backend.proxy(5000);
+            backend.responses.add("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                    + "5\r\nhello\r\n6;ext=1\r\n world\r\n0\r\nX-Trailer: dropped\r\n\r\n");
+            String response = get(proxy, "GET /api/stream HTTP/1.1\r\nHost: test\r\nConnection: close\r\n\r\n");
+            TestSupport.assertEquals("chunked", TestSupport.header(response, "Transfer-Encoding"), "Transfer-Encoding");
+            String[] decoded = TestSupport.dechunk(TestSupport.body(response));
+            TestSupport.assertEquals("hello world", decoded[0], "data");
+            TestSupport.assertEquals("", decoded[1], "nothing after the last chunk");
+            proxy.close();
+        }
+    }
+
+    static void testPooledConnection() throws Exception {
+        try (Backend backend = new Backend()) {
+            ReverseProxy proxy = backend.proxy(5000);
+            for (int i = 0; i < 3; i++) {
+                String response = get(proxy, "GET /api/" + i + " HTTP/1.1\r\nHost: test\r\nConnection: close\r\n\r\n");
+                TestSupport.assertEquals("ok", TestSupport.body(response), "body " + i);
+            }
+            TestSupport.assertEquals(1, backend.connections.get(), "upstream connections");
+            TestSupport.assertEquals(3, backend.requests.size(), "upstream requests");
+            proxy.close();
+        }
+    }
+
+    // The backend closes the kept connection after reading the request, without a byte of response
+    static void testStaleConnectionRetried() throws Exception {
+        try (Backend backend = new Backend()) {
+            ReverseProxy proxy = backend.proxy(5000);
+            get(proxy, "GET /api/warm HTTP/1.1\r\nHost: test\r\nConnection: close\r\n\r\n");
+            backend.responses.add(CLOSE);
+            String response = get(proxy, "GET /api/again HTTP/1.1\r\nHost: test\r\nConnection: close\r\n\r\n");
+            TestSupport.assertTrue(response.startsWith("HTTP/1.1 200 "), "status: " + response);
+            TestSupport.assertEquals(2, backend.connections.get(), "sent again on a new connection");
+            TestSupport.assertEquals(3, backend.requests.size(), "upstream requests");
+            proxy.close();
+        }
+    }
+
+    static void testPostNotRetried() throws Exception {
+        try (Backend backend = new Backend()) {
+            ReverseProxy proxy = backend.proxy(5000);
+            get(proxy, "GET /api/warm HTTP/1.1\r\nHost: test\r\nConnection: close\r\n\r\n");
+            backend.responses.add(CLOSE);
+            String response = get(proxy, "POST /api/order HTTP/1.1\r\nHost: test\r\nConnection: close\r\n\r\n");
+            TestSupport.assertTrue(response.startsWith("HTTP/1.1 502 "), "status: " + response);
+            TestSupport.assertEquals(1, backend.connections.get(), "no new connection");
+            TestSupport.assertEquals(2, backend.requests.size(), "POST sent once");
+            proxy.close();
+        }
+    }
+
+    static void testTimeoutNotRetried() throws Exception {
+        try (Backend backend = new Backend()) {
+            ReverseProxy proxy = backend.proxy(300);
+            get(proxy, "GET /api/warm HTTP/1.1\r\nHost: test\r\nConnection: close\r\n\r\n");
+            backend.responses.add(STALL);
+            String response = get(proxy, "GET /api/slow HTTP/1.1\r\nHost: test\r\nConnection: close\r\n\r\n");
+            TestSupport.assertTrue(response.startsWith("HTTP/1.1 504 "), "status: " + response);
+            TestSupport.assertEquals(1, backend.connections.get(), "no new connection");
+            TestSupport.assertEquals(2, backend.requests.size(), "GET sent once");
+            proxy.close();
+        }
+    }
+
+    static void testUnreachable() throws Exception {
+        int port;
+        try (ServerSocket closed = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = closed.getLocalPort();
+        }
+        ReverseProxy proxy = new ReverseProxy(Map.of("/api", List.of("127.0.0.1:" + port)), 4, 1000, 1000, 60000,
+                "/", 0, 0);
+        String response = get(proxy, "GET /api/x HTTP/1.1\r\nHost: test\r\nConnection: close\r\n\r\n");
+        TestSupport.assertTrue(response.startsWith("HTTP/1.1 502 "), "status: " + response);
+        // The error page is not sent to HEAD, so the next response on the connection follows the header section
+        response = get(proxy, "HEAD /api/x HTTP/1.1\r\nHost: test\r\n\r\n"
+                + "GET /api/x HTTP/1.1\r\nHost: test\r\nConnection: close\r\n\r\n");
+        TestSupport.assertTrue(response.startsWith("HTTP/1.1 502 "), "HEAD status: " + response);
+        TestSupport.assertTrue(TestSupport.body(response).startsWith("HTTP/1.1 502 "), "no body for HEAD: " + response);
+        proxy.close();
+    }
+
+    // The NIO server collects a response before sending it, so the body is held to maxBufferedResponse:
+    // one of unknown length is sent with a Content-Length, a longer one is answered with 502 and a close
+    static void testNioBufferedResponse() throws Exception {
+        try (Backend backend = new Backend()) {
+            int port;
+            try (ServerSocket free = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+                port = free.getLocalPort();
+            }
+            NioWebServer server = new NioWebServer("index.html", 2, port, root.toString(), 5000, 100);
+            server.setProxy(new ReverseProxy(Map.of("/api", List.of("127.0.0.1:" + backend.server.getLocalPort())),
+                    4, 1000, 5000, 60000, "/", 0, 16));
+            Thread loop = new Thread(server::start, "test-nio-server");
+            loop.setDaemon(true);
+            loop.start();
+            try {
+                backend.responses.add("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello");
+                backend.responses.add("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n4\r\nwiki\r\n0\r\n\r\n");
+                backend.responses.add("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                        + "10\r\n0123456789abcdef\r\n1\r\n!\r\n0\r\n\r\n");
+                String response = nioExchange(port, "GET /api/a HTTP/1.1\r\nHost: test\r\n\r\n"
+                        + "GET /api/b HTTP/1.1\r\nHost: test\r\n\r\n"
+                        + "GET /api/c HTTP/1.1\r\nHost: test\r\n\r\n");
+                TestSupport.assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"), "status: " + response);
+                String rest = TestSupport.body(response);
+                TestSupport.assertTrue(rest.startsWith("helloHTTP/1.1 200 OK\r\n"), "first body: " + rest);
+                String second = rest.substring(5);
+                TestSupport.assertEquals("4", TestSupport.header(second, "Content-Length"), "chunked body sent with its length");
+                TestSupport.assertEquals(null, TestSupport.header(second, "Transfer-Encoding"), "no Transfer-Encoding");
+                TestSupport.assertTrue(TestSupport.body(second).startsWith("wikiHTTP/1.1 502 "),
+                        "502 once the chunks pass the limit, then the connection closed: " + second);
+
+                backend.responses.add("HTTP/1.1 200 OK\r\nContent-Length: 17\r\n\r\n0123456789abcdef!");
+                response = nioExchange(port, "GET /api/d HTTP/1.1\r\nHost: test\r\n\r\n");
+                TestSupport.assertTrue(response.startsWith("HTTP/1.1 502 "), "Content-Length over the limit: " + response);
+                TestSupport.assertEquals("close", TestSupport.header(response, "Connection"), "Connection");
+            } finally {
+                server.shutdown(1000);
+            }
+        }
+    }
+
+    // Send request to the NIO server on port and read until it closes the connection
+    private static String nioExchange(int port, String request) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                socket.setSoTimeout(5000);
+                socket.getOutputStream().write(TestSupport.ascii(request));
+                return TestSupport.ascii(socket.getInputStream().readAllBytes());
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(20); // The event loop is still starting
+            }
+        }
+    }
+
+    private static String get(ReverseProxy proxy, String request) throws Exception {
+        return TestSupport.exchange(socket -> {
+            ClientHandler handler = new ClientHandler(socket, root.toString(), "index.html");
+            handler.setProxy(proxy);
+            return handler;
+        }, request);
+    }
+
+    // An upstream answering each request with the next scripted response, OK when none is left; it
+    // records every request (head and body) and counts the connections it accepts
+    private static class Backend implements AutoCloseable {
+        final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final ConcurrentLinkedQueue<String> responses = new ConcurrentLinkedQueue<>();
+        final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger connections = new AtomicInteger();
+        private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<>());
+
+        Backend() throws IOException {
+            Thread acceptor = new Thread(this::accept, "test-backend");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        // A proxy sending /api to this backend, without health checks
+        ReverseProxy proxy(int readTimeout) {
+            return new ReverseProxy(Map.of("/api", List.of("127.0.0.1:" + server.getLocalPort())), 4, 1000,
+                    readTimeout, 60000, "/", 0, 0);
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    Socket socket = server.accept();
+                    connections.incrementAndGet();
+                    sockets.add(socket);
+                    Thread thread = new Thread(() -> serve(socket), "test-backend-connection");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+
+        private void serve(Socket socket) {
+            try (socket) {
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                while (true) {
+                    StringBuilder head = new StringBuilder();
+                    String line;
+                    long length = 0;
+                    do {
+                        line = readLine(in);
+                        if (line == null) {
+                            return;
+                        }
+                        head.append(line).append("\r\n");
+                        if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                            length = Long.parseLong(line.substring(15).trim());
+                        }
+                    } while (!line.isEmpty());
+                    byte[] body = in.readNBytes((int) length);
+                    requests.add(head + TestSupport.ascii(body));
+                    String response = responses.poll();
+                    if (CLOSE.equals(response)) {
+                        return;
+                    }
+                    if (STALL.equals(response)) {
+                        in.read(); // Until the proxy gives up and closes the connection
+                        return;
+                    }
+                    socket.getOutputStream().write(TestSupport.ascii(response != null ? response : OK));
+                }
+            } catch (IOException e) {
+                // The proxy closed the connection
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    return null;
+                }
+                line.write(b);
+            }
+            String text = TestSupport.ascii(line.toByteArray());
+            return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+            synchronized (sockets) {
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+            }
+        }
+    }
+}
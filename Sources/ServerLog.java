@@ -0,0 +1,277 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The ServerLog class replaces printing to System.out on the request path. Request threads only
+ * place a record into a lock-free ring buffer; a background thread formats the records, appends
+ * access log lines (Combined Log Format plus latency) to the access log file in batches, rotates
+ * the file by size, and prints diagnostic messages to the console. When the ring is full the record
+ * is dropped and counted, so logging never blocks a request thread.
+ */
+public final class ServerLog {
+
+    public enum Level { ERROR, INFO, DEBUG }
+
+    private static final int RING_SIZE = 8192; // Power of two
+    private static final int BATCH_SIZE = 256;
+    private static final DateTimeFormatter CLF_TIME =
+            DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+
+    private static volatile Level level = Level.INFO;
+    private static volatile String accessLogPath; // null: access log disabled
+    private static volatile long accessLogMaxBytes = 10L * 1024 * 1024;
+    private static volatile int accessLogMaxFiles = 5;
+
+    // Multi-producer, single-consumer ring: producers claim a sequence number with CAS,
+    // then publish the record into its slot; the writer thread empties slots in order
+    private static final AtomicReferenceArray<Object> ring = new AtomicReferenceArray<>(RING_SIZE);
+    private static final AtomicLong claimed = new AtomicLong();
+    private static volatile long consumed;
+    private static final LongAdder dropped = new LongAdder();
+
+    private static final Thread writerThread = new Thread(ServerLog::writeLoop, "server-log");
+    static {
+        writerThread.setDaemon(true);
+        writerThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(ServerLog::drain, "server-log-flush"));
+    }
+
+    // Writer thread state
+    private static Writer accessWriter;
+    private static File accessFile;
+    private static long accessFileSize;
+
+    private ServerLog() {
+    }
+
+    public static void configure(Level logLevel, String accessLog, long maxBytes, int maxFiles) {
+        level = logLevel;
+        accessLogMaxBytes = maxBytes;
+        accessLogMaxFiles = maxFiles;
+        accessLogPath = accessLog == null || accessLog.isEmpty() ? null : accessLog;
+    }
+
+    public static boolean isDebugEnabled() {
+        return level == Level.DEBUG;
+    }
+
+    public static void debug(String message) {
+        if (level == Level.DEBUG) {
+            offer(new Message(Level.DEBUG, message, null));
+        }
+    }
+
+    public static void info(String message) {
+        if (level != Level.ERROR) {
+            offer(new Message(Level.INFO, message, null));
+        }
+    }
+
+    public static void error(String message, Throwable error) {
+        offer(new Message(Level.ERROR, message, error));
+    }
+
+    // Record one served request; formatting happens on the writer thread
+    public static void access(String remoteHost, String requestLine, int status, long bytesSent,
+            long latencyNanos, String referer, String userAgent) {
+        if (accessLogPath != null) {
+            offer(new AccessRecord(System.currentTimeMillis(), remoteHost, requestLine, status, bytesSent,
+                    latencyNanos, referer, userAgent));
+        }
+    }
+
+    // Records lost because the writer thread could not keep up
+    public static long getDroppedRecords() {
+        return dropped.sum();
+    }
+
+    private static void offer(Object record) {
+        while (true) {
+            long sequence = claimed.get();
+            if (sequence - consumed >= RING_SIZE) {
+                dropped.increment();
+                return;
+            }
+            if (claimed.compareAndSet(sequence, sequence + 1)) {
+                ring.lazySet((int) (sequence & (RING_SIZE - 1)), record);
+                return;
+            }
+        }
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(5_000_000L); // Nothing to write: check again in 5 ms
+            }
+        }
+    }
+
+    // Write out everything published so far; returns the number of records written
+    private static synchronized int drain() {
+        int total = 0;
+        int batch;
+        do {
+            batch = 0;
+            long next = consumed;
+            while (batch < BATCH_SIZE) {
+                int slot = (int) (next & (RING_SIZE - 1));
+                Object record = ring.get(slot);
+                if (record == null) {
+                    break; // Not published yet
+                }
+                ring.lazySet(slot, null);
+                next++;
+                consumed = next;
+                write(record);
+                batch++;
+            }
+            total += batch;
+            flushAccessLog();
+        } while (batch == BATCH_SIZE);
+        return total;
+    }
+
+    private static void write(Object record) {
+        if (record instanceof Message) {
+            Message message = (Message) record;
+            if (message.level == Level.ERROR) {
+                System.err.println(message.text);
+                if (message.error != null) {
+                    message.error.printStackTrace();
+                }
+            } else {
+                System.out.println(message.text);
+            }
+            return;
+        }
+        AccessRecord access = (AccessRecord) record;
+        try {
+            String line = access.format() + "\n";
+            Writer writer = accessWriter();
+            if (writer != null) {
+                writer.write(line);
+                accessFileSize += line.length();
+                if (accessFileSize >= accessLogMaxBytes) {
+                    rotate();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Access log write failed: " + e.getMessage());
+            closeAccessLog();
+        }
+    }
+
+    private static Writer accessWriter() throws IOException {
+        String path = accessLogPath;
+        if (path == null) {
+            return null;
+        }
+        if (accessWriter == null || !accessFile.getPath().equals(path)) {
+            closeAccessLog();
+            accessFile = new File(path);
+            accessFileSize = accessFile.length();
+            accessWriter = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(accessFile, true), StandardCharsets.UTF_8), 64 * 1024);
+        }
+        return accessWriter;
+    }
+
+    // access.log -> access.log.1 -> access.log.2 ... keeping accessLogMaxFiles old files
+    private static void rotate() throws IOException {
+        File current = accessFile;
+        closeAccessLog();
+        String path = current.getPath();
+        new File(path + "." + accessLogMaxFiles).delete();
+        for (int i = accessLogMaxFiles - 1; i >= 1; i--) {
+            File older = new File(path + "." + i);
+            if (older.exists()) {
+                older.renameTo(new File(path + "." + (i + 1)));
+            }
+        }
+        current.renameTo(new File(path + ".1"));
+    }
+
+    private static void flushAccessLog() {
+        if (accessWriter != null) {
+            try {
+                accessWriter.flush();
+            } catch (IOException e) {
+                System.err.println("Access log flush failed: " + e.getMessage());
+                closeAccessLog();
+            }
+        }
+    }
+
+    private static void closeAccessLog() {
+        if (accessWriter != null) {
+            try {
+                accessWriter.close();
+            } catch (IOException e) {
+                // Nothing more we can do about a failing log file
+            }
+            accessWriter = null;
+        }
+    }
+
+    private static final class Message {
+        private final Level level;
+        private final String text;
+        private final Throwable error;
+
+        Message(Level level, String text, Throwable error) {
+            this.level = level;
+            this.text = text;
+            this.error = error;
+        }
+    }
+
+    private static final class AccessRecord {
+        private final long timestamp;
+        private final String remoteHost;
+        private final String requestLine;
+        private final int status;
+        private final long bytesSent;
+        private final long latencyNanos;
+        private final String referer;
+        private final String userAgent;
+
+        AccessRecord(long timestamp, String remoteHost, String requestLine, int status, long bytesSent,
+                long latencyNanos, String referer, String userAgent) {
+            this.timestamp = timestamp;
+            this.remoteHost = remoteHost;
+            this.requestLine = requestLine;
+            this.status = status;
+            this.bytesSent = bytesSent;
+            this.latencyNanos = latencyNanos;
+            this.referer = referer;
+            this.userAgent = userAgent;
+        }
+
+        // Combined Log Format followed by the latency in microseconds:
+        // host - - [10/Oct/2024:13:55:36 +0000] "GET / HTTP/1.1" 200 2490 "referer" "agent" 812
+        String format() {
+            return orDash(remoteHost) + " - - [" + CLF_TIME.format(Instant.ofEpochMilli(timestamp)) + "] \""
+                    + requestLine + "\" " + (status > 0 ? String.valueOf(status) : "-") + " "
+                    + (bytesSent > 0 ? String.valueOf(bytesSent) : "-") + " \""
+                    + orDash(referer) + "\" \"" + orDash(userAgent) + "\" " + (latencyNanos / 1000);
+        }
+
+        private static String orDash(String value) {
+            return value == null || value.isEmpty() ? "-" : value;
+        }
+    }
+}
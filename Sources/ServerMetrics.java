@@ -0,0 +1,193 @@
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The ServerMetrics class collects the server's instrumentation and renders it in the Prometheus
+ * text format for the admin path (metricsPath in config.ini). Request latencies go into log-bucketed
+ * (HDR-style) histograms, one per method and status code, and every count is a LongAdder, so request
+ * threads recording at the same time update separate cells instead of contending on one variable.
+ * Values owned by other components (worker queue depth, dropped log records) are read through gauges
+ * only when the metrics page is rendered.
+ */
+public final class ServerMetrics {
+
+    private static final String[] METHODS = { "GET", "HEAD", "POST", "TRACE", "OTHER" };
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static volatile String metricsPath = "/metrics"; // null: endpoint disabled
+
+    // Histograms keyed by method index * 1000 + status code, created on first use
+    private static final Map<Integer, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private static final LongAdder bytesSent = new LongAdder();
+    private static final LongAdder activeConnections = new LongAdder();
+    private static final LongAdder acceptedConnections = new LongAdder();
+    private static final LongAdder rejectedConnections = new LongAdder();
+    private static volatile LongSupplier queueDepth = () -> 0;
+
+    private ServerMetrics() {
+    }
+
+    public static void configure(String path) {
+        metricsPath = path == null || path.isEmpty() ? null : path;
+    }
+
+    // True when the request target (with or without a query string) is the metrics page
+    public static boolean isMetricsRequest(String uri) {
+        String path = metricsPath;
+        if (path == null || !uri.startsWith(path)) {
+            return false;
+        }
+        return uri.length() == path.length() || uri.charAt(path.length()) == '?';
+    }
+
+    public static void recordRequest(String method, int status, long latencyNanos, long bytes) {
+        int key = methodIndex(method) * 1000 + status;
+        LatencyHistogram histogram = latencies.get(key);
+        if (histogram == null) {
+            histogram = latencies.computeIfAbsent(key, k -> new LatencyHistogram());
+        }
+        histogram.record(latencyNanos);
+        bytesSent.add(bytes);
+    }
+
+    public static void connectionOpened() {
+        acceptedConnections.increment();
+        activeConnections.increment();
+    }
+
+    public static void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    // A connection the server closed without serving a request on it
+    public static void connectionRejected() {
+        rejectedConnections.increment();
+    }
+
+    // Requests accepted but still waiting for a worker thread
+    public static void setQueueDepthGauge(LongSupplier gauge) {
+        queueDepth = gauge;
+    }
+
+    private static int methodIndex(String method) {
+        for (int i = 0; i < METHODS.length - 1; i++) {
+            if (METHODS[i].equals(method)) {
+                return i;
+            }
+        }
+        return METHODS.length - 1;
+    }
+
+    // The whole exposition, in the Prometheus text format
+    public static String render() {
+        StringBuilder text = new StringBuilder(4096);
+
+        text.append("# HELP http_request_duration_seconds Time from a complete request to its response being written.\n");
+        text.append("# TYPE http_request_duration_seconds histogram\n");
+        Map<Integer, LatencyHistogram> sorted = new TreeMap<>(latencies);
+        for (Map.Entry<Integer, LatencyHistogram> entry : sorted.entrySet()) {
+            String labels = "method=\"" + METHODS[entry.getKey() / 1000] + "\",status=\"" + (entry.getKey() % 1000) + "\"";
+            entry.getValue().appendTo(text, "http_request_duration_seconds", labels);
+        }
+
+        counter(text, "http_response_bytes_total", "Bytes written in responses.", bytesSent.sum());
+        counter(text, "http_connections_accepted_total", "Connections accepted.", acceptedConnections.sum());
+        counter(text, "http_connections_rejected_total",
+                "Connections closed without serving a request (malformed or oversized request, overload).",
+                rejectedConnections.sum());
+        gauge(text, "http_connections_active", "Connections currently open.", activeConnections.sum());
+        gauge(text, "http_worker_queue_depth", "Tasks waiting for a worker thread.", queueDepth.getAsLong());
+        counter(text, "server_log_dropped_records_total", "Log records dropped because the log writer fell behind.",
+                ServerLog.getDroppedRecords());
+        return text.toString();
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" counter\n");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, long value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" gauge\n");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Latency histogram with power-of-two bucket bounds in microseconds (16 us up to about 33 s), so
+     * the relative error is the same at every scale. Each bucket is a LongAdder; recording is one
+     * leading-zero count and one striped increment.
+     */
+    public static final class LatencyHistogram {
+
+        private static final int MIN_EXPONENT = 4;  // First bucket: up to 2^4 us = 16 us
+        private static final int MAX_EXPONENT = 25; // Last finite bucket: up to 2^25 us, about 33.5 s
+        private static final int BUCKETS = MAX_EXPONENT - MIN_EXPONENT + 2; // Plus the +Inf bucket
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        public LatencyHistogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            buckets[bucketIndex(nanos / 1000)].increment();
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        // Index of the smallest bucket whose upper bound 2^(MIN_EXPONENT + index) us holds the value
+        private static int bucketIndex(long micros) {
+            if (micros <= (1L << MIN_EXPONENT)) {
+                return 0;
+            }
+            int exponent = 64 - Long.numberOfLeadingZeros(micros - 1); // ceil(log2(micros))
+            return Math.min(exponent - MIN_EXPONENT, BUCKETS - 1);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        // Upper bound in microseconds of the bucket holding the given percentile (0-100), -1 if empty
+        public long getValueAtPercentile(double percentile) {
+            long total = count.sum();
+            if (total == 0) {
+                return -1;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS - 1; i++) {
+                seen += buckets[i].sum();
+                if (seen >= rank) {
+                    return 1L << (MIN_EXPONENT + i);
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        void appendTo(StringBuilder text, String name, String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS - 1; i++) {
+                cumulative += buckets[i].sum();
+                double bound = (1L << (MIN_EXPONENT + i)) / 1_000_000.0;
+                text.append(name).append("_bucket{").append(labels).append(",le=\"")
+                    .append(String.format(Locale.ROOT, "%.6f", bound)).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += buckets[BUCKETS - 1].sum();
+            text.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+            text.append(name).append("_sum{").append(labels).append("} ")
+                .append(String.format(Locale.ROOT, "%.9f", sumNanos.sum() / 1e9)).append('\n');
+            text.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+        }
+    }
+}
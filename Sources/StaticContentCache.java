@@ -0,0 +1,208 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The StaticContentCache class keeps pre-built GET responses (header bytes and file content) in memory,
+ * shared by all client handlers. Entries are keyed by the sanitized request path, the total size is
+ * bounded with least-recently-used eviction, and each entry is revalidated against the file's
+ * modification time and size at most once per revalidation interval, so hot files are served
+ * without touching the filesystem. Compressed variants of a file are cached as entries of their own
+ * (see variantKey), built once and validated against the file they were made from.
+ */
+public class StaticContentCache {
+
+    // A cached response for one file
+    public static class Entry {
+        private final Path file;
+        private final String contentType;
+        private final String contentEncoding; // null for the file's own bytes
+        private final String etag;
+        private final byte[] headers; // Status line, entity headers and validators, CRLF terminated
+        private final byte[] body;
+        private final long lastModified;
+        private final long fileSize; // Size of the file on disk, which differs from the body when compressed
+        private final boolean varyAcceptEncoding;
+        private volatile long lastValidated;
+
+        Entry(Path file, String contentType, String contentEncoding, boolean varyAcceptEncoding, byte[] body,
+                long lastModified, long fileSize, long now) {
+            this.file = file;
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.body = body;
+            this.lastModified = lastModified;
+            this.fileSize = fileSize;
+            this.varyAcceptEncoding = varyAcceptEncoding;
+            this.lastValidated = now;
+            // Validators are computed once per file version and coding
+            this.etag = CachePolicy.etag(fileSize, lastModified, contentEncoding);
+            this.headers = ("HTTP/1.1 200 OK\r\n" +
+                            "Content-Type: " + contentType + "\r\n" +
+                            "Content-Length: " + body.length + "\r\n" +
+                            "ETag: " + etag + "\r\n" +
+                            "Last-Modified: " + HttpDate.format(lastModified) + "\r\n" +
+                            (contentEncoding != null ? "Content-Encoding: " + contentEncoding + "\r\n"
+                                                     : "Accept-Ranges: bytes\r\n") +
+                            (varyAcceptEncoding ? "Vary: Accept-Encoding\r\n" : "")).getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getContentEncoding() {
+            return contentEncoding;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        public boolean isVaryAcceptEncoding() {
+            return varyAcceptEncoding;
+        }
+
+        public byte[] getHeaders() {
+            return headers;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxFileSize;
+    private final long revalidateInterval;
+
+    // Access-ordered map: iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes;
+
+    public StaticContentCache(long maxBytes, long maxFileSize, long revalidateInterval) {
+        this.maxBytes = maxBytes;
+        this.maxFileSize = maxFileSize;
+        this.revalidateInterval = revalidateInterval;
+    }
+
+    // Cache key of the compressed variant of a path; a line feed cannot occur in a request target
+    public static String variantKey(String path, String contentEncoding) {
+        return path + "\n" + contentEncoding;
+    }
+
+    // Returns the cached response for the path, or null if absent or the file has changed
+    public Entry get(String path) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(path);
+        }
+        if (entry == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now - entry.lastValidated < revalidateInterval) {
+            return entry;
+        }
+        // Revalidate outside the lock; a concurrent duplicate check is harmless
+        try {
+            if (Files.getLastModifiedTime(entry.file).toMillis() == entry.lastModified
+                    && Files.size(entry.file) == entry.fileSize) {
+                entry.lastValidated = now;
+                return entry;
+            }
+        } catch (IOException e) {
+            // File removed or unreadable: drop the entry and let the caller go to disk
+        }
+        remove(path, entry);
+        return null;
+    }
+
+    // Whether a file of this size may be cached at all
+    public boolean isCacheable(long fileSize) {
+        return fileSize <= maxFileSize && fileSize <= maxBytes;
+    }
+
+    // Read the file and cache its response; returns the new entry, or null if it is not cacheable
+    public Entry load(String path, Path file, String contentType) throws IOException {
+        return load(path, file, contentType, null, false);
+    }
+
+    // Same for a file whose bytes are already encoded (a pre-built .gz sibling, contentEncoding "gzip"),
+    // or whose type is compressible, so the response carries "Vary: Accept-Encoding"
+    public Entry load(String key, Path file, String contentType, String contentEncoding,
+            boolean varyAcceptEncoding) throws IOException {
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+        if (!isCacheable(Files.size(file))) {
+            return null;
+        }
+        byte[] body = Files.readAllBytes(file);
+        if (!isCacheable(body.length)) {
+            return null; // Grew between the size check and the read
+        }
+        Entry entry = new Entry(file, contentType, contentEncoding, varyAcceptEncoding, body, lastModified,
+                body.length, System.currentTimeMillis());
+        put(key, entry);
+        return entry;
+    }
+
+    // Cache a compressed variant built from source (cached under variantKey); it is revalidated
+    // against the source file, so it is dropped together with the source when the file changes
+    public Entry putVariant(String key, Entry source, String contentEncoding, byte[] body) {
+        Entry entry = new Entry(source.file, source.contentType, contentEncoding, true, body, source.lastModified,
+                source.fileSize, System.currentTimeMillis());
+        if (isCacheable(body.length)) {
+            put(key, entry);
+        }
+        return entry;
+    }
+
+    private synchronized void put(String path, Entry entry) {
+        Entry previous = entries.put(path, entry);
+        if (previous != null) {
+            totalBytes -= previous.body.length;
+        }
+        totalBytes += entry.body.length;
+
+        // Evict least recently used entries until the cache fits its budget again
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            totalBytes -= eldest.getValue().body.length;
+            it.remove();
+        }
+    }
+
+    private synchronized void remove(String path, Entry entry) {
+        // Only remove the stale entry, not a fresh one loaded concurrently
+        if (entries.get(path) == entry) {
+            entries.remove(path);
+            totalBytes -= entry.body.length;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
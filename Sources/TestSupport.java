@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * The TestSupport class holds the checks shared by the test classes that test.sh runs. A test class
+ * runs each case with run(), which reports a failing case and goes on with the next one, and ends
+ * with finish(), which exits with status 1 when any case failed so that test.sh fails too.
+ */
+public class TestSupport {
+
+    // A test case; any exception it throws fails it
+    public interface TestCase {
+        void run() throws Exception;
+    }
+
+    // Creates the handler under test for an accepted connection
+    public interface HandlerFactory {
+        ClientHandler create(Socket socket) throws Exception;
+    }
+
+    private static int passed;
+    private static int failed;
+
+    public static void run(String name, TestCase test) {
+        try {
+            test.run();
+            passed++;
+        } catch (Throwable e) {
+            failed++;
+            System.out.println("FAIL " + name + ": " + e);
+            if (!(e instanceof AssertionError)) {
+                e.printStackTrace(System.out);
+            }
+        }
+    }
+
+    public static void finish(String testClass) {
+        System.out.println(testClass + ": " + passed + " passed, " + failed + " failed");
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    public static void assertTrue(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError(what);
+        }
+    }
+
+    public static void assertEquals(Object expected, Object actual, String what) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(what + ": expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    public static void assertArrayEquals(byte[] expected, byte[] actual, String what) {
+        if (!Arrays.equals(expected, actual)) {
+            throw new AssertionError(what + ": expected " + Arrays.toString(expected) + " but was "
+                    + Arrays.toString(actual));
+        }
+    }
+
+    // The exception of type expected that test throws; fails when it throws nothing or something else
+    public static <T extends Throwable> T assertThrows(Class<T> expected, TestCase test, String what) {
+        try {
+            test.run();
+        } catch (Throwable e) {
+            if (expected.isInstance(e)) {
+                return expected.cast(e);
+            }
+            throw new AssertionError(what + ": expected " + expected.getSimpleName() + " but got " + e, e);
+        }
+        throw new AssertionError(what + ": expected " + expected.getSimpleName() + " but nothing was thrown");
+    }
+
+    public static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    public static String ascii(byte[] bytes) {
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    // Send request over a loopback connection to a handler from factory, running on its own thread as in
+    // the server, and return everything it answered until it closed the connection
+    public static String exchange(HandlerFactory factory, String request) throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try (Socket client = new Socket(InetAddress.getLoopbackAddress(), server.socket().getLocalPort())) {
+                Thread handler = new Thread(factory.create(server.accept().socket()), "test-handler");
+                handler.start();
+                client.setSoTimeout(10000);
+                client.getOutputStream().write(ascii(request));
+                byte[] response = client.getInputStream().readAllBytes();
+                handler.join(10000);
+                return ascii(response);
+            }
+        }
+    }
+
+    // The value of a header in the first response of raw, null when it is missing
+    public static String header(String raw, String name) {
+        int end = raw.indexOf("\r\n\r\n");
+        for (String line : raw.substring(0, end < 0 ? raw.length() : end).split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).equalsIgnoreCase(name)) {
+                return line.substring(colon + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    // Everything after the first response head of raw
+    public static String body(String raw) throws IOException {
+        int end = raw.indexOf("\r\n\r\n");
+        if (end < 0) {
+            throw new IOException("No complete response head in: " + raw);
+        }
+        return raw.substring(end + 4);
+    }
+
+    // Decode a chunked body: { the data, what follows the last chunk and its trailer section }
+    public static String[] dechunk(String chunked) throws IOException {
+        StringBuilder data = new StringBuilder();
+        int position = 0;
+        while (true) {
+            int lineEnd = chunked.indexOf("\r\n", position);
+            if (lineEnd < 0) {
+                throw new IOException("Incomplete chunk size line");
+            }
+            String sizeLine = chunked.substring(position, lineEnd);
+            int semicolon = sizeLine.indexOf(';');
+            int size = Integer.parseInt(semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine, 16);
+            position = lineEnd + 2;
+            if (size == 0) {
+                int end = chunked.indexOf("\r\n\r\n", position - 2);
+                if (end < 0) {
+                    throw new IOException("Incomplete trailer section");
+                }
+                return new String[] { data.toString(), chunked.substring(end + 4) };
+            }
+            data.append(chunked, position, position + size);
+            position += size;
+            if (!chunked.startsWith("\r\n", position)) {
+                throw new IOException("Chunk not followed by CRLF");
+            }
+            position += 2;
+        }
+    }
+}
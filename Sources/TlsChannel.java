@@ -0,0 +1,205 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * The TlsChannel class runs TLS over a non-blocking SocketChannel with an SSLEngine, for the NIO
+ * event loop. It is a ByteChannel of plaintext, so the request parser reads from it and queued
+ * responses (bytes, mapped files, file regions via transferTo) are written to it as to the socket.
+ * The handshake needs no thread of its own: it advances inside read() as records arrive, with the
+ * engine's delegated tasks run inline. Received records, decrypted data and encrypted output each
+ * have one buffer, allocated at the engine's sizes when the connection opens and reused for every
+ * record. Neither call blocks: read() returns 0 until more records arrive, and write() returns 0
+ * while earlier ciphertext is still waiting for the socket (flush() sends it on write readiness).
+ */
+public class TlsChannel implements ByteChannel {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    // Received ciphertext not yet decrypted, decrypted data not yet read, and ciphertext not yet
+    // sent; all three are kept ready for filling (data from 0 to position)
+    private final ByteBuffer netIn;
+    private ByteBuffer appIn;
+    private final ByteBuffer netOut;
+    private boolean inputEnded;
+    private boolean closed;
+
+    public TlsChannel(SocketChannel channel, SSLEngine engine) {
+        this(channel, engine, engine.getSession().getApplicationBufferSize());
+    }
+
+    // With a decrypted data buffer of the given size to start with; tests make it small to see it grow
+    TlsChannel(SocketChannel channel, SSLEngine engine, int applicationBufferSize) {
+        this.channel = channel;
+        this.engine = engine;
+        int packetSize = engine.getSession().getPacketBufferSize();
+        this.netIn = ByteBuffer.allocateDirect(packetSize);
+        this.netOut = ByteBuffer.allocateDirect(packetSize);
+        this.appIn = ByteBuffer.allocate(applicationBufferSize);
+    }
+
+    // Plaintext into dst: 0 when a whole record has not arrived yet (or the handshake is still in
+    // progress), -1 once the client has closed the connection
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        while (appIn.position() == 0) {
+            if (inputEnded || !flush()) {
+                return inputEnded ? -1 : 0; // Handshake messages wait for write readiness first
+            }
+            SSLEngineResult.HandshakeStatus handshake = engine.getHandshakeStatus();
+            if (handshake == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+                continue;
+            }
+            if (handshake == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                if (engine.wrap(EMPTY, netOut).getStatus() == SSLEngineResult.Status.CLOSED) {
+                    inputEnded = true;
+                }
+                continue;
+            }
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    // Not a whole record: read more, unless a larger one than expected needs room first
+                    if (!netIn.hasRemaining()) {
+                        throw new SSLException("TLS record larger than " + netIn.capacity() + " bytes");
+                    }
+                    int n = channel.read(netIn);
+                    if (n < 0) {
+                        inputEnded = true;
+                        try {
+                            engine.closeInbound(); // Fails when the client did not send close_notify
+                        } catch (SSLException e) {
+                            ServerLog.debug("TLS connection closed without close_notify");
+                        }
+                        return -1;
+                    }
+                    if (n == 0) {
+                        return 0;
+                    }
+                    break;
+                case BUFFER_OVERFLOW:
+                    // The session's application buffer size grew (it can after the handshake)
+                    ByteBuffer larger = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+                    appIn.flip();
+                    larger.put(appIn);
+                    appIn = larger;
+                    break;
+                case CLOSED:
+                    inputEnded = true; // close_notify received; ours is sent by close()
+                    flush();
+                    return -1;
+                default:
+                    break;
+            }
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        appIn.flip();
+        int n = Math.min(appIn.remaining(), dst.remaining());
+        int limit = appIn.limit();
+        appIn.limit(appIn.position() + n);
+        dst.put(appIn);
+        appIn.limit(limit);
+        appIn.compact();
+        return n;
+    }
+
+    // Encrypt as much of src as the socket takes now; returns the plaintext bytes consumed, which
+    // may already be encrypted but still waiting in the output buffer (see flush())
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        int consumed = 0;
+        while (src.hasRemaining() && flush()) {
+            SSLEngineResult result = engine.wrap(src, netOut);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("TLS connection already closed");
+            }
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+            }
+            consumed += result.bytesConsumed();
+            if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                break; // The engine wants handshake input first; read() takes care of it
+            }
+        }
+        flush();
+        return consumed;
+    }
+
+    // Send pending ciphertext; true once none is left
+    public boolean flush() throws IOException {
+        if (netOut.position() > 0) {
+            netOut.flip();
+            try {
+                channel.write(netOut);
+            } finally {
+                netOut.compact();
+            }
+        }
+        return netOut.position() == 0;
+    }
+
+    public boolean hasPendingOutput() {
+        return netOut.position() > 0;
+    }
+
+    // Whether data is held that read() returns without the socket becoming readable again:
+    // decrypted bytes, or at least one whole record
+    public boolean hasBufferedInput() {
+        if (appIn.position() > 0) {
+            return true;
+        }
+        int length = netIn.position();
+        return length >= 5 && length >= 5 + ((netIn.get(3) & 0xff) << 8 | netIn.get(4) & 0xff);
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    // Send close_notify as far as the socket takes it without waiting, then close the socket
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            engine.closeOutbound();
+            if (flush()) {
+                engine.wrap(EMPTY, netOut);
+                flush();
+            }
+        } catch (IOException e) {
+            ServerLog.debug("Could not send TLS close_notify: " + e.getMessage());
+        } finally {
+            channel.close();
+        }
+    }
+}
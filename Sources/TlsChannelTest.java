@@ -0,0 +1,536 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * This class tests the TlsChannel class against a client SSLEngine over a loopback connection, with a
+ * self-signed certificate made by the test: the handshake in TLS 1.3 and 1.2, data read and written
+ * across record boundaries and from records that arrive in pieces, the regrowth of a decrypted data
+ * buffer too small for a record, and close_notify both ways. It also tests TlsContext on a blocking
+ * ClientHandler: a request over an SSLSocket, and a second connection resuming the first one's session.
+ */
+public class TlsChannelTest {
+
+    private static final String[] PROTOCOLS = { "TLSv1.3", "TLSv1.2" };
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static SSLContext serverContext;
+    // Trusts the test's certificate only
+    private static SSLContext clientContext;
+
+    public static void main(String[] args) throws Exception {
+        createContexts();
+        TestSupport.run("handshake and exchange", TlsChannelTest::testHandshake);
+        TestSupport.run("data across record boundaries", TlsChannelTest::testRecordBoundaries);
+        TestSupport.run("decrypted data buffer grows", TlsChannelTest::testBufferOverflow);
+        TestSupport.run("close_notify from the client", TlsChannelTest::testClientCloseNotify);
+        TestSupport.run("close_notify from the server", TlsChannelTest::testServerCloseNotify);
+        TestSupport.run("connection closed without close_notify", TlsChannelTest::testTruncatedClose);
+        TestSupport.run("ClientHandler session resumption", TlsChannelTest::testSessionResumption);
+        TestSupport.finish("TlsChannelTest");
+    }
+
+    static void testHandshake() throws Exception {
+        for (String protocol : PROTOCOLS) {
+            try (Connection connection = new Connection(protocol)) {
+                FutureTask<String> client = connection.client(engine -> {
+                    engine.handshake();
+                    engine.write(TestSupport.ascii("ping"), 16384, false);
+                    return TestSupport.ascii(engine.read(4)) + " " + engine.engine.getSession().getProtocol();
+                });
+                TestSupport.assertEquals("ping", TestSupport.ascii(connection.read(4, 1024)), protocol + " request");
+                connection.write(TestSupport.ascii("pong"));
+                TestSupport.assertEquals("pong " + protocol, client.get(10, TimeUnit.SECONDS), "response and protocol");
+            }
+        }
+    }
+
+    // The client's records arrive split in pieces and are read through a buffer smaller than a record;
+    // the server's reply spans several records and more than the socket takes at once
+    static void testRecordBoundaries() throws Exception {
+        byte[] request = pattern(50000, 7);
+        byte[] response = pattern(300000, 3);
+        try (Connection connection = new Connection("TLSv1.3")) {
+            FutureTask<byte[]> client = connection.client(engine -> {
+                engine.handshake();
+                engine.write(request, 5000, true);
+                return engine.read(response.length);
+            });
+            TestSupport.assertArrayEquals(request, connection.read(request.length, 777), "request");
+            connection.write(response);
+            TestSupport.assertArrayEquals(response, client.get(10, TimeUnit.SECONDS), "response");
+        }
+    }
+
+    // A record larger than the decrypted data buffer: unwrap answers BUFFER_OVERFLOW and the buffer
+    // is replaced by one of the session's application buffer size
+    static void testBufferOverflow() throws Exception {
+        byte[] request = pattern(16384, 5);
+        try (Connection connection = new Connection("TLSv1.3", 256)) {
+            FutureTask<byte[]> client = connection.client(engine -> {
+                engine.handshake();
+                engine.write(request, request.length, false);
+                return engine.read(2);
+            });
+            TestSupport.assertArrayEquals(request, connection.read(request.length, 65536), "whole record");
+            connection.write(TestSupport.ascii("ok"));
+            TestSupport.assertEquals("ok", TestSupport.ascii(client.get(10, TimeUnit.SECONDS)), "response");
+        }
+    }
+
+    // read() returns -1 from the client's close_notify on; closing the channel, as the NIO server then
+    // does, answers with the server's own (TLS 1.3 leaves the other direction open until then)
+    static void testClientCloseNotify() throws Exception {
+        for (String protocol : PROTOCOLS) {
+            try (Connection connection = new Connection(protocol)) {
+                FutureTask<Boolean> client = connection.client(engine -> {
+                    engine.handshake();
+                    engine.write(TestSupport.ascii("bye"), 16384, false);
+                    engine.closeOutbound();
+                    return engine.readCloseNotify();
+                });
+                TestSupport.assertEquals("bye", TestSupport.ascii(connection.read(3, 1024)),
+                        "data before close_notify");
+                TestSupport.assertEquals(-1, connection.readUntilEnd(), protocol + " end of input");
+                TestSupport.assertEquals(-1, connection.readUntilEnd(), "end of input again");
+                connection.tls.close();
+                TestSupport.assertTrue(client.get(10, TimeUnit.SECONDS), "close_notify answered");
+            }
+        }
+    }
+
+    // close() sends close_notify before closing the socket; the channel takes no more writes
+    static void testServerCloseNotify() throws Exception {
+        try (Connection connection = new Connection("TLSv1.2")) {
+            FutureTask<Boolean> client = connection.client(engine -> {
+                engine.handshake();
+                engine.write(TestSupport.ascii("hi"), 16384, false);
+                return engine.readCloseNotify();
+            });
+            connection.read(2, 1024);
+            connection.tls.close();
+            TestSupport.assertTrue(!connection.tls.isOpen(), "closed");
+            TestSupport.assertTrue(client.get(10, TimeUnit.SECONDS), "close_notify received");
+            ByteBuffer more = ByteBuffer.wrap(TestSupport.ascii("x"));
+            TestSupport.assertThrows(ClosedChannelException.class, () -> connection.tls.write(more),
+                    "write after close");
+        }
+    }
+
+    // The client drops the connection without close_notify: the end of input is reported all the same
+    static void testTruncatedClose() throws Exception {
+        try (Connection connection = new Connection("TLSv1.3")) {
+            FutureTask<Boolean> client = connection.client(engine -> {
+                engine.handshake();
+                engine.write(TestSupport.ascii("cut"), 16384, false);
+                engine.read(2); // Unread input, such as a session ticket, would make the close a reset
+                engine.channel.close();
+                return true;
+            });
+            TestSupport.assertEquals("cut", TestSupport.ascii(connection.read(3, 1024)), "data");
+            connection.write(TestSupport.ascii("ok"));
+            client.get(10, TimeUnit.SECONDS);
+            TestSupport.assertEquals(-1, connection.readUntilEnd(), "end of input");
+        }
+    }
+
+    // Blocking connections share TlsContext's SSLContext, whose session cache (TLS 1.2) or tickets
+    // (TLS 1.3) let a returning client skip the full handshake
+    static void testSessionResumption() throws Exception {
+        Path root = Files.createTempDirectory("tls");
+        Path page = Files.write(root.resolve("index.html"), TestSupport.ascii("<p>secure</p>"));
+        TlsContext tls = new TlsContext(serverContext, PROTOCOLS);
+        try {
+            for (String protocol : PROTOCOLS) {
+                try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+                    SSLSession first = get(server, tls, root, protocol);
+                    SSLSession second = get(server, tls, root, protocol);
+                    TestSupport.assertEquals(protocol, second.getProtocol(), "protocol");
+                    if (protocol.equals("TLSv1.2")) {
+                        TestSupport.assertArrayEquals(first.getId(), second.getId(), "TLS 1.2 session ID reused");
+                    } else {
+                        // A resumed TLS 1.3 session gets a new ID but keeps the original's creation time
+                        TestSupport.assertEquals(first.getCreationTime(), second.getCreationTime(),
+                                "TLS 1.3 session resumed");
+                    }
+                }
+            }
+        } finally {
+            Files.delete(page);
+            Files.delete(root);
+        }
+    }
+
+    // GET / over a new SSLSocket to a ClientHandler on the next connection server accepts; returns the session
+    private static SSLSession get(ServerSocket server, TlsContext tls, Path root, String protocol) throws Exception {
+        try (SSLSocket socket = (SSLSocket) clientContext.getSocketFactory()
+                .createSocket(InetAddress.getLoopbackAddress(), server.getLocalPort())) {
+            ClientHandler handler = new ClientHandler(server.accept(), root.toString(), "index.html");
+            handler.setTls(tls);
+            Thread thread = new Thread(handler, "test-tls-handler");
+            thread.start();
+            socket.setEnabledProtocols(new String[] { protocol });
+            socket.setSoTimeout(10000);
+            socket.getOutputStream()
+                    .write(TestSupport.ascii("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"));
+            String response = TestSupport.ascii(socket.getInputStream().readAllBytes());
+            thread.join(10000);
+            TestSupport.assertTrue(response.startsWith("HTTP/1.1 200 "), "status: " + response);
+            TestSupport.assertEquals("<p>secure</p>", TestSupport.body(response), "body");
+            return socket.getSession();
+        }
+    }
+
+    // A loopback connection: the server end non-blocking under a TlsChannel with an engine from
+    // TlsContext, as the NIO server sets it up, the client end blocking under an EngineClient
+    private static class Connection implements AutoCloseable {
+        final SocketChannel serverChannel;
+        final TlsChannel tls;
+        final EngineClient client;
+        private Thread clientThread;
+
+        Connection(String protocol) throws IOException {
+            this(protocol, 0);
+        }
+
+        Connection(String protocol, int applicationBufferSize) throws IOException {
+            try (ServerSocketChannel server = ServerSocketChannel.open()) {
+                server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                SocketChannel clientChannel = SocketChannel.open(server.getLocalAddress());
+                clientChannel.socket().setTcpNoDelay(true);
+                serverChannel = server.accept();
+                serverChannel.configureBlocking(false);
+                client = new EngineClient(clientChannel, protocol);
+            }
+            SSLEngine engine = new TlsContext(serverContext, PROTOCOLS).newEngine();
+            tls = applicationBufferSize > 0 ? new TlsChannel(serverChannel, engine, applicationBufferSize)
+                    : new TlsChannel(serverChannel, engine);
+        }
+
+        interface ClientScript<T> {
+            T run(EngineClient engine) throws Exception;
+        }
+
+        // Run the client's side of the test on a thread of its own while the test thread serves
+        <T> FutureTask<T> client(ClientScript<T> script) {
+            Callable<T> callable = () -> script.run(client);
+            FutureTask<T> task = new FutureTask<>(callable);
+            clientThread = new Thread(task, "test-tls-client");
+            clientThread.setDaemon(true);
+            clientThread.start();
+            return task;
+        }
+
+        // Read length bytes of plaintext from the TlsChannel, bufferSize bytes at most per call
+        byte[] read(int length, int bufferSize) throws Exception {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (data.size() < length) {
+                buffer.clear();
+                int n = tls.read(buffer);
+                if (n < 0) {
+                    throw new EOFException("Input ended after " + data.size() + " bytes");
+                }
+                data.write(buffer.array(), 0, n);
+                if (n == 0) {
+                    waitFor(deadline);
+                }
+            }
+            return data.toByteArray();
+        }
+
+        // Read until the TlsChannel returns something other than 0: -1 at the end of input
+        int readUntilEnd() throws Exception {
+            ByteBuffer buffer = ByteBuffer.allocate(1024);
+            long deadline = System.currentTimeMillis() + 10000;
+            int n;
+            while ((n = tls.read(buffer)) == 0) {
+                waitFor(deadline);
+            }
+            return n;
+        }
+
+        // Write all of data through the TlsChannel and send the last record
+        void write(byte[] data) throws Exception {
+            ByteBuffer src = ByteBuffer.wrap(data);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (src.hasRemaining() || !tls.flush()) {
+                if (tls.write(src) == 0) {
+                    waitFor(deadline); // The client has not taken the records sent so far
+                }
+            }
+        }
+
+        private void waitFor(long deadline) throws Exception {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("Timed out waiting for the client");
+            }
+            Thread.sleep(1);
+        }
+
+        @Override
+        public void close() throws IOException {
+            tls.close();
+            client.channel.close();
+            if (clientThread != null) {
+                try {
+                    clientThread.join(10000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    // A client SSLEngine over a blocking channel, driven step by step by the test
+    private static class EngineClient {
+        final SocketChannel channel;
+        final SSLEngine engine;
+        private final ByteBuffer netIn;
+        private final ByteBuffer netOut;
+        private ByteBuffer appIn;
+
+        EngineClient(SocketChannel channel, String protocol) {
+            this.channel = channel;
+            this.engine = clientContext.createSSLEngine("localhost", 443);
+            engine.setUseClientMode(true);
+            engine.setEnabledProtocols(new String[] { protocol });
+            SSLSession session = engine.getSession();
+            netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+            netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+            appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+        }
+
+        void handshake() throws IOException {
+            engine.beginHandshake();
+            while (true) {
+                switch (engine.getHandshakeStatus()) {
+                    case NEED_WRAP:
+                        wrap(EMPTY, false);
+                        break;
+                    case NEED_UNWRAP:
+                        unwrap();
+                        break;
+                    case NEED_TASK:
+                        runTasks();
+                        break;
+                    default:
+                        return;
+                }
+            }
+        }
+
+        // Send data in records of at most recordSize bytes; with split, each record's ciphertext goes
+        // out in two writes with a pause between them, so the server sees it arrive in pieces
+        void write(byte[] data, int recordSize, boolean split) throws IOException {
+            for (int offset = 0; offset < data.length; offset += recordSize) {
+                ByteBuffer record = ByteBuffer.wrap(data, offset, Math.min(recordSize, data.length - offset));
+                while (record.hasRemaining()) {
+                    wrap(record, split);
+                }
+            }
+        }
+
+        // Plaintext until length bytes have arrived
+        byte[] read(int length) throws IOException {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            while (data.size() < length) {
+                SSLEngineResult result = unwrap();
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new EOFException("close_notify after " + data.size() + " bytes");
+                }
+                appIn.flip();
+                data.write(appIn.array(), 0, appIn.limit());
+                appIn.clear();
+            }
+            return data.toByteArray();
+        }
+
+        void closeOutbound() throws IOException {
+            engine.closeOutbound();
+            while (!engine.isOutboundDone()) {
+                wrap(EMPTY, false);
+            }
+        }
+
+        // Whether the server's close_notify arrives (rather than the end of the connection)
+        boolean readCloseNotify() throws IOException {
+            try {
+                while (unwrap().getStatus() != SSLEngineResult.Status.CLOSED) {
+                    appIn.clear(); // Data the test does not look at
+                }
+                return engine.isInboundDone();
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        private void wrap(ByteBuffer src, boolean split) throws IOException {
+            netOut.clear();
+            SSLEngineResult result = engine.wrap(src, netOut);
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+            }
+            netOut.flip();
+            if (split && netOut.remaining() > 1) {
+                int limit = netOut.limit();
+                netOut.limit(netOut.position() + netOut.remaining() / 3);
+                writeFully(netOut);
+                netOut.limit(limit);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            writeFully(netOut);
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        // Decrypt the next record into appIn, reading from the channel as needed
+        private SSLEngineResult unwrap() throws IOException {
+            while (true) {
+                netIn.flip();
+                SSLEngineResult result;
+                try {
+                    result = engine.unwrap(netIn, appIn);
+                } finally {
+                    netIn.compact();
+                }
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                }
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        if (channel.read(netIn) < 0) {
+                            throw new EOFException("Connection closed");
+                        }
+                        break;
+                    case BUFFER_OVERFLOW:
+                        ByteBuffer larger = ByteBuffer.allocate(appIn.capacity() * 2);
+                        appIn.flip();
+                        larger.put(appIn);
+                        appIn = larger;
+                        break;
+                    default:
+                        return result;
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    // A server context with a new EC key and a self-signed certificate for it, and a client context
+    // trusting that certificate. The certificate is a minimal X.509 v1 one, encoded here in DER.
+    private static void createContexts() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+        KeyPair keys = generator.generateKeyPair();
+        // ecdsa-with-SHA256 (1.2.840.10045.4.3.2) and the name CN=localhost
+        byte[] algorithm = der(0x30,
+                new byte[] { 0x06, 0x08, 0x2a, (byte) 0x86, 0x48, (byte) 0xce, 0x3d, 0x04, 0x03, 0x02 });
+        byte[] name = der(0x30, der(0x31, der(0x30, new byte[] { 0x06, 0x03, 0x55, 0x04, 0x03 },
+                der(0x0c, TestSupport.ascii("localhost")))));
+        SimpleDateFormat utcTime = new SimpleDateFormat("yyMMddHHmmss'Z'");
+        utcTime.setTimeZone(TimeZone.getTimeZone("UTC"));
+        long now = System.currentTimeMillis();
+        byte[] validity = der(0x30, der(0x17, TestSupport.ascii(utcTime.format(new Date(now - 3600000)))),
+                der(0x17, TestSupport.ascii(utcTime.format(new Date(now + 86400000)))));
+        byte[] certificateInfo = der(0x30, der(0x02, new byte[] { 1 }), algorithm, name, validity, name,
+                keys.getPublic().getEncoded());
+        Signature signer = Signature.getInstance("SHA256withECDSA");
+        signer.initSign(keys.getPrivate());
+        signer.update(certificateInfo);
+        byte[] signature = signer.sign();
+        byte[] bits = new byte[signature.length + 1]; // No unused bits
+        System.arraycopy(signature, 0, bits, 1, signature.length);
+        Certificate certificate = CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(der(0x30, certificateInfo, algorithm, der(0x03, bits))));
+
+        char[] password = "test".toCharArray();
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("server", keys.getPrivate(), password, new Certificate[] { certificate });
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, password);
+        serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagers.getKeyManagers(), null, null);
+
+        KeyStore trustStore = KeyStore.getInstance("PKCS12");
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry("server", certificate);
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(trustStore);
+        clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, trustManagers.getTrustManagers(), null);
+    }
+
+    // A DER element: tag, definite length, then the contents
+    private static byte[] der(int tag, byte[]... contents) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (byte[] content : contents) {
+            body.write(content, 0, content.length);
+        }
+        int length = body.size();
+        ByteArrayOutputStream element = new ByteArrayOutputStream(length + 4);
+        element.write(tag);
+        if (length >= 256) {
+            element.write(0x82);
+            element.write(length >> 8);
+        } else if (length >= 128) {
+            element.write(0x81);
+        }
+        element.write(length);
+        element.write(body.toByteArray(), 0, length);
+        return element.toByteArray();
+    }
+
+    private static byte[] pattern(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * seed + i / 251);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,170 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * The TlsContext class terminates TLS in the server itself. It loads the server certificate and key
+ * from the keystore named in config.ini and holds the one SSLContext all HTTPS connections share, so
+ * its server-side session cache (tlsSessionCacheSize sessions kept for tlsSessionTimeout seconds) lets
+ * a returning client resume with an abbreviated handshake. With tlsSessionTickets the session state
+ * is instead sent to the client in an encrypted ticket, and resumption works without a cache entry.
+ * Blocking connections (classic and virtual modes) get an SSLSocket layered over the accepted socket,
+ * NIO connections an SSLEngine, which TlsChannel drives. "h2" is offered by ALPN to blocking
+ * connections when HTTP/2 is enabled; NIO connections speak HTTP/1.1 only.
+ */
+public class TlsContext {
+
+    // Plaintext gathered into one record-sized write on a blocking TLS connection
+    private static final int RECORD_SIZE = 16 * 1024;
+    private static final String[] ALPN_HTTP1 = { "http/1.1" };
+    private static final String[] ALPN_HTTP2 = { "h2", "http/1.1" };
+
+    private final SSLContext sslContext;
+    private final SSLSocketFactory socketFactory;
+    private final String[] protocols;
+
+    public TlsContext(SSLContext sslContext, String[] protocols) {
+        this.sslContext = sslContext;
+        this.socketFactory = sslContext.getSocketFactory();
+        this.protocols = protocols;
+    }
+
+    // The context described by a configuration, or null (TLS disabled) when tlsPort is 0 or the
+    // keystore file does not exist
+    public static TlsContext fromConfig(ConfigLoader config) throws IOException {
+        if (config.getTlsPort() <= 0) {
+            return null;
+        }
+        if (!Files.isRegularFile(Paths.get(config.getKeyStore()))) {
+            ServerLog.info("TLS disabled: keystore " + config.getKeyStore() + " not found (keystore.sh creates one)");
+            return null;
+        }
+        // Read by the JDK when the first SSLContext is set up, so it is set before that
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension", String.valueOf(config.isTlsSessionTickets()));
+        char[] password = config.getKeyStorePassword().toCharArray();
+        try (InputStream in = new FileInputStream(config.getKeyStore())) {
+            KeyStore keyStore = KeyStore.getInstance(config.getKeyStoreType());
+            keyStore.load(in, password);
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, password);
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagers.getKeyManagers(), null, null);
+            SSLSessionContext sessions = sslContext.getServerSessionContext();
+            sessions.setSessionCacheSize(config.getTlsSessionCacheSize());
+            sessions.setSessionTimeout(config.getTlsSessionTimeout());
+            return new TlsContext(sslContext, config.getTlsProtocols().split("\\s*,\\s*"));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not load keystore " + config.getKeyStore() + ": " + e.getMessage(), e);
+        }
+    }
+
+    // A server-side TLS socket over an accepted connection; the handshake runs with the first read,
+    // on the thread that serves the connection. Closing it closes the underlying socket too.
+    public SSLSocket wrap(Socket socket, boolean offerHttp2) throws IOException {
+        SSLSocket tlsSocket = (SSLSocket) socketFactory.createSocket(socket, null, true); // Server mode
+        tlsSocket.setSSLParameters(parameters(tlsSocket.getSSLParameters(), offerHttp2 ? ALPN_HTTP2 : ALPN_HTTP1));
+        return tlsSocket;
+    }
+
+    // A server-side engine for a non-blocking connection
+    public SSLEngine newEngine() {
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setSSLParameters(parameters(engine.getSSLParameters(), ALPN_HTTP1));
+        return engine;
+    }
+
+    private SSLParameters parameters(SSLParameters parameters, String[] applicationProtocols) {
+        parameters.setProtocols(protocols);
+        parameters.setApplicationProtocols(applicationProtocols);
+        parameters.setUseCipherSuitesOrder(true);
+        return parameters;
+    }
+
+    // A channel over a TLS socket's streams, for a ChannelOutputStream: ClientHandler keeps its
+    // response batching and write watchdog, and headers and a small body leave in one record
+    public static GatheringByteChannel channel(SSLSocket socket) throws IOException {
+        return new SocketStreamChannel(socket);
+    }
+
+    // Gathering writes are copied into a staging array reused for the connection and sent a record
+    // at a time; a heap buffer on its own is written straight from its array
+    private static class SocketStreamChannel implements GatheringByteChannel {
+        private final SSLSocket socket;
+        private final OutputStream out;
+        private final byte[] staging = new byte[RECORD_SIZE];
+        private boolean open = true;
+
+        SocketStreamChannel(SSLSocket socket) throws IOException {
+            this.socket = socket;
+            this.out = socket.getOutputStream();
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return (int) write(new ByteBuffer[] { src }, 0, 1);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            if (length == 1 && srcs[offset].hasArray()) {
+                ByteBuffer src = srcs[offset];
+                int n = src.remaining();
+                out.write(src.array(), src.arrayOffset() + src.position(), n);
+                src.position(src.limit());
+                return n;
+            }
+            long written = 0;
+            int staged = 0;
+            for (int i = offset; i < offset + length; i++) {
+                ByteBuffer src = srcs[i];
+                while (src.hasRemaining()) {
+                    int n = Math.min(src.remaining(), staging.length - staged);
+                    src.get(staging, staged, n);
+                    staged += n;
+                    if (staged == staging.length) {
+                        out.write(staging, 0, staged);
+                        written += staged;
+                        staged = 0;
+                    }
+                }
+            }
+            if (staged > 0) {
+                out.write(staging, 0, staged);
+                written += staged;
+            }
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open && !socket.isClosed();
+        }
+
+        @Override
+        public void close() throws IOException {
+            open = false;
+            socket.close(); // Sends close_notify
+        }
+    }
+}
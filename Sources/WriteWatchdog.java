@@ -0,0 +1,60 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The WriteWatchdog class puts a time limit (writeTimeout) on blocking socket writes, which Java
+ * sockets do not offer themselves. Each connection's ChannelOutputStream records when its current
+ * write started; one daemon thread looks at all of them a few times per timeout period and closes
+ * the socket of a write that has been stuck longer than the limit, so a client that stops reading
+ * cannot hold a worker thread.
+ */
+public class WriteWatchdog {
+
+    private final long timeoutNanos;
+    private final Map<ChannelOutputStream, Socket> watched = new ConcurrentHashMap<>();
+
+    public WriteWatchdog(long writeTimeoutMillis) {
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+        long interval = Math.max(100, writeTimeoutMillis / 4);
+        Thread thread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                closeStalledWrites();
+            }
+        }, "write-watchdog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void watch(ChannelOutputStream out, Socket socket) {
+        watched.put(out, socket);
+    }
+
+    public void unwatch(ChannelOutputStream out) {
+        watched.remove(out);
+    }
+
+    private void closeStalledWrites() {
+        long now = System.nanoTime();
+        for (Map.Entry<ChannelOutputStream, Socket> entry : watched.entrySet()) {
+            long started = entry.getKey().getWriteStarted();
+            if (started != 0 && now - started > timeoutNanos) {
+                Socket socket = entry.getValue();
+                ServerLog.info("Write timed out, closing connection from " + socket.getInetAddress());
+                try {
+                    socket.close(); // The blocked write fails with an exception in its handler
+                } catch (IOException e) {
+                    ServerLog.error("Could not close stalled connection", e);
+                }
+                watched.remove(entry.getKey());
+            }
+        }
+    }
+}
@@ -0,0 +1,766 @@
+package benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * The LoadGenerator class is an end-to-end load and soak test. It starts the server in its own JVM on a
+ * free local port (serving www/lab/html by default), then drives it in stages of increasing connection
+ * counts with a mix of GET, HEAD and POST /params_info.html requests.
+ *
+ * Scheduling is open-loop: request n is due at start + n / rate no matter how long earlier requests
+ * took, and its latency is measured from that due time. When the server falls behind, the waiting time
+ * shows up in the latencies instead of silently lowering the request rate (coordinated omission).
+ *
+ * Results (throughput, error rate, p50/p90/p99/p99.9/max latency per stage) are printed and written as
+ * JSON. With --max-p99-ms or --max-error-rate the exit code is 1 when a stage exceeds the limit, so the
+ * run can gate a release.
+ *
+ * With --tls the requests go over HTTPS; the server started by the tool gets a throwaway self-signed
+ * keystore. Run with --keep-alive false to measure handshakes: "full" makes every connection do a
+ * full handshake, "resumed" lets the client resume the session it got from the server (TLS session
+ * cache or ticket). Comparing the connect rate and latencies with a plaintext run gives the cost of
+ * TLS for new connections; with keep-alive, the cost of encrypting the traffic itself.
+ *
+ *   java -cp benchmarks/target/benchmarks.jar benchmarks.LoadGenerator --rate 2000 --duration 30 \
+ *        --connections 4,10,20,50 --mix GET=80,HEAD=10,POST=10 --output loadtest.json
+ *   java -cp benchmarks/target/benchmarks.jar benchmarks.LoadGenerator --tls full --keep-alive false
+ */
+public final class LoadGenerator {
+
+    private static final byte[] FORM_BODY = "name=load&email=load%40example.com&message=hello+world"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private final Map<String, String> options;
+
+    private LoadGenerator(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+            String key = args[i].substring(2);
+            if (key.equals("help")) {
+                printUsage();
+                return;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for --" + key);
+            }
+            options.put(key, args[++i]);
+        }
+        System.exit(new LoadGenerator(options).run());
+    }
+
+    private static void printUsage() {
+        System.out.println("Options (defaults in brackets):\n"
+                + "  --rate <requests/s>          target arrival rate per stage [1000]\n"
+                + "  --duration <s>               measured time per stage [30]\n"
+                + "  --warmup <s>                 unrecorded run before the first stage [5]\n"
+                + "  --connections <n,n,...>      one stage per connection count [4,10,20,50]\n"
+                + "  --mix <M=w,...>              request mix by weight [GET=80,HEAD=10,POST=10]\n"
+                + "  --paths <p,...>              GET/HEAD targets [/,/images/image2.jpg]\n"
+                + "  --keep-alive <true|false>    reuse connections; false measures accept rate [true]\n"
+                + "  --tls <off|full|resumed>     HTTPS, with full or resumed handshakes on new connections [off]\n"
+                + "  --output <file>              JSON results [loadtest.json]\n"
+                + "  --max-p99-ms <ms>            fail (exit 1) if a stage's p99 is higher\n"
+                + "  --max-error-rate <fraction>  fail (exit 1) if a stage's error rate is higher\n"
+                + "Server started by the tool (omit --port):\n"
+                + "  --root <dir> [www/lab/html]  --server-mode <classic|nio|virtual> [classic]  --max-threads <n> [10]\n"
+                + "Existing server instead:\n"
+                + "  --host <host> [localhost]    --port <port>");
+    }
+
+    private String option(String key, String defaultValue) {
+        return options.getOrDefault(key, defaultValue);
+    }
+
+    private int run() throws Exception {
+        double rate = Double.parseDouble(option("rate", "1000"));
+        int duration = Integer.parseInt(option("duration", "30"));
+        int warmup = Integer.parseInt(option("warmup", "5"));
+        boolean keepAlive = Boolean.parseBoolean(option("keep-alive", "true"));
+        String host = option("host", "localhost");
+        String tlsMode = option("tls", "off");
+        TlsClient tls = tlsMode.equals("off") ? null : new TlsClient(tlsMode.equals("resumed"));
+        RequestMix mix = new RequestMix(option("mix", "GET=80,HEAD=10,POST=10"), option("paths", "/,/images/image2.jpg"));
+        List<Integer> stages = new ArrayList<>();
+        for (String count : option("connections", "4,10,20,50").split(",")) {
+            stages.add(Integer.parseInt(count.trim()));
+        }
+
+        Process server = null;
+        int port;
+        if (options.containsKey("port")) {
+            port = Integer.parseInt(options.get("port"));
+        } else {
+            port = freePort();
+            server = startServer(port, tls != null);
+        }
+
+        List<StageResult> results = new ArrayList<>();
+        try {
+            waitForServer(host, port, server);
+            if (warmup > 0) {
+                System.out.println("Warming up for " + warmup + " s...");
+                new Stage(host, port, stages.get(0), rate, warmup, keepAlive, mix, tls).run();
+            }
+            for (int connections : stages) {
+                System.out.println("Stage: " + connections + " connections, " + rate + " requests/s for " + duration + " s");
+                StageResult result = new Stage(host, port, connections, rate, duration, keepAlive, mix, tls).run();
+                results.add(result);
+                System.out.println("  " + result.summary());
+            }
+        } finally {
+            if (server != null) {
+                server.destroy();
+                if (!server.waitFor(5, TimeUnit.SECONDS)) {
+                    server.destroyForcibly();
+                }
+            }
+        }
+
+        String output = option("output", "loadtest.json");
+        writeJson(Paths.get(output), rate, duration, keepAlive, tlsMode, results);
+        System.out.println("Results written to " + output);
+        return checkLimits(results);
+    }
+
+    // Exit code for release gating: 1 when any stage breaks --max-p99-ms or --max-error-rate
+    private int checkLimits(List<StageResult> results) {
+        int exitCode = 0;
+        for (StageResult result : results) {
+            if (options.containsKey("max-p99-ms")
+                    && result.latencies.percentile(99) / 1e6 > Double.parseDouble(options.get("max-p99-ms"))) {
+                System.out.println("FAIL: p99 above limit with " + result.connections + " connections");
+                exitCode = 1;
+            }
+            if (options.containsKey("max-error-rate")
+                    && result.errorRate() > Double.parseDouble(options.get("max-error-rate"))) {
+                System.out.println("FAIL: error rate above limit with " + result.connections + " connections");
+                exitCode = 1;
+            }
+        }
+        return exitCode;
+    }
+
+    // The server runs in a separate JVM so it does not share heap, GC pauses or CPU time accounting with the load.
+    // With tls, port is its TLS port and its plaintext port is another free one.
+    private Process startServer(int port, boolean tls) throws IOException {
+        Path root = Paths.get(option("root", "www/lab/html")).toAbsolutePath();
+        if (!Files.isDirectory(root)) {
+            throw new IOException("Content root not found: " + root + " (run from the repository root or pass --root)");
+        }
+        Path workDir = Files.createTempDirectory("loadtest-server");
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        String tlsConfig = "tlsPort=0\n";
+        if (tls) {
+            createKeyStore(workDir);
+            tlsConfig = "tlsPort=" + port + "\nkeyStore=keystore.p12\nkeyStorePassword=changeit\n";
+            port = freePort();
+        }
+        String config = "port=" + port + "\n"
+                + tlsConfig
+                + "root=" + root.toString().replace("\\", "\\\\") + File.separator.replace("\\", "\\\\") + "\n"
+                + "defaultPage=index.html\n"
+                + "maxThreads=" + option("max-threads", "10") + "\n"
+                + "serverMode=" + option("server-mode", "classic") + "\n"
+                + "logLevel=ERROR\n"
+                + "accessLog=\n";
+        Files.write(workDir.resolve("config.ini"), config.getBytes(StandardCharsets.ISO_8859_1));
+        // The server classes are on our own class path; entries are made absolute since the server runs in workDir
+        StringBuilder classPath = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.append(classPath.length() > 0 ? File.pathSeparator : "").append(new File(entry).getAbsolutePath());
+        }
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", classPath.toString(), "ClassicWebServer")
+                .directory(workDir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(workDir.resolve("server.log").toFile());
+        System.out.println("Starting server on port " + port + " (log: " + workDir.resolve("server.log") + ")");
+        return builder.start();
+    }
+
+    // Self-signed server certificate, as keystore.sh makes it, with keytool from the running JDK
+    private static void createKeyStore(Path workDir) throws IOException {
+        String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "server", "-keyalg", "EC",
+                "-groupname", "secp256r1", "-validity", "30", "-dname", "CN=localhost",
+                "-keystore", "keystore.p12", "-storetype", "PKCS12", "-storepass", "changeit")
+                .directory(workDir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(workDir.resolve("keytool.log").toFile())
+                .start();
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException("keytool failed, see " + workDir.resolve("keytool.log"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while creating the keystore");
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void waitForServer(String host, int port, Process server) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(15);
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), 500);
+                return;
+            } catch (IOException e) {
+                if (server != null && !server.isAlive()) {
+                    throw new IOException("Server exited with code " + server.exitValue());
+                }
+                if (System.nanoTime() > deadline) {
+                    throw new IOException("Server did not accept connections on " + host + ":" + port);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static void writeJson(Path file, double rate, int duration, boolean keepAlive, String tls,
+            List<StageResult> results) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            out.println("{");
+            out.printf(Locale.ROOT, "  \"target_rate\": %.1f,%n", rate);
+            out.println("  \"duration_s\": " + duration + ",");
+            out.println("  \"keep_alive\": " + keepAlive + ",");
+            out.println("  \"tls\": \"" + tls + "\",");
+            out.println("  \"stages\": [");
+            for (int i = 0; i < results.size(); i++) {
+                out.print(results.get(i).toJson("    "));
+                out.println(i + 1 < results.size() ? "," : "");
+            }
+            out.println("  ]");
+            out.println("}");
+        }
+    }
+
+    // Client side of --tls. The server certificate is not checked: it is the throwaway self-signed one.
+    // Sessions are resumed through the client session cache of a shared SSLContext; for full
+    // handshakes every connection gets a context of its own, whose cache is empty.
+    private static final class TlsClient {
+        private static final TrustManager[] TRUST_ALL = { new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        } };
+
+        private final boolean resume;
+        private final SSLContext shared;
+
+        TlsClient(boolean resume) throws GeneralSecurityException {
+            this.resume = resume;
+            this.shared = newContext();
+        }
+
+        private static SSLContext newContext() throws GeneralSecurityException {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, TRUST_ALL, null);
+            return context;
+        }
+
+        // Handshake over a connected socket; the returned socket carries the requests
+        Socket wrap(Socket socket, String host, int port) throws IOException {
+            SSLContext context;
+            try {
+                context = resume ? shared : newContext();
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+            SSLSocket tlsSocket = (SSLSocket) context.getSocketFactory().createSocket(socket, host, port, true);
+            tlsSocket.startHandshake();
+            return tlsSocket;
+        }
+    }
+
+    // Weighted choice of method and target for each request, with the request bytes encoded once
+    private static final class RequestMix {
+        private final List<String> methods = new ArrayList<>();
+        private final List<byte[]> requests = new ArrayList<>();
+        private final List<Integer> cumulativeWeights = new ArrayList<>();
+        private int totalWeight;
+
+        RequestMix(String mix, String paths) {
+            String[] targets = paths.split(",");
+            for (String entry : mix.split(",")) {
+                String[] parts = entry.split("=");
+                String method = parts[0].trim().toUpperCase(Locale.ROOT);
+                int weight = Integer.parseInt(parts[1].trim());
+                if (method.equals("POST")) {
+                    add(method, post(), weight);
+                    continue;
+                }
+                if (!method.equals("GET") && !method.equals("HEAD")) {
+                    throw new IllegalArgumentException("Unsupported method in mix: " + method);
+                }
+                // The weight of a method is split evenly over the targets
+                for (String target : targets) {
+                    add(method, request(method, target.trim()), Math.max(1, weight / targets.length));
+                }
+            }
+        }
+
+        private void add(String method, byte[] request, int weight) {
+            totalWeight += weight;
+            methods.add(method);
+            requests.add(request);
+            cumulativeWeights.add(totalWeight);
+        }
+
+        private static byte[] request(String method, String target) {
+            return (method + " " + target + " HTTP/1.1\r\nHost: localhost\r\nUser-Agent: LoadGenerator\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+        }
+
+        private static byte[] post() {
+            byte[] head = ("POST /params_info.html HTTP/1.1\r\nHost: localhost\r\nUser-Agent: LoadGenerator\r\n"
+                    + "Content-Type: application/x-www-form-urlencoded\r\nContent-Length: " + FORM_BODY.length + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            byte[] request = new byte[head.length + FORM_BODY.length];
+            System.arraycopy(head, 0, request, 0, head.length);
+            System.arraycopy(FORM_BODY, 0, request, head.length, FORM_BODY.length);
+            return request;
+        }
+
+        int pick() {
+            int r = ThreadLocalRandom.current().nextInt(totalWeight);
+            for (int i = 0; i < cumulativeWeights.size(); i++) {
+                if (r < cumulativeWeights.get(i)) {
+                    return i;
+                }
+            }
+            return cumulativeWeights.size() - 1;
+        }
+    }
+
+    // One measured run at a fixed arrival rate over a fixed number of connections
+    private static final class Stage {
+        private final String host;
+        private final int port;
+        private final int connections;
+        private final boolean keepAlive;
+        private final RequestMix mix;
+        // Null for plaintext
+        private final TlsClient tls;
+        private final long intervalNanos;
+        private final long totalRequests;
+        private final AtomicLong nextRequest = new AtomicLong();
+        private long startNanos;
+
+        Stage(String host, int port, int connections, double rate, int seconds, boolean keepAlive, RequestMix mix,
+                TlsClient tls) {
+            this.host = host;
+            this.port = port;
+            this.connections = connections;
+            this.keepAlive = keepAlive;
+            this.mix = mix;
+            this.tls = tls;
+            this.intervalNanos = (long) (1_000_000_000L / rate);
+            this.totalRequests = (long) (rate * seconds);
+        }
+
+        StageResult run() throws InterruptedException {
+            Worker[] workers = new Worker[connections];
+            Thread[] threads = new Thread[connections];
+            startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50);
+            for (int i = 0; i < connections; i++) {
+                workers[i] = new Worker();
+                threads[i] = new Thread(workers[i], "load-" + i);
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            StageResult result = new StageResult(connections, totalRequests);
+            for (Worker worker : workers) {
+                result.add(worker);
+            }
+            result.elapsedNanos = result.lastCompletion - startNanos;
+            return result;
+        }
+
+        // Takes the next due request from the shared schedule, so at most `connections` requests are in flight
+        private final class Worker implements Runnable {
+            private final Histogram latencies = new Histogram();
+            private final Map<String, long[]> perMethod = new LinkedHashMap<>(); // method -> {requests, errors}
+            private long errors;
+            private long connectionsOpened;
+            private long lastCompletion;
+            private Socket socket;
+            private InputStream in;
+            private OutputStream out;
+
+            @Override
+            public void run() {
+                long n;
+                while ((n = nextRequest.getAndIncrement()) < totalRequests) {
+                    long due = startNanos + n * intervalNanos;
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    int choice = mix.pick();
+                    String method = mix.methods.get(choice);
+                    boolean ok = send(mix.requests.get(choice), method.equals("HEAD"));
+                    long done = System.nanoTime();
+                    // Latency from the due time, including any wait for a free connection
+                    latencies.record(done - due);
+                    lastCompletion = done;
+                    long[] counts = perMethod.computeIfAbsent(method, m -> new long[2]);
+                    counts[0]++;
+                    if (!ok) {
+                        counts[1]++;
+                        errors++;
+                    }
+                }
+                closeConnection();
+            }
+
+            // Send one request and read the complete response; false on an error status or I/O failure
+            private boolean send(byte[] request, boolean head) {
+                try {
+                    if (socket == null) {
+                        socket = new Socket();
+                        socket.setTcpNoDelay(true);
+                        socket.setSoTimeout(10_000);
+                        socket.connect(new InetSocketAddress(host, port), 10_000);
+                        if (tls != null) {
+                            socket = tls.wrap(socket, host, port);
+                        }
+                        in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+                        out = new BufferedOutputStream(socket.getOutputStream(), 8 * 1024);
+                        connectionsOpened++;
+                    }
+                    out.write(request);
+                    out.flush();
+                    ResponseHead response = ResponseHead.read(in);
+                    if (head || response.contentLength == 0) {
+                        // No body
+                    } else if (response.chunked) {
+                        skipChunked(in);
+                    } else if (response.contentLength > 0) {
+                        skipFully(in, response.contentLength);
+                    } else {
+                        while (in.skip(Long.MAX_VALUE) > 0 || in.read() >= 0) {
+                            // Body delimited by the end of the connection
+                        }
+                        response.close = true;
+                    }
+                    if (response.close || !keepAlive) {
+                        closeConnection();
+                    }
+                    return response.status >= 200 && response.status < 400;
+                } catch (IOException e) {
+                    closeConnection();
+                    return false;
+                }
+            }
+
+            private void closeConnection() {
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        // Already broken
+                    }
+                    socket = null;
+                }
+            }
+        }
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new IOException("Connection closed in the middle of a response body");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    // Skip a chunked body (dynamic pages such as the POST answer), trailer section included
+    private static void skipChunked(InputStream in) throws IOException {
+        while (true) {
+            String sizeLine = ResponseHead.readLine(in);
+            if (sizeLine == null) {
+                throw new IOException("Connection closed in the middle of a chunked body");
+            }
+            int semicolon = sizeLine.indexOf(';');
+            long size;
+            try {
+                size = Long.parseLong((semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad chunk size line: " + sizeLine);
+            }
+            if (size == 0) {
+                String trailer;
+                while ((trailer = ResponseHead.readLine(in)) != null && !trailer.isEmpty()) {
+                    // Trailer fields are not needed
+                }
+                if (trailer == null) {
+                    throw new IOException("Connection closed in the middle of a chunked body");
+                }
+                return;
+            }
+            skipFully(in, size);
+            if (!"".equals(ResponseHead.readLine(in))) {
+                throw new IOException("Chunk not followed by CRLF");
+            }
+        }
+    }
+
+    // Status line and the headers that decide how the body is framed
+    private static final class ResponseHead {
+        int status;
+        long contentLength = -1;
+        boolean chunked;
+        boolean close;
+
+        static ResponseHead read(InputStream in) throws IOException {
+            ResponseHead head = new ResponseHead();
+            String statusLine = readLine(in);
+            if (statusLine == null || statusLine.length() < 12) {
+                throw new IOException("Bad status line: " + statusLine);
+            }
+            head.status = Integer.parseInt(statusLine.substring(9, 12));
+            head.close = statusLine.startsWith("HTTP/1.0");
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    head.contentLength = Long.parseLong(value);
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    // Chunked is always the last coding; it frames the body instead of Content-Length
+                    head.chunked = value.toLowerCase().endsWith("chunked");
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    head.close = value.equalsIgnoreCase("close");
+                }
+            }
+            if (line == null) {
+                throw new IOException("Connection closed in the middle of response headers");
+            }
+            return head;
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder(64);
+            int c;
+            while ((c = in.read()) >= 0) {
+                if (c == '\n') {
+                    int length = line.length();
+                    if (length > 0 && line.charAt(length - 1) == '\r') {
+                        line.setLength(length - 1);
+                    }
+                    return line.toString();
+                }
+                line.append((char) c);
+            }
+            return line.length() == 0 ? null : line.toString();
+        }
+    }
+
+    private static final class StageResult {
+        final int connections;
+        final long scheduled;
+        final Histogram latencies = new Histogram();
+        final Map<String, long[]> perMethod = new LinkedHashMap<>();
+        long errors;
+        long connectionsOpened;
+        long lastCompletion;
+        long elapsedNanos;
+
+        StageResult(int connections, long scheduled) {
+            this.connections = connections;
+            this.scheduled = scheduled;
+        }
+
+        void add(Stage.Worker worker) {
+            latencies.add(worker.latencies);
+            errors += worker.errors;
+            connectionsOpened += worker.connectionsOpened;
+            lastCompletion = Math.max(lastCompletion, worker.lastCompletion);
+            for (Map.Entry<String, long[]> entry : worker.perMethod.entrySet()) {
+                long[] counts = perMethod.computeIfAbsent(entry.getKey(), m -> new long[2]);
+                counts[0] += entry.getValue()[0];
+                counts[1] += entry.getValue()[1];
+            }
+        }
+
+        double seconds() {
+            return Math.max(elapsedNanos, 1) / 1e9;
+        }
+
+        double errorRate() {
+            return latencies.count() == 0 ? 0 : (double) errors / latencies.count();
+        }
+
+        String summary() {
+            return String.format(Locale.ROOT,
+                    "%d requests, %.0f req/s, %.0f connects/s, errors %.3f%%, p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms",
+                    latencies.count(), latencies.count() / seconds(), connectionsOpened / seconds(), errorRate() * 100,
+                    latencies.percentile(50) / 1e6, latencies.percentile(99) / 1e6,
+                    latencies.percentile(99.9) / 1e6, latencies.max() / 1e6);
+        }
+
+        String toJson(String indent) {
+            StringBuilder json = new StringBuilder();
+            json.append(indent).append("{\n");
+            field(json, indent, "connections", String.valueOf(connections));
+            field(json, indent, "scheduled_requests", String.valueOf(scheduled));
+            field(json, indent, "completed_requests", String.valueOf(latencies.count()));
+            field(json, indent, "errors", String.valueOf(errors));
+            field(json, indent, "error_rate", String.format(Locale.ROOT, "%.6f", errorRate()));
+            field(json, indent, "elapsed_s", String.format(Locale.ROOT, "%.3f", seconds()));
+            field(json, indent, "throughput_rps", String.format(Locale.ROOT, "%.1f", latencies.count() / seconds()));
+            field(json, indent, "connections_opened", String.valueOf(connectionsOpened));
+            field(json, indent, "connect_rate", String.format(Locale.ROOT, "%.1f", connectionsOpened / seconds()));
+            json.append(indent).append("  \"latency_us\": {");
+            json.append(String.format(Locale.ROOT, "\"p50\": %d, \"p90\": %d, \"p99\": %d, \"p99_9\": %d, \"max\": %d",
+                    latencies.percentile(50) / 1000, latencies.percentile(90) / 1000, latencies.percentile(99) / 1000,
+                    latencies.percentile(99.9) / 1000, latencies.max() / 1000));
+            json.append("},\n");
+            json.append(indent).append("  \"methods\": {");
+            boolean first = true;
+            for (Map.Entry<String, long[]> entry : perMethod.entrySet()) {
+                json.append(first ? "" : ", ").append('"').append(entry.getKey()).append("\": {\"requests\": ")
+                    .append(entry.getValue()[0]).append(", \"errors\": ").append(entry.getValue()[1]).append('}');
+                first = false;
+            }
+            json.append("}\n");
+            json.append(indent).append('}');
+            return json.toString();
+        }
+
+        private static void field(StringBuilder json, String indent, String name, String value) {
+            json.append(indent).append("  \"").append(name).append("\": ").append(value).append(",\n");
+        }
+    }
+
+    /**
+     * Log-linear latency histogram in nanoseconds (HDR-style): 64 linear sub-buckets per power of two,
+     * so every recorded value is kept within about 1.6% of its true value at any magnitude. Each worker
+     * records into its own instance; they are merged after the stage.
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 6;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private final long[] counts = new long[(64 - SUB_BITS) * SUB_BUCKETS + 2 * SUB_BUCKETS];
+        private long count;
+        private long max;
+
+        void record(long nanos) {
+            long value = Math.max(nanos, 0);
+            counts[index(value)]++;
+            count++;
+            max = Math.max(max, value);
+        }
+
+        // Values below 2 * SUB_BUCKETS are exact; above, the top SUB_BITS + 1 bits select the bucket
+        private static int index(long value) {
+            if (value < 2 * SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return shift * SUB_BUCKETS + (int) (value >>> shift);
+        }
+
+        // Largest value that falls into the bucket
+        private static long highestValue(int index) {
+            if (index < 2 * SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            long sub = index - shift * SUB_BUCKETS;
+            return ((sub + 1) << shift) - 1;
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            count += other.count;
+            max = Math.max(max, other.max);
+        }
+
+        long count() {
+            return count;
+        }
+
+        long max() {
+            return max;
+        }
+
+        long percentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValue(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
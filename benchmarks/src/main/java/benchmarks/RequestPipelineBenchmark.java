@@ -0,0 +1,173 @@
+package benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The RequestPipelineBenchmark class measures the per-request steps of ClientHandler in isolation:
+ * request line parsing, URI sanitizing, query and form parsing, path resolution and the dynamic
+ * POST page. Run with "-prof gc" to see the allocation rate (gc.alloc.rate.norm, bytes per operation)
+ * next to the throughput.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestPipelineBenchmark {
+
+    private static final MethodHandle NEW_HANDLER = ServerAccess.constructor("ClientHandler",
+            Socket.class, String.class, String.class);
+    private static final MethodHandle PARSE_HTTP_REQUEST = ServerAccess.method("ClientHandler",
+            "parseHTTPRequest", String.class);
+    private static final MethodHandle SANITIZE_URI = ServerAccess.method("ClientHandler",
+            "sanitizeUri", String.class);
+    private static final MethodHandle GET_PARAM_MAP = ServerAccess.method("ClientHandler",
+            "getParamMap", String.class);
+    private static final MethodHandle PARSE_FORM_DATA = ServerAccess.method("ClientHandler",
+            "parseFormData", String.class);
+    private static final MethodHandle NEW_FORM_DECODER = ServerAccess.constructor("FormDecoder");
+    private static final MethodHandle FORM_RESET = ServerAccess.method("FormDecoder", "reset");
+    private static final MethodHandle FORM_UPDATE = ServerAccess.method("FormDecoder",
+            "update", byte[].class, int.class, int.class);
+    private static final MethodHandle FORM_FINISH = ServerAccess.method("FormDecoder", "finish");
+    private static final MethodHandle NEW_PATH_RESOLVER = ServerAccess.constructor("PathResolver",
+            String.class, int.class);
+    private static final MethodHandle RESOLVE_PATH = ServerAccess.method("PathResolver",
+            "resolve", String.class);
+    private static final MethodHandle WRITE_DYNAMIC_HTML = ServerAccess.method("ClientHandler",
+            "writeDynamicHtml", Map.class, ServerAccess.type("ChunkedOutputStream"));
+    private static final MethodHandle NEW_CHUNKED_STREAM = ServerAccess.constructor("ChunkedOutputStream",
+            OutputStream.class);
+    private static final MethodHandle BEGIN_CHUNKED = ServerAccess.method("ChunkedOutputStream",
+            "begin", ServerAccess.type("ResponseWriter"), boolean.class);
+    private static final MethodHandle CLOSE_CHUNKED = ServerAccess.method("ChunkedOutputStream", "close");
+    private static final MethodHandle NEW_PARSER = ServerAccess.constructor("HttpRequestParser");
+    private static final MethodHandle NEW_REQUEST = ServerAccess.constructor("HttpRequest");
+    private static final MethodHandle READ_REQUEST = ServerAccess.method("HttpRequestParser",
+            "readRequest", InputStream.class, ServerAccess.type("HttpRequest"));
+
+    private static final String REQUEST_LINE = "GET /images/image2.jpg?width=200&height=100 HTTP/1.1";
+    private static final String TRAVERSAL_URI = "images//..//.//images///image2.jpg";
+    private static final String QUERY_URI = "params_info.html?name=alice&age=30&city=Tel%20Aviv&lang=en";
+    private static final String FORM_BODY = "name=alice&email=alice%40example.com&message=hello+world&subscribe=yes";
+    private static final byte[] FORM_BODY_BYTES = FORM_BODY.getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] RAW_REQUEST = ("GET /index.html HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) Chrome/120.0\r\n"
+            + "Accept: text/html,application/xhtml+xml\r\n"
+            + "Accept-Encoding: gzip, deflate\r\n"
+            + "Connection: keep-alive\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private Path root;
+    private Object handler;
+    private Object parser;
+    private Object request;
+    private Object uncachedResolver;
+    private Object cachedResolver;
+    private Object formDecoder;
+    private Object chunkedBody;
+    private Map<String, String> formParams;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Throwable {
+        root = Files.createTempDirectory("bench-root");
+        Files.createDirectories(root.resolve("images"));
+        Files.write(root.resolve("images/image2.jpg"), new byte[15080]);
+        handler = (Object) NEW_HANDLER.invokeExact((Object) new Socket(), (Object) root.toString(), (Object) "index.html");
+        parser = (Object) NEW_PARSER.invokeExact();
+        request = (Object) NEW_REQUEST.invokeExact();
+        uncachedResolver = (Object) NEW_PATH_RESOLVER.invokeExact((Object) root.toString(), 0);
+        cachedResolver = (Object) NEW_PATH_RESOLVER.invokeExact((Object) root.toString(), 1000);
+        formDecoder = (Object) NEW_FORM_DECODER.invokeExact();
+        chunkedBody = (Object) NEW_CHUNKED_STREAM.invokeExact((Object) OutputStream.nullOutputStream());
+        formParams = new LinkedHashMap<>((Map<String, String>) (Object) PARSE_FORM_DATA.invokeExact(handler, (Object) FORM_BODY));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        try (Stream<Path> files = Files.walk(root)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Object parseHTTPRequest() throws Throwable {
+        return (Object) PARSE_HTTP_REQUEST.invokeExact(handler, (Object) REQUEST_LINE);
+    }
+
+    // The byte-level parser that serves live connections, on a typical browser request
+    @Benchmark
+    public boolean parseRequestBytes() throws Throwable {
+        return (boolean) READ_REQUEST.invokeExact(parser, (Object) new ByteArrayInputStream(RAW_REQUEST), request);
+    }
+
+    @Benchmark
+    public Object sanitizeUri() throws Throwable {
+        return (Object) SANITIZE_URI.invokeExact(handler, (Object) TRAVERSAL_URI);
+    }
+
+    @Benchmark
+    public Object getParamMap() throws Throwable {
+        return (Object) GET_PARAM_MAP.invokeExact(handler, (Object) QUERY_URI);
+    }
+
+    @Benchmark
+    public Object parseFormData() throws Throwable {
+        return (Object) PARSE_FORM_DATA.invokeExact(handler, (Object) FORM_BODY);
+    }
+
+    // The same form decoded from the body bytes as they arrive, the way the server now receives it
+    @Benchmark
+    public Object decodeFormStreaming() throws Throwable {
+        FORM_RESET.invokeExact(formDecoder);
+        FORM_UPDATE.invokeExact(formDecoder, (Object) FORM_BODY_BYTES, 0, FORM_BODY_BYTES.length);
+        return (Object) FORM_FINISH.invokeExact(formDecoder);
+    }
+
+    // Path resolution with canonicalization, stat and content type probing on every call
+    @Benchmark
+    public Object resolvePathUncached() throws Throwable {
+        return (Object) RESOLVE_PATH.invokeExact(uncachedResolver, (Object) "images/image2.jpg");
+    }
+
+    // The same path answered from the resolution cache
+    @Benchmark
+    public Object resolvePathCached() throws Throwable {
+        return (Object) RESOLVE_PATH.invokeExact(cachedResolver, (Object) "images/image2.jpg");
+    }
+
+    // The POST response page, encoded into reused chunk buffers (written to a discarding stream)
+    @Benchmark
+    public void writeDynamicHtml() throws Throwable {
+        Object body = (Object) BEGIN_CHUNKED.invokeExact(chunkedBody, (Object) null, true);
+        WRITE_DYNAMIC_HTML.invokeExact(handler, (Object) formParams, body);
+        CLOSE_CHUNKED.invokeExact(body);
+    }
+}
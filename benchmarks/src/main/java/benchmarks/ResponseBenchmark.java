@@ -0,0 +1,75 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The ResponseBenchmark class measures ResponseUtil.sendSuccessResponse for a small and a large file,
+ * once through a plain OutputStream (bounded copy buffer) and once through a ChannelOutputStream
+ * (transferTo path). The output is discarded, so the numbers cover header assembly and file reading,
+ * not a real network.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseBenchmark {
+
+    private static final MethodHandle SEND_SUCCESS_RESPONSE = ServerAccess.method("ResponseUtil",
+            "sendSuccessResponse", File.class, String.class, OutputStream.class, boolean.class);
+    private static final MethodHandle NEW_CHANNEL_OUTPUT = ServerAccess.constructor("ChannelOutputStream",
+            WritableByteChannel.class);
+
+    // 2 KB is a typical HTML page, 1 MB a large image
+    @Param({ "2048", "1048576" })
+    public int fileSize;
+
+    private File file;
+    private final OutputStream streamSink = OutputStream.nullOutputStream();
+    private Object channelSink;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        Path path = Files.createTempFile("bench", ".html");
+        Files.write(path, new byte[fileSize]);
+        file = path.toFile();
+        channelSink = (Object) NEW_CHANNEL_OUTPUT.invokeExact((Object) Channels.newChannel(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public void sendSuccessResponseStream() throws Throwable {
+        SEND_SUCCESS_RESPONSE.invokeExact((Object) file, (Object) "text/html", (Object) streamSink, true);
+    }
+
+    @Benchmark
+    public void sendSuccessResponseChannel() throws Throwable {
+        SEND_SUCCESS_RESPONSE.invokeExact((Object) file, (Object) "text/html", channelSink, true);
+    }
+}
@@ -0,0 +1,61 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * The ServerAccess class looks up the server's classes, which live in the default package and so
+ * cannot be named from a package (JMH refuses benchmarks in the default package). It returns method
+ * handles whose parameter and return types are widened to Object; stored in static final fields they
+ * are constants to the JIT, so calling through them costs no more than a direct call.
+ */
+final class ServerAccess {
+
+    private ServerAccess() {
+    }
+
+    static Class<?> type(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Server class not on the classpath: " + className, e);
+        }
+    }
+
+    // Instance or static method of any visibility, with the declared parameter types
+    static MethodHandle method(String className, String name, Class<?>... parameterTypes) {
+        try {
+            Class<?> owner = type(className);
+            java.lang.reflect.Method method = owner.getDeclaredMethod(name, parameterTypes);
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(owner, MethodHandles.lookup());
+            return generic(lookup.unreflect(method));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot access " + className + "." + name, e);
+        }
+    }
+
+    static MethodHandle constructor(String className, Class<?>... parameterTypes) {
+        try {
+            Class<?> owner = type(className);
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(owner, MethodHandles.lookup());
+            return generic(lookup.unreflectConstructor(owner.getDeclaredConstructor(parameterTypes)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot access constructor of " + className, e);
+        }
+    }
+
+    // Reference parameters and return value become Object, so callers can use invokeExact without the server types
+    private static MethodHandle generic(MethodHandle handle) {
+        MethodType type = handle.type();
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (!type.parameterType(i).isPrimitive()) {
+                type = type.changeParameterType(i, Object.class);
+            }
+        }
+        if (!type.returnType().isPrimitive()) {
+            type = type.changeReturnType(Object.class);
+        }
+        return handle.asType(type);
+    }
+}
@@ -0,0 +1 @@
+keytool -genkeypair -alias server -keyalg EC -groupname secp256r1 -validity 365 -dname "CN=localhost" -ext "SAN=dns:localhost,ip:127.0.0.1" -keystore keystore.p12 -storetype PKCS12 -storepass changeit
@@ -0,0 +1,8 @@
+out=$(mktemp -d)
+javac -d "$out" Sources/*.java || exit 1
+status=0
+for test in Sources/*Test.java; do
+    java -cp "$out" "$(basename "$test" .java)" || status=1
+done
+rm -rf "$out"
+exit $status